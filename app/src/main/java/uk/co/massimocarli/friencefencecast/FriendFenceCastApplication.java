@@ -0,0 +1,303 @@
+package uk.co.massimocarli.friencefencecast;
+
+import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.media.MediaRouteSelector;
+import android.support.v7.media.MediaRouter;
+import android.util.Log;
+
+import com.google.android.gms.cast.CastMediaControlIntent;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import uk.co.massimocarli.friencefencecast.channel.InboundMessageDispatcher;
+import uk.co.massimocarli.friencefencecast.channel.MessageOutbox;
+import uk.co.massimocarli.friencefencecast.media.MediaSelector;
+import uk.co.massimocarli.friencefencecast.media.SharedPreferencesQualityStore;
+import uk.co.massimocarli.friencefencecast.metrics.LatencyHistogram;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+import uk.co.massimocarli.friencefencecast.route.DiscoveryScheduler;
+import uk.co.massimocarli.friencefencecast.route.RouteCache;
+import uk.co.massimocarli.friencefencecast.session.CastSessionEngine;
+import uk.co.massimocarli.friencefencecast.session.CastSessionPool;
+import uk.co.massimocarli.friencefencecast.session.CastTransportCache;
+import uk.co.massimocarli.friencefencecast.session.SharedPreferencesSessionStore;
+import uk.co.massimocarli.friencefencecast.ui.MainThreadMonitor;
+
+/**
+ * The Application that keeps the objects that must survive the recreation of the Activity
+ */
+public class FriendFenceCastApplication extends Application {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = FriendFenceCastApplication.class.getName();
+
+    /**
+     * The id  for the Cast App
+     */
+    public static final String APP_ID = "3E2097DE";
+
+    /**
+     * The name of the file for the messages sent while disconnected
+     */
+    private static final String OUTBOX_FILE_NAME = "cast_outbox";
+
+    /**
+     * The name of the thread where the Cast callbacks and the session logic run
+     */
+    private static final String CAST_THREAD_NAME = "cast";
+
+    /**
+     * The namespace of the custom channel
+     */
+    public static final String CUSTOM_NAMESPACE = "urn:x-cast:uk.co.massimocarli.friendfence";
+
+    /**
+     * The histogram of the time from the creation of the process to the first frame the user
+     * can interact with
+     */
+    public static final String METRIC_COLD_START_TO_INTERACTIVE = "app.cold_start_to_interactive";
+
+    /**
+     * The max number of connections with the devices we keep between the sessions
+     */
+    private static final int WARM_CONNECTIONS = 2;
+
+    /**
+     * The time the Application has been created and if the first frame has been reported
+     */
+    private final long mStartNanos = System.nanoTime();
+
+    private boolean mInteractiveReported;
+
+    /**
+     * The engine that manages the session with the Receiver
+     */
+    private CastSessionEngine mSessionEngine;
+
+    /**
+     * The pool for the sessions with many Receivers at the same time
+     */
+    private CastSessionPool mSessionPool;
+
+    /**
+     * The metrics of the Cast pipeline
+     */
+    private MetricsRegistry mMetrics;
+
+    /**
+     * The serial executor for the Cast callbacks, the session logic and the timers
+     */
+    private ScheduledExecutorService mCastExecutor;
+
+    /**
+     * The executor that runs the tasks on the main thread
+     */
+    private final Executor mMainThreadExecutor = new Executor() {
+
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mMainHandler.post(command);
+        }
+    };
+
+    /**
+     * The object that decides when the scan for the devices is active
+     */
+    private DiscoveryScheduler mDiscoveryScheduler;
+
+    /**
+     * The connections with the devices kept between the sessions
+     */
+    private CastTransportCache mTransportCache;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // All the Cast work runs on a single background thread so it never competes with
+        // the UI and it needs no synchronization between the callbacks
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, CAST_THREAD_NAME);
+                    }
+                });
+        mCastExecutor = scheduler;
+        final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+        final ExecutorService inboundExecutor = Executors.newSingleThreadExecutor();
+        mMetrics = new MetricsRegistry();
+        // The quality of each device is shared by the single session and the pool
+        final MediaSelector mediaSelector =
+                new MediaSelector(new SharedPreferencesQualityStore(this), mMetrics);
+        // Every engine, so every device, has its own cache of the sent messages
+        final int payloadCacheEntries =
+                getResources().getInteger(R.integer.payload_cache_entries);
+        mSessionEngine = new CastSessionEngine.Builder(APP_ID, CUSTOM_NAMESPACE)
+                .setScheduler(scheduler)
+                .setIoExecutor(ioExecutor)
+                .setSessionStore(new SharedPreferencesSessionStore(this))
+                .setInboundDispatcher(createInboundDispatcher(inboundExecutor))
+                .setMetrics(mMetrics)
+                .setOutbox(openOutbox(ioExecutor))
+                .setMediaSelector(mediaSelector)
+                .setPayloadCacheEntries(payloadCacheEntries)
+                .build();
+        // The devices of the pool share the executors but each one has its own session
+        // and its own channel
+        mSessionPool = new CastSessionPool(new CastSessionPool.EngineFactory() {
+            @Override
+            public CastSessionEngine createEngine(String routeId) {
+                return new CastSessionEngine.Builder(APP_ID, CUSTOM_NAMESPACE)
+                        .setScheduler(scheduler)
+                        .setIoExecutor(ioExecutor)
+                        .setSessionStore(new SharedPreferencesSessionStore(
+                                FriendFenceCastApplication.this,
+                                "cast_session_" + Integer.toHexString(routeId.hashCode())))
+                        .setInboundDispatcher(createInboundDispatcher(inboundExecutor))
+                        .setMetrics(mMetrics)
+                        .setMediaSelector(mediaSelector)
+                        .setPayloadCacheEntries(payloadCacheEntries)
+                        .build();
+            }
+        });
+        // The connection with a device can start before it's selected and survive the session
+        mTransportCache = new CastTransportCache(scheduler, WARM_CONNECTIONS,
+                getResources().getInteger(R.integer.warm_connection_idle_seconds) * 1000L,
+                mMetrics);
+        // We look for the devices that can launch our Receiver
+        final MediaRouteSelector mediaRouteSelector = new MediaRouteSelector.Builder()
+                .addControlCategory(CastMediaControlIntent.categoryForCast(APP_ID))
+                .build();
+        final RouteCache routeCache = new RouteCache(this,
+                getResources().getInteger(R.integer.route_cache_ttl_minutes) * 60000L);
+        mDiscoveryScheduler = new DiscoveryScheduler(MediaRouter.getInstance(this),
+                mediaRouteSelector, routeCache,
+                getResources().getInteger(R.integer.discovery_burst_seconds) * 1000L, mMetrics);
+        // We dump the metrics periodically if enabled
+        final int dumpPeriodSeconds =
+                getResources().getInteger(R.integer.metrics_dump_period_seconds);
+        if (dumpPeriodSeconds > 0) {
+            mMetrics.scheduleSnapshots(scheduler, dumpPeriodSeconds * 1000L,
+                    new MetricsRegistry.SnapshotSink() {
+                        @Override
+                        public void onSnapshot(String snapshot) {
+                            Log.i(TAG_LOG, "Cast metrics\n" + snapshot);
+                        }
+                    });
+        }
+        // The time the main thread is busy, to check the Cast work doesn't cause jank
+        if (getResources().getBoolean(R.bool.monitor_main_thread)) {
+            new MainThreadMonitor(mMetrics).start();
+        }
+    }
+
+    /**
+     * Utility method that creates the outbox for the messages sent while disconnected. Its
+     * file is opened in background so it doesn't slow down the start of the application
+     *
+     * @param ioExecutor The executor that opens the file
+     * @return The MessageOutbox or null if disabled
+     */
+    private MessageOutbox openOutbox(final Executor ioExecutor) {
+        final int sizeKb = getResources().getInteger(R.integer.outbox_size_kb);
+        if (sizeKb <= 0) {
+            return null;
+        }
+        return new MessageOutbox(new File(getFilesDir(), OUTBOX_FILE_NAME), sizeKb * 1024,
+                ioExecutor);
+    }
+
+    /**
+     * Records the time from the creation of the process to the first frame the user can
+     * interact with. Only the first call is recorded
+     */
+    public void reportInteractive() {
+        if (mInteractiveReported) {
+            return;
+        }
+        mInteractiveReported = true;
+        final long elapsedNanos = System.nanoTime() - mStartNanos;
+        final LatencyHistogram histogram = mMetrics.histogram(METRIC_COLD_START_TO_INTERACTIVE);
+        histogram.record(elapsedNanos);
+        Log.d(TAG_LOG, "Interactive after " + elapsedNanos / 1000000L + " ms");
+    }
+
+    /**
+     * Utility method that creates the dispatcher for the messages of a session
+     *
+     * @param executor The executor for the parsing and the handlers
+     * @return The InboundMessageDispatcher
+     */
+    private static InboundMessageDispatcher createInboundDispatcher(
+            final ExecutorService executor) {
+        final InboundMessageDispatcher inboundDispatcher = new InboundMessageDispatcher(executor);
+        // The messages we don't know are just logged
+        inboundDispatcher.setFallbackHandler(new InboundMessageDispatcher.RawMessageHandler() {
+            @Override
+            public void onMessage(String message) {
+                Log.d(TAG_LOG, "Unhandled message " + message);
+            }
+        });
+        return inboundDispatcher;
+    }
+
+    /**
+     * @return The engine that manages the session with the Receiver
+     */
+    public CastSessionEngine getSessionEngine() {
+        return mSessionEngine;
+    }
+
+    /**
+     * @return The serial executor for the Cast callbacks and the session operations
+     */
+    public ScheduledExecutorService getCastExecutor() {
+        return mCastExecutor;
+    }
+
+    /**
+     * @return The executor that runs the tasks on the main thread
+     */
+    public Executor getMainThreadExecutor() {
+        return mMainThreadExecutor;
+    }
+
+    /**
+     * @return The pool for the sessions with many Receivers at the same time
+     */
+    public CastSessionPool getSessionPool() {
+        return mSessionPool;
+    }
+
+    /**
+     * @return The object that decides when the scan for the devices is active
+     */
+    public DiscoveryScheduler getDiscoveryScheduler() {
+        return mDiscoveryScheduler;
+    }
+
+    /**
+     * @return The connections with the devices kept between the sessions
+     */
+    public CastTransportCache getTransportCache() {
+        return mTransportCache;
+    }
+
+    /**
+     * @return The metrics of the Cast pipeline
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+}
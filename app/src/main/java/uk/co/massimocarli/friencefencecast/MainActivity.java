@@ -15,18 +15,27 @@ import android.view.View;
 import android.widget.EditText;
 import android.widget.Toast;
 
-import com.google.android.gms.cast.Cast;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
 import com.google.android.gms.cast.CastDevice;
-import com.google.android.gms.cast.CastMediaControlIntent;
-import com.google.android.gms.cast.MediaInfo;
-import com.google.android.gms.cast.MediaMetadata;
-import com.google.android.gms.cast.RemoteMediaPlayer;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.common.api.Status;
 
-import java.io.IOException;
+import uk.co.massimocarli.friencefencecast.media.CommandFuture;
+import uk.co.massimocarli.friencefencecast.media.MediaItem;
+import uk.co.massimocarli.friencefencecast.media.MediaQueue;
+import uk.co.massimocarli.friencefencecast.media.Rendition;
+import uk.co.massimocarli.friencefencecast.route.DiscoveryScheduler;
+import uk.co.massimocarli.friencefencecast.session.CastSessionEngine;
+import uk.co.massimocarli.friencefencecast.session.CastSessionPool;
+import uk.co.massimocarli.friencefencecast.session.CastTransport;
+import uk.co.massimocarli.friencefencecast.session.CastTransportCache;
+import uk.co.massimocarli.friencefencecast.session.GmsCastTransport;
+import uk.co.massimocarli.friencefencecast.session.ResultListener;
+import uk.co.massimocarli.friencefencecast.trace.RecordingCastTransport;
+import uk.co.massimocarli.friencefencecast.ui.ThrottledUiState;
 
 /**
  * The Activity we use to start the ChromeCast
@@ -38,11 +47,6 @@ public class MainActivity extends ActionBarActivity {
      */
     private static final String TAG_LOG = MainActivity.class.getName();
 
-    /**
-     * The id  for the Cast App
-     */
-    private static final String APP_ID = "3E2097DE";
-
     /**
      * The Url for the Video to see
      */
@@ -53,40 +57,52 @@ public class MainActivity extends ActionBarActivity {
      */
     private static final String MP4_MEDIA_TYPE = "video/mp4";
 
+    /**
+     * The directory for the traces of the sessions
+     */
+    private static final String TRACE_DIR_NAME = "cast_traces";
+
     /**
      * The MediaRouter class
      */
     private MediaRouter mMediaRouter;
 
     /**
-     * The selected CastDevice
+     * The MediaRouteSelector to filter out application
      */
-    private CastDevice mCastDevice;
+    private MediaRouteSelector mMediaRouteSelector;
 
     /**
-     * The Client to interact with Google Play Services
+     * The engine that manages the session with the Receiver
      */
-    private GoogleApiClient mGoogleApiClient;
+    private CastSessionEngine mSessionEngine;
 
     /**
-     * The MediaRouteSelector to filter out application
+     * The object that decides when the scan for the devices is active
      */
-    private MediaRouteSelector mMediaRouteSelector;
+    private DiscoveryScheduler mDiscoveryScheduler;
 
     /**
-     * This variable permits us to know if the application has successfully started
+     * True if we reconnect to the route of the last session when it's discovered
      */
-    private boolean mApplicationStarted;
+    private boolean mAutoReconnect;
 
     /**
-     * The session identifier
+     * The connections with the devices, started before the selection if enabled
      */
-    private String mSessionId;
+    private CastTransportCache mTransportCache;
+
+    private boolean mPrewarm;
 
     /**
-     * The reference to the callback for the channel events
+     * The pool we use to cast to all the devices at the same time
      */
-    private LogChannelCallback mLogChannelCallback;
+    private CastSessionPool mSessionPool;
+
+    /**
+     * True if we cast to all the discovered devices instead of the selected one
+     */
+    private boolean mMultiDevice;
 
     /**
      * The EditText we use to input the message
@@ -94,9 +110,20 @@ public class MainActivity extends ActionBarActivity {
     private EditText mMessageEditText;
 
     /**
-     * The reference to the RemoteMediaPlayer
+     * The last playback command. Only its result is shown
+     */
+    private volatile CommandFuture mLastCommandFuture;
+
+    /**
+     * The serial executor for the Cast operations. They never run on the main thread
+     */
+    private Executor mCastExecutor;
+
+    /**
+     * The message to show about the Cast results. Only the last one is shown and not more
+     * often than the configured interval
      */
-    private RemoteMediaPlayer mRemoteMediaPlayer;
+    private ThrottledUiState<Integer> mResultMessage;
 
     /**
      * This is the callback interface we have to implement to get notification about
@@ -104,148 +131,183 @@ public class MainActivity extends ActionBarActivity {
      */
     private final MediaRouter.Callback mMediaRouterCallback = new MediaRouter.Callback() {
 
+        @Override
+        public void onRouteAdded(MediaRouter router, MediaRouter.RouteInfo info) {
+            if (mMultiDevice) {
+                addToPool(info);
+            } else {
+                prewarmIfLikely(info);
+                reconnectIfLastRoute(info);
+            }
+        }
+
+        @Override
+        public void onRouteRemoved(MediaRouter router, final MediaRouter.RouteInfo info) {
+            if (mMultiDevice) {
+                final String routeId = info.getId();
+                mCastExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mSessionPool.removeRoute(routeId);
+                    }
+                });
+            }
+        }
+
         @Override
         public void onRouteSelected(MediaRouter router, MediaRouter.RouteInfo info) {
-            // We save the reference to the selected device
-            mCastDevice = CastDevice.getFromBundle(info.getExtras());
-            // We get the related routeId
-            String routeId = info.getId();
-            // We launch the Receiver
-            launchReceiver(mCastDevice);
-            Log.d(TAG_LOG, "Discovered device " + mCastDevice);
+            // We get the reference to the selected device
+            final CastDevice castDevice = CastDevice.getFromBundle(info.getExtras());
+            final String routeId = info.getId();
+            // We launch the Receiver on the related route
+            mCastExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // A new transport would take the connection of the running session
+                    if (mSessionEngine.hasSession(routeId)) {
+                        return;
+                    }
+                    // The connection could be already started or still open from the last
+                    // session
+                    final CastTransport transport = mTransportCache.acquire(routeId,
+                            createTransportFactory(castDevice, routeId));
+                    if (!mSessionEngine.selectRoute(routeId, transport)) {
+                        Log.w(TAG_LOG, "Device " + castDevice + " is failing, try again later");
+                        return;
+                    }
+                    Log.d(TAG_LOG, "Discovered device " + castDevice);
+                }
+            });
         }
 
         @Override
         public void onRouteUnselected(MediaRouter router, MediaRouter.RouteInfo info) {
-            Log.d(TAG_LOG, "Disconnected device " + mCastDevice);
-            // We release the reference to the device
-            clearCast();
-            // We clear the reference
-            mCastDevice = null;
+            Log.d(TAG_LOG, "Disconnected device " + info.getName());
+            // We release the session
+            mCastExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSessionEngine.stop();
+                }
+            });
         }
     };
 
     /**
-     * This is the implementation of the listener for CastDevice
+     * The Listener for the events of the session
      */
-    private final Cast.Listener castListener = new Cast.Listener() {
-        @Override
-        public void onApplicationStatusChanged() {
-            if (mGoogleApiClient != null) {
-                // We get the new status
-                final String newStatus = Cast.CastApi.getApplicationStatus(mGoogleApiClient);
-                Log.d(TAG_LOG, "onApplicationStatusChanged: new Status" + newStatus);
-            }
-        }
-
+    private final CastSessionEngine.Listener mSessionListener = new CastSessionEngine.Listener() {
         @Override
-        public void onVolumeChanged() {
-            if (mGoogleApiClient != null) {
-                // We get the information related to the volume
-                final double newVolume = Cast.CastApi.getVolume(mGoogleApiClient);
-                Log.d(TAG_LOG, "onVolumeChanged: new value" + newVolume);
+        public void onStateChanged(CastSessionEngine.State oldState,
+                                   CastSessionEngine.State newState) {
+            Log.d(TAG_LOG, "Session state " + oldState + " -> " + newState);
+            if (newState == CastSessionEngine.State.RUNNING) {
+                Log.d(TAG_LOG, "Successfully started (" + mSessionEngine.getLastStartPath()
+                        + ") in " + mSessionEngine.getSelectToRunningNanos() / 1000000L + " ms "
+                        + mSessionEngine.getTimings());
             }
         }
 
         @Override
-        public void onApplicationDisconnected(int errorCode) {
-            // We close the application
-            clearCast();
+        public void onMessagesSent(final int messageCount, final boolean success) {
+            Log.d(TAG_LOG, "Batch of " + messageCount + " messages success: " + success);
+            mResultMessage.publish(success ? R.string.channel_send_message_success
+                    : R.string.channel_send_message_error);
         }
     };
 
     /**
-     * The Callback implementation to manage connection events
+     * The Listener for the buttons
      */
-    private final GoogleApiClient.ConnectionCallbacks mConnectionCallback =
-            new GoogleApiClient.ConnectionCallbacks() {
-                @Override
-                public void onConnected(Bundle bundle) {
-                    manageConnectedState(bundle);
-                }
-
-                @Override
-                public void onConnectionSuspended(int cause) {
-                    // We clear the CastDevice info
-                    clearCast();
-                }
-            };
-
-    /**
-     * The logic to implement the disconnection with the GoogleApiClient object
-     */
-    private final GoogleApiClient.OnConnectionFailedListener mConnectionFailedListener =
-            new GoogleApiClient.OnConnectionFailedListener() {
-                @Override
-                public void onConnectionFailed(ConnectionResult connectionResult) {
-                    Log.w(TAG_LOG, "Connection failed " + connectionResult);
-                    // In this case we just release resources
-                    clearCast();
-                }
-            };
+    private final View.OnClickListener mClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            switch (v.getId()) {
+                case R.id.message_send_button:
+                    // We check for the message to send
+                    final Editable msg = mMessageEditText.getText();
+                    if (!TextUtils.isEmpty(msg)) {
+                        sendCustomMessage(msg.toString());
+                    } else {
+                        Toast.makeText(MainActivity.this, R.string.channel_empty_message,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                    break;
+                case R.id.play_button:
+                    sendVideo();
+                    break;
+                case R.id.pause_button:
+                    pauseVideo();
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
 
     /**
-     * The class that describes a Channel that logs messages
+     * The Listener for the devices of the pool
      */
-    private static class LogChannelCallback implements Cast.MessageReceivedCallback {
-
-        /**
-         * @return The namespace for this MessageReceivedCallback
-         */
-        public String getNamespace() {
-            return "urn:x-cast:uk.co.massimocarli.friendfence";
+    private final CastSessionPool.Listener mPoolListener = new CastSessionPool.Listener() {
+        @Override
+        public void onDeviceStateChanged(String routeId, CastSessionEngine.State oldState,
+                                         CastSessionEngine.State newState) {
+            Log.d(TAG_LOG, "Device " + routeId + " state " + oldState + " -> " + newState);
         }
 
         @Override
-        public void onMessageReceived(CastDevice castDevice, String namespace,
-                                      String message) {
-            Log.d(TAG_LOG, "onMessageReceived from " + castDevice +
-                    " with namespace " + namespace
-                    + " message:" + message);
+        public void onDeviceMessagesSent(String routeId, int messageCount, boolean success) {
+            Log.d(TAG_LOG, "Device " + routeId + " batch of " + messageCount
+                    + " messages success: " + success);
         }
-    }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        // We initialize the MediaRouter
+        // We get the session that survives the recreation of the Activity
+        final FriendFenceCastApplication application =
+                (FriendFenceCastApplication) getApplication();
+        mCastExecutor = application.getCastExecutor();
+        mResultMessage = new ThrottledUiState<Integer>(application.getMainThreadExecutor(),
+                application.getCastExecutor(),
+                getResources().getInteger(R.integer.ui_min_update_interval_millis),
+                new ThrottledUiState.Renderer<Integer>() {
+                    @Override
+                    public void render(Integer messageRes) {
+                        Toast.makeText(MainActivity.this, messageRes, Toast.LENGTH_SHORT).show();
+                    }
+                });
+        mSessionEngine = application.getSessionEngine();
+        mSessionEngine.addListener(mSessionListener);
+        mSessionPool = application.getSessionPool();
+        mSessionPool.addListener(mPoolListener);
+        mTransportCache = application.getTransportCache();
+        // We initialize the MediaRouter. The discovery is driven by the DiscoveryScheduler
         mMediaRouter = MediaRouter.getInstance(getApplicationContext());
+        mDiscoveryScheduler = application.getDiscoveryScheduler();
         // We have to find devices that can launch the Receiver associated to
         // our application
-        mMediaRouteSelector = new MediaRouteSelector.Builder()
-                .addControlCategory(CastMediaControlIntent.categoryForCast(APP_ID))
-                .build();
+        mMediaRouteSelector = mDiscoveryScheduler.getMediaRouteSelector();
+        mAutoReconnect = getResources().getBoolean(R.bool.auto_reconnect);
+        mMultiDevice = getResources().getBoolean(R.bool.multi_device);
+        mPrewarm = getResources().getBoolean(R.bool.prewarm_cast_connection);
         // We get the reference to the EditText
         mMessageEditText = (EditText) findViewById(R.id.message_input_message);
-        // We attach the event to the button
-        findViewById(R.id.message_send_button).setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                // We check for the message to send
-                final Editable msg = mMessageEditText.getText();
-                if (!TextUtils.isEmpty(msg)) {
-                    sendCustomMessage(msg.toString());
-                } else {
-                    Toast.makeText(MainActivity.this, R.string.channel_empty_message,
-                            Toast.LENGTH_SHORT).show();
-                }
-            }
-        });
-        // We register the event for the play button
-        findViewById(R.id.play_button).setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                sendVideo();
-            }
-        });
-        // We register the event for the pause button
-        findViewById(R.id.pause_button).setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                pauseVideo();
-            }
-        });
+        // A single Listener for all the buttons
+        findViewById(R.id.message_send_button).setOnClickListener(mClickListener);
+        findViewById(R.id.play_button).setOnClickListener(mClickListener);
+        findViewById(R.id.pause_button).setOnClickListener(mClickListener);
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+        if (hasFocus) {
+            // The first frame is on the screen
+            ((FriendFenceCastApplication) getApplication()).reportInteractive();
+        }
     }
 
     @Override
@@ -277,255 +339,302 @@ public class MainActivity extends ActionBarActivity {
     @Override
     protected void onStart() {
         super.onStart();
-        mMediaRouter.addCallback(mMediaRouteSelector, mMediaRouterCallback,
-                MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY);
+        // Our callback doesn't request the discovery by itself. It's the DiscoveryScheduler
+        // that decides between active and passive scan
+        mMediaRouter.addCallback(mMediaRouteSelector, mMediaRouterCallback, 0);
+        mDiscoveryScheduler.start();
+        // The route of the last session, or the devices for the pool, could be already known
+        for (MediaRouter.RouteInfo route : mMediaRouter.getRoutes()) {
+            if (mMultiDevice) {
+                addToPool(route);
+            } else {
+                prewarmIfLikely(route);
+                reconnectIfLastRoute(route);
+            }
+        }
     }
 
     @Override
-    protected void onResume() {
-        super.onResume();
-        // We register the MediaRouterCallback interface
-        mMediaRouter.addCallback(mMediaRouteSelector, mMediaRouterCallback,
-                MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY);
+    protected void onStop() {
+        mDiscoveryScheduler.stop();
+        mMediaRouter.removeCallback(mMediaRouterCallback);
+        Log.d(TAG_LOG, "Active scan for " + mDiscoveryScheduler.getSessionActiveScanMillis()
+                + " ms");
+        if (!isChangingConfigurations()) {
+            // The connections started for a selection that didn't happen are closed
+            mTransportCache.trim();
+        }
+        super.onStop();
     }
 
     @Override
-    protected void onPause() {
-        // We remove the MediaRouterCallback interface if the Activity is finishing
+    protected void onDestroy() {
+        mSessionEngine.removeListener(mSessionListener);
+        mSessionPool.removeListener(mPoolListener);
+        mResultMessage.cancel();
+        // The session survives a configuration change. When the Activity ends we leave the
+        // Receiver running so we can join it the next time
         if (isFinishing()) {
-            mMediaRouter.removeCallback(mMediaRouterCallback);
+            mCastExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSessionEngine.disconnect();
+                    mSessionPool.disconnectAll();
+                }
+            });
         }
-        super.onPause();
-    }
-
-    @Override
-    protected void onStop() {
-        mMediaRouter.removeCallback(mMediaRouterCallback);
-        super.onStop();
+        super.onDestroy();
     }
 
     /**
-     * This utility method implements the code to starts the Receiver on the connected device
+     * Utility method that selects the given route if it's the one of the last session and
+     * we have no session yet
      *
-     * @param castDevice The connected CastDevice
+     * @param route The route to check
      */
-    private void launchReceiver(final CastDevice castDevice) {
-        // We initialize the Builder o create the Cast connection
-        Cast.CastOptions.Builder apiOptionsBuilder = Cast.CastOptions
-                .builder(castDevice, castListener);
-        // We initialize the GoogleApiClient object
-        mGoogleApiClient = new GoogleApiClient.Builder(this)
-                .addApi(Cast.API, apiOptionsBuilder.build())
-                .addConnectionCallbacks(mConnectionCallback)
-                .addOnConnectionFailedListener(mConnectionFailedListener)
-                .build();
-        // We connect
-        mGoogleApiClient.connect();
+    private void reconnectIfLastRoute(final MediaRouter.RouteInfo route) {
+        if (mAutoReconnect
+                && mSessionEngine.getState() == CastSessionEngine.State.IDLE
+                && route.getId().equals(mSessionEngine.getLastRouteId())
+                && route.matchesSelector(mMediaRouteSelector)) {
+            Log.d(TAG_LOG, "Reconnecting to the last route " + route.getName());
+            // The selection is notified to the onRouteSelected method
+            mMediaRouter.selectRoute(route);
+        }
     }
 
     /**
-     * Clean the MediaRouter data
+     * Utility method that starts the connection with the device of the given route if the
+     * user will probably select it: it's the device of the last session or, if there's none,
+     * one of the first devices discovered
+     *
+     * @param route The route to check
      */
-    private void clearCast() {
-        // If the GoogleApiClient is null we skip the operation
-        if (mGoogleApiClient == null) {
-            Log.w(TAG_LOG, "GoogleApiClient not correctly initialized!");
+    private void prewarmIfLikely(final MediaRouter.RouteInfo route) {
+        if (!mPrewarm || mSessionEngine.getState() != CastSessionEngine.State.IDLE
+                || !route.matchesSelector(mMediaRouteSelector)) {
             return;
         }
-        // We stop the application only if started
-        if (mApplicationStarted) {
-            if (mGoogleApiClient.isConnected() || mGoogleApiClient.isConnecting()) {
-                // We stop the application given its sessionId
-                Cast.CastApi.stopApplication(mGoogleApiClient, mSessionId);
-                try {
-                    Cast.CastApi.stopApplication(mGoogleApiClient, mSessionId);
-                    if (mLogChannelCallback != null) {
-                        Cast.CastApi.removeMessageReceivedCallbacks(
-                                mGoogleApiClient,
-                                mLogChannelCallback.getNamespace());
-                        mLogChannelCallback = null;
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG_LOG, "Exception while removing channel", e);
-                }
-                try {
-                    if (mRemoteMediaPlayer != null) {
-                        Cast.CastApi.removeMessageReceivedCallbacks(
-                                mGoogleApiClient,
-                                mRemoteMediaPlayer.getNamespace());
-                        mRemoteMediaPlayer = null;
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG_LOG, "Exception while removing channel", e);
+        final String lastRouteId = mSessionEngine.getLastRouteId();
+        final CastDevice castDevice = CastDevice.getFromBundle(route.getExtras());
+        if (castDevice != null && (lastRouteId == null || lastRouteId.equals(route.getId()))) {
+            Log.d(TAG_LOG, "Prewarming the connection to " + route.getName());
+            final String routeId = route.getId();
+            // The transport is created and used only on the cast thread
+            mCastExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mTransportCache.prewarm(routeId, createTransportFactory(castDevice,
+                            routeId));
                 }
-                mGoogleApiClient.disconnect();
+            });
+        }
+    }
+
+    /**
+     * Utility method that creates the Factory of the transport for a device
+     *
+     * @param castDevice The device
+     * @param routeId    The id of the route of the device
+     * @return The Factory for the CastTransportCache
+     */
+    private CastTransportCache.Factory createTransportFactory(final CastDevice castDevice,
+                                                              final String routeId) {
+        return new CastTransportCache.Factory() {
+            @Override
+            public CastTransport createTransport() {
+                return MainActivity.this.createTransport(castDevice, routeId);
             }
-            mApplicationStarted = false;
+        };
+    }
+
+    /**
+     * Utility method that creates the transport for a device. If enabled, the session is
+     * recorded into a trace file that can be replayed on a JVM
+     *
+     * @param castDevice The device
+     * @param routeId    The id of the route of the device
+     * @return The CastTransport for the device
+     */
+    private CastTransport createTransport(final CastDevice castDevice, final String routeId) {
+        final CastTransport transport =
+                new GmsCastTransport(MainActivity.this, castDevice, mCastExecutor);
+        if (!getResources().getBoolean(R.bool.record_session_traces)) {
+            return transport;
+        }
+        final File traceDir = new File(getFilesDir(), TRACE_DIR_NAME);
+        if (!traceDir.isDirectory() && !traceDir.mkdirs()) {
+            Log.w(TAG_LOG, "Unable to create " + traceDir);
+            return transport;
         }
-        // We reset all the objects
-        mGoogleApiClient = null;
-        mCastDevice = null;
-        mSessionId = null;
+        final String traceName = Integer.toHexString(routeId.hashCode()) + "-"
+                + System.currentTimeMillis() + ".trace";
+        return new RecordingCastTransport(transport, new File(traceDir, traceName));
     }
 
     /**
-     * Utility method that we use to manage the connected state
+     * Utility method that adds the device of the given route to the pool
      *
-     * @param data The data from the connected state
+     * @param route The route of the device
      */
-    private void manageConnectedState(final Bundle data) {
-        // In this case we're connected so we can launch the application
-        Cast.CastApi.launchApplication(mGoogleApiClient, APP_ID, false)
-                .setResultCallback(new ResultCallback<Cast.ApplicationConnectionResult>() {
+    private void addToPool(final MediaRouter.RouteInfo route) {
+        if (route.matchesSelector(mMediaRouteSelector)) {
+            final CastDevice castDevice = CastDevice.getFromBundle(route.getExtras());
+            if (castDevice != null) {
+                final String routeId = route.getId();
+                final CastTransport transport = createTransport(castDevice, routeId);
+                mCastExecutor.execute(new Runnable() {
                     @Override
-                    public void onResult(Cast.ApplicationConnectionResult result) {
-                        if (result.getStatus().isSuccess()) {
-                            Log.d(TAG_LOG, "Successfully launched");
-                            mApplicationStarted = true;
-                            // The session Id
-                            mSessionId = result.getSessionId();
-                            // We create the channel
-                            mLogChannelCallback = new LogChannelCallback();
-                            try {
-                                Cast.CastApi.setMessageReceivedCallbacks(mGoogleApiClient,
-                                        mLogChannelCallback.getNamespace(),
-                                        mLogChannelCallback);
-                            } catch (IOException e) {
-                                Log.e(TAG_LOG, "Creation channel error!", e);
-                            }
-                            // We initialize the RemoteMediaPLayer
-                            initRemoteMediaPlayer();
-                        } else {
-                            Log.d(TAG_LOG, "Launch failed!");
-                            mApplicationStarted = false;
+                    public void run() {
+                        if (!mSessionPool.addRoute(routeId, transport)) {
+                            Log.w(TAG_LOG, "Device " + castDevice + " is failing, skipped");
                         }
                     }
                 });
-    }
-
-    /**
-     * Utility method that init the RemoteMediaPlayer
-     */
-    private void initRemoteMediaPlayer() {
-        // We create the RemoteMediaPLayer
-        mRemoteMediaPlayer = new RemoteMediaPlayer();
-        try {
-            Cast.CastApi.setMessageReceivedCallbacks(mGoogleApiClient,
-                    mRemoteMediaPlayer.getNamespace(),
-                    mRemoteMediaPlayer);
-        } catch (IOException e) {
-            Log.e(TAG_LOG, "mRemoteMediaPlayer channel error!", e);
+            }
         }
-        // We have to synch the state
-        mRemoteMediaPlayer
-                .requestStatus(mGoogleApiClient)
-                .setResultCallback(
-                        new ResultCallback<RemoteMediaPlayer.MediaChannelResult>() {
-                            @Override
-                            public void onResult(RemoteMediaPlayer.MediaChannelResult result) {
-                                if (result.getStatus().isSuccess()) {
-                                    Log.d(TAG_LOG, "Sync successful");
-                                } else {
-                                    Log.e(TAG_LOG, "Failed to request status.");
-                                }
-                            }
-                        });
     }
 
     /**
-     * Utility method that send a message on the custom channel
+     * Utility method that send a message on the custom channel. The message is sent on the
+     * Cast executor and the result is shown when it arrives
      *
      * @param message The message to send
      */
     public void sendCustomMessage(final String message) {
-        // We check for the GoogleApiClient and the Channel callback implementation
-        if (mGoogleApiClient == null || mLogChannelCallback == null) {
-            Log.e(TAG_LOG, "Initialization failed!");
-            return;
-        }
-        try {
-            Cast.CastApi.sendMessage(mGoogleApiClient, mLogChannelCallback.getNamespace(), message)
-                    .setResultCallback(
-                            new ResultCallback<Status>() {
-                                @Override
-                                public void onResult(Status result) {
-                                    if (result.isSuccess()) {
-                                        Toast.makeText(MainActivity.this,
-                                                R.string.channel_send_message_success,
-                                                Toast.LENGTH_SHORT).show();
-                                    } else {
-                                        Toast.makeText(MainActivity.this,
-                                                R.string.channel_send_message_error,
-                                                Toast.LENGTH_SHORT).show();
-                                    }
-                                }
-                            });
-        } catch (Exception e) {
-            Log.e(TAG_LOG, "Error sending message", e);
-            Toast.makeText(this, R.string.channel_send_message_error, Toast.LENGTH_SHORT).show();
-        }
+        mCastExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mMultiDevice) {
+                    final int accepted = mSessionPool.broadcastMessage(message);
+                    Log.d(TAG_LOG, "Message sent to " + accepted + " devices");
+                    if (accepted == 0) {
+                        mResultMessage.publish(R.string.channel_send_message_error);
+                    }
+                    return;
+                }
+                // The messages are sent in batches. The result is notified to the
+                // mSessionListener. Without a session they are saved into the outbox
+                final boolean running =
+                        mSessionEngine.getState() == CastSessionEngine.State.RUNNING;
+                if (!mSessionEngine.sendMessage(message)) {
+                    Log.w(TAG_LOG, "Message dropped");
+                    mResultMessage.publish(R.string.channel_send_message_error);
+                } else if (!running) {
+                    mResultMessage.publish(R.string.channel_send_message_saved);
+                }
+            }
+        });
     }
 
     /**
-     * Utility method to send a message to play a video
+     * Utility method to send a message to play a video. The command is sent on the Cast
+     * executor
      */
     private void sendVideo() {
-        if (mGoogleApiClient == null) {
-            return;
+        mCastExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mMultiDevice) {
+                    if (mSessionPool.getMediaItems().isEmpty()) {
+                        mSessionPool.addMediaItem(createVideoItem());
+                    }
+                    logDeviceResults("play", mSessionPool.play());
+                    return;
+                }
+                if (mSessionEngine.getRemotePlayer() == null) {
+                    return;
+                }
+                // The queue survives the Activity so we add the video only the first time
+                final MediaQueue mediaQueue = mSessionEngine.getMediaQueue();
+                if (mediaQueue.getItems().isEmpty()) {
+                    mediaQueue.add(createVideoItem());
+                }
+                showCommandResult(mSessionEngine.getPlaybackPipeline().play(),
+                        R.string.channel_send_message_success,
+                        R.string.channel_send_message_error);
+            }
+        });
+    }
+
+    /**
+     * Utility method that creates the video to play with all its renditions. Without
+     * renditions into the configuration we play the default video
+     *
+     * @return The MediaItem for the video
+     */
+    private MediaItem createVideoItem() {
+        final String[] urls = getResources().getStringArray(R.array.video_rendition_urls);
+        final String[] types = getResources().getStringArray(R.array.video_rendition_types);
+        final int[] bitrates = getResources().getIntArray(R.array.video_rendition_bitrates);
+        final List<Rendition> renditions = new ArrayList<Rendition>(urls.length);
+        for (int i = 0; i < urls.length; i++) {
+            renditions.add(new Rendition(urls[i], types[i], bitrates[i]));
         }
-        // We create the MediaMetadata object to set the info about the Video
-        MediaMetadata mediaMetadata = new MediaMetadata(MediaMetadata.MEDIA_TYPE_MOVIE);
-        mediaMetadata.putString(MediaMetadata.KEY_TITLE, "FriendFence Video");
-        MediaInfo mediaInfo = new MediaInfo.Builder(VIDEO_URL)
-                .setContentType(MP4_MEDIA_TYPE)
-                .setStreamType(MediaInfo.STREAM_TYPE_BUFFERED)
-                .setMetadata(mediaMetadata)
-                .build();
-        try {
-            mRemoteMediaPlayer.load(mGoogleApiClient, mediaInfo, true)
-                    .setResultCallback(new ResultCallback<RemoteMediaPlayer.MediaChannelResult>() {
-                        @Override
-                        public void onResult(RemoteMediaPlayer.MediaChannelResult result) {
-                            if (result.getStatus().isSuccess()) {
-                                Toast.makeText(MainActivity.this,
-                                        R.string.channel_send_message_success,
-                                        Toast.LENGTH_SHORT).show();
-                            } else {
-                                Toast.makeText(MainActivity.this,
-                                        R.string.channel_send_message_error,
-                                        Toast.LENGTH_SHORT).show();
-                            }
-                        }
-                    });
-        } catch (IllegalStateException e) {
-            Log.e(TAG_LOG, "Problem occurred with media during loading", e);
-        } catch (Exception e) {
-            Log.e(TAG_LOG, "Problem opening media during loading", e);
+        if (renditions.isEmpty()) {
+            renditions.add(new Rendition(VIDEO_URL, MP4_MEDIA_TYPE, 0));
         }
+        return new MediaItem("FriendFence Video", renditions);
     }
 
     /**
-     * Utility method to send a message to pause a video
+     * Utility method to send a message to pause a video. The command is sent on the Cast
+     * executor
      */
     private void pauseVideo() {
-        if (mGoogleApiClient == null) {
-            return;
+        mCastExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mMultiDevice) {
+                    logDeviceResults("pause", mSessionPool.pause());
+                    return;
+                }
+                if (mSessionEngine.getRemotePlayer() == null) {
+                    return;
+                }
+                showCommandResult(mSessionEngine.getPlaybackPipeline().pause(),
+                        R.string.channel_paused_success, R.string.channel_paused_error);
+            }
+        });
+    }
+
+    /**
+     * Utility method that logs the result of a playback command for each device of the pool
+     *
+     * @param command The name of the command
+     * @param futures The completion of the command for each route
+     */
+    private void logDeviceResults(final String command, final Map<String, CommandFuture> futures) {
+        for (final Map.Entry<String, CommandFuture> entry : futures.entrySet()) {
+            entry.getValue().addListener(new ResultListener<Void>() {
+                @Override
+                public void onResult(boolean success, Void result) {
+                    Log.d(TAG_LOG, "Device " + entry.getKey() + " " + command
+                            + " success: " + success);
+                }
+            });
         }
-        mRemoteMediaPlayer.pause(mGoogleApiClient).setResultCallback(
-                new ResultCallback<RemoteMediaPlayer.MediaChannelResult>() {
-                    @Override
-                    public void onResult(RemoteMediaPlayer.MediaChannelResult result) {
-                        if (result.getStatus().isSuccess()) {
-                            Toast.makeText(MainActivity.this,
-                                    R.string.channel_paused_success,
-                                    Toast.LENGTH_SHORT).show();
-                        } else {
-                            Toast.makeText(MainActivity.this,
-                                    R.string.channel_paused_error,
-                                    Toast.LENGTH_SHORT).show();
-                        }
-                    }
-                });
+    }
+
+    /**
+     * Utility method that shows the result of a playback command. Only the result of the
+     * last command is shown so a burst of taps shows a single Toast
+     *
+     * @param future     The completion of the command
+     * @param successRes The message for the success
+     * @param errorRes   The message for the error
+     */
+    private void showCommandResult(final CommandFuture future, final int successRes,
+                                   final int errorRes) {
+        mLastCommandFuture = future;
+        future.addListener(new ResultListener<Void>() {
+            @Override
+            public void onResult(final boolean success, Void result) {
+                if (future == mLastCommandFuture) {
+                    mResultMessage.publish(success ? successRes : errorRes);
+                }
+            }
+        });
     }
 
 }
@@ -0,0 +1,54 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * The event the Receiver sends when it has processed a batch of messages
+ * <pre>
+ * {"type":"ack","seq":12}
+ * </pre>
+ */
+public class AckEvent extends InboundEvent {
+
+    /**
+     * The type of this event
+     */
+    public static final String TYPE = "ack";
+
+    /**
+     * The factory for this event
+     */
+    public static final InboundMessageDispatcher.EventFactory<AckEvent> FACTORY =
+            new InboundMessageDispatcher.EventFactory<AckEvent>() {
+                @Override
+                public AckEvent newEvent() {
+                    return new AckEvent();
+                }
+            };
+
+    private long mSeq = -1L;
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    /**
+     * @return The sequence number of the acknowledged batch
+     */
+    public long getSeq() {
+        return mSeq;
+    }
+
+    @Override
+    protected void clear() {
+        mSeq = -1L;
+    }
+
+    @Override
+    protected boolean readField(final JsonScanner scanner) {
+        if (scanner.isField("seq")) {
+            mSeq = scanner.readLong();
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,108 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * Minimal Base64 (RFC 4648, with padding) encoder and decoder. We don't use the platform
+ * one so the codecs can run on a plain JVM.
+ */
+public final class Base64Coder {
+
+    /**
+     * The alphabet for the encoding
+     */
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * The inverse of the alphabet. -1 for the invalid chars
+     */
+    private static final int[] INVERSE = new int[128];
+
+    static {
+        for (int i = 0; i < INVERSE.length; i++) {
+            INVERSE[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            INVERSE[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64Coder() {
+        throw new AssertionError("Never instantiate me!");
+    }
+
+    /**
+     * Encodes the given bytes
+     *
+     * @param data   The bytes to encode
+     * @param length The number of bytes to encode
+     * @return The Base64 String
+     */
+    public static String encode(final byte[] data, final int length) {
+        final char[] out = new char[(length + 2) / 3 * 4];
+        int o = 0;
+        int i = 0;
+        while (i + 2 < length) {
+            final int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[o++] = ALPHABET[(bits >>> 6) & 0x3f];
+            out[o++] = ALPHABET[bits & 0x3f];
+            i += 3;
+        }
+        final int remaining = length - i;
+        if (remaining > 0) {
+            final int bits = (data[i] & 0xff) << 16
+                    | (remaining == 2 ? (data[i + 1] & 0xff) << 8 : 0);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[o++] = remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : '=';
+            out[o] = '=';
+        }
+        return new String(out);
+    }
+
+    /**
+     * Decodes the given Base64 String
+     *
+     * @param encoded The Base64 String
+     * @return The decoded bytes
+     * @throws IllegalArgumentException If the String is not valid Base64
+     */
+    public static byte[] decode(final String encoded) {
+        final int length = encoded.length();
+        if (length % 4 != 0) {
+            throw new IllegalArgumentException("Invalid Base64 length " + length);
+        }
+        int padding = 0;
+        if (length > 0 && encoded.charAt(length - 1) == '=') {
+            padding++;
+            if (encoded.charAt(length - 2) == '=') {
+                padding++;
+            }
+        }
+        final byte[] out = new byte[length / 4 * 3 - padding];
+        int o = 0;
+        for (int i = 0; i < length; i += 4) {
+            int bits = 0;
+            for (int j = 0; j < 4; j++) {
+                final char c = encoded.charAt(i + j);
+                int value = 0;
+                if (c != '=') {
+                    value = c < 128 ? INVERSE[c] : -1;
+                    if (value < 0) {
+                        throw new IllegalArgumentException("Invalid Base64 char " + c);
+                    }
+                }
+                bits = bits << 6 | value;
+            }
+            out[o++] = (byte) (bits >>> 16);
+            if (o < out.length) {
+                out[o++] = (byte) (bits >>> 8);
+            }
+            if (o < out.length) {
+                out[o++] = (byte) bits;
+            }
+        }
+        return out;
+    }
+}
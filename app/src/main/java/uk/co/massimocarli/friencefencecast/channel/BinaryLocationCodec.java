@@ -0,0 +1,191 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The compact LocationCodec. The updates are written as bytes and the bytes are sent as a
+ * Base64 String (that never starts with '{' so the Receiver can tell it from JSON). The
+ * layout is
+ * <pre>
+ * version:byte kind:byte count:varint
+ * ( idLength:varint id:utf8 lat:zigzag lng:zigzag ts:zigzag )*
+ * </pre>
+ * where lat and lng are in micro degrees and lat, lng and ts are the difference from the
+ * previous update into the same message (from zero for the first one).
+ */
+public class BinaryLocationCodec implements LocationCodec {
+
+    /**
+     * The name of this encoding
+     */
+    public static final String NAME = "binary";
+
+    /**
+     * The kind of message for the location updates
+     */
+    private static final int KIND_LOCATIONS = 1;
+
+    /**
+     * The factor for the fixed point coordinates
+     */
+    private static final double COORDINATE_SCALE = 1e6;
+
+    /**
+     * The Charset for the ids
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String encode(final List<LocationUpdate> updates) {
+        final ByteWriter writer = new ByteWriter(8 + updates.size() * 24);
+        writer.writeByte(SCHEMA_VERSION);
+        writer.writeByte(KIND_LOCATIONS);
+        writer.writeVarint(updates.size());
+        long previousLatitude = 0;
+        long previousLongitude = 0;
+        long previousTimestamp = 0;
+        for (int i = 0; i < updates.size(); i++) {
+            final LocationUpdate update = updates.get(i);
+            final byte[] id = update.getFriendId().getBytes(UTF_8);
+            writer.writeVarint(id.length);
+            writer.writeBytes(id);
+            final long latitude = Math.round(update.getLatitude() * COORDINATE_SCALE);
+            final long longitude = Math.round(update.getLongitude() * COORDINATE_SCALE);
+            writer.writeZigZag(latitude - previousLatitude);
+            writer.writeZigZag(longitude - previousLongitude);
+            writer.writeZigZag(update.getTimestamp() - previousTimestamp);
+            previousLatitude = latitude;
+            previousLongitude = longitude;
+            previousTimestamp = update.getTimestamp();
+        }
+        return Base64Coder.encode(writer.mBuffer, writer.mSize);
+    }
+
+    @Override
+    public List<LocationUpdate> decode(final String message) {
+        final ByteReader reader = new ByteReader(Base64Coder.decode(message));
+        final int version = reader.readByte();
+        if (version != SCHEMA_VERSION) {
+            throw new IllegalArgumentException("Unknown schema version " + version);
+        }
+        final int kind = reader.readByte();
+        if (kind != KIND_LOCATIONS) {
+            throw new IllegalArgumentException("Unknown message kind " + kind);
+        }
+        final int count = (int) reader.readVarint();
+        final List<LocationUpdate> updates = new ArrayList<LocationUpdate>(count);
+        long latitude = 0;
+        long longitude = 0;
+        long timestamp = 0;
+        for (int i = 0; i < count; i++) {
+            final int idLength = (int) reader.readVarint();
+            final String friendId = reader.readString(idLength);
+            latitude += reader.readZigZag();
+            longitude += reader.readZigZag();
+            timestamp += reader.readZigZag();
+            updates.add(new LocationUpdate(friendId, latitude / COORDINATE_SCALE,
+                    longitude / COORDINATE_SCALE, timestamp));
+        }
+        return updates;
+    }
+
+    /**
+     * A growable buffer of bytes
+     */
+    private static final class ByteWriter {
+
+        private byte[] mBuffer;
+
+        private int mSize;
+
+        ByteWriter(final int capacity) {
+            this.mBuffer = new byte[capacity];
+        }
+
+        void writeByte(final int value) {
+            ensureCapacity(1);
+            mBuffer[mSize++] = (byte) value;
+        }
+
+        void writeBytes(final byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mSize, bytes.length);
+            mSize += bytes.length;
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                mBuffer[mSize++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mSize++] = (byte) value;
+        }
+
+        void writeZigZag(final long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        private void ensureCapacity(final int extra) {
+            if (mSize + extra > mBuffer.length) {
+                final byte[] newBuffer = new byte[Math.max(mBuffer.length * 2, mSize + extra)];
+                System.arraycopy(mBuffer, 0, newBuffer, 0, mSize);
+                mBuffer = newBuffer;
+            }
+        }
+    }
+
+    /**
+     * Reads the bytes written by the ByteWriter
+     */
+    private static final class ByteReader {
+
+        private final byte[] mData;
+
+        private int mPos;
+
+        ByteReader(final byte[] data) {
+            this.mData = data;
+        }
+
+        int readByte() {
+            if (mPos >= mData.length) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+            return mData[mPos++] & 0xff;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        long readZigZag() {
+            final long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString(final int length) {
+            if (length < 0 || mPos + length > mData.length) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+            final String value = new String(mData, mPos, length, UTF_8);
+            mPos += length;
+            return value;
+        }
+    }
+}
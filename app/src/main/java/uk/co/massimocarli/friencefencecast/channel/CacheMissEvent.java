@@ -0,0 +1,56 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * The event the Receiver sends when it gets a reference, or a delta, to a message it
+ * doesn't have anymore (see {@link PayloadCache}). The sender has to send the full message
+ * again
+ * <pre>
+ * {"type":"miss","h":"3kx0m2l9qa1c"}
+ * </pre>
+ */
+public class CacheMissEvent extends InboundEvent {
+
+    /**
+     * The type of this event
+     */
+    public static final String TYPE = "miss";
+
+    /**
+     * The factory for this event
+     */
+    public static final InboundMessageDispatcher.EventFactory<CacheMissEvent> FACTORY =
+            new InboundMessageDispatcher.EventFactory<CacheMissEvent>() {
+                @Override
+                public CacheMissEvent newEvent() {
+                    return new CacheMissEvent();
+                }
+            };
+
+    private String mHash;
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    /**
+     * @return The hash of the message the Receiver doesn't have
+     */
+    public String getHash() {
+        return mHash;
+    }
+
+    @Override
+    protected void clear() {
+        mHash = null;
+    }
+
+    @Override
+    protected boolean readField(final JsonScanner scanner) {
+        if (scanner.isField("h")) {
+            mHash = scanner.readString();
+            return true;
+        }
+        return false;
+    }
+}
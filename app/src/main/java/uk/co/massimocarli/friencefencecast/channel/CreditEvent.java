@@ -0,0 +1,99 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * The event the Receiver sends to grant the sender more messages. Each message sent on the
+ * custom channel uses a credit, so the sender never gets ahead of the Receiver by more than
+ * the credits it granted. The Receiver sends the first grant when it gets the hello and then
+ * one for the messages it has processed. A Receiver can also tell the sequence number of the
+ * last batch it got and the credits it expects the sender to still have, so the sender can
+ * recover the credits of the batches whose ack has been lost. They are negative if the
+ * sender sent more messages than the first grant before getting it
+ * <pre>
+ * {"type":"credit","credits":16,"seq":41,"available":20}
+ * </pre>
+ */
+public class CreditEvent extends InboundEvent {
+
+    /**
+     * The type of this event
+     */
+    public static final String TYPE = "credit";
+
+    /**
+     * The factory for this event
+     */
+    public static final InboundMessageDispatcher.EventFactory<CreditEvent> FACTORY =
+            new InboundMessageDispatcher.EventFactory<CreditEvent>() {
+                @Override
+                public CreditEvent newEvent() {
+                    return new CreditEvent();
+                }
+            };
+
+    private int mCredits;
+
+    private long mSeq = -1L;
+
+    private int mAvailable;
+
+    private boolean mHasAvailable;
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    /**
+     * @return The number of messages the Receiver grants
+     */
+    public int getCredits() {
+        return mCredits;
+    }
+
+    /**
+     * @return The sequence number of the last batch the Receiver got or -1
+     */
+    public long getSeq() {
+        return mSeq;
+    }
+
+    /**
+     * @return The credits the Receiver expects the sender to have, if {@link #hasState()}
+     */
+    public int getAvailable() {
+        return mAvailable;
+    }
+
+    /**
+     * @return True if the grant tells the state of the Receiver
+     */
+    public boolean hasState() {
+        return mSeq >= 0 && mHasAvailable;
+    }
+
+    @Override
+    protected void clear() {
+        mCredits = 0;
+        mSeq = -1L;
+        mAvailable = 0;
+        mHasAvailable = false;
+    }
+
+    @Override
+    protected boolean readField(final JsonScanner scanner) {
+        if (scanner.isField("credits")) {
+            mCredits = (int) scanner.readLong();
+            return true;
+        }
+        if (scanner.isField("seq")) {
+            mSeq = scanner.readLong();
+            return true;
+        }
+        if (scanner.isField("available")) {
+            mAvailable = (int) scanner.readLong();
+            mHasAvailable = true;
+            return true;
+        }
+        return false;
+    }
+}
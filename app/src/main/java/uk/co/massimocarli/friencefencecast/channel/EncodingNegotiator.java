@@ -0,0 +1,101 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * This is the object that chooses the LocationCodec for a session. At the session start we
+ * send a hello message with the encodings we support in order of preference and the
+ * Receiver answers with the one it has chosen. Until the answer arrives, or if the Receiver
+ * doesn't know the hello message, we use JSON. The hello also turns on the
+ * {@link PayloadCache}, if any, when the Receiver tells its size.
+ */
+public class EncodingNegotiator
+        implements InboundMessageDispatcher.EventHandler<HelloEvent> {
+
+    /**
+     * The codec every Receiver understands
+     */
+    private final LocationCodec mFallbackCodec = new JsonLocationCodec();
+
+    /**
+     * The codecs we support in order of preference
+     */
+    private final LocationCodec[] mCodecs = {new BinaryLocationCodec(), mFallbackCodec};
+
+    /**
+     * The codec we're using
+     */
+    private volatile LocationCodec mCodec = mFallbackCodec;
+
+    /**
+     * The cache of the sent messages or null
+     */
+    private final PayloadCache mPayloadCache;
+
+    /**
+     * Creates an EncodingNegotiator without PayloadCache
+     */
+    public EncodingNegotiator() {
+        this(null);
+    }
+
+    /**
+     * Creates an EncodingNegotiator
+     *
+     * @param payloadCache The cache of the sent messages or null
+     */
+    public EncodingNegotiator(final PayloadCache payloadCache) {
+        this.mPayloadCache = payloadCache;
+    }
+
+    /**
+     * Starts a new negotiation. We use the fallback codec, and no cache, until the Receiver
+     * answers.
+     *
+     * @return The hello message to send to the Receiver
+     */
+    public String startNegotiation() {
+        mCodec = mFallbackCodec;
+        if (mPayloadCache != null) {
+            mPayloadCache.reset();
+        }
+        final StringBuilder builder = new StringBuilder(64);
+        builder.append("{\"type\":\"").append(HelloEvent.TYPE).append("\",\"v\":")
+                .append(LocationCodec.SCHEMA_VERSION).append(",\"encodings\":[");
+        for (int i = 0; i < mCodecs.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            MessageEnvelope.appendQuoted(builder, mCodecs[i].getName());
+        }
+        builder.append(']');
+        if (mPayloadCache != null) {
+            builder.append(",\"cache\":").append(mPayloadCache.getMaxEntries());
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * @return The codec to use for the location messages
+     */
+    public LocationCodec getCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public void onEvent(final HelloEvent event) {
+        if (event.getVersion() != LocationCodec.SCHEMA_VERSION) {
+            // The Receiver uses a different schema so we keep the fallback
+            mCodec = mFallbackCodec;
+            return;
+        }
+        if (mPayloadCache != null && event.getCacheEntries() > 0) {
+            mPayloadCache.enable(event.getCacheEntries());
+        }
+        for (LocationCodec codec : mCodecs) {
+            if (codec.getName().equals(event.getEncoding())) {
+                mCodec = codec;
+                return;
+            }
+        }
+        mCodec = mFallbackCodec;
+    }
+}
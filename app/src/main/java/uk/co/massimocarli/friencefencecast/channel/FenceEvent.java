@@ -0,0 +1,121 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * The event we receive when a friend crosses a fence
+ * <pre>
+ * {"type":"fence","friendId":"f1","fenceId":"home","transition":"enter",
+ *  "lat":51.5072,"lng":-0.1275,"ts":1418000000000}
+ * </pre>
+ */
+public class FenceEvent extends InboundEvent {
+
+    /**
+     * The type of this event
+     */
+    public static final String TYPE = "fence";
+
+    /**
+     * The factory for this event
+     */
+    public static final InboundMessageDispatcher.EventFactory<FenceEvent> FACTORY =
+            new InboundMessageDispatcher.EventFactory<FenceEvent>() {
+                @Override
+                public FenceEvent newEvent() {
+                    return new FenceEvent();
+                }
+            };
+
+    /**
+     * The possible values for the transition field
+     */
+    private static final String[] TRANSITIONS = {"enter", "exit"};
+
+    private String mFriendId;
+
+    private String mFenceId;
+
+    private boolean mEntering;
+
+    private double mLatitude;
+
+    private double mLongitude;
+
+    private long mTimestamp;
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    /**
+     * @return The id of the friend
+     */
+    public String getFriendId() {
+        return mFriendId;
+    }
+
+    /**
+     * @return The id of the fence
+     */
+    public String getFenceId() {
+        return mFenceId;
+    }
+
+    /**
+     * @return True if the friend is entering the fence and false if exiting
+     */
+    public boolean isEntering() {
+        return mEntering;
+    }
+
+    /**
+     * @return The latitude of the friend
+     */
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    /**
+     * @return The longitude of the friend
+     */
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * @return The time of the event in milliseconds
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    protected void clear() {
+        mFriendId = null;
+        mFenceId = null;
+        mEntering = false;
+        mLatitude = 0.0;
+        mLongitude = 0.0;
+        mTimestamp = 0L;
+    }
+
+    @Override
+    protected boolean readField(final JsonScanner scanner) {
+        if (scanner.isField("friendId")) {
+            mFriendId = scanner.readString();
+        } else if (scanner.isField("fenceId")) {
+            mFenceId = scanner.readString();
+        } else if (scanner.isField("transition")) {
+            mEntering = scanner.readStringIndex(TRANSITIONS) == 0;
+        } else if (scanner.isField("lat")) {
+            mLatitude = scanner.readDouble();
+        } else if (scanner.isField("lng")) {
+            mLongitude = scanner.readDouble();
+        } else if (scanner.isField("ts")) {
+            mTimestamp = scanner.readLong();
+        } else {
+            return false;
+        }
+        return true;
+    }
+}
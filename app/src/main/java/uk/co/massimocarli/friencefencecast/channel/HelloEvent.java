@@ -0,0 +1,80 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * The answer of the Receiver to our hello message with the encoding it has chosen and, if
+ * it supports the {@link PayloadCache}, the number of messages it keeps
+ * <pre>
+ * {"type":"hello","v":1,"encoding":"binary","cache":128}
+ * </pre>
+ */
+public class HelloEvent extends InboundEvent {
+
+    /**
+     * The type of this event
+     */
+    public static final String TYPE = "hello";
+
+    /**
+     * The factory for this event
+     */
+    public static final InboundMessageDispatcher.EventFactory<HelloEvent> FACTORY =
+            new InboundMessageDispatcher.EventFactory<HelloEvent>() {
+                @Override
+                public HelloEvent newEvent() {
+                    return new HelloEvent();
+                }
+            };
+
+    private int mVersion;
+
+    private String mEncoding;
+
+    private int mCacheEntries;
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    /**
+     * @return The version of the schema of the Receiver
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return The name of the encoding chosen by the Receiver or null
+     */
+    public String getEncoding() {
+        return mEncoding;
+    }
+
+    /**
+     * @return The number of messages the Receiver keeps for the PayloadCache or 0
+     */
+    public int getCacheEntries() {
+        return mCacheEntries;
+    }
+
+    @Override
+    protected void clear() {
+        mVersion = 0;
+        mEncoding = null;
+        mCacheEntries = 0;
+    }
+
+    @Override
+    protected boolean readField(final JsonScanner scanner) {
+        if (scanner.isField("v")) {
+            mVersion = (int) scanner.readLong();
+        } else if (scanner.isField("encoding")) {
+            mEncoding = scanner.readString();
+        } else if (scanner.isField("cache")) {
+            mCacheEntries = (int) scanner.readLong();
+        } else {
+            return false;
+        }
+        return true;
+    }
+}
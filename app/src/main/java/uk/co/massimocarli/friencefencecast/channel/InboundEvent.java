@@ -0,0 +1,31 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * The base class for the typed events we receive from the Receiver on the custom channel.
+ * The events are filled field by field from a {@link JsonScanner} so they can be reused.
+ */
+public abstract class InboundEvent {
+
+    /**
+     * The name of the field with the type of the event
+     */
+    public static final String TYPE_FIELD = "type";
+
+    /**
+     * @return The value of the type field for this event
+     */
+    public abstract String getType();
+
+    /**
+     * Resets all the fields before reading a new message
+     */
+    protected abstract void clear();
+
+    /**
+     * Reads the current field of the scanner if it belongs to this event
+     *
+     * @param scanner The JsonScanner positioned on the value of a field
+     * @return True if the value has been read and false if it has to be skipped
+     */
+    protected abstract boolean readField(JsonScanner scanner);
+}
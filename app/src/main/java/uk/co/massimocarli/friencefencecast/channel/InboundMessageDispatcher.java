@@ -0,0 +1,303 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is the object that parses the messages we receive on the custom channel and routes
+ * them, by type, to the registered handlers. Parsing and handlers run on the given executor
+ * that must be serial: the JsonScanner and the reusable events are shared by all the
+ * messages.
+ */
+public class InboundMessageDispatcher {
+
+    /**
+     * The interface to implement to handle a type of event
+     *
+     * @param <E> The type of the event
+     */
+    public interface EventHandler<E extends InboundEvent> {
+
+        /**
+         * Invoked on the executor of the dispatcher. If the event is reusable it must not be
+         * kept after the method returns.
+         *
+         * @param event The event
+         */
+        void onEvent(E event);
+    }
+
+    /**
+     * The factory for a type of event
+     *
+     * @param <E> The type of the event
+     */
+    public interface EventFactory<E extends InboundEvent> {
+
+        /**
+         * @return A new event
+         */
+        E newEvent();
+    }
+
+    /**
+     * The interface to implement to handle the messages with no registered type
+     */
+    public interface RawMessageHandler {
+
+        /**
+         * Invoked on the executor of the dispatcher
+         *
+         * @param message The message as received
+         */
+        void onMessage(String message);
+    }
+
+    /**
+     * The route for a single type of event
+     *
+     * @param <E> The type of the event
+     */
+    private static final class Route<E extends InboundEvent> {
+
+        private final EventFactory<E> mFactory;
+
+        private final E mReusableEvent;
+
+        private final EventHandler<E> mHandler;
+
+        Route(final EventFactory<E> factory, final boolean reusable,
+              final EventHandler<E> handler) {
+            this.mFactory = factory;
+            this.mReusableEvent = reusable ? factory.newEvent() : null;
+            this.mHandler = handler;
+        }
+
+        /**
+         * Fills the event from the message and passes it to the handler
+         *
+         * @param scanner The JsonScanner to use
+         * @param message The message
+         * @return False if the message is malformed
+         */
+        boolean deliver(final JsonScanner scanner, final String message) {
+            final E event;
+            if (mReusableEvent != null) {
+                event = mReusableEvent;
+                event.clear();
+            } else {
+                event = mFactory.newEvent();
+                event.clear();
+            }
+            try {
+                // We read the message again from the beginning filling the event
+                scanner.reset(message);
+                while (scanner.nextField()) {
+                    if (scanner.isField(InboundEvent.TYPE_FIELD) || !event.readField(scanner)) {
+                        scanner.skipValue();
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            mHandler.onEvent(event);
+            return true;
+        }
+    }
+
+    /**
+     * The immutable table of the routes. We replace it on every registration
+     */
+    private static final class RouteTable {
+
+        private final String[] mTypes;
+
+        private final Route<?>[] mRoutes;
+
+        RouteTable(final String[] types, final Route<?>[] routes) {
+            this.mTypes = types;
+            this.mRoutes = routes;
+        }
+    }
+
+    /**
+     * The serial executor for parsing and handlers
+     */
+    private final Executor mExecutor;
+
+    /**
+     * The scanner we use on the executor
+     */
+    private final JsonScanner mScanner = new JsonScanner();
+
+    /**
+     * The current routes
+     */
+    private volatile RouteTable mRouteTable = new RouteTable(new String[0], new Route<?>[0]);
+
+    /**
+     * The handler for the messages with no route
+     */
+    private volatile RawMessageHandler mFallbackHandler;
+
+    private final AtomicLong mDispatchedCount = new AtomicLong();
+
+    private final AtomicLong mUnhandledCount = new AtomicLong();
+
+    private final AtomicLong mMalformedCount = new AtomicLong();
+
+    /**
+     * Creates an InboundMessageDispatcher
+     *
+     * @param executor The serial executor for parsing and handlers
+     */
+    public InboundMessageDispatcher(final Executor executor) {
+        this.mExecutor = executor;
+    }
+
+    /**
+     * Registers the handler for a type of event replacing the previous one if any
+     *
+     * @param type     The value of the type field
+     * @param factory  The factory for the event
+     * @param reusable True if the same event object can be used for all the messages
+     * @param handler  The handler for the event
+     * @param <E>      The type of the event
+     */
+    public synchronized <E extends InboundEvent> void register(final String type,
+                                                              final EventFactory<E> factory,
+                                                              final boolean reusable,
+                                                              final EventHandler<E> handler) {
+        final Route<E> route = new Route<E>(factory, reusable, handler);
+        final RouteTable table = mRouteTable;
+        int index = indexOf(table.mTypes, type);
+        final int size = index < 0 ? table.mTypes.length + 1 : table.mTypes.length;
+        final String[] types = new String[size];
+        final Route<?>[] routes = new Route<?>[size];
+        System.arraycopy(table.mTypes, 0, types, 0, table.mTypes.length);
+        System.arraycopy(table.mRoutes, 0, routes, 0, table.mRoutes.length);
+        if (index < 0) {
+            index = size - 1;
+        }
+        types[index] = type;
+        routes[index] = route;
+        mRouteTable = new RouteTable(types, routes);
+    }
+
+    /**
+     * Removes the handler for a type of event
+     *
+     * @param type The value of the type field
+     */
+    public synchronized void unregister(final String type) {
+        final RouteTable table = mRouteTable;
+        final int index = indexOf(table.mTypes, type);
+        if (index < 0) {
+            return;
+        }
+        final int size = table.mTypes.length - 1;
+        final String[] types = new String[size];
+        final Route<?>[] routes = new Route<?>[size];
+        System.arraycopy(table.mTypes, 0, types, 0, index);
+        System.arraycopy(table.mRoutes, 0, routes, 0, index);
+        System.arraycopy(table.mTypes, index + 1, types, index, size - index);
+        System.arraycopy(table.mRoutes, index + 1, routes, index, size - index);
+        mRouteTable = new RouteTable(types, routes);
+    }
+
+    /**
+     * @param fallbackHandler The handler for the messages with no registered type
+     */
+    public void setFallbackHandler(final RawMessageHandler fallbackHandler) {
+        this.mFallbackHandler = fallbackHandler;
+    }
+
+    /**
+     * Parses and routes the given message on the executor
+     *
+     * @param message The message received on the custom channel
+     */
+    public void dispatch(final String message) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                handle(message);
+            }
+        });
+    }
+
+    /**
+     * @return The number of messages delivered to a typed handler
+     */
+    public long getDispatchedCount() {
+        return mDispatchedCount.get();
+    }
+
+    /**
+     * @return The number of valid messages with no registered type
+     */
+    public long getUnhandledCount() {
+        return mUnhandledCount.get();
+    }
+
+    /**
+     * @return The number of messages that are not valid JSON objects
+     */
+    public long getMalformedCount() {
+        return mMalformedCount.get();
+    }
+
+    /**
+     * Parses and routes the given message on the current thread
+     *
+     * @param message The message to handle
+     */
+    private void handle(final String message) {
+        final RouteTable table = mRouteTable;
+        final JsonScanner scanner = mScanner;
+        Route<?> route = null;
+        boolean valid = false;
+        try {
+            // We look for the type field first
+            scanner.reset(message);
+            boolean typeFound = false;
+            while (!typeFound && scanner.nextField()) {
+                if (scanner.isField(InboundEvent.TYPE_FIELD)) {
+                    typeFound = true;
+                    final int index = scanner.readStringIndex(table.mTypes);
+                    route = index >= 0 ? table.mRoutes[index] : null;
+                } else {
+                    scanner.skipValue();
+                }
+            }
+            valid = true;
+        } catch (IllegalArgumentException e) {
+            route = null;
+        }
+        if (route != null) {
+            if (route.deliver(scanner, message)) {
+                mDispatchedCount.incrementAndGet();
+                return;
+            }
+            valid = false;
+        }
+        if (valid) {
+            mUnhandledCount.incrementAndGet();
+        } else {
+            mMalformedCount.incrementAndGet();
+        }
+        final RawMessageHandler fallbackHandler = mFallbackHandler;
+        if (fallbackHandler != null) {
+            fallbackHandler.onMessage(message);
+        }
+    }
+
+    private static int indexOf(final String[] types, final String type) {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i].equals(type)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,93 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The LocationCodec that uses JSON. This is the encoding every Receiver understands
+ * <pre>
+ * {"type":"locations","v":1,"items":[{"friendId":"f1","lat":51.5072,"lng":-0.1275,"ts":1418000000000}]}
+ * </pre>
+ */
+public class JsonLocationCodec implements LocationCodec {
+
+    /**
+     * The name of this encoding
+     */
+    public static final String NAME = "json";
+
+    /**
+     * The value of the type field
+     */
+    public static final String TYPE = "locations";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String encode(final List<LocationUpdate> updates) {
+        final StringBuilder builder = new StringBuilder(48 + updates.size() * 80);
+        builder.append("{\"type\":\"").append(TYPE).append("\",\"v\":").append(SCHEMA_VERSION)
+                .append(",\"items\":[");
+        for (int i = 0; i < updates.size(); i++) {
+            final LocationUpdate update = updates.get(i);
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"friendId\":");
+            MessageEnvelope.appendQuoted(builder, update.getFriendId());
+            builder.append(",\"lat\":").append(update.getLatitude())
+                    .append(",\"lng\":").append(update.getLongitude())
+                    .append(",\"ts\":").append(update.getTimestamp())
+                    .append('}');
+        }
+        return builder.append("]}").toString();
+    }
+
+    @Override
+    public List<LocationUpdate> decode(final String message) {
+        final JsonScanner scanner = new JsonScanner();
+        final List<LocationUpdate> updates = new ArrayList<LocationUpdate>();
+        scanner.reset(message);
+        while (scanner.nextField()) {
+            if (scanner.isField("v")) {
+                final long version = scanner.readLong();
+                if (version != SCHEMA_VERSION) {
+                    throw new IllegalArgumentException("Unknown schema version " + version);
+                }
+            } else if (scanner.isField("items")) {
+                scanner.enterArray();
+                while (scanner.nextElement()) {
+                    updates.add(readUpdate(scanner));
+                }
+            } else {
+                scanner.skipValue();
+            }
+        }
+        return updates;
+    }
+
+    private static LocationUpdate readUpdate(final JsonScanner scanner) {
+        String friendId = null;
+        double latitude = 0.0;
+        double longitude = 0.0;
+        long timestamp = 0L;
+        scanner.enterObject();
+        while (scanner.nextField()) {
+            if (scanner.isField("friendId")) {
+                friendId = scanner.readString();
+            } else if (scanner.isField("lat")) {
+                latitude = scanner.readDouble();
+            } else if (scanner.isField("lng")) {
+                longitude = scanner.readDouble();
+            } else if (scanner.isField("ts")) {
+                timestamp = scanner.readLong();
+            } else {
+                scanner.skipValue();
+            }
+        }
+        return new LocationUpdate(friendId, latitude, longitude, timestamp);
+    }
+}
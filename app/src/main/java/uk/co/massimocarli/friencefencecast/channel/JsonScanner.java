@@ -0,0 +1,443 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * A minimal streaming reader for the JSON objects we receive from the Receiver. It reads
+ * the fields of the top level object one at a time without building any tree, and the
+ * names and the values are compared in place so most of the operations don't allocate.
+ * Nested objects and arrays can only be skipped. The same instance can be reused calling
+ * {@link #reset(String)} and it's not thread safe.
+ */
+public final class JsonScanner {
+
+    /**
+     * The JSON we're reading
+     */
+    private String mJson;
+
+    /**
+     * The current position
+     */
+    private int mPos;
+
+    /**
+     * The position of the first char of the current field name
+     */
+    private int mNameStart;
+
+    /**
+     * The position after the last char of the current field name
+     */
+    private int mNameEnd;
+
+    /**
+     * True if the name of the current field contains escape sequences
+     */
+    private boolean mNameEscaped;
+
+    /**
+     * Starts reading the given JSON object
+     *
+     * @param json The JSON object to read
+     * @throws IllegalArgumentException If the message is not a JSON object
+     */
+    public void reset(final String json) {
+        mJson = json;
+        mPos = 0;
+        mNameStart = mNameEnd = 0;
+        skipWhitespaces();
+        expect('{');
+    }
+
+    /**
+     * Moves to the next field of the object. The value has to be read or skipped before
+     * calling this method again.
+     *
+     * @return True if there's another field and false at the end of the object
+     * @throws IllegalArgumentException If the JSON is malformed
+     */
+    public boolean nextField() {
+        skipWhitespaces();
+        char c = peek();
+        if (c == '}') {
+            mPos++;
+            return false;
+        }
+        if (c == ',') {
+            mPos++;
+            skipWhitespaces();
+        }
+        expect('"');
+        mNameStart = mPos;
+        mNameEscaped = containsEscapeUntilQuote(mPos);
+        mNameEnd = skipStringContent();
+        skipWhitespaces();
+        expect(':');
+        skipWhitespaces();
+        return true;
+    }
+
+    /**
+     * Enters the object that is the current value. Its fields are then read with
+     * {@link #nextField()} until it returns false.
+     */
+    public void enterObject() {
+        expect('{');
+    }
+
+    /**
+     * Enters the array that is the current value. Its elements are then read calling
+     * {@link #nextElement()} until it returns false.
+     */
+    public void enterArray() {
+        expect('[');
+    }
+
+    /**
+     * Moves to the next element of the current array
+     *
+     * @return True if there's another element and false at the end of the array
+     */
+    public boolean nextElement() {
+        skipWhitespaces();
+        final char c = peek();
+        if (c == ']') {
+            mPos++;
+            return false;
+        }
+        if (c == ',') {
+            mPos++;
+            skipWhitespaces();
+        }
+        return true;
+    }
+
+    /**
+     * @param name The name to check
+     * @return True if the current field has the given name
+     */
+    public boolean isField(final String name) {
+        return !mNameEscaped && mNameEnd - mNameStart == name.length()
+                && mJson.regionMatches(mNameStart, name, 0, name.length());
+    }
+
+    /**
+     * Reads the current value if it's a string equal to the expected one. The value is
+     * consumed in any case.
+     *
+     * @param expected The expected value
+     * @return True if the value is the expected string
+     */
+    public boolean readStringEquals(final String expected) {
+        if (peek() != '"') {
+            skipValue();
+            return false;
+        }
+        mPos++;
+        final int start = mPos;
+        final boolean escaped = containsEscapeUntilQuote(start);
+        final int end = skipStringContent();
+        if (escaped) {
+            return expected.equals(unescape(start, end));
+        }
+        return end - start == expected.length()
+                && mJson.regionMatches(start, expected, 0, expected.length());
+    }
+
+    /**
+     * Reads the current value and looks for it into the given candidates. The value is
+     * consumed in any case.
+     *
+     * @param candidates The possible values
+     * @return The index of the matching candidate or -1 if the value is not one of them
+     */
+    public int readStringIndex(final String[] candidates) {
+        if (peek() != '"') {
+            skipValue();
+            return -1;
+        }
+        mPos++;
+        final int start = mPos;
+        final boolean escaped = containsEscapeUntilQuote(start);
+        final int end = skipStringContent();
+        final String unescaped = escaped ? unescape(start, end) : null;
+        for (int i = 0; i < candidates.length; i++) {
+            final String candidate = candidates[i];
+            if (unescaped != null ? unescaped.equals(candidate)
+                    : end - start == candidate.length()
+                    && mJson.regionMatches(start, candidate, 0, candidate.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The current value as String or null if the value is null
+     */
+    public String readString() {
+        if (peek() == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        expect('"');
+        final int start = mPos;
+        final boolean escaped = containsEscapeUntilQuote(start);
+        final int end = skipStringContent();
+        return escaped ? unescape(start, end) : mJson.substring(start, end);
+    }
+
+    /**
+     * @return The current value as boolean
+     */
+    public boolean readBoolean() {
+        if (peek() == 't') {
+            expectLiteral("true");
+            return true;
+        }
+        expectLiteral("false");
+        return false;
+    }
+
+    /**
+     * @return The current value as long. The fractional part, if any, is ignored
+     */
+    public long readLong() {
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            mPos++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (mPos < mJson.length()) {
+            final char c = mJson.charAt(mPos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            digits++;
+            mPos++;
+        }
+        if (digits == 0) {
+            throw malformed();
+        }
+        // We skip fraction and exponent
+        while (mPos < mJson.length() && isNumberChar(mJson.charAt(mPos))) {
+            mPos++;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return The current value as double
+     */
+    public double readDouble() {
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            mPos++;
+        }
+        long mantissa = 0;
+        int scale = 0;
+        int digits = 0;
+        boolean fraction = false;
+        while (mPos < mJson.length()) {
+            final char c = mJson.charAt(mPos);
+            if (c >= '0' && c <= '9') {
+                // We ignore the digits that don't fit into the mantissa
+                if (mantissa < Long.MAX_VALUE / 10 - 9) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (fraction) {
+                        scale--;
+                    }
+                } else if (!fraction) {
+                    scale++;
+                }
+                digits++;
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+            mPos++;
+        }
+        if (digits == 0) {
+            throw malformed();
+        }
+        if (mPos < mJson.length() && (mJson.charAt(mPos) == 'e' || mJson.charAt(mPos) == 'E')) {
+            mPos++;
+            int sign = 1;
+            if (peek() == '-' || peek() == '+') {
+                sign = mJson.charAt(mPos) == '-' ? -1 : 1;
+                mPos++;
+            }
+            int exponent = 0;
+            while (mPos < mJson.length() && Character.isDigit(mJson.charAt(mPos))) {
+                exponent = exponent * 10 + (mJson.charAt(mPos) - '0');
+                mPos++;
+            }
+            scale += sign * exponent;
+        }
+        final double value = scale < 0 ? mantissa / Math.pow(10, -scale)
+                : mantissa * Math.pow(10, scale);
+        return negative ? -value : value;
+    }
+
+    /**
+     * Skips the current value whatever its type is
+     */
+    public void skipValue() {
+        final char c = peek();
+        switch (c) {
+            case '"':
+                mPos++;
+                skipStringContent();
+                break;
+            case '{':
+            case '[':
+                skipContainer();
+                break;
+            case 't':
+                expectLiteral("true");
+                break;
+            case 'f':
+                expectLiteral("false");
+                break;
+            case 'n':
+                expectLiteral("null");
+                break;
+            default:
+                if (c != '-' && !Character.isDigit(c)) {
+                    throw malformed();
+                }
+                while (mPos < mJson.length() && isNumberChar(mJson.charAt(mPos))) {
+                    mPos++;
+                }
+        }
+    }
+
+    /**
+     * Skips a nested object or array
+     */
+    private void skipContainer() {
+        int depth = 0;
+        while (mPos < mJson.length()) {
+            final char c = mJson.charAt(mPos++);
+            if (c == '"') {
+                skipStringContent();
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return;
+                }
+            }
+        }
+        throw malformed();
+    }
+
+    /**
+     * Moves after the closing quote of the current string
+     *
+     * @return The position of the closing quote
+     */
+    private int skipStringContent() {
+        while (mPos < mJson.length()) {
+            final char c = mJson.charAt(mPos);
+            if (c == '\\') {
+                mPos += 2;
+            } else if (c == '"') {
+                return mPos++;
+            } else {
+                mPos++;
+            }
+        }
+        throw malformed();
+    }
+
+    private boolean containsEscapeUntilQuote(final int start) {
+        for (int i = start; i < mJson.length(); i++) {
+            final char c = mJson.charAt(i);
+            if (c == '\\') {
+                return true;
+            } else if (c == '"') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private String unescape(final int start, final int end) {
+        final StringBuilder builder = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = mJson.charAt(i);
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            c = mJson.charAt(++i);
+            switch (c) {
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'u':
+                    if (i + 4 >= end) {
+                        throw malformed();
+                    }
+                    builder.append((char) Integer.parseInt(mJson.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static boolean isNumberChar(final char c) {
+        return (c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '-' || c == '+';
+    }
+
+    private void expectLiteral(final String literal) {
+        if (!mJson.regionMatches(mPos, literal, 0, literal.length())) {
+            throw malformed();
+        }
+        mPos += literal.length();
+    }
+
+    private void expect(final char expected) {
+        if (peek() != expected) {
+            throw malformed();
+        }
+        mPos++;
+    }
+
+    private char peek() {
+        if (mPos >= mJson.length()) {
+            throw malformed();
+        }
+        return mJson.charAt(mPos);
+    }
+
+    private void skipWhitespaces() {
+        while (mPos < mJson.length() && mJson.charAt(mPos) <= ' ') {
+            mPos++;
+        }
+    }
+
+    private IllegalArgumentException malformed() {
+        return new IllegalArgumentException("Malformed JSON at position " + mPos);
+    }
+}
@@ -0,0 +1,37 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import java.util.List;
+
+/**
+ * The encoding of the location messages on the custom channel. The message schema is
+ * versioned: every encoding contains the version it has been written with.
+ */
+public interface LocationCodec {
+
+    /**
+     * The current version of the message schema
+     */
+    int SCHEMA_VERSION = 1;
+
+    /**
+     * @return The name we use for this encoding during the negotiation
+     */
+    String getName();
+
+    /**
+     * Encodes the given updates into a single message
+     *
+     * @param updates The updates to encode
+     * @return The message to send
+     */
+    String encode(List<LocationUpdate> updates);
+
+    /**
+     * Decodes a message created with {@link #encode(List)}
+     *
+     * @param message The message to decode
+     * @return The updates into the message
+     * @throws IllegalArgumentException If the message is malformed or has an unknown version
+     */
+    List<LocationUpdate> decode(String message);
+}
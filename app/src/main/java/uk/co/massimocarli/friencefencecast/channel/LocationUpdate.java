@@ -0,0 +1,65 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * The position of a friend we send to the Receiver
+ */
+public final class LocationUpdate {
+
+    private final String mFriendId;
+
+    private final double mLatitude;
+
+    private final double mLongitude;
+
+    private final long mTimestamp;
+
+    /**
+     * Creates a LocationUpdate
+     *
+     * @param friendId  The id of the friend
+     * @param latitude  The latitude in degrees
+     * @param longitude The longitude in degrees
+     * @param timestamp The time of the position in milliseconds
+     */
+    public LocationUpdate(final String friendId, final double latitude, final double longitude,
+                          final long timestamp) {
+        this.mFriendId = friendId;
+        this.mLatitude = latitude;
+        this.mLongitude = longitude;
+        this.mTimestamp = timestamp;
+    }
+
+    /**
+     * @return The id of the friend
+     */
+    public String getFriendId() {
+        return mFriendId;
+    }
+
+    /**
+     * @return The latitude in degrees
+     */
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    /**
+     * @return The longitude in degrees
+     */
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * @return The time of the position in milliseconds
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "LocationUpdate{" + mFriendId + " " + mLatitude + "," + mLongitude
+                + " @" + mTimestamp + "}";
+    }
+}
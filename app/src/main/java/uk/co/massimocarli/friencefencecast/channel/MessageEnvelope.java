@@ -0,0 +1,163 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import java.util.List;
+
+/**
+ * Utility class that frames a batch of messages into a single envelope we can send on the
+ * custom channel. The envelope has the format
+ * <pre>
+ * {"seq":12,"messages":["first","second"],"refs":[1]}
+ * </pre>
+ * where refs, if present, has the positions of the messages the {@link PayloadCache} replaced
+ * with a reference or a delta. It's a field of the envelope, so the application messages
+ * can have any content.
+ */
+public final class MessageEnvelope {
+
+    /**
+     * The overhead for every message into the envelope (quotes and comma)
+     */
+    static final int MESSAGE_OVERHEAD = 3;
+
+    /**
+     * The fixed overhead of the envelope
+     */
+    static final int ENVELOPE_OVERHEAD = 40;
+
+    private MessageEnvelope() {
+        throw new AssertionError("Never instantiate me!");
+    }
+
+    /**
+     * Creates the envelope for the given messages
+     *
+     * @param seq      The sequence number of the batch
+     * @param messages The messages to put into the envelope
+     * @return The envelope as a String
+     */
+    public static String frame(final long seq, final List<String> messages) {
+        return frame(seq, messages, null);
+    }
+
+    /**
+     * Creates the envelope for the given messages, some of them encoded by the
+     * {@link PayloadCache}
+     *
+     * @param seq        The sequence number of the batch
+     * @param messages   The messages to put into the envelope
+     * @param refIndexes The positions of the references and of the deltas or null
+     * @return The envelope as a String
+     */
+    public static String frame(final long seq, final List<String> messages,
+                               final int[] refIndexes) {
+        final boolean hasRefs = refIndexes != null && refIndexes.length > 0;
+        int capacity = ENVELOPE_OVERHEAD + (hasRefs ? 10 + refIndexes.length * 4 : 0);
+        for (String message : messages) {
+            capacity += message.length() + MESSAGE_OVERHEAD;
+        }
+        final StringBuilder builder = new StringBuilder(capacity);
+        builder.append("{\"seq\":").append(seq).append(",\"messages\":[");
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            appendQuoted(builder, messages.get(i));
+        }
+        builder.append(']');
+        if (hasRefs) {
+            builder.append(",\"refs\":[");
+            for (int i = 0; i < refIndexes.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(refIndexes[i]);
+            }
+            builder.append(']');
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * Reads the messages of an envelope created with {@link #frame(long, List)}
+     *
+     * @param envelope The envelope
+     * @param messages The List to add the messages to
+     * @return The sequence number of the batch
+     * @throws IllegalArgumentException If the envelope is malformed
+     */
+    public static long unframe(final String envelope, final List<String> messages) {
+        return unframe(envelope, messages, null);
+    }
+
+    /**
+     * Reads the messages of an envelope created with {@link #frame(long, List, int[])}
+     *
+     * @param envelope   The envelope
+     * @param messages   The List to add the messages to
+     * @param refIndexes The List to add the positions of the references and of the deltas
+     *                   to or null
+     * @return The sequence number of the batch
+     * @throws IllegalArgumentException If the envelope is malformed
+     */
+    public static long unframe(final String envelope, final List<String> messages,
+                               final List<Integer> refIndexes) {
+        final JsonScanner scanner = new JsonScanner();
+        scanner.reset(envelope);
+        long seq = -1L;
+        while (scanner.nextField()) {
+            if (scanner.isField("seq")) {
+                seq = scanner.readLong();
+            } else if (scanner.isField("messages")) {
+                scanner.enterArray();
+                while (scanner.nextElement()) {
+                    messages.add(scanner.readString());
+                }
+            } else if (refIndexes != null && scanner.isField("refs")) {
+                scanner.enterArray();
+                while (scanner.nextElement()) {
+                    refIndexes.add((int) scanner.readLong());
+                }
+            } else {
+                scanner.skipValue();
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * Appends the given value as a JSON string
+     *
+     * @param builder The StringBuilder to append to
+     * @param value   The value to quote
+     */
+    public static void appendQuoted(final StringBuilder builder, final String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+}
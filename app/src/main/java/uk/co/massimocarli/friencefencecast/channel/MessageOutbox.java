@@ -0,0 +1,604 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * The messages for the custom channel that can't be sent because there's no session. They
+ * are appended to a memory-mapped file so they survive the process and are replayed in
+ * order when the session comes back. The file has the format
+ * <pre>
+ * header: magic(4) read position(8) write position(8)
+ * record: message length(4) key length(4, -1 if no key) crc32(4) key message
+ * </pre>
+ * A message with a key replaces the previous ones with the same key while every message
+ * without a key is replayed. When the file is full the pending messages are compacted into
+ * a new file and, if they still don't fit, the oldest ones are dropped. A replayed message
+ * stays into the outbox until the Receiver acknowledges it, so the messages lost with a
+ * batch or a process are replayed again, and the outbox is truncated up to the first
+ * message not acknowledged yet.
+ */
+public class MessageOutbox {
+
+    /**
+     * The interface to implement to receive the replayed messages
+     */
+    public interface Sink {
+
+        /**
+         * Invoked for every message to replay
+         *
+         * @param key      The key of the message or null
+         * @param message  The message
+         * @param callback The callback to invoke when the message has been delivered, or
+         *                 not, if it's accepted
+         * @return True if the message has been accepted, false to stop the replay
+         */
+        boolean onMessage(String key, String message,
+                          OutboundMessageQueue.DeliveryCallback callback);
+    }
+
+    /**
+     * The size of the header of the file
+     */
+    static final int HEADER_SIZE = 20;
+
+    /**
+     * The size of the header of a record
+     */
+    static final int RECORD_HEADER_SIZE = 12;
+
+    private static final int MAGIC = 0x46464f42;
+
+    private static final int READ_POSITION_OFFSET = 4;
+
+    private static final int WRITE_POSITION_OFFSET = 12;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A record read from the file
+     */
+    private static class Record {
+
+        final int mPosition;
+
+        final int mSize;
+
+        final String mKey;
+
+        final String mMessage;
+
+        Record(final int position, final int size, final String key, final String message) {
+            this.mPosition = position;
+            this.mSize = size;
+            this.mKey = key;
+            this.mMessage = message;
+        }
+    }
+
+    /**
+     * The callback of a replayed record
+     */
+    private class Delivery implements OutboundMessageQueue.DeliveryCallback {
+
+        /**
+         * The position of the record, which changes when the file is compacted
+         */
+        int mPosition;
+
+        final int mSize;
+
+        Delivery(final int position, final int size) {
+            this.mPosition = position;
+            this.mSize = size;
+        }
+
+        @Override
+        public void onDeliveryResult(final boolean delivered) {
+            onDelivery(this, delivered);
+        }
+    }
+
+    private final File mFile;
+
+    private final int mCapacity;
+
+    private final CRC32 mCrc = new CRC32();
+
+    private RandomAccessFile mRandomAccessFile;
+
+    private MappedByteBuffer mBuffer;
+
+    /**
+     * True when the file has been opened, or we tried to
+     */
+    private boolean mOpened;
+
+    /**
+     * The position of the first pending record
+     */
+    private int mReadPosition;
+
+    /**
+     * The position of the next record
+     */
+    private int mWritePosition;
+
+    private int mPendingCount;
+
+    /**
+     * The replayed records waiting for the ack by position
+     */
+    private final Map<Integer, Delivery> mInFlight = new HashMap<Integer, Delivery>();
+
+    /**
+     * The sizes of the acknowledged records that follow one not acknowledged yet by
+     * position
+     */
+    private final Map<Integer, Integer> mDelivered = new HashMap<Integer, Integer>();
+
+    /**
+     * The number of messages dropped because the outbox was full
+     */
+    private long mDroppedCount;
+
+    /**
+     * Opens the outbox in the given file, creating it if needed. The records after the
+     * last valid one, for instance because the process died while writing, are discarded
+     *
+     * @param file          The file of the outbox
+     * @param capacityBytes The size of the file
+     * @throws IOException If the file can't be mapped
+     */
+    public MessageOutbox(final File file, final int capacityBytes) throws IOException {
+        this(file, capacityBytes, false);
+        map();
+        recover();
+    }
+
+    /**
+     * Creates an outbox whose file is opened on the given executor so the caller doesn't
+     * wait for the storage. A method called before it waits for the file, and if the file
+     * can't be mapped the outbox refuses the messages
+     *
+     * @param file          The file of the outbox
+     * @param capacityBytes The size of the file
+     * @param openExecutor  The executor that opens the file
+     */
+    public MessageOutbox(final File file, final int capacityBytes, final Executor openExecutor) {
+        this(file, capacityBytes, true);
+        openExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MessageOutbox.this) {
+                    openLocked();
+                }
+            }
+        });
+    }
+
+    private MessageOutbox(final File file, final int capacityBytes, final boolean lazy) {
+        if (capacityBytes <= HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Capacity too small " + capacityBytes);
+        }
+        this.mFile = file;
+        this.mCapacity = capacityBytes;
+        this.mOpened = !lazy;
+    }
+
+    /**
+     * Adds a message to the outbox
+     *
+     * @param key     The key of the message or null. A message replaces the previous ones
+     *                with the same key
+     * @param message The message
+     * @return True if the message has been saved
+     */
+    public synchronized boolean append(final String key, final String message) {
+        openLocked();
+        final byte[] keyBytes = key != null ? key.getBytes(UTF_8) : null;
+        final byte[] messageBytes = message.getBytes(UTF_8);
+        final int size = RECORD_HEADER_SIZE + (keyBytes != null ? keyBytes.length : 0)
+                + messageBytes.length;
+        if (mBuffer == null || size > mCapacity - HEADER_SIZE) {
+            return false;
+        }
+        try {
+            if (mWritePosition + size > mCapacity) {
+                compact(size);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        mBuffer.putInt(mWritePosition, messageBytes.length);
+        mBuffer.putInt(mWritePosition + 4, keyBytes != null ? keyBytes.length : -1);
+        mBuffer.putInt(mWritePosition + 8, crc(keyBytes, messageBytes));
+        mBuffer.position(mWritePosition + RECORD_HEADER_SIZE);
+        if (keyBytes != null) {
+            mBuffer.put(keyBytes);
+        }
+        mBuffer.put(messageBytes);
+        // The record becomes visible only when the write position is updated
+        mWritePosition += size;
+        mBuffer.putLong(WRITE_POSITION_OFFSET, mWritePosition);
+        mPendingCount++;
+        return true;
+    }
+
+    /**
+     * Replays in order the pending messages that are not waiting for the ack. A message
+     * with a key superseded by a newer one is not replayed. The messages stay into the
+     * outbox until their callback tells they have been delivered
+     *
+     * @param sink The Sink for the messages
+     * @return The number of messages accepted by the Sink
+     */
+    public synchronized int replay(final Sink sink) {
+        openLocked();
+        if (mBuffer == null || mPendingCount == 0) {
+            return 0;
+        }
+        final List<Record> records = readPending();
+        final Set<Record> unique = deduplicate(records);
+        int accepted = 0;
+        for (Record record : records) {
+            final Integer position = record.mPosition;
+            if (mInFlight.containsKey(position) || mDelivered.containsKey(position)) {
+                continue;
+            }
+            if (!unique.contains(record)) {
+                // The newer message with the same key takes its place
+                mDelivered.put(position, record.mSize);
+                continue;
+            }
+            final Delivery delivery = new Delivery(record.mPosition, record.mSize);
+            mInFlight.put(position, delivery);
+            if (!sink.onMessage(record.mKey, record.mMessage, delivery)) {
+                mInFlight.remove(position);
+                break;
+            }
+            accepted++;
+        }
+        truncate();
+        return accepted;
+    }
+
+    /**
+     * @return True if there are no pending messages
+     */
+    public synchronized boolean isEmpty() {
+        openLocked();
+        return mPendingCount == 0;
+    }
+
+    /**
+     * @return The number of messages not acknowledged yet, the duplicates included
+     */
+    public synchronized int getPendingCount() {
+        openLocked();
+        return mPendingCount;
+    }
+
+    /**
+     * @return The bytes of the file used by the pending messages
+     */
+    public synchronized int getPendingBytes() {
+        openLocked();
+        return mWritePosition - mReadPosition;
+    }
+
+    /**
+     * @return The number of messages dropped because the outbox was full
+     */
+    public synchronized long getDroppedCount() {
+        openLocked();
+        return mDroppedCount;
+    }
+
+    /**
+     * Writes the pending changes to the storage and closes the file
+     */
+    public synchronized void close() {
+        // A file never opened stays closed
+        mOpened = true;
+        if (mBuffer != null) {
+            mBuffer.force();
+            mBuffer = null;
+        }
+        closeFile();
+    }
+
+    /**
+     * Makes room for a record of the given size. The pending records without the
+     * duplicates are written into a new file that replaces the current one. If they
+     * don't leave enough room the oldest ones are dropped
+     *
+     * @param size The size of the record to add
+     * @throws IOException If the new file can't be written
+     */
+    private void compact(final int size) throws IOException {
+        final List<Record> records = readPending();
+        final Set<Record> unique = deduplicate(records);
+        final List<Record> kept = new ArrayList<Record>(unique.size());
+        int keptBytes = 0;
+        for (Record record : records) {
+            // The delivered records and the superseded ones are not needed anymore
+            if (unique.contains(record) && !mDelivered.containsKey(record.mPosition)) {
+                kept.add(record);
+                keptBytes += record.mSize;
+            }
+        }
+        int first = 0;
+        while (HEADER_SIZE + keptBytes + size > mCapacity) {
+            keptBytes -= kept.get(first++).mSize;
+            mDroppedCount++;
+        }
+        // The records still waiting for the ack move with the others
+        final Map<Integer, Delivery> inFlight = new HashMap<Integer, Delivery>();
+        int newPosition = HEADER_SIZE;
+        for (int i = first; i < kept.size(); i++) {
+            final Record record = kept.get(i);
+            final Delivery delivery = mInFlight.get(record.mPosition);
+            if (delivery != null) {
+                delivery.mPosition = newPosition;
+                inFlight.put(newPosition, delivery);
+            }
+            newPosition += record.mSize;
+        }
+        // We write the new file aside so a crash leaves one of the two complete
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        final RandomAccessFile tempRandomAccessFile = new RandomAccessFile(tempFile, "rw");
+        try {
+            tempRandomAccessFile.setLength(mCapacity);
+            final MappedByteBuffer tempBuffer = tempRandomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+            tempBuffer.position(HEADER_SIZE);
+            for (int i = first; i < kept.size(); i++) {
+                final Record record = kept.get(i);
+                final MappedByteBuffer source = mBuffer;
+                source.limit(record.mPosition + record.mSize).position(record.mPosition);
+                tempBuffer.put(source);
+                source.clear();
+            }
+            tempBuffer.putInt(0, MAGIC);
+            tempBuffer.putLong(READ_POSITION_OFFSET, HEADER_SIZE);
+            tempBuffer.putLong(WRITE_POSITION_OFFSET, HEADER_SIZE + keptBytes);
+            tempBuffer.force();
+        } finally {
+            tempRandomAccessFile.close();
+        }
+        closeFile();
+        if (!tempFile.renameTo(mFile)) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+        map();
+        mReadPosition = HEADER_SIZE;
+        mWritePosition = HEADER_SIZE + keptBytes;
+        mPendingCount = kept.size() - first;
+        mInFlight.clear();
+        mInFlight.putAll(inFlight);
+        mDelivered.clear();
+    }
+
+    /**
+     * Returns the records to keep. For each key only the last one is kept while all the
+     * messages without a key are kept, even if they are equal
+     *
+     * @param records The pending records
+     * @return The records to keep
+     */
+    private static Set<Record> deduplicate(final List<Record> records) {
+        final Map<String, Record> lastByKey = new HashMap<String, Record>();
+        final Set<Record> unique = new HashSet<Record>();
+        for (Record record : records) {
+            if (record.mKey != null) {
+                final Record previous = lastByKey.put(record.mKey, record);
+                if (previous != null) {
+                    unique.remove(previous);
+                }
+            }
+            unique.add(record);
+        }
+        return unique;
+    }
+
+    /**
+     * Manages the result of a replayed record. The results of the records dropped or
+     * removed in the meantime are ignored
+     *
+     * @param delivery  The Delivery of the record
+     * @param delivered True if the record has been delivered
+     */
+    private synchronized void onDelivery(final Delivery delivery, final boolean delivered) {
+        if (mBuffer == null || mInFlight.get(delivery.mPosition) != delivery) {
+            return;
+        }
+        mInFlight.remove(delivery.mPosition);
+        if (delivered) {
+            mDelivered.put(delivery.mPosition, delivery.mSize);
+            truncate();
+        }
+        // Otherwise the record is replayed again
+    }
+
+    /**
+     * Removes the acknowledged records at the head of the outbox
+     */
+    private void truncate() {
+        final int readPosition = mReadPosition;
+        Integer size;
+        while ((size = mDelivered.remove(mReadPosition)) != null) {
+            mReadPosition += size;
+            mPendingCount--;
+        }
+        if (mPendingCount == 0) {
+            reset();
+        } else if (mReadPosition != readPosition) {
+            mBuffer.putLong(READ_POSITION_OFFSET, mReadPosition);
+        }
+    }
+
+    /**
+     * @return The pending records in order
+     */
+    private List<Record> readPending() {
+        final List<Record> records = new ArrayList<Record>(mPendingCount);
+        int position = mReadPosition;
+        while (position < mWritePosition) {
+            final Record record = readRecord(position, mWritePosition);
+            if (record == null) {
+                break;
+            }
+            records.add(record);
+            position += record.mSize;
+        }
+        return records;
+    }
+
+    /**
+     * Reads the record at the given position
+     *
+     * @param position The position of the record
+     * @param limit    The end of the valid data
+     * @return The Record or null if it's not valid
+     */
+    private Record readRecord(final int position, final int limit) {
+        if (position + RECORD_HEADER_SIZE > limit) {
+            return null;
+        }
+        final int messageLength = mBuffer.getInt(position);
+        final int keyLength = mBuffer.getInt(position + 4);
+        final int storedCrc = mBuffer.getInt(position + 8);
+        final int keySize = Math.max(keyLength, 0);
+        if (messageLength < 0 || keyLength < -1
+                || (long) position + RECORD_HEADER_SIZE + keySize + messageLength > limit) {
+            return null;
+        }
+        byte[] keyBytes = null;
+        if (keyLength >= 0) {
+            keyBytes = new byte[keyLength];
+            mBuffer.position(position + RECORD_HEADER_SIZE);
+            mBuffer.get(keyBytes);
+        }
+        final byte[] messageBytes = new byte[messageLength];
+        mBuffer.position(position + RECORD_HEADER_SIZE + keySize);
+        mBuffer.get(messageBytes);
+        if (crc(keyBytes, messageBytes) != storedCrc) {
+            return null;
+        }
+        return new Record(position, RECORD_HEADER_SIZE + keySize + messageLength,
+                keyBytes != null ? new String(keyBytes, UTF_8) : null,
+                new String(messageBytes, UTF_8));
+    }
+
+    /**
+     * Reads the positions from the header and checks the pending records. The outbox is
+     * truncated at the first record that is not valid
+     */
+    private void recover() {
+        final long readPosition = mBuffer.getLong(READ_POSITION_OFFSET);
+        final long writePosition = mBuffer.getLong(WRITE_POSITION_OFFSET);
+        if (mBuffer.getInt(0) != MAGIC || readPosition < HEADER_SIZE
+                || writePosition > mCapacity || readPosition > writePosition) {
+            // A new or damaged file
+            mBuffer.putInt(0, MAGIC);
+            reset();
+            return;
+        }
+        mReadPosition = (int) readPosition;
+        mWritePosition = (int) writePosition;
+        int position = mReadPosition;
+        int count = 0;
+        Record record;
+        while ((record = readRecord(position, mWritePosition)) != null) {
+            position += record.mSize;
+            count++;
+        }
+        mPendingCount = count;
+        if (position != mWritePosition) {
+            mWritePosition = position;
+            mBuffer.putLong(WRITE_POSITION_OFFSET, mWritePosition);
+        }
+        if (mPendingCount == 0) {
+            reset();
+        }
+    }
+
+    /**
+     * Empties the outbox. The write position is reset first so a crash in the middle
+     * leaves an empty outbox
+     */
+    private void reset() {
+        mReadPosition = HEADER_SIZE;
+        mWritePosition = HEADER_SIZE;
+        mPendingCount = 0;
+        mInFlight.clear();
+        mDelivered.clear();
+        mBuffer.putLong(WRITE_POSITION_OFFSET, HEADER_SIZE);
+        mBuffer.putLong(READ_POSITION_OFFSET, HEADER_SIZE);
+    }
+
+    private int crc(final byte[] keyBytes, final byte[] messageBytes) {
+        mCrc.reset();
+        if (keyBytes != null) {
+            mCrc.update(keyBytes, 0, keyBytes.length);
+        }
+        mCrc.update(messageBytes, 0, messageBytes.length);
+        return (int) mCrc.getValue();
+    }
+
+    /**
+     * Opens the file the first time
+     */
+    private void openLocked() {
+        if (mOpened) {
+            return;
+        }
+        mOpened = true;
+        try {
+            map();
+            recover();
+        } catch (IOException e) {
+            // Without the file the messages are refused
+            mBuffer = null;
+        }
+    }
+
+    private void map() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        try {
+            if (mRandomAccessFile.length() != mCapacity) {
+                mRandomAccessFile.setLength(mCapacity);
+            }
+            mBuffer = mRandomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+        } catch (IOException e) {
+            closeFile();
+            throw e;
+        }
+    }
+
+    private void closeFile() {
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+            mRandomAccessFile = null;
+        }
+    }
+}
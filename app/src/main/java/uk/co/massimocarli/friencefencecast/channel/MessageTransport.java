@@ -0,0 +1,35 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * The abstraction of the channel we use to send messages to the Receiver. It permits us
+ * to use the same logic with the real Cast channel and with a fake one.
+ */
+public interface MessageTransport {
+
+    /**
+     * The callback we use to get notification about the result of a send operation
+     */
+    interface SendCallback {
+
+        /**
+         * Invoked when the Receiver has acknowledged (or refused) the message
+         *
+         * @param success True if the message has been delivered
+         */
+        void onSendResult(boolean success);
+    }
+
+    /**
+     * @return True if the transport is able to send messages
+     */
+    boolean isReady();
+
+    /**
+     * Sends the given message on the given namespace
+     *
+     * @param namespace The namespace of the channel
+     * @param message   The message to send
+     * @param callback  The callback to notify with the result
+     */
+    void sendMessage(String namespace, String message, SendCallback callback);
+}
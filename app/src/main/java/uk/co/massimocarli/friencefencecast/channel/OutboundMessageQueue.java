@@ -0,0 +1,1047 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.co.massimocarli.friencefencecast.resilience.RetryPolicy;
+
+/**
+ * This is the queue we use to send messages on the custom channel. Messages are collected
+ * and sent in batches (see {@link MessageEnvelope}) when the batch is full or after a given
+ * delay. A message enqueued with a key replaces the pending message with the same key so
+ * superseded updates are never sent. When too many batches are waiting for the ack, the
+ * messages are held back until the Receiver catches up. A batch that fails, or whose ack
+ * doesn't arrive in time, is sent again with the same sequence number following the
+ * {@link RetryPolicy}. A message can have a {@link DeliveryCallback} to know if it has been
+ * delivered.
+ * <p/>
+ * Messages have a {@link Priority} and the batches are filled with the control messages
+ * first, then the presence ones and the telemetry last. When the queue is full a message
+ * takes the place of the oldest one of a lower priority, which is dropped. If the Receiver
+ * grants credits (see {@link #addCredits(int)}) every message sent uses one of them and
+ * nothing is sent without credits. The last credits are kept for the control messages so
+ * a flood of telemetry never delays them. The credits of a batch come back only if its send
+ * failed: after a timeout the Receiver could have it, so the credits are computed again from
+ * its next grant (see {@link #addCredits(int, long, int)}).
+ * <p/>
+ * With a {@link PayloadCache} the messages the Receiver already has are replaced with
+ * references, or deltas, when the batch is created.
+ */
+public class OutboundMessageQueue {
+
+    /**
+     * The most batches we remember before the first grant. A Receiver that doesn't grant
+     * the credits would never confirm them
+     */
+    private static final int MAX_UNCONFIRMED_BATCHES = 256;
+
+    /**
+     * The priority of a message
+     */
+    public enum Priority {
+        /**
+         * The messages that drive the session
+         */
+        CONTROL,
+        /**
+         * The messages about the users
+         */
+        PRESENCE,
+        /**
+         * The frequent updates we can drop when the Receiver is slow
+         */
+        TELEMETRY
+    }
+
+    /**
+     * The interface to implement to get notification about the sent batches
+     */
+    public interface Listener {
+
+        /**
+         * Invoked when a batch has been acknowledged or refused
+         *
+         * @param messageCount       The number of messages into the batch
+         * @param success            True if the batch has been delivered
+         * @param oldestLatencyNanos The time from the enqueue of the oldest message to the ack
+         * @param roundTripNanos     The time from the send of the batch to the ack
+         */
+        void onBatchResult(int messageCount, boolean success, long oldestLatencyNanos,
+                           long roundTripNanos);
+
+        /**
+         * Invoked when a pending message has been dropped to make room for one with a higher
+         * priority
+         *
+         * @param priority The priority of the dropped message
+         */
+        void onMessageShed(Priority priority);
+    }
+
+    /**
+     * The interface to implement to know the fate of a single message
+     */
+    public interface DeliveryCallback {
+
+        /**
+         * Invoked once when the batch with the message has been acknowledged or refused, or
+         * when the message has been dropped. A message superseded while pending shares the
+         * result of the one that replaced it
+         *
+         * @param delivered True if the message has been delivered
+         */
+        void onDeliveryResult(boolean delivered);
+    }
+
+    /**
+     * The Builder for the OutboundMessageQueue
+     */
+    public static class Builder {
+
+        private final MessageTransport mTransport;
+
+        private final String mNamespace;
+
+        private final ScheduledExecutorService mScheduler;
+
+        private int mMaxBatchMessages = 16;
+
+        private int mMaxBatchBytes = 32 * 1024;
+
+        private long mMaxDelayMillis = 50L;
+
+        private int mMaxInFlight = 2;
+
+        private int mMaxPending = 256;
+
+        private Listener mListener;
+
+        private RetryPolicy mRetryPolicy = RetryPolicy.NONE;
+
+        private long mSendTimeoutMillis;
+
+        private int mControlReserve = 2;
+
+        private PayloadCache mPayloadCache;
+
+        /**
+         * Creates a Builder for the queue
+         *
+         * @param transport The MessageTransport to use
+         * @param namespace The namespace of the channel
+         * @param scheduler The executor we use for the time based flush
+         */
+        public Builder(final MessageTransport transport, final String namespace,
+                       final ScheduledExecutorService scheduler) {
+            this.mTransport = transport;
+            this.mNamespace = namespace;
+            this.mScheduler = scheduler;
+        }
+
+        /**
+         * @param maxBatchMessages The max number of messages into a single batch
+         * @return The Builder itself
+         */
+        public Builder setMaxBatchMessages(final int maxBatchMessages) {
+            this.mMaxBatchMessages = maxBatchMessages;
+            return this;
+        }
+
+        /**
+         * @param maxBatchBytes The max size of a batch
+         * @return The Builder itself
+         */
+        public Builder setMaxBatchBytes(final int maxBatchBytes) {
+            this.mMaxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        /**
+         * @param maxDelayMillis The max time a message waits before being sent
+         * @return The Builder itself
+         */
+        public Builder setMaxDelayMillis(final long maxDelayMillis) {
+            this.mMaxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        /**
+         * @param maxInFlight The max number of batches waiting for the ack
+         * @return The Builder itself
+         */
+        public Builder setMaxInFlight(final int maxInFlight) {
+            this.mMaxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * @param maxPending The max number of messages waiting to be sent
+         * @return The Builder itself
+         */
+        public Builder setMaxPending(final int maxPending) {
+            this.mMaxPending = maxPending;
+            return this;
+        }
+
+        /**
+         * @param listener The Listener for the sent batches
+         * @return The Builder itself
+         */
+        public Builder setListener(final Listener listener) {
+            this.mListener = listener;
+            return this;
+        }
+
+        /**
+         * @param retryPolicy The policy for the batches that fail
+         * @return The Builder itself
+         */
+        public Builder setRetryPolicy(final RetryPolicy retryPolicy) {
+            this.mRetryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * @param sendTimeoutMillis The max time we wait for the ack of a batch or 0 to wait
+         *                          forever
+         * @return The Builder itself
+         */
+        public Builder setSendTimeoutMillis(final long sendTimeoutMillis) {
+            this.mSendTimeoutMillis = sendTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * @param controlReserve The number of credits only the control messages can use
+         * @return The Builder itself
+         */
+        public Builder setControlReserve(final int controlReserve) {
+            this.mControlReserve = controlReserve;
+            return this;
+        }
+
+        /**
+         * @param payloadCache The cache of the messages the Receiver already has or null
+         * @return The Builder itself
+         */
+        public Builder setPayloadCache(final PayloadCache payloadCache) {
+            this.mPayloadCache = payloadCache;
+            return this;
+        }
+
+        /**
+         * @return The OutboundMessageQueue
+         */
+        public OutboundMessageQueue build() {
+            if (mMaxBatchMessages < 1 || mMaxInFlight < 1 || mMaxPending < 1
+                    || mControlReserve < 0) {
+                throw new IllegalArgumentException("Batch, in-flight and pending limits must be positive");
+            }
+            return new OutboundMessageQueue(this);
+        }
+    }
+
+    /**
+     * A message waiting to be sent
+     */
+    private static class PendingMessage {
+
+        String mMessage;
+
+        final long mEnqueueTime;
+
+        /**
+         * The callbacks of the message and of the ones it replaced or null
+         */
+        List<DeliveryCallback> mCallbacks;
+
+        PendingMessage(final String message, final long enqueueTime) {
+            this.mMessage = message;
+            this.mEnqueueTime = enqueueTime;
+        }
+
+        void addCallback(final DeliveryCallback callback) {
+            if (callback != null) {
+                if (mCallbacks == null) {
+                    mCallbacks = new ArrayList<DeliveryCallback>(1);
+                }
+                mCallbacks.add(callback);
+            }
+        }
+    }
+
+    /**
+     * A batch waiting for the ack
+     */
+    private static class Batch {
+
+        final long mSeq;
+
+        final String mEnvelope;
+
+        final int mCount;
+
+        final long mOldestEnqueueTime;
+
+        /**
+         * The number of credits used by the batch
+         */
+        final int mCredits;
+
+        /**
+         * The messages of the batch for the PayloadCache or null
+         */
+        final PayloadCache.Token mCacheToken;
+
+        /**
+         * The callbacks of the messages of the batch or null
+         */
+        final List<DeliveryCallback> mCallbacks;
+
+        int mFailedAttempts;
+
+        /**
+         * True if an attempt had no result in time, so the Receiver could have the batch
+         */
+        boolean mTimedOut;
+
+        Batch(final long seq, final String envelope, final int count,
+              final long oldestEnqueueTime, final int credits,
+              final PayloadCache.Token cacheToken, final List<DeliveryCallback> callbacks) {
+            this.mSeq = seq;
+            this.mEnvelope = envelope;
+            this.mCount = count;
+            this.mOldestEnqueueTime = oldestEnqueueTime;
+            this.mCredits = credits;
+            this.mCacheToken = cacheToken;
+            this.mCallbacks = callbacks;
+        }
+    }
+
+    /**
+     * The transport we use to send the batches
+     */
+    private final MessageTransport mTransport;
+
+    /**
+     * The namespace of the channel
+     */
+    private final String mNamespace;
+
+    /**
+     * The executor for the time based flush
+     */
+    private final ScheduledExecutorService mScheduler;
+
+    private final int mMaxBatchMessages;
+
+    private final int mMaxBatchBytes;
+
+    private final long mMaxDelayMillis;
+
+    private final int mMaxInFlight;
+
+    private final int mMaxPending;
+
+    private final int mControlReserve;
+
+    /**
+     * The optional Listener for the batch results
+     */
+    private final Listener mListener;
+
+    /**
+     * The policy for the batches that fail
+     */
+    private final RetryPolicy mRetryPolicy;
+
+    /**
+     * The max time we wait for the ack of a batch or 0
+     */
+    private final long mSendTimeoutMillis;
+
+    /**
+     * The cache of the messages the Receiver already has or null
+     */
+    private final PayloadCache mPayloadCache;
+
+    /**
+     * The pending messages in order, one map for every Priority. Messages without a key use a
+     * unique Object as key
+     */
+    private final List<LinkedHashMap<Object, PendingMessage>> mLanes;
+
+    /**
+     * The Runnable for the time based flush
+     */
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (OutboundMessageQueue.this) {
+                mScheduledFlush = null;
+                mFlushDue = true;
+            }
+            sendAvailable();
+        }
+    };
+
+    /**
+     * The number and the estimated size of the pending messages
+     */
+    private int mPendingCount;
+
+    private int mPendingBytes;
+
+    /**
+     * True if the Receiver grants the credits and how many are left
+     */
+    private boolean mCreditMode;
+
+    private int mCredits;
+
+    /**
+     * The messages, and so the credits, of the batches sent since the last grant by
+     * sequence number. The Receiver could still count them
+     */
+    private final TreeMap<Long, Integer> mUnconfirmedCredits = new TreeMap<Long, Integer>();
+
+    /**
+     * True if the grants of the Receiver tell the last batch it got. Otherwise we forget the
+     * credits of a batch when it's acknowledged
+     */
+    private boolean mGrantsWithSeq;
+
+    /**
+     * The batches, among the unconfirmed ones, that timed out. Until a grant covers them we
+     * don't know if their credits have been used
+     */
+    private final Set<Long> mTimedOutSeqs = new HashSet<Long>();
+
+    /**
+     * The number of times the credits have been taken from the Receiver after a timeout
+     */
+    private long mCreditResyncCount;
+
+    /**
+     * True while the pending messages wait for the credits
+     */
+    private boolean mWaitingCredits;
+
+    /**
+     * The number of batches waiting for the ack
+     */
+    private int mInFlight;
+
+    /**
+     * The sequence number for the next batch
+     */
+    private long mNextSeq;
+
+    /**
+     * True if the pending messages have to be sent as soon as possible
+     */
+    private boolean mFlushDue;
+
+    private boolean mClosed;
+
+    private ScheduledFuture<?> mScheduledFlush;
+
+    /**
+     * The number of batches sent again after a failure
+     */
+    private long mRetryCount;
+
+    /**
+     * The number of dropped messages and of the times we ran out of credits
+     */
+    private long mShedCount;
+
+    private long mCreditStallCount;
+
+    private OutboundMessageQueue(final Builder builder) {
+        this.mTransport = builder.mTransport;
+        this.mNamespace = builder.mNamespace;
+        this.mScheduler = builder.mScheduler;
+        this.mMaxBatchMessages = builder.mMaxBatchMessages;
+        this.mMaxBatchBytes = builder.mMaxBatchBytes;
+        this.mMaxDelayMillis = builder.mMaxDelayMillis;
+        this.mMaxInFlight = builder.mMaxInFlight;
+        this.mMaxPending = builder.mMaxPending;
+        this.mControlReserve = builder.mControlReserve;
+        this.mListener = builder.mListener;
+        this.mRetryPolicy = builder.mRetryPolicy;
+        this.mSendTimeoutMillis = builder.mSendTimeoutMillis;
+        this.mPayloadCache = builder.mPayloadCache;
+        final Priority[] priorities = Priority.values();
+        this.mLanes = new ArrayList<LinkedHashMap<Object, PendingMessage>>(priorities.length);
+        for (int i = 0; i < priorities.length; i++) {
+            mLanes.add(new LinkedHashMap<Object, PendingMessage>());
+        }
+    }
+
+    /**
+     * Enqueues a message that can't be superseded
+     *
+     * @param message The message to send
+     * @return True if the message has been accepted
+     */
+    public boolean enqueue(final String message) {
+        return enqueue(null, message);
+    }
+
+    /**
+     * Enqueues a presence message. If a message with the same key is still pending it's
+     * replaced
+     *
+     * @param key     The key of the message or null if the message can't be superseded
+     * @param message The message to send
+     * @return True if the message has been accepted and false if the queue is full or closed
+     */
+    public boolean enqueue(final String key, final String message) {
+        return enqueue(Priority.PRESENCE, key, message);
+    }
+
+    /**
+     * Enqueues a message. If a message with the same priority and key is still pending it's
+     * replaced. If the queue is full the oldest message with a lower priority is dropped
+     *
+     * @param priority The priority of the message
+     * @param key      The key of the message or null if the message can't be superseded
+     * @param message  The message to send
+     * @return True if the message has been accepted and false if the queue is full of
+     * messages with the same or a higher priority or it's closed
+     */
+    public boolean enqueue(final Priority priority, final String key, final String message) {
+        return enqueue(priority, key, message, null);
+    }
+
+    /**
+     * Enqueues a message as {@link #enqueue(Priority, String, String)} does and tells the
+     * given callback if it has been delivered. The callback is not invoked if the message
+     * is refused
+     *
+     * @param priority The priority of the message
+     * @param key      The key of the message or null if the message can't be superseded
+     * @param message  The message to send
+     * @param callback The callback for the result of the message or null
+     * @return True if the message has been accepted
+     */
+    public boolean enqueue(final Priority priority, final String key, final String message,
+                           final DeliveryCallback callback) {
+        return enqueue(priority, key, message, callback, true);
+    }
+
+    /**
+     * Enqueues a message
+     *
+     * @param priority The priority of the message
+     * @param key      The key of the message or null if the message can't be superseded
+     * @param message  The message to send
+     * @param callback The callback for the result of the message or null
+     * @param replace  True to replace the pending message with the same key, false to keep it
+     * @return True if the message has been accepted or a pending one has been kept
+     */
+    private boolean enqueue(final Priority priority, final String key, final String message,
+                            final DeliveryCallback callback, final boolean replace) {
+        Priority shed = null;
+        List<DeliveryCallback> shedCallbacks = null;
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+            final LinkedHashMap<Object, PendingMessage> lane = mLanes.get(priority.ordinal());
+            final PendingMessage existing = key != null ? lane.get(key) : null;
+            if (existing != null && !replace) {
+                // The pending message is newer
+                return true;
+            } else if (existing != null) {
+                // We replace the superseded message keeping its position
+                mPendingBytes += message.length() - existing.mMessage.length();
+                existing.mMessage = message;
+                existing.addCallback(callback);
+            } else {
+                if (mPendingCount >= mMaxPending) {
+                    shedCallbacks = new ArrayList<DeliveryCallback>(1);
+                    shed = shedLocked(priority, shedCallbacks);
+                    if (shed == null) {
+                        return false;
+                    }
+                }
+                final Object mapKey = key != null ? key : new Object();
+                final PendingMessage pending = new PendingMessage(message, System.nanoTime());
+                pending.addCallback(callback);
+                lane.put(mapKey, pending);
+                mPendingCount++;
+                mPendingBytes += message.length() + MessageEnvelope.MESSAGE_OVERHEAD;
+            }
+        }
+        notifyDelivery(shedCallbacks, false);
+        if (shed != null && mListener != null) {
+            mListener.onMessageShed(shed);
+        }
+        sendAvailable();
+        return true;
+    }
+
+    /**
+     * Enqueues a message sent again because the Receiver missed it. If a message with the
+     * same priority and key is still pending it's newer, so this one is dropped
+     *
+     * @param priority The priority of the message
+     * @param key      The key of the message or null if the message can't be superseded
+     * @param message  The message to send
+     * @return True if the message has been accepted or a newer one is pending
+     */
+    public boolean resend(final Priority priority, final String key, final String message) {
+        return enqueue(priority, key, message, null, false);
+    }
+
+    /**
+     * Adds the credits granted by the Receiver. From the first grant every message sent uses
+     * a credit until {@link #resetCredits()}
+     *
+     * @param credits The number of messages the Receiver can accept
+     */
+    public void addCredits(final int credits) {
+        if (credits < 0) {
+            throw new IllegalArgumentException("Credits can't be negative: " + credits);
+        }
+        synchronized (this) {
+            if (!mCreditMode) {
+                // The grant doesn't tell which batches the Receiver got
+                mUnconfirmedCredits.clear();
+            }
+            mCreditMode = true;
+            mCredits += credits;
+        }
+        sendAvailable();
+    }
+
+    /**
+     * Adds the credits of a grant that also tells the state of the Receiver. After a
+     * timeout we don't know if the Receiver got the batch, so its credits are neither
+     * returned nor trusted: the credits are computed again from the ones the Receiver
+     * still expects, less the ones of the batches it hasn't seen yet. The same happens with
+     * the first grant because the Receiver also counts the messages sent before it
+     *
+     * @param credits   The number of messages the Receiver can accept
+     * @param lastSeq   The sequence number of the last batch the Receiver got
+     * @param available The credits the Receiver expects the sender to have. They are
+     *                  negative if we sent more messages than the first grant before it
+     */
+    public void addCredits(final int credits, final long lastSeq, final int available) {
+        if (credits < 0) {
+            throw new IllegalArgumentException("Credits can't be negative: " + credits);
+        }
+        synchronized (this) {
+            // The Receiver has counted the batches it got up to the last one
+            mUnconfirmedCredits.headMap(lastSeq, true).clear();
+            if (mCreditMode && mTimedOutSeqs.isEmpty()) {
+                mCredits += credits;
+            } else {
+                int unconfirmed = 0;
+                for (Integer batchCredits : mUnconfirmedCredits.values()) {
+                    unconfirmed += batchCredits;
+                }
+                // We wait for the messages over the credits to be processed
+                mCredits = available - unconfirmed;
+                if (!mTimedOutSeqs.isEmpty()) {
+                    mCreditResyncCount++;
+                    mTimedOutSeqs.retainAll(mUnconfirmedCredits.keySet());
+                }
+            }
+            mCreditMode = true;
+            mGrantsWithSeq = true;
+        }
+        sendAvailable();
+    }
+
+    /**
+     * Stops using the credits until the Receiver grants them again. We call it when a new
+     * Receiver starts because it may not support them
+     */
+    public void resetCredits() {
+        synchronized (this) {
+            mCreditMode = false;
+            mCredits = 0;
+            mWaitingCredits = false;
+            mGrantsWithSeq = false;
+            mUnconfirmedCredits.clear();
+            mTimedOutSeqs.clear();
+        }
+        sendAvailable();
+    }
+
+    /**
+     * Sends all the pending messages as soon as the in-flight limit permits it
+     */
+    public void flush() {
+        synchronized (this) {
+            mFlushDue = true;
+        }
+        sendAvailable();
+    }
+
+    /**
+     * Closes the queue dropping all the pending messages
+     */
+    public void close() {
+        final List<DeliveryCallback> dropped = new ArrayList<DeliveryCallback>();
+        synchronized (this) {
+            mClosed = true;
+            for (LinkedHashMap<Object, PendingMessage> lane : mLanes) {
+                for (PendingMessage pending : lane.values()) {
+                    if (pending.mCallbacks != null) {
+                        dropped.addAll(pending.mCallbacks);
+                    }
+                }
+                lane.clear();
+            }
+            mPendingCount = 0;
+            mPendingBytes = 0;
+            cancelScheduledFlushLocked();
+        }
+        notifyDelivery(dropped, false);
+    }
+
+    /**
+     * @return The number of messages waiting to be sent
+     */
+    public synchronized int getPendingCount() {
+        return mPendingCount;
+    }
+
+    /**
+     * @param priority The priority of the messages
+     * @return The number of messages with the given priority waiting to be sent
+     */
+    public synchronized int getPendingCount(final Priority priority) {
+        return mLanes.get(priority.ordinal()).size();
+    }
+
+    /**
+     * @return The credits left or -1 if the Receiver doesn't grant them. They are negative
+     * while the Receiver processes the messages sent before the first grant over it
+     */
+    public synchronized int getCredits() {
+        return mCreditMode ? mCredits : -1;
+    }
+
+    /**
+     * @return The number of messages dropped for the ones with a higher priority
+     */
+    public synchronized long getShedCount() {
+        return mShedCount;
+    }
+
+    /**
+     * @return The number of times the pending messages waited for the credits
+     */
+    public synchronized long getCreditStallCount() {
+        return mCreditStallCount;
+    }
+
+    /**
+     * @return The number of times the credits have been computed again after a timeout
+     */
+    public synchronized long getCreditResyncCount() {
+        return mCreditResyncCount;
+    }
+
+    /**
+     * @return The number of batches waiting for the ack
+     */
+    public synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    /**
+     * @return The number of batches sent again after a failure
+     */
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * Sends all the batches that are due while the in-flight limit and the credits permit it
+     */
+    private void sendAvailable() {
+        while (true) {
+            final Batch batch;
+            synchronized (this) {
+                if (mClosed || mPendingCount == 0) {
+                    return;
+                }
+                final boolean due = mFlushDue || mPendingCount >= mMaxBatchMessages
+                        || mPendingBytes >= mMaxBatchBytes;
+                if (!due) {
+                    scheduleFlushLocked();
+                    return;
+                }
+                if (mInFlight >= mMaxInFlight || !mTransport.isReady()) {
+                    // We send them when a batch is acknowledged or on the next flush
+                    mFlushDue = true;
+                    return;
+                }
+                // We move the messages from the pending queues to the batch in priority order
+                final int capacity = Math.min(mPendingCount, mMaxBatchMessages);
+                final List<String> messages = new ArrayList<String>(capacity);
+                List<DeliveryCallback> callbacks = null;
+                // The PayloadCache sends the missed messages again with their priority and key
+                final List<Priority> priorities = mPayloadCache != null
+                        ? new ArrayList<Priority>(capacity) : null;
+                final List<String> keys = mPayloadCache != null
+                        ? new ArrayList<String>(capacity) : null;
+                final Priority[] lanePriorities = Priority.values();
+                long oldest = Long.MAX_VALUE;
+                int bytes = MessageEnvelope.ENVELOPE_OVERHEAD;
+                boolean full = false;
+                for (int i = 0; i < mLanes.size() && !full; i++) {
+                    int limit = mMaxBatchMessages;
+                    if (mCreditMode) {
+                        final int reserve = i == Priority.CONTROL.ordinal() ? 0 : mControlReserve;
+                        limit = Math.min(limit, mCredits - reserve);
+                    }
+                    final Iterator<Map.Entry<Object, PendingMessage>> iterator =
+                            mLanes.get(i).entrySet().iterator();
+                    while (iterator.hasNext() && messages.size() < limit) {
+                        final Map.Entry<Object, PendingMessage> entry = iterator.next();
+                        final PendingMessage pending = entry.getValue();
+                        final int size = pending.mMessage.length()
+                                + MessageEnvelope.MESSAGE_OVERHEAD;
+                        if (!messages.isEmpty() && bytes + size > mMaxBatchBytes) {
+                            full = true;
+                            break;
+                        }
+                        messages.add(pending.mMessage);
+                        if (priorities != null) {
+                            priorities.add(lanePriorities[i]);
+                            keys.add(entry.getKey() instanceof String
+                                    ? (String) entry.getKey() : null);
+                        }
+                        if (pending.mCallbacks != null) {
+                            if (callbacks == null) {
+                                callbacks = new ArrayList<DeliveryCallback>();
+                            }
+                            callbacks.addAll(pending.mCallbacks);
+                        }
+                        oldest = Math.min(oldest, pending.mEnqueueTime);
+                        bytes += size;
+                        mPendingBytes -= size;
+                        mPendingCount--;
+                        iterator.remove();
+                    }
+                }
+                if (messages.isEmpty()) {
+                    // We send them when the Receiver grants more credits
+                    if (!mWaitingCredits) {
+                        mWaitingCredits = true;
+                        mCreditStallCount++;
+                    }
+                    mFlushDue = true;
+                    cancelScheduledFlushLocked();
+                    return;
+                }
+                mWaitingCredits = false;
+                final int credits = mCreditMode ? messages.size() : 0;
+                mCredits -= credits;
+                // Before the first grant the messages don't use credits but the Receiver
+                // counts them, so the grant has to know about the ones it hasn't seen
+                mUnconfirmedCredits.put(mNextSeq, messages.size());
+                if (mUnconfirmedCredits.size() > MAX_UNCONFIRMED_BATCHES) {
+                    mUnconfirmedCredits.pollFirstEntry();
+                }
+                if (mPendingCount == 0) {
+                    mFlushDue = false;
+                    mPendingBytes = 0;
+                    cancelScheduledFlushLocked();
+                }
+                mInFlight++;
+                final int count = messages.size();
+                // The retries send the same envelope so the encoding happens only once
+                final PayloadCache.Token cacheToken = mPayloadCache != null
+                        ? mPayloadCache.encode(messages, priorities, keys) : null;
+                final long seq = mNextSeq++;
+                batch = new Batch(seq, MessageEnvelope.frame(seq, messages,
+                        cacheToken != null ? cacheToken.getRefIndexes() : null), count,
+                        oldest, credits, cacheToken, callbacks);
+            }
+            sendBatch(batch);
+        }
+    }
+
+    /**
+     * Drops the oldest pending message with a priority lower than the given one
+     *
+     * @param priority  The priority of the message that needs the room
+     * @param callbacks The list for the callbacks of the dropped message
+     * @return The priority of the dropped message or null if there's none
+     */
+    private Priority shedLocked(final Priority priority,
+                                final List<DeliveryCallback> callbacks) {
+        final Priority[] priorities = Priority.values();
+        for (int i = priorities.length - 1; i > priority.ordinal(); i--) {
+            final Iterator<PendingMessage> iterator = mLanes.get(i).values().iterator();
+            if (iterator.hasNext()) {
+                final PendingMessage dropped = iterator.next();
+                iterator.remove();
+                mPendingCount--;
+                mPendingBytes -= dropped.mMessage.length() + MessageEnvelope.MESSAGE_OVERHEAD;
+                mShedCount++;
+                if (dropped.mCallbacks != null) {
+                    callbacks.addAll(dropped.mCallbacks);
+                }
+                return priorities[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends a batch. The result is the first between the ack and the timeout. If the queue
+     * has been closed while a retry was waiting the batch fails without being sent
+     *
+     * @param batch The batch to send
+     */
+    private void sendBatch(final Batch batch) {
+        final long sendTime = System.nanoTime();
+        final boolean closed;
+        synchronized (this) {
+            closed = mClosed;
+        }
+        if (closed) {
+            onBatchResult(batch, false, sendTime);
+            return;
+        }
+        final AtomicBoolean completed = new AtomicBoolean();
+        final ScheduledFuture<?> timeout;
+        if (mSendTimeoutMillis > 0) {
+            timeout = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (completed.compareAndSet(false, true)) {
+                        onTimeout(batch);
+                        onBatchResult(batch, false, sendTime);
+                    }
+                }
+            }, mSendTimeoutMillis, TimeUnit.MILLISECONDS);
+        } else {
+            timeout = null;
+        }
+        // We send the message outside of the lock because the callback could be synchronous
+        mTransport.sendMessage(mNamespace, batch.mEnvelope, new MessageTransport.SendCallback() {
+            @Override
+            public void onSendResult(boolean success) {
+                if (completed.compareAndSet(false, true)) {
+                    if (timeout != null) {
+                        timeout.cancel(false);
+                    }
+                    onBatchResult(batch, success, sendTime);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remembers that the Receiver could have the given batch even if it's not acknowledged
+     *
+     * @param batch The batch whose ack didn't arrive in time
+     */
+    private synchronized void onTimeout(final Batch batch) {
+        batch.mTimedOut = true;
+        if (mGrantsWithSeq && mUnconfirmedCredits.containsKey(batch.mSeq)) {
+            mTimedOutSeqs.add(batch.mSeq);
+        }
+    }
+
+    /**
+     * Manages the result of an attempt to send a batch
+     *
+     * @param batch    The batch
+     * @param success  True if the batch has been delivered
+     * @param sendTime The time of the attempt
+     */
+    private void onBatchResult(final Batch batch, final boolean success, final long sendTime) {
+        if (!success) {
+            synchronized (this) {
+                batch.mFailedAttempts++;
+                if (!mClosed && mRetryPolicy.canRetry(batch.mFailedAttempts)) {
+                    // We keep the in-flight slot so the order of the batches is preserved
+                    mRetryCount++;
+                    mScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendBatch(batch);
+                        }
+                    }, mRetryPolicy.getDelayMillis(batch.mFailedAttempts), TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+        }
+        synchronized (this) {
+            mInFlight--;
+            if (!success && !batch.mTimedOut
+                    && mUnconfirmedCredits.remove(batch.mSeq) != null) {
+                // The send failed so the Receiver never got the messages and it won't grant
+                // their credits again
+                mCredits += batch.mCredits;
+            } else if (mCreditMode && !mGrantsWithSeq) {
+                // No grant will tell us about this batch. Before the first one we don't know
+                mUnconfirmedCredits.remove(batch.mSeq);
+            }
+        }
+        if (mPayloadCache != null) {
+            if (success) {
+                mPayloadCache.onDelivered(batch.mCacheToken);
+            } else {
+                mPayloadCache.onLost(batch.mCacheToken);
+            }
+        }
+        notifyDelivery(batch.mCallbacks, success);
+        if (mListener != null) {
+            final long now = System.nanoTime();
+            mListener.onBatchResult(batch.mCount, success, now - batch.mOldestEnqueueTime,
+                    now - sendTime);
+        }
+        sendAvailable();
+    }
+
+    /**
+     * Invokes the given callbacks outside of the lock
+     *
+     * @param callbacks The callbacks or null
+     * @param delivered True if the messages have been delivered
+     */
+    private static void notifyDelivery(final List<DeliveryCallback> callbacks,
+                                       final boolean delivered) {
+        if (callbacks != null) {
+            for (DeliveryCallback callback : callbacks) {
+                callback.onDeliveryResult(delivered);
+            }
+        }
+    }
+
+    private void scheduleFlushLocked() {
+        if (mScheduledFlush == null) {
+            mScheduledFlush = mScheduler.schedule(mFlushTask, mMaxDelayMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelScheduledFlushLocked() {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+    }
+}
@@ -0,0 +1,546 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This is the cache of the payloads we have sent to a Receiver, to not send them again. The
+ * Receiver keeps the last messages it got into an LRU with the same hash, so a message
+ * identical to one it already has becomes a reference
+ * <pre>
+ * {"type":"ref","h":"3kx0m2l9qa1c"}
+ * </pre>
+ * and a long message that differs from the last one of the same type only for a part
+ * becomes the part that changed
+ * <pre>
+ * {"type":"delta","h":"...","b":"...","p":42,"s":310,"d":"changed part"}
+ * </pre>
+ * where the new message is the first p chars of the base b, then d and then the last s
+ * chars of b. The envelope lists the messages it carries as a reference or a delta into its
+ * refs field (see {@link MessageEnvelope}), so an application message with the same type
+ * is never taken for one of them. We only refer to the messages of the batches that have been acknowledged
+ * and we use half of the room of the Receiver, so the different order the two sides see
+ * the messages in doesn't evict the entries we still use. If the Receiver misses an entry
+ * anyway it sends a {@link CacheMissEvent} and we send the full message again with its
+ * priority and key, unless a newer message with the same key has been sent since.
+ * <p/>
+ * The cache is off until the Receiver tells its size into the hello. Old Receivers never
+ * do, so they always get the full messages.
+ */
+public class PayloadCache {
+
+    /**
+     * The type of the reference to a message the Receiver has already
+     */
+    public static final String REF_TYPE = "ref";
+
+    /**
+     * The type of the message that changes part of a message the Receiver has already
+     */
+    public static final String DELTA_TYPE = "delta";
+
+    /**
+     * The shorter messages are always sent as they are and the Receiver doesn't keep them
+     */
+    public static final int MIN_CACHED_LENGTH = 64;
+
+    /**
+     * The shorter messages are never sent as a delta
+     */
+    static final int MIN_DELTA_LENGTH = 256;
+
+    /**
+     * The FNV-1a 64 bits constants
+     */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The messages of a batch, to know when the Receiver has them
+     */
+    public static final class Token {
+
+        final int mGeneration;
+
+        final long[] mHashes;
+
+        /**
+         * The positions of the messages replaced with a reference or a delta
+         */
+        final int[] mRefIndexes;
+
+        Token(final int generation, final long[] hashes, final int[] refIndexes) {
+            this.mGeneration = generation;
+            this.mHashes = hashes;
+            this.mRefIndexes = refIndexes;
+        }
+
+        /**
+         * @return The positions of the messages of the batch replaced with a reference or a
+         * delta, to write into the envelope
+         */
+        public int[] getRefIndexes() {
+            return mRefIndexes;
+        }
+    }
+
+    /**
+     * A message the Receiver missed, to send again
+     */
+    public static final class MissedMessage {
+
+        private final String mMessage;
+
+        private final OutboundMessageQueue.Priority mPriority;
+
+        private final String mKey;
+
+        MissedMessage(final String message, final OutboundMessageQueue.Priority priority,
+                      final String key) {
+            this.mMessage = message;
+            this.mPriority = priority;
+            this.mKey = key;
+        }
+
+        /**
+         * @return The full message
+         */
+        public String getMessage() {
+            return mMessage;
+        }
+
+        /**
+         * @return The priority the message has been sent with
+         */
+        public OutboundMessageQueue.Priority getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * @return The key the message has been sent with or null
+         */
+        public String getKey() {
+            return mKey;
+        }
+    }
+
+    /**
+     * A message we have sent
+     */
+    private static final class SentPayload {
+
+        final String mPayload;
+
+        final OutboundMessageQueue.Priority mPriority;
+
+        final String mKey;
+
+        /**
+         * The type of the message if it can be the base of a delta
+         */
+        String mType;
+
+        /**
+         * True when the batch of the message has been acknowledged
+         */
+        boolean mDelivered;
+
+        /**
+         * True when a newer message with the same key has been sent
+         */
+        boolean mSuperseded;
+
+        SentPayload(final String payload, final OutboundMessageQueue.Priority priority,
+                    final String key) {
+            this.mPayload = payload;
+            this.mPriority = priority;
+            this.mKey = key;
+        }
+    }
+
+    private final int mMaxEntries;
+
+    /**
+     * The messages we have sent by hash, in access order
+     */
+    private final LinkedHashMap<Long, SentPayload> mEntries;
+
+    /**
+     * The hash of the last delivered message of every type
+     */
+    private final Map<String, Long> mLastDelivered = new HashMap<String, Long>();
+
+    /**
+     * The hash of the last message sent with every priority and key
+     */
+    private final Map<String, Long> mLastKeyed = new HashMap<String, Long>();
+
+    private final JsonScanner mScanner = new JsonScanner();
+
+    /**
+     * The room we can use or 0 if the cache is off
+     */
+    private int mCapacity;
+
+    /**
+     * Increased at every reset so the tokens of the previous Receiver are ignored
+     */
+    private int mGeneration;
+
+    /**
+     * The size of the messages before and after the encoding
+     */
+    private long mPayloadChars;
+
+    private long mEncodedChars;
+
+    private long mRefCount;
+
+    private long mDeltaCount;
+
+    private long mMissCount;
+
+    /**
+     * Creates a PayloadCache
+     *
+     * @param maxEntries The max number of messages we keep
+     */
+    public PayloadCache(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid max entries " + maxEntries);
+        }
+        this.mMaxEntries = maxEntries;
+        this.mEntries = new LinkedHashMap<Long, SentPayload>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, SentPayload> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    /**
+     * @return The max number of messages we keep
+     */
+    public int getMaxEntries() {
+        return mMaxEntries;
+    }
+
+    /**
+     * Forgets all the messages and turns the cache off. We call it when a new Receiver
+     * starts because it has none of them
+     */
+    public synchronized void reset() {
+        mGeneration++;
+        mCapacity = 0;
+        mEntries.clear();
+        mLastDelivered.clear();
+        mLastKeyed.clear();
+    }
+
+    /**
+     * Turns the cache on
+     *
+     * @param receiverEntries The number of messages the Receiver keeps
+     */
+    public synchronized void enable(final int receiverEntries) {
+        mCapacity = Math.max(0, Math.min(mMaxEntries, receiverEntries / 2));
+    }
+
+    /**
+     * @return True if the Receiver keeps the messages
+     */
+    public synchronized boolean isEnabled() {
+        return mCapacity > 0;
+    }
+
+    /**
+     * Replaces the messages of a batch with the references and the deltas where possible.
+     * The messages are resent after a miss with no priority and no key
+     *
+     * @param messages The messages of the batch. They're replaced with the ones to send
+     * @return The Token to use when the batch is acknowledged or lost or null if the cache
+     * is off
+     */
+    public Token encode(final List<String> messages) {
+        return encode(messages, null, null);
+    }
+
+    /**
+     * Replaces the messages of a batch with the references and the deltas where possible
+     *
+     * @param messages   The messages of the batch. They're replaced with the ones to send
+     * @param priorities The priority of every message or null
+     * @param keys       The key of every message, null if it can't be superseded, or null
+     * @return The Token to use when the batch is acknowledged or lost or null if the cache
+     * is off
+     */
+    public synchronized Token encode(final List<String> messages,
+                                     final List<OutboundMessageQueue.Priority> priorities,
+                                     final List<String> keys) {
+        if (mCapacity == 0) {
+            return null;
+        }
+        final long[] hashes = new long[messages.size()];
+        final int[] refIndexes = new int[messages.size()];
+        int count = 0;
+        int refCount = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            final String message = messages.get(i);
+            final OutboundMessageQueue.Priority priority =
+                    priorities != null ? priorities.get(i) : null;
+            final String key = keys != null ? keys.get(i) : null;
+            mPayloadChars += message.length();
+            if (message.length() < MIN_CACHED_LENGTH) {
+                supersedeLocked(priority, key, null);
+                mEncodedChars += message.length();
+                continue;
+            }
+            final long hash = hash(message);
+            supersedeLocked(priority, key, hash);
+            final String encoded = encodeLocked(hash, message, priority, key);
+            hashes[count++] = hash;
+            if (encoded != message) {
+                refIndexes[refCount++] = i;
+            }
+            messages.set(i, encoded);
+            mEncodedChars += encoded.length();
+        }
+        final long[] tokenHashes = new long[count];
+        System.arraycopy(hashes, 0, tokenHashes, 0, count);
+        final int[] tokenRefIndexes = new int[refCount];
+        System.arraycopy(refIndexes, 0, tokenRefIndexes, 0, refCount);
+        return new Token(mGeneration, tokenHashes, tokenRefIndexes);
+    }
+
+    /**
+     * The batch has been acknowledged so the Receiver has its messages
+     *
+     * @param token The Token of the batch
+     */
+    public synchronized void onDelivered(final Token token) {
+        if (token == null || token.mGeneration != mGeneration) {
+            return;
+        }
+        for (long hash : token.mHashes) {
+            final SentPayload entry = mEntries.get(hash);
+            if (entry != null) {
+                entry.mDelivered = true;
+                if (entry.mType != null) {
+                    mLastDelivered.put(entry.mType, hash);
+                }
+            }
+        }
+    }
+
+    /**
+     * The batch has not been delivered so the Receiver doesn't have the messages we sent
+     * for the first time
+     *
+     * @param token The Token of the batch
+     */
+    public synchronized void onLost(final Token token) {
+        if (token == null || token.mGeneration != mGeneration) {
+            return;
+        }
+        for (long hash : token.mHashes) {
+            final SentPayload entry = mEntries.get(hash);
+            if (entry != null && !entry.mDelivered) {
+                mEntries.remove(hash);
+            }
+        }
+    }
+
+    /**
+     * The Receiver doesn't have the message with the given hash
+     *
+     * @param hash The hash the Receiver missed
+     * @return The message to send again or null if we don't have it anymore or a newer
+     * message with the same key has been sent
+     */
+    public synchronized MissedMessage onMiss(final String hash) {
+        mMissCount++;
+        final long value;
+        try {
+            value = Long.parseLong(hash, Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        final Iterator<Long> iterator = mLastDelivered.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == value) {
+                iterator.remove();
+            }
+        }
+        final SentPayload entry = mEntries.remove(value);
+        if (entry == null || entry.mSuperseded) {
+            return null;
+        }
+        if (entry.mKey != null) {
+            mLastKeyed.remove(keyOf(entry.mPriority, entry.mKey));
+        }
+        return new MissedMessage(entry.mPayload, entry.mPriority, entry.mKey);
+    }
+
+    /**
+     * @return The size of the messages before the encoding
+     */
+    public synchronized long getPayloadChars() {
+        return mPayloadChars;
+    }
+
+    /**
+     * @return The size of the messages after the encoding
+     */
+    public synchronized long getEncodedChars() {
+        return mEncodedChars;
+    }
+
+    /**
+     * @return The number of messages sent as a reference
+     */
+    public synchronized long getRefCount() {
+        return mRefCount;
+    }
+
+    /**
+     * @return The number of messages sent as a delta
+     */
+    public synchronized long getDeltaCount() {
+        return mDeltaCount;
+    }
+
+    /**
+     * @return The number of messages the Receiver missed
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * The hash both the sides use for the messages
+     *
+     * @param message The message
+     * @return The FNV-1a hash of the chars of the message
+     */
+    public static long hash(final String message) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < message.length(); i++) {
+            hash ^= message.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @param hash The hash of a message
+     * @return The hash as we write it into the messages
+     */
+    public static String formatHash(final long hash) {
+        return Long.toString(hash, Character.MAX_RADIX);
+    }
+
+    /**
+     * Marks the last message sent with the given priority and key as superseded
+     *
+     * @param priority The priority of the new message or null
+     * @param key      The key of the new message or null
+     * @param hash     The hash of the new message or null if we don't keep it
+     */
+    private void supersedeLocked(final OutboundMessageQueue.Priority priority,
+                                 final String key, final Long hash) {
+        if (key == null) {
+            return;
+        }
+        final String keyed = keyOf(priority, key);
+        final Long lastHash = hash != null ? mLastKeyed.put(keyed, hash)
+                : mLastKeyed.remove(keyed);
+        if (lastHash != null && !lastHash.equals(hash)) {
+            final SentPayload last = mEntries.get(lastHash);
+            if (last != null) {
+                last.mSuperseded = true;
+            }
+        }
+        // The same message can be sent again after a different one
+        final SentPayload current = hash != null ? mEntries.get(hash) : null;
+        if (current != null) {
+            current.mSuperseded = false;
+        }
+    }
+
+    private static String keyOf(final OutboundMessageQueue.Priority priority,
+                                final String key) {
+        return priority != null ? priority.name() + '/' + key : key;
+    }
+
+    private String encodeLocked(final long hash, final String message,
+                                final OutboundMessageQueue.Priority priority,
+                                final String key) {
+        final SentPayload existing = mEntries.get(hash);
+        if (existing != null && existing.mPayload.equals(message)) {
+            if (existing.mDelivered) {
+                mRefCount++;
+                return "{\"type\":\"" + REF_TYPE + "\",\"h\":\"" + formatHash(hash) + "\"}";
+            }
+            // The first one is still on the way so the Receiver may not have it yet
+            return message;
+        }
+        final SentPayload entry = new SentPayload(message, priority, key);
+        String encoded = message;
+        if (message.length() >= MIN_DELTA_LENGTH) {
+            entry.mType = readType(message);
+            final Long baseHash = entry.mType != null ? mLastDelivered.get(entry.mType) : null;
+            final SentPayload base = baseHash != null ? mEntries.get(baseHash) : null;
+            if (base != null && base.mDelivered) {
+                final String delta = createDelta(hash, baseHash, base.mPayload, message);
+                // The delta has to be worth the work of the Receiver
+                if (delta.length() < message.length() * 3 / 4) {
+                    mDeltaCount++;
+                    encoded = delta;
+                }
+            }
+        }
+        mEntries.put(hash, entry);
+        return encoded;
+    }
+
+    private static String createDelta(final long hash, final long baseHash, final String base,
+                                      final String message) {
+        final int maxCommon = Math.min(base.length(), message.length());
+        int prefix = 0;
+        while (prefix < maxCommon && base.charAt(prefix) == message.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < maxCommon - prefix && base.charAt(base.length() - 1 - suffix)
+                == message.charAt(message.length() - 1 - suffix)) {
+            suffix++;
+        }
+        final StringBuilder builder = new StringBuilder(64 + message.length() - prefix - suffix);
+        builder.append("{\"type\":\"").append(DELTA_TYPE).append("\",\"h\":\"")
+                .append(formatHash(hash)).append("\",\"b\":\"").append(formatHash(baseHash))
+                .append("\",\"p\":").append(prefix).append(",\"s\":").append(suffix)
+                .append(",\"d\":");
+        MessageEnvelope.appendQuoted(builder, message.substring(prefix,
+                message.length() - suffix));
+        return builder.append('}').toString();
+    }
+
+    private String readType(final String message) {
+        try {
+            mScanner.reset(message);
+            while (mScanner.nextField()) {
+                if (mScanner.isField("type")) {
+                    return mScanner.readString();
+                }
+                mScanner.skipValue();
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a JSON object so it has no type
+        }
+        return null;
+    }
+}
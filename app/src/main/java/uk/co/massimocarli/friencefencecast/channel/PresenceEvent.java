@@ -0,0 +1,79 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+/**
+ * The event we receive when a friend goes online or offline
+ * <pre>
+ * {"type":"presence","friendId":"f1","online":true,"ts":1418000000000}
+ * </pre>
+ */
+public class PresenceEvent extends InboundEvent {
+
+    /**
+     * The type of this event
+     */
+    public static final String TYPE = "presence";
+
+    /**
+     * The factory for this event
+     */
+    public static final InboundMessageDispatcher.EventFactory<PresenceEvent> FACTORY =
+            new InboundMessageDispatcher.EventFactory<PresenceEvent>() {
+                @Override
+                public PresenceEvent newEvent() {
+                    return new PresenceEvent();
+                }
+            };
+
+    private String mFriendId;
+
+    private boolean mOnline;
+
+    private long mTimestamp;
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    /**
+     * @return The id of the friend
+     */
+    public String getFriendId() {
+        return mFriendId;
+    }
+
+    /**
+     * @return True if the friend is online
+     */
+    public boolean isOnline() {
+        return mOnline;
+    }
+
+    /**
+     * @return The time of the event in milliseconds
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    protected void clear() {
+        mFriendId = null;
+        mOnline = false;
+        mTimestamp = 0L;
+    }
+
+    @Override
+    protected boolean readField(final JsonScanner scanner) {
+        if (scanner.isField("friendId")) {
+            mFriendId = scanner.readString();
+        } else if (scanner.isField("online")) {
+            mOnline = scanner.readBoolean();
+        } else if (scanner.isField("ts")) {
+            mTimestamp = scanner.readLong();
+        } else {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,112 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import uk.co.massimocarli.friencefencecast.session.ResultListener;
+
+/**
+ * The completion of a playback command. Its value is true if the player reached the
+ * requested state. A command that has been merged into a later one completes with the
+ * result of the command that replaced it.
+ */
+public final class CommandFuture implements Future<Boolean> {
+
+    private boolean mDone;
+
+    private boolean mSuccess;
+
+    /**
+     * The Listeners to notify on completion. It's null after the completion
+     */
+    private List<ResultListener<Void>> mListeners;
+
+    /**
+     * Registers a Listener for the completion. If the command is already completed the
+     * Listener is notified immediately
+     *
+     * @param listener The Listener to notify
+     */
+    public void addListener(final ResultListener<Void> listener) {
+        synchronized (this) {
+            if (!mDone) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<ResultListener<Void>>(1);
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onResult(mSuccess, null);
+    }
+
+    /**
+     * Completes the command. Only the first invocation has effect
+     *
+     * @param success True if the player reached the requested state
+     */
+    void complete(final boolean success) {
+        final List<ResultListener<Void>> listeners;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mSuccess = success;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        if (listeners != null) {
+            for (ResultListener<Void> listener : listeners) {
+                listener.onResult(success, null);
+            }
+        }
+    }
+
+    /**
+     * Commands can't be cancelled once submitted
+     *
+     * @param mayInterruptIfRunning Ignored
+     * @return Always false
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized Boolean get() throws InterruptedException {
+        while (!mDone) {
+            wait();
+        }
+        return mSuccess;
+    }
+
+    @Override
+    public synchronized Boolean get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            final long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        return mSuccess;
+    }
+}
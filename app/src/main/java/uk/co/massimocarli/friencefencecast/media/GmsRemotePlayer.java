@@ -0,0 +1,251 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import android.util.Log;
+
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaMetadata;
+import com.google.android.gms.cast.MediaStatus;
+import com.google.android.gms.cast.RemoteMediaPlayer;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+
+import java.util.concurrent.Executor;
+
+import uk.co.massimocarli.friencefencecast.session.ResultListener;
+
+/**
+ * The RemotePlayer implementation that uses the RemoteMediaPlayer. The status updates and
+ * the results arrive on the main thread and are moved to the callback executor.
+ */
+public class GmsRemotePlayer implements RemotePlayer {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = GmsRemotePlayer.class.getName();
+
+    /**
+     * The connected GoogleApiClient
+     */
+    private final GoogleApiClient mGoogleApiClient;
+
+    /**
+     * The reference to the RemoteMediaPlayer
+     */
+    private final RemoteMediaPlayer mRemoteMediaPlayer;
+
+    /**
+     * The serial executor for the callbacks
+     */
+    private final Executor mCallbackExecutor;
+
+    /**
+     * The listener for the status of the player
+     */
+    private volatile StatusListener mStatusListener;
+
+    /**
+     * Creates a GmsRemotePlayer for the given GoogleApiClient
+     *
+     * @param googleApiClient  The connected GoogleApiClient
+     * @param callbackExecutor The serial executor for the callbacks
+     */
+    public GmsRemotePlayer(final GoogleApiClient googleApiClient,
+                           final Executor callbackExecutor) {
+        this.mGoogleApiClient = googleApiClient;
+        this.mRemoteMediaPlayer = new RemoteMediaPlayer();
+        this.mCallbackExecutor = callbackExecutor;
+        mRemoteMediaPlayer.setOnStatusUpdatedListener(
+                new RemoteMediaPlayer.OnStatusUpdatedListener() {
+                    @Override
+                    public void onStatusUpdated() {
+                        final StatusListener statusListener = mStatusListener;
+                        final MediaStatus mediaStatus = mRemoteMediaPlayer.getMediaStatus();
+                        if (statusListener == null || mediaStatus == null) {
+                            return;
+                        }
+                        // We read the status here because the object could change later
+                        final PlayerStatus playerStatus = toPlayerStatus(mediaStatus);
+                        mCallbackExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                statusListener.onStatusUpdated(playerStatus);
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * @return The RemoteMediaPlayer to register as channel
+     */
+    public RemoteMediaPlayer getRemoteMediaPlayer() {
+        return mRemoteMediaPlayer;
+    }
+
+    @Override
+    public void load(final MediaItem item, final boolean autoplay,
+                     final ResultListener<Void> listener) {
+        // We create the MediaMetadata object to set the info about the Video
+        MediaMetadata mediaMetadata = new MediaMetadata(MediaMetadata.MEDIA_TYPE_MOVIE);
+        mediaMetadata.putString(MediaMetadata.KEY_TITLE, item.getTitle());
+        MediaInfo mediaInfo = new MediaInfo.Builder(item.getContentId())
+                .setContentType(item.getContentType())
+                .setStreamType(MediaInfo.STREAM_TYPE_BUFFERED)
+                .setMetadata(mediaMetadata)
+                .build();
+        try {
+            notifyResult(mRemoteMediaPlayer.load(mGoogleApiClient, mediaInfo, autoplay),
+                    "load", listener);
+        } catch (IllegalStateException e) {
+            Log.e(TAG_LOG, "Problem occurred with media during loading", e);
+            notifyFailure(listener);
+        } catch (Exception e) {
+            Log.e(TAG_LOG, "Problem opening media during loading", e);
+            notifyFailure(listener);
+        }
+    }
+
+    @Override
+    public void play(final ResultListener<Void> listener) {
+        try {
+            notifyResult(mRemoteMediaPlayer.play(mGoogleApiClient), "play", listener);
+        } catch (IllegalStateException e) {
+            Log.e(TAG_LOG, "Problem occurred with media during play", e);
+            notifyFailure(listener);
+        }
+    }
+
+    @Override
+    public void pause(final ResultListener<Void> listener) {
+        try {
+            notifyResult(mRemoteMediaPlayer.pause(mGoogleApiClient), "pause", listener);
+        } catch (IllegalStateException e) {
+            Log.e(TAG_LOG, "Problem occurred with media during pause", e);
+            notifyFailure(listener);
+        }
+    }
+
+    @Override
+    public void seek(final long positionMillis, final ResumeState resumeState,
+                     final ResultListener<Void> listener) {
+        final int gmsResumeState;
+        switch (resumeState) {
+            case PLAY:
+                gmsResumeState = RemoteMediaPlayer.RESUME_STATE_PLAY;
+                break;
+            case PAUSE:
+                gmsResumeState = RemoteMediaPlayer.RESUME_STATE_PAUSE;
+                break;
+            default:
+                gmsResumeState = RemoteMediaPlayer.RESUME_STATE_UNCHANGED;
+        }
+        try {
+            notifyResult(mRemoteMediaPlayer.seek(mGoogleApiClient, positionMillis,
+                    gmsResumeState), "seek", listener);
+        } catch (IllegalStateException e) {
+            Log.e(TAG_LOG, "Problem occurred with media during seek", e);
+            notifyFailure(listener);
+        }
+    }
+
+    @Override
+    public void requestStatus(final ResultListener<Void> listener) {
+        try {
+            notifyResult(mRemoteMediaPlayer.requestStatus(mGoogleApiClient), "requestStatus",
+                    listener);
+        } catch (IllegalStateException e) {
+            Log.e(TAG_LOG, "Problem occurred with media during requestStatus", e);
+            notifyFailure(listener);
+        }
+    }
+
+    @Override
+    public void setStatusListener(final StatusListener statusListener) {
+        this.mStatusListener = statusListener;
+    }
+
+    /**
+     * Utility method that creates the PlayerStatus from the MediaStatus
+     *
+     * @param mediaStatus The MediaStatus from the Receiver
+     * @return The PlayerStatus
+     */
+    private PlayerStatus toPlayerStatus(final MediaStatus mediaStatus) {
+        final PlayerStatus.PlayerState playerState;
+        switch (mediaStatus.getPlayerState()) {
+            case MediaStatus.PLAYER_STATE_IDLE:
+                playerState = PlayerStatus.PlayerState.IDLE;
+                break;
+            case MediaStatus.PLAYER_STATE_BUFFERING:
+                playerState = PlayerStatus.PlayerState.BUFFERING;
+                break;
+            case MediaStatus.PLAYER_STATE_PLAYING:
+                playerState = PlayerStatus.PlayerState.PLAYING;
+                break;
+            case MediaStatus.PLAYER_STATE_PAUSED:
+                playerState = PlayerStatus.PlayerState.PAUSED;
+                break;
+            default:
+                playerState = PlayerStatus.PlayerState.UNKNOWN;
+        }
+        final MediaInfo mediaInfo = mediaStatus.getMediaInfo();
+        return new PlayerStatus(playerState,
+                mediaStatus.getIdleReason() == MediaStatus.IDLE_REASON_FINISHED,
+                mediaInfo != null ? mediaInfo.getContentId() : null,
+                mediaStatus.getStreamPosition(),
+                mediaInfo != null ? mediaInfo.getStreamDuration() : -1L,
+                mediaStatus.getPlaybackRate(),
+                mediaStatus.getStreamVolume(),
+                mediaStatus.isMute(),
+                System.nanoTime());
+    }
+
+    /**
+     * Utility method that forwards the result of a media command to the listener
+     *
+     * @param pendingResult The PendingResult of the command
+     * @param command       The name of the command for the log
+     * @param listener      The listener to notify. It can be null
+     */
+    private void notifyResult(
+            final PendingResult<RemoteMediaPlayer.MediaChannelResult> pendingResult,
+            final String command, final ResultListener<Void> listener) {
+        pendingResult.setResultCallback(
+                new ResultCallback<RemoteMediaPlayer.MediaChannelResult>() {
+                    @Override
+                    public void onResult(RemoteMediaPlayer.MediaChannelResult result) {
+                        final boolean success = result.getStatus().isSuccess();
+                        mCallbackExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!success) {
+                                    Log.e(TAG_LOG, "Failed media command " + command);
+                                }
+                                if (listener != null) {
+                                    listener.onResult(success, null);
+                                }
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Utility method that notifies the failure of a media command on the callback executor
+     * as the results from the Receiver
+     *
+     * @param listener The listener to notify. It can be null
+     */
+    private void notifyFailure(final ResultListener<Void> listener) {
+        if (listener != null) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onResult(false, null);
+                }
+            });
+        }
+    }
+}
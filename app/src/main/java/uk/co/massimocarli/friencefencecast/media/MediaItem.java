@@ -0,0 +1,111 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The description of a media we can play on the Receiver. The media can have many
+ * {@link Rendition}s: the first one is the default and the {@link MediaSelector} chooses
+ * the one to load.
+ */
+public final class MediaItem {
+
+    private final String mContentId;
+
+    private final String mContentType;
+
+    private final String mTitle;
+
+    private final List<Rendition> mRenditions;
+
+    /**
+     * Creates a MediaItem
+     *
+     * @param contentId   The id (url) of the content
+     * @param contentType The mime type of the content
+     * @param title       The title to show
+     */
+    public MediaItem(final String contentId, final String contentType, final String title) {
+        this.mContentId = contentId;
+        this.mContentType = contentType;
+        this.mTitle = title;
+        this.mRenditions = Collections.singletonList(
+                new Rendition(contentId, contentType, 0));
+    }
+
+    /**
+     * Creates a MediaItem with many renditions
+     *
+     * @param title      The title to show
+     * @param renditions The renditions of the media. The first one is the default
+     */
+    public MediaItem(final String title, final List<Rendition> renditions) {
+        if (renditions.isEmpty()) {
+            throw new IllegalArgumentException("At least a rendition is needed");
+        }
+        this.mContentId = renditions.get(0).getContentId();
+        this.mContentType = renditions.get(0).getContentType();
+        this.mTitle = title;
+        this.mRenditions = Collections.unmodifiableList(new ArrayList<Rendition>(renditions));
+    }
+
+    /**
+     * Returns the item with only the given rendition
+     *
+     * @param rendition The rendition to load
+     * @return The MediaItem to load
+     */
+    public MediaItem withRendition(final Rendition rendition) {
+        if (mRenditions.size() == 1 && mRenditions.get(0) == rendition) {
+            return this;
+        }
+        return new MediaItem(mTitle, Collections.singletonList(rendition));
+    }
+
+    /**
+     * @return The renditions of the media
+     */
+    public List<Rendition> getRenditions() {
+        return mRenditions;
+    }
+
+    /**
+     * @param contentId The id of a content
+     * @return True if the given content is one of the renditions of this media
+     */
+    public boolean hasContentId(final String contentId) {
+        for (Rendition rendition : mRenditions) {
+            if (rendition.getContentId().equals(contentId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The id (url) of the content
+     */
+    public String getContentId() {
+        return mContentId;
+    }
+
+    /**
+     * @return The mime type of the content
+     */
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * @return The title to show
+     */
+    public String getTitle() {
+        return mTitle;
+    }
+
+    @Override
+    public String toString() {
+        return "MediaItem{" + mTitle + " " + mContentId + "}";
+    }
+}
@@ -0,0 +1,514 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.massimocarli.friencefencecast.metrics.LatencyHistogram;
+import uk.co.massimocarli.friencefencecast.session.ResultListener;
+
+/**
+ * The client side queue of the media to play on the Receiver. When an item starts, the
+ * metadata of the next one is sent to the Receiver so it can preload it, and the hint is
+ * sent again a little before the end of the current one. The next item is loaded only when
+ * the current one has finished so its end is never cut. The hints are sent without holding
+ * the lock of the queue.
+ */
+public class MediaQueue implements PlayerStatusCache.Observer {
+
+    /**
+     * The interface to implement to send the preload hints to the Receiver
+     */
+    public interface PreloadSink {
+
+        /**
+         * Sends the preload hint for the given item
+         *
+         * @param item The item the Receiver should preload
+         */
+        void preload(MediaItem item);
+    }
+
+    /**
+     * The interface to implement to choose the rendition of an item before its load
+     */
+    public interface RenditionResolver {
+
+        /**
+         * Chooses the rendition to load
+         *
+         * @param item The item of the queue
+         * @return The item with the rendition to load
+         */
+        MediaItem resolve(MediaItem item);
+    }
+
+    /**
+     * The interface to implement to get notification about the queue
+     */
+    public interface Listener {
+
+        /**
+         * Invoked when the current item changes
+         *
+         * @param item  The current item or null
+         * @param index The index of the current item or -1
+         */
+        void onCurrentItemChanged(MediaItem item, int index);
+
+        /**
+         * Invoked when the new item starts playing after an automatic advance
+         *
+         * @param item      The item that started
+         * @param gapMillis The time between the end of the previous item and the start of
+         *                  this one
+         */
+        void onItemSwitched(MediaItem item, long gapMillis);
+    }
+
+    /**
+     * How long before the end of the current item we send the preload hint of the next one
+     * again. It covers the time for the hint to reach the Receiver
+     */
+    private static final long PRELOAD_LEAD_MILLIS = 400L;
+
+    /**
+     * The executor for the near end preload hint
+     */
+    private final ScheduledExecutorService mScheduler;
+
+    /**
+     * The sink for the preload hints
+     */
+    private final PreloadSink mPreloadSink;
+
+    /**
+     * The histogram for the time from the load of an item to its PLAYING status
+     */
+    private final LatencyHistogram mLoadToPlaying;
+
+    /**
+     * The items in the queue
+     */
+    private final List<MediaItem> mItems = new ArrayList<MediaItem>();
+
+    /**
+     * The index of the current item or -1
+     */
+    private int mCurrentIndex = -1;
+
+    /**
+     * The player we use or null if no session is running
+     */
+    private RemotePlayer mPlayer;
+
+    /**
+     * The optional Listener
+     */
+    private Listener mListener;
+
+    /**
+     * The optional RenditionResolver
+     */
+    private RenditionResolver mRenditionResolver;
+
+    /**
+     * The scheduled near end preload hint
+     */
+    private ScheduledFuture<?> mScheduledPreload;
+
+    /**
+     * The item whose preload hint has to be sent once the lock is released or null
+     */
+    private MediaItem mPendingPreload;
+
+    /**
+     * The end of the previous item when we advanced automatically or 0
+     */
+    private long mPreviousEndNanos;
+
+    /**
+     * The gap of the last automatic switch or -1
+     */
+    private long mLastSwitchGapMillis = -1L;
+
+    /**
+     * The time of the load of the current item until it's playing or 0
+     */
+    private long mLoadTimeNanos;
+
+    /**
+     * Creates a MediaQueue
+     *
+     * @param scheduler     The executor for the near end preload hint
+     * @param preloadSink   The sink for the preload hints
+     * @param loadToPlaying The histogram for the time from the load of an item to its
+     *                      PLAYING status
+     */
+    public MediaQueue(final ScheduledExecutorService scheduler, final PreloadSink preloadSink,
+                      final LatencyHistogram loadToPlaying) {
+        this.mScheduler = scheduler;
+        this.mPreloadSink = preloadSink;
+        this.mLoadToPlaying = loadToPlaying;
+    }
+
+    /**
+     * @param listener The Listener for the queue or null
+     */
+    public synchronized void setListener(final Listener listener) {
+        this.mListener = listener;
+    }
+
+    /**
+     * @param renditionResolver The resolver for the rendition of the items or null to load
+     *                          their default rendition
+     */
+    public synchronized void setRenditionResolver(final RenditionResolver renditionResolver) {
+        this.mRenditionResolver = renditionResolver;
+    }
+
+    /**
+     * Uses the given player. The queue keeps its content across the sessions. The status of
+     * the player comes from the {@link PlayerStatusCache} the queue is registered to
+     *
+     * @param player The player of the new session
+     */
+    public void attach(final RemotePlayer player) {
+        synchronized (this) {
+            mPlayer = player;
+            preloadNextLocked();
+        }
+        sendPendingPreload();
+    }
+
+    /**
+     * Releases the player of the session
+     */
+    public synchronized void detach() {
+        cancelPreloadLocked();
+        mPlayer = null;
+        mPendingPreload = null;
+        mLoadTimeNanos = 0L;
+    }
+
+    /**
+     * Adds an item at the end of the queue
+     *
+     * @param item The item to add
+     */
+    public void add(final MediaItem item) {
+        synchronized (this) {
+            addLocked(mItems.size(), item);
+        }
+        sendPendingPreload();
+    }
+
+    /**
+     * Adds an item at the given position
+     *
+     * @param index The position of the item
+     * @param item  The item to add
+     */
+    public void add(final int index, final MediaItem item) {
+        synchronized (this) {
+            addLocked(index, item);
+        }
+        sendPendingPreload();
+    }
+
+    /**
+     * Removes the item at the given position. If it's the current one we play the item
+     * that takes its place
+     *
+     * @param index The position of the item to remove
+     */
+    public void remove(final int index) {
+        synchronized (this) {
+            mItems.remove(index);
+            if (index < mCurrentIndex) {
+                mCurrentIndex--;
+            } else if (index == mCurrentIndex) {
+                if (mCurrentIndex < mItems.size()) {
+                    playLocked(mCurrentIndex, null);
+                } else {
+                    mCurrentIndex = -1;
+                    cancelPreloadLocked();
+                    notifyCurrentItemLocked();
+                }
+            } else if (index == mCurrentIndex + 1) {
+                preloadNextLocked();
+            }
+        }
+        sendPendingPreload();
+    }
+
+    /**
+     * Moves an item to a different position
+     *
+     * @param from The current position of the item
+     * @param to   The new position of the item
+     */
+    public void move(final int from, final int to) {
+        synchronized (this) {
+            final MediaItem item = mItems.remove(from);
+            mItems.add(to, item);
+            if (mCurrentIndex == from) {
+                mCurrentIndex = to;
+            } else {
+                if (from < mCurrentIndex) {
+                    mCurrentIndex--;
+                }
+                if (to <= mCurrentIndex) {
+                    mCurrentIndex++;
+                }
+            }
+            preloadNextLocked();
+        }
+        sendPendingPreload();
+    }
+
+    /**
+     * Plays the item at the given position
+     *
+     * @param index    The position of the item
+     * @param listener The listener for the result of the load. It can be null
+     */
+    public void play(final int index, final ResultListener<Void> listener) {
+        synchronized (this) {
+            if (index < 0 || index >= mItems.size()) {
+                throw new IndexOutOfBoundsException("No item at " + index);
+            }
+            mPreviousEndNanos = 0L;
+            playLocked(index, listener);
+        }
+        sendPendingPreload();
+    }
+
+    /**
+     * Plays the current item, or the first one if none has been played yet
+     *
+     * @param listener The listener for the result of the load. It can be null
+     * @return False if the queue is empty so nothing is played
+     */
+    public boolean playCurrent(final ResultListener<Void> listener) {
+        synchronized (this) {
+            if (mItems.isEmpty()) {
+                return false;
+            }
+            mPreviousEndNanos = 0L;
+            playLocked(Math.min(Math.max(0, mCurrentIndex), mItems.size() - 1), listener);
+        }
+        sendPendingPreload();
+        return true;
+    }
+
+    /**
+     * Plays the next item if any
+     *
+     * @return True if there's a next item
+     */
+    public boolean next() {
+        return skip(1);
+    }
+
+    /**
+     * Plays the previous item if any
+     *
+     * @return True if there's a previous item
+     */
+    public boolean previous() {
+        return skip(-1);
+    }
+
+    /**
+     * @return A copy of the items in the queue
+     */
+    public synchronized List<MediaItem> getItems() {
+        return new ArrayList<MediaItem>(mItems);
+    }
+
+    /**
+     * @return The index of the current item or -1
+     */
+    public synchronized int getCurrentIndex() {
+        return mCurrentIndex;
+    }
+
+    /**
+     * @return The time between the end of an item and the start of the next one in the last
+     * automatic switch. It's negative if the next item started before the end reported for
+     * the previous one. It's -1 if there was no automatic switch
+     */
+    public synchronized long getLastSwitchGapMillis() {
+        return mLastSwitchGapMillis;
+    }
+
+    @Override
+    public void onStatusChanged(final PlayerStatus status, final int changedFields) {
+        synchronized (this) {
+            onStatusChangedLocked(status, changedFields);
+        }
+        sendPendingPreload();
+    }
+
+    private void onStatusChangedLocked(final PlayerStatus status, final int changedFields) {
+        if ((changedFields & ~PlayerStatusCache.FIELD_VOLUME) == 0) {
+            // The volume doesn't change the end of the item
+            return;
+        }
+        final MediaItem current = mCurrentIndex >= 0 ? mItems.get(mCurrentIndex) : null;
+        if (current == null || !current.hasContentId(status.getContentId())) {
+            // This is the status of an item that is not ours or not current anymore
+            return;
+        }
+        switch (status.getPlayerState()) {
+            case PLAYING:
+                if (mLoadTimeNanos != 0L) {
+                    mLoadToPlaying.record(status.getSampleTimeNanos() - mLoadTimeNanos);
+                    mLoadTimeNanos = 0L;
+                }
+                if (mPreviousEndNanos != 0L) {
+                    // A negative gap means the clocks of the two statuses disagree
+                    mLastSwitchGapMillis =
+                            (status.getSampleTimeNanos() - mPreviousEndNanos) / 1000000L;
+                    mPreviousEndNanos = 0L;
+                    if (mListener != null) {
+                        mListener.onItemSwitched(current, mLastSwitchGapMillis);
+                    }
+                }
+                schedulePreloadLocked(status);
+                break;
+            case IDLE:
+                cancelPreloadLocked();
+                if (status.isFinished() && mCurrentIndex + 1 < mItems.size()) {
+                    // The current item has played until its end so we load the next one
+                    mPreviousEndNanos = status.getSampleTimeNanos();
+                    playLocked(mCurrentIndex + 1, null);
+                }
+                break;
+            default:
+                cancelPreloadLocked();
+        }
+    }
+
+    /**
+     * Plays the item at the given distance from the current one if any
+     *
+     * @param offset The distance of the item to play
+     * @return True if there's an item at the given distance
+     */
+    private boolean skip(final int offset) {
+        synchronized (this) {
+            final int index = mCurrentIndex + offset;
+            if (index < 0 || index >= mItems.size()) {
+                return false;
+            }
+            mPreviousEndNanos = 0L;
+            playLocked(index, null);
+        }
+        sendPendingPreload();
+        return true;
+    }
+
+    private void addLocked(final int index, final MediaItem item) {
+        mItems.add(index, item);
+        if (mCurrentIndex >= 0 && index <= mCurrentIndex) {
+            mCurrentIndex++;
+        } else if (index == mCurrentIndex + 1) {
+            preloadNextLocked();
+        }
+    }
+
+    /**
+     * Loads the item at the given position
+     *
+     * @param index    The position of the item
+     * @param listener The listener for the result. It can be null
+     */
+    private void playLocked(final int index, final ResultListener<Void> listener) {
+        cancelPreloadLocked();
+        mCurrentIndex = index;
+        notifyCurrentItemLocked();
+        if (mPlayer == null) {
+            if (listener != null) {
+                listener.onResult(false, null);
+            }
+            return;
+        }
+        mLoadTimeNanos = System.nanoTime();
+        mPlayer.load(resolveLocked(mItems.get(index)), true, listener);
+        preloadNextLocked();
+    }
+
+    /**
+     * Schedules the preload hint of the next item a little before the end of the current
+     * one. The next item is loaded only when the current one has finished
+     *
+     * @param status The status of the current item
+     */
+    private void schedulePreloadLocked(final PlayerStatus status) {
+        cancelPreloadLocked();
+        final long remainingMillis = status.getRemainingMillis();
+        if (remainingMillis < 0 || mCurrentIndex + 1 >= mItems.size()) {
+            return;
+        }
+        final int scheduledIndex = mCurrentIndex;
+        final long delayMillis = Math.max(0L, remainingMillis - PRELOAD_LEAD_MILLIS);
+        mScheduledPreload = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MediaQueue.this) {
+                    mScheduledPreload = null;
+                    if (mCurrentIndex == scheduledIndex) {
+                        preloadNextLocked();
+                    }
+                }
+                sendPendingPreload();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelPreloadLocked() {
+        if (mScheduledPreload != null) {
+            mScheduledPreload.cancel(false);
+            mScheduledPreload = null;
+        }
+    }
+
+    /**
+     * Remembers the hint for the next item, if any, to send it once the lock is released
+     */
+    private void preloadNextLocked() {
+        if (mPlayer != null && mCurrentIndex >= 0 && mCurrentIndex + 1 < mItems.size()) {
+            mPendingPreload = resolveLocked(mItems.get(mCurrentIndex + 1));
+        }
+    }
+
+    /**
+     * Sends the pending preload hint, if any. It must be called without holding the lock
+     * because the sink takes the locks of the channel
+     */
+    private void sendPendingPreload() {
+        final MediaItem item;
+        synchronized (this) {
+            item = mPendingPreload;
+            mPendingPreload = null;
+        }
+        if (item != null) {
+            mPreloadSink.preload(item);
+        }
+    }
+
+    private MediaItem resolveLocked(final MediaItem item) {
+        return mRenditionResolver != null ? mRenditionResolver.resolve(item) : item;
+    }
+
+    private void notifyCurrentItemLocked() {
+        if (mListener != null) {
+            mListener.onCurrentItemChanged(
+                    mCurrentIndex >= 0 ? mItems.get(mCurrentIndex) : null, mCurrentIndex);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.co.massimocarli.friencefencecast.metrics.Counter;
+import uk.co.massimocarli.friencefencecast.metrics.Gauge;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+
+/**
+ * Chooses the {@link Rendition} of a media to load on a device. An adaptive rendition is
+ * always preferred because the Receiver adapts it to the link by itself. Otherwise we load
+ * the best progressive rendition under a bitrate cap that comes from two sources:
+ * <ul>
+ * <li>the round trip time of the messages on the custom channel, a cheap hint about the
+ * congestion of the network;</li>
+ * <li>the playback on the device: a stall lowers the cap, a long playback without stalls
+ * raises it again.</li>
+ * </ul>
+ * The cap is remembered for each device so the next media starts at the right quality.
+ */
+public class MediaSelector {
+
+    /**
+     * The interface to implement to keep the quality of the devices across the restarts
+     */
+    public interface QualityStore {
+
+        /**
+         * @param deviceId The id of the device
+         * @return The bitrate cap of the device or -1 if unknown
+         */
+        int getBitrateCapKbps(String deviceId);
+
+        /**
+         * Saves the bitrate cap of a device
+         *
+         * @param deviceId   The id of the device
+         * @param capKbps    The bitrate cap
+         */
+        void saveBitrateCapKbps(String deviceId, int capKbps);
+    }
+
+    /**
+     * The counter of the stalls during the playback
+     */
+    public static final String METRIC_STALLS = "media.stalls";
+
+    /**
+     * The gauge with the bitrate of the last selected rendition, 0 if adaptive
+     */
+    public static final String METRIC_SELECTED_BITRATE = "media.selected_bitrate_kbps";
+
+    /**
+     * The value for no cap
+     */
+    public static final int NO_CAP = Integer.MAX_VALUE;
+
+    /**
+     * Below this round trip time the link doesn't limit the bitrate
+     */
+    private static final long GOOD_ROUND_TRIP_NANOS = 30000000L;
+
+    /**
+     * The bitrate we allow with the good round trip time. The cap decreases in proportion
+     * when the round trip time grows
+     */
+    private static final int GOOD_LINK_KBPS = 8000;
+
+    /**
+     * The lowest cap. Under it we just use the lowest rendition
+     */
+    private static final int MIN_CAP_KBPS = 300;
+
+    /**
+     * Above this cap there's no cap at all
+     */
+    private static final int MAX_CAP_KBPS = 20000;
+
+    /**
+     * The playback time without stalls that raises the cap. It doubles every time a raise
+     * ends with a stall so a device doesn't swing between two bitrates
+     */
+    private static final long STABLE_PLAYBACK_NANOS = 60000000000L;
+
+    /**
+     * The longest playback time without stalls that raises the cap
+     */
+    private static final long MAX_STABLE_PLAYBACK_NANOS = 16 * STABLE_PLAYBACK_NANOS;
+
+    /**
+     * The most selected renditions we remember for each device
+     */
+    private static final int MAX_SELECTED_PER_DEVICE = 8;
+
+    /**
+     * The state of the playback on a device
+     */
+    private static class DeviceState {
+
+        int mCapKbps = NO_CAP;
+
+        /**
+         * The bitrate of the renditions we selected by content id, 0 if adaptive
+         */
+        final Map<String, Integer> mSelected = new HashMap<String, Integer>();
+
+        /**
+         * The content of the last status
+         */
+        String mContentId;
+
+        boolean mStarted;
+
+        /**
+         * The start of the current playing period or 0
+         */
+        long mPlayingSinceNanos;
+
+        /**
+         * The playback time without stalls, across the media
+         */
+        long mStablePlayedNanos;
+
+        /**
+         * The playback time without stalls that raises the cap
+         */
+        long mRaiseAfterNanos = STABLE_PLAYBACK_NANOS;
+
+        /**
+         * True if the last change of the cap was a raise
+         */
+        boolean mRaised;
+
+        long mStalls;
+    }
+
+    private final QualityStore mQualityStore;
+
+    private final Counter mStalls;
+
+    private final Gauge mSelectedBitrate;
+
+    /**
+     * The state of the devices by id
+     */
+    private final Map<String, DeviceState> mDevices = new HashMap<String, DeviceState>();
+
+    /**
+     * Creates a MediaSelector
+     *
+     * @param qualityStore The storage for the quality of the devices or null
+     * @param metrics      The registry for the metrics of the playback
+     */
+    public MediaSelector(final QualityStore qualityStore, final MetricsRegistry metrics) {
+        this.mQualityStore = qualityStore;
+        this.mStalls = metrics.counter(METRIC_STALLS);
+        this.mSelectedBitrate = metrics.gauge(METRIC_SELECTED_BITRATE);
+    }
+
+    /**
+     * Chooses the rendition to load
+     *
+     * @param deviceId       The id of the device
+     * @param item           The media to load
+     * @param roundTripNanos The round trip time of the messages to the device or -1
+     * @return The item with only the rendition to load
+     */
+    public synchronized MediaItem select(final String deviceId, final MediaItem item,
+                                         final long roundTripNanos) {
+        final List<Rendition> renditions = item.getRenditions();
+        final DeviceState state = getStateLocked(deviceId);
+        Rendition selected = null;
+        for (Rendition rendition : renditions) {
+            if (rendition.isAdaptive()) {
+                selected = rendition;
+                break;
+            }
+        }
+        if (selected == null) {
+            final int capKbps = Math.min(state.mCapKbps, getLinkCapKbps(roundTripNanos));
+            Rendition lowest = null;
+            for (Rendition rendition : renditions) {
+                final int bitrate = rendition.getBitrateKbps();
+                if (lowest == null || bitrate < lowest.getBitrateKbps()) {
+                    lowest = rendition;
+                }
+                if (bitrate <= capKbps
+                        && (selected == null || bitrate > selected.getBitrateKbps())) {
+                    selected = rendition;
+                }
+            }
+            if (selected == null) {
+                selected = lowest;
+            }
+        }
+        final int bitrateKbps = selected.isAdaptive() ? 0 : selected.getBitrateKbps();
+        if (state.mSelected.size() >= MAX_SELECTED_PER_DEVICE
+                && !state.mSelected.containsKey(selected.getContentId())) {
+            state.mSelected.clear();
+        }
+        state.mSelected.put(selected.getContentId(), bitrateKbps);
+        if (selected.getContentId().equals(state.mContentId)) {
+            // The same content again, its first buffering is not a stall
+            state.mStarted = false;
+        }
+        mSelectedBitrate.set(bitrateKbps);
+        return item.withRendition(selected);
+    }
+
+    /**
+     * Updates the quality of the device with the status of its player
+     *
+     * @param deviceId The id of the device
+     * @param status   The new status of the player
+     */
+    public synchronized void onStatusChanged(final String deviceId, final PlayerStatus status) {
+        final DeviceState state = mDevices.get(deviceId);
+        final Integer bitrateKbps = state != null
+                ? state.mSelected.get(status.getContentId()) : null;
+        if (bitrateKbps == null) {
+            // It's not a media we selected
+            return;
+        }
+        final long now = status.getSampleTimeNanos();
+        if (!status.getContentId().equals(state.mContentId)) {
+            endPlayingLocked(deviceId, state, now);
+            state.mContentId = status.getContentId();
+            state.mStarted = false;
+        }
+        if (status.getPlayerState() == PlayerStatus.PlayerState.PLAYING) {
+            if (state.mPlayingSinceNanos == 0L) {
+                state.mStarted = true;
+                state.mPlayingSinceNanos = now;
+            }
+            return;
+        }
+        endPlayingLocked(deviceId, state, now);
+        if (status.getPlayerState() != PlayerStatus.PlayerState.BUFFERING) {
+            // Paused or stopped, the next buffering is not a stall
+            state.mStarted = false;
+        } else if (state.mStarted) {
+            // The player ran out of data after the start
+            state.mStarted = false;
+            state.mStalls++;
+            mStalls.increment();
+            state.mStablePlayedNanos = 0L;
+            if (state.mRaised) {
+                // The last raise was too much so we wait longer for the next one
+                state.mRaiseAfterNanos =
+                        Math.min(MAX_STABLE_PLAYBACK_NANOS, state.mRaiseAfterNanos * 2);
+            }
+            if (bitrateKbps > 0) {
+                setCapLocked(deviceId, state, Math.max(MIN_CAP_KBPS, bitrateKbps * 7 / 10));
+            }
+        }
+    }
+
+    /**
+     * @param deviceId The id of the device
+     * @return The bitrate cap of the device or {@link #NO_CAP}
+     */
+    public synchronized int getBitrateCapKbps(final String deviceId) {
+        return getStateLocked(deviceId).mCapKbps;
+    }
+
+    /**
+     * @param deviceId The id of the device
+     * @return The number of stalls on the device
+     */
+    public synchronized long getStallCount(final String deviceId) {
+        return getStateLocked(deviceId).mStalls;
+    }
+
+    /**
+     * Returns the cap for the given round trip time. It's a simple heuristic: on the local
+     * network a higher round trip time means that the Wi-Fi is congested
+     *
+     * @param roundTripNanos The round trip time of the messages or -1 if unknown
+     * @return The bitrate cap for the link
+     */
+    static int getLinkCapKbps(final long roundTripNanos) {
+        if (roundTripNanos <= GOOD_ROUND_TRIP_NANOS) {
+            return NO_CAP;
+        }
+        return (int) Math.max(MIN_CAP_KBPS,
+                GOOD_LINK_KBPS * GOOD_ROUND_TRIP_NANOS / roundTripNanos);
+    }
+
+    /**
+     * Ends the current playing period and raises the cap if the playback has been stable
+     * long enough
+     */
+    private void endPlayingLocked(final String deviceId, final DeviceState state,
+                                  final long now) {
+        if (state.mPlayingSinceNanos == 0L) {
+            return;
+        }
+        state.mStablePlayedNanos += now - state.mPlayingSinceNanos;
+        state.mPlayingSinceNanos = 0L;
+        if (state.mCapKbps != NO_CAP && state.mStablePlayedNanos >= state.mRaiseAfterNanos) {
+            state.mStablePlayedNanos = 0L;
+            final long raised = state.mCapKbps * 2L;
+            state.mCapKbps = raised > MAX_CAP_KBPS ? NO_CAP : (int) raised;
+            state.mRaised = true;
+            saveCapLocked(deviceId, state);
+        }
+    }
+
+    /**
+     * Lowers the cap after a stall
+     */
+    private void setCapLocked(final String deviceId, final DeviceState state,
+                              final int capKbps) {
+        state.mRaised = false;
+        if (capKbps < state.mCapKbps) {
+            state.mCapKbps = capKbps;
+            saveCapLocked(deviceId, state);
+        }
+    }
+
+    private void saveCapLocked(final String deviceId, final DeviceState state) {
+        if (mQualityStore != null) {
+            mQualityStore.saveBitrateCapKbps(deviceId, state.mCapKbps);
+        }
+    }
+
+    private DeviceState getStateLocked(final String deviceId) {
+        DeviceState state = mDevices.get(deviceId);
+        if (state == null) {
+            state = new DeviceState();
+            if (mQualityStore != null) {
+                final int capKbps = mQualityStore.getBitrateCapKbps(deviceId);
+                if (capKbps > 0) {
+                    state.mCapKbps = capKbps;
+                }
+            }
+            mDevices.put(deviceId, state);
+        }
+        return state;
+    }
+}
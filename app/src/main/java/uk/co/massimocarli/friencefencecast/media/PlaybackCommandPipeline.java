@@ -0,0 +1,468 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.co.massimocarli.friencefencecast.resilience.RetryPolicy;
+import uk.co.massimocarli.friencefencecast.session.ResultListener;
+
+/**
+ * The pipeline for the play, pause and seek commands. The commands are collected for a
+ * short time and only the resulting state is sent to the Receiver, one command at a time:
+ * play, pause and play again becomes a single play, a sequence of seeks becomes the last
+ * one and a seek followed by play or pause is sent as a single seek. A command that
+ * doesn't change the state the player already has is not sent at all. A command that fails,
+ * or doesn't complete in time, is sent again following the {@link RetryPolicy} unless a
+ * new one has been requested in the meantime.
+ */
+public class PlaybackCommandPipeline {
+
+    /**
+     * How long we wait for more commands before sending them
+     */
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 100L;
+
+    /**
+     * The max time we wait for the result of a command
+     */
+    public static final long DEFAULT_COMMAND_TIMEOUT_MILLIS = 10000L;
+
+    /**
+     * The playback states the commands can request
+     */
+    private enum Playback {
+        PLAY,
+        PAUSE
+    }
+
+    /**
+     * The executor for the debounce
+     */
+    private final ScheduledExecutorService mScheduler;
+
+    /**
+     * The status we use to skip the commands that don't change anything
+     */
+    private final PlayerStatusCache mStatusCache;
+
+    /**
+     * The queue we use to load the media when play is requested and nothing is loaded
+     */
+    private final MediaQueue mMediaQueue;
+
+    private final long mDebounceMillis;
+
+    /**
+     * The policy for the commands that fail
+     */
+    private final RetryPolicy mRetryPolicy;
+
+    /**
+     * The max time we wait for the result of a command or 0 to wait forever
+     */
+    private final long mCommandTimeoutMillis;
+
+    /**
+     * The commands waiting to be sent. They complete with the command they are merged into
+     */
+    private final List<CommandFuture> mPendingFutures = new ArrayList<CommandFuture>();
+
+    /**
+     * The Runnable that sends the pending commands
+     */
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * The player we use or null if no session is running
+     */
+    private RemotePlayer mPlayer;
+
+    /**
+     * The requested playback state or null if not requested
+     */
+    private Playback mPendingPlayback;
+
+    /**
+     * The requested position or -1 if no seek is requested
+     */
+    private long mPendingSeekMillis = -1L;
+
+    /**
+     * True if a command is waiting for the result
+     */
+    private boolean mInFlight;
+
+    private ScheduledFuture<?> mScheduledDrain;
+
+    /**
+     * The timeout of the command in flight or null
+     */
+    private ScheduledFuture<?> mCommandTimeout;
+
+    /**
+     * The futures of the command in flight or null
+     */
+    private List<CommandFuture> mInFlightFutures;
+
+    /**
+     * Increased at every detach so the late results of the previous player are ignored
+     */
+    private int mGeneration;
+
+    /**
+     * The number of commands sent to the Receiver
+     */
+    private long mSentCount;
+
+    /**
+     * The number of commands merged or skipped
+     */
+    private long mCollapsedCount;
+
+    /**
+     * The failed attempts of the current command
+     */
+    private int mFailedAttempts;
+
+    /**
+     * The number of commands sent again after a failure
+     */
+    private long mRetryCount;
+
+    /**
+     * Creates a PlaybackCommandPipeline with the default debounce
+     *
+     * @param scheduler   The executor for the debounce
+     * @param statusCache The status of the player
+     * @param mediaQueue  The queue of the media to load
+     */
+    public PlaybackCommandPipeline(final ScheduledExecutorService scheduler,
+                                   final PlayerStatusCache statusCache,
+                                   final MediaQueue mediaQueue) {
+        this(scheduler, statusCache, mediaQueue, DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Creates a PlaybackCommandPipeline
+     *
+     * @param scheduler      The executor for the debounce
+     * @param statusCache    The status of the player
+     * @param mediaQueue     The queue of the media to load
+     * @param debounceMillis How long we wait for more commands before sending them
+     */
+    public PlaybackCommandPipeline(final ScheduledExecutorService scheduler,
+                                   final PlayerStatusCache statusCache,
+                                   final MediaQueue mediaQueue, final long debounceMillis) {
+        this(scheduler, statusCache, mediaQueue, debounceMillis, RetryPolicy.NONE, 0L);
+    }
+
+    /**
+     * Creates a PlaybackCommandPipeline that retries the failed commands
+     *
+     * @param scheduler            The executor for the debounce and the retries
+     * @param statusCache          The status of the player
+     * @param mediaQueue           The queue of the media to load
+     * @param debounceMillis       How long we wait for more commands before sending them
+     * @param retryPolicy          The policy for the commands that fail
+     * @param commandTimeoutMillis The max time we wait for the result of a command or 0
+     */
+    public PlaybackCommandPipeline(final ScheduledExecutorService scheduler,
+                                   final PlayerStatusCache statusCache,
+                                   final MediaQueue mediaQueue, final long debounceMillis,
+                                   final RetryPolicy retryPolicy,
+                                   final long commandTimeoutMillis) {
+        this.mScheduler = scheduler;
+        this.mStatusCache = statusCache;
+        this.mMediaQueue = mediaQueue;
+        this.mDebounceMillis = debounceMillis;
+        this.mRetryPolicy = retryPolicy;
+        this.mCommandTimeoutMillis = commandTimeoutMillis;
+    }
+
+    /**
+     * Uses the given player
+     *
+     * @param player The player of the new session
+     */
+    public synchronized void attach(final RemotePlayer player) {
+        mPlayer = player;
+    }
+
+    /**
+     * Releases the player of the session. The pending commands and the one in flight fail
+     */
+    public void detach() {
+        final List<CommandFuture> failed;
+        synchronized (this) {
+            mGeneration++;
+            mPlayer = null;
+            mPendingPlayback = null;
+            mPendingSeekMillis = -1L;
+            if (mScheduledDrain != null) {
+                mScheduledDrain.cancel(false);
+                mScheduledDrain = null;
+            }
+            // The result of the command in flight is ignored, so it doesn't wait for it
+            mInFlight = false;
+            if (mCommandTimeout != null) {
+                mCommandTimeout.cancel(false);
+                mCommandTimeout = null;
+            }
+            failed = new ArrayList<CommandFuture>(mPendingFutures);
+            mPendingFutures.clear();
+            if (mInFlightFutures != null) {
+                failed.addAll(mInFlightFutures);
+                mInFlightFutures = null;
+            }
+            mFailedAttempts = 0;
+        }
+        completeAll(failed, false);
+    }
+
+    /**
+     * Starts or resumes the playback. If nothing is loaded the current item of the
+     * {@link MediaQueue} is loaded
+     *
+     * @return The completion of the command
+     */
+    public CommandFuture play() {
+        return submit(Playback.PLAY, -1L);
+    }
+
+    /**
+     * Pauses the playback
+     *
+     * @return The completion of the command
+     */
+    public CommandFuture pause() {
+        return submit(Playback.PAUSE, -1L);
+    }
+
+    /**
+     * Moves to the given position keeping the current playback state
+     *
+     * @param positionMillis The new position
+     * @return The completion of the command
+     */
+    public CommandFuture seek(final long positionMillis) {
+        if (positionMillis < 0) {
+            throw new IllegalArgumentException("Negative position " + positionMillis);
+        }
+        return submit(null, positionMillis);
+    }
+
+    /**
+     * @return The number of commands sent to the Receiver
+     */
+    public synchronized long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return The number of commands merged into others or skipped
+     */
+    public synchronized long getCollapsedCount() {
+        return mCollapsedCount;
+    }
+
+    /**
+     * @return The number of commands sent again after a failure
+     */
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    private CommandFuture submit(final Playback playback, final long seekMillis) {
+        final CommandFuture future = new CommandFuture();
+        synchronized (this) {
+            if (mPlayer == null) {
+                future.complete(false);
+                return future;
+            }
+            if (!mPendingFutures.isEmpty()) {
+                mCollapsedCount++;
+            }
+            // A new request is a new command so it has all the attempts
+            mFailedAttempts = 0;
+            mPendingFutures.add(future);
+            if (playback != null) {
+                mPendingPlayback = playback;
+            }
+            if (seekMillis >= 0) {
+                mPendingSeekMillis = seekMillis;
+            }
+            // While a command is in flight the next one is sent when it completes
+            if (!mInFlight && mScheduledDrain == null) {
+                mScheduledDrain = mScheduler.schedule(mDrainTask, mDebounceMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Sends the requested state as a single command
+     */
+    private void drain() {
+        final RemotePlayer player;
+        final Playback playback;
+        final long seekMillis;
+        final List<CommandFuture> futures;
+        final boolean send;
+        final int generation;
+        synchronized (this) {
+            mScheduledDrain = null;
+            if (mInFlight || mPendingFutures.isEmpty() || mPlayer == null) {
+                return;
+            }
+            player = mPlayer;
+            playback = mPendingPlayback;
+            seekMillis = mPendingSeekMillis;
+            futures = new ArrayList<CommandFuture>(mPendingFutures);
+            mPendingFutures.clear();
+            mPendingPlayback = null;
+            mPendingSeekMillis = -1L;
+            // If the player is already where we want it we don't send anything
+            send = seekMillis >= 0 || !isInStateLocked(playback);
+            generation = mGeneration;
+            if (send) {
+                mInFlight = true;
+                mInFlightFutures = futures;
+                mSentCount++;
+            } else {
+                mCollapsedCount++;
+            }
+        }
+        if (!send) {
+            completeAll(futures, true);
+            return;
+        }
+        final AtomicBoolean completed = new AtomicBoolean();
+        final ResultListener<Void> resultListener = new ResultListener<Void>() {
+            @Override
+            public void onResult(boolean success, Void result) {
+                if (completed.compareAndSet(false, true)) {
+                    onCommandResult(generation, player, playback, seekMillis, futures,
+                            success);
+                }
+            }
+        };
+        if (mCommandTimeoutMillis > 0) {
+            final ScheduledFuture<?> timeout = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resultListener.onResult(false, null);
+                }
+            }, mCommandTimeoutMillis, TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                // The result can't arrive before this because the command is not sent yet
+                if (generation == mGeneration) {
+                    mCommandTimeout = timeout;
+                } else {
+                    timeout.cancel(false);
+                }
+            }
+        }
+        // The command is sent outside of the lock because the result could be synchronous
+        if (seekMillis >= 0) {
+            final RemotePlayer.ResumeState resumeState;
+            if (playback == Playback.PLAY) {
+                resumeState = RemotePlayer.ResumeState.PLAY;
+            } else if (playback == Playback.PAUSE) {
+                resumeState = RemotePlayer.ResumeState.PAUSE;
+            } else {
+                resumeState = RemotePlayer.ResumeState.UNCHANGED;
+            }
+            player.seek(seekMillis, resumeState, resultListener);
+        } else if (playback == Playback.PAUSE) {
+            player.pause(resultListener);
+        } else if (isLoaded(mStatusCache.getStatus())) {
+            player.play(resultListener);
+        } else if (!mMediaQueue.playCurrent(resultListener)) {
+            resultListener.onResult(false, null);
+        }
+    }
+
+    /**
+     * Completes the futures of a command or schedules it again if it failed and nothing
+     * else has been requested in the meantime
+     *
+     * @param generation The generation of the player when the command has been sent
+     * @param player     The player the command has been sent to
+     * @param playback   The requested playback state or null
+     * @param seekMillis The requested position or -1
+     * @param futures    The futures of the command
+     * @param success    True if the command succeeded
+     */
+    private void onCommandResult(final int generation, final RemotePlayer player,
+                                 final Playback playback, final long seekMillis,
+                                 final List<CommandFuture> futures, final boolean success) {
+        synchronized (this) {
+            if (generation != mGeneration) {
+                // The futures failed with the detach
+                return;
+            }
+            mInFlight = false;
+            mInFlightFutures = null;
+            if (mCommandTimeout != null) {
+                mCommandTimeout.cancel(false);
+                mCommandTimeout = null;
+            }
+            if (success) {
+                mFailedAttempts = 0;
+            } else if (mPendingFutures.isEmpty() && mPlayer == player
+                    && mRetryPolicy.canRetry(++mFailedAttempts)) {
+                // We put the command back so it's sent again after the backoff
+                mPendingPlayback = playback;
+                mPendingSeekMillis = seekMillis;
+                mPendingFutures.addAll(futures);
+                mRetryCount++;
+                mScheduledDrain = mScheduler.schedule(mDrainTask,
+                        mRetryPolicy.getDelayMillis(mFailedAttempts), TimeUnit.MILLISECONDS);
+                return;
+            } else {
+                mFailedAttempts = 0;
+            }
+        }
+        completeAll(futures, success);
+        // We send what has been requested in the meantime
+        drain();
+    }
+
+    /**
+     * @param playback The requested playback state
+     * @return True if the player is already in the requested state
+     */
+    private boolean isInStateLocked(final Playback playback) {
+        final PlayerStatus status = mStatusCache.getStatus();
+        if (!isLoaded(status)) {
+            return false;
+        }
+        if (playback == Playback.PLAY) {
+            return status.getPlayerState() == PlayerStatus.PlayerState.PLAYING
+                    || status.getPlayerState() == PlayerStatus.PlayerState.BUFFERING;
+        }
+        return status.getPlayerState() == PlayerStatus.PlayerState.PAUSED;
+    }
+
+    private static boolean isLoaded(final PlayerStatus status) {
+        return status != null && status.getContentId() != null
+                && status.getPlayerState() != PlayerStatus.PlayerState.IDLE
+                && status.getPlayerState() != PlayerStatus.PlayerState.UNKNOWN;
+    }
+
+    private static void completeAll(final List<CommandFuture> futures, final boolean success) {
+        for (CommandFuture future : futures) {
+            future.complete(success);
+        }
+    }
+}
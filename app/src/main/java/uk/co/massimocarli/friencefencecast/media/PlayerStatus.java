@@ -0,0 +1,143 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+/**
+ * An immutable snapshot of the status of the player on the Receiver
+ */
+public final class PlayerStatus {
+
+    /**
+     * The states of the player
+     */
+    public enum PlayerState {
+        UNKNOWN,
+        IDLE,
+        BUFFERING,
+        PLAYING,
+        PAUSED
+    }
+
+    private final PlayerState mPlayerState;
+
+    private final boolean mFinished;
+
+    private final String mContentId;
+
+    private final long mPositionMillis;
+
+    private final long mDurationMillis;
+
+    private final double mPlaybackRate;
+
+    private final double mVolume;
+
+    private final boolean mMuted;
+
+    private final long mSampleTimeNanos;
+
+    /**
+     * Creates a PlayerStatus
+     *
+     * @param playerState     The state of the player
+     * @param finished        True if the player is idle because the media is finished
+     * @param contentId       The id of the loaded content or null
+     * @param positionMillis  The position when the status has been sampled
+     * @param durationMillis  The duration of the content or -1 if unknown
+     * @param playbackRate    The playback rate
+     * @param volume          The volume of the stream
+     * @param muted           True if the stream is muted
+     * @param sampleTimeNanos The time, from System.nanoTime(), of the sample
+     */
+    public PlayerStatus(final PlayerState playerState, final boolean finished,
+                        final String contentId, final long positionMillis,
+                        final long durationMillis, final double playbackRate,
+                        final double volume, final boolean muted, final long sampleTimeNanos) {
+        this.mPlayerState = playerState;
+        this.mFinished = finished;
+        this.mContentId = contentId;
+        this.mPositionMillis = positionMillis;
+        this.mDurationMillis = durationMillis;
+        this.mPlaybackRate = playbackRate;
+        this.mVolume = volume;
+        this.mMuted = muted;
+        this.mSampleTimeNanos = sampleTimeNanos;
+    }
+
+    /**
+     * @return The state of the player
+     */
+    public PlayerState getPlayerState() {
+        return mPlayerState;
+    }
+
+    /**
+     * @return True if the player is idle because the media is finished
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * @return The id of the loaded content or null
+     */
+    public String getContentId() {
+        return mContentId;
+    }
+
+    /**
+     * @return The position when the status has been sampled
+     */
+    public long getPositionMillis() {
+        return mPositionMillis;
+    }
+
+    /**
+     * @return The duration of the content or -1 if unknown
+     */
+    public long getDurationMillis() {
+        return mDurationMillis;
+    }
+
+    /**
+     * @return The playback rate
+     */
+    public double getPlaybackRate() {
+        return mPlaybackRate;
+    }
+
+    /**
+     * @return The volume of the stream
+     */
+    public double getVolume() {
+        return mVolume;
+    }
+
+    /**
+     * @return True if the stream is muted
+     */
+    public boolean isMuted() {
+        return mMuted;
+    }
+
+    /**
+     * @return The time, from System.nanoTime(), of the sample
+     */
+    public long getSampleTimeNanos() {
+        return mSampleTimeNanos;
+    }
+
+    /**
+     * @return The time to the end of the content or -1 if unknown
+     */
+    public long getRemainingMillis() {
+        if (mDurationMillis < 0 || mPlaybackRate <= 0) {
+            return -1L;
+        }
+        return (long) (Math.max(0L, mDurationMillis - mPositionMillis) / mPlaybackRate);
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerStatus{" + mPlayerState + (mFinished ? " finished" : "") + " "
+                + mContentId + " " + mPositionMillis + "/" + mDurationMillis + "}";
+    }
+}
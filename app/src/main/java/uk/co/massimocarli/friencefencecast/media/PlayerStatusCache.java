@@ -0,0 +1,246 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+/**
+ * The local copy of the status of the player on the Receiver. It receives every status
+ * from the {@link RemotePlayer}, compares it with the previous one and notifies the
+ * Observers only when something they didn't already know has changed. While the media is
+ * playing the position is interpolated locally so a seek bar can be updated without
+ * asking the Receiver.
+ */
+public class PlayerStatusCache implements RemotePlayer.StatusListener {
+
+    /**
+     * The interface to implement to get notification about the changes of the status
+     */
+    public interface Observer {
+
+        /**
+         * Invoked when some fields of the status changed
+         *
+         * @param status        The new status
+         * @param changedFields The mask of the changed fields (see the FIELD_ constants)
+         */
+        void onStatusChanged(PlayerStatus status, int changedFields);
+    }
+
+    /**
+     * The state of the player or the finished flag changed
+     */
+    public static final int FIELD_STATE = 1;
+
+    /**
+     * The loaded content changed
+     */
+    public static final int FIELD_CONTENT = 1 << 1;
+
+    /**
+     * The duration of the content changed
+     */
+    public static final int FIELD_DURATION = 1 << 2;
+
+    /**
+     * The position moved away from the interpolated one, for instance after a seek
+     */
+    public static final int FIELD_POSITION = 1 << 3;
+
+    /**
+     * The playback rate changed
+     */
+    public static final int FIELD_PLAYBACK_RATE = 1 << 4;
+
+    /**
+     * The volume or the mute flag changed
+     */
+    public static final int FIELD_VOLUME = 1 << 5;
+
+    /**
+     * All the fields
+     */
+    public static final int ALL_FIELDS = FIELD_STATE | FIELD_CONTENT | FIELD_DURATION
+            | FIELD_POSITION | FIELD_PLAYBACK_RATE | FIELD_VOLUME;
+
+    /**
+     * The difference from the interpolated position we don't consider a change. The status
+     * of the Receiver is sampled with a little delay so the positions never match exactly
+     */
+    private static final long POSITION_TOLERANCE_MILLIS = 1000L;
+
+    private static final Observer[] NO_OBSERVERS = new Observer[0];
+
+    /**
+     * The Observers. The array is replaced on each registration so the notification
+     * doesn't need any lock or iterator
+     */
+    private volatile Observer[] mObservers = NO_OBSERVERS;
+
+    /**
+     * The last status or null if we don't have any
+     */
+    private volatile PlayerStatus mStatus;
+
+    /**
+     * The number of updates with no changes
+     */
+    private long mUnchangedCount;
+
+    /**
+     * Registers an Observer. If we already have a status it's notified immediately with all
+     * the fields
+     *
+     * @param observer The Observer to register
+     */
+    public void addObserver(final Observer observer) {
+        synchronized (this) {
+            final Observer[] observers = mObservers;
+            for (Observer registered : observers) {
+                if (registered == observer) {
+                    return;
+                }
+            }
+            final Observer[] newObservers = new Observer[observers.length + 1];
+            System.arraycopy(observers, 0, newObservers, 0, observers.length);
+            newObservers[observers.length] = observer;
+            mObservers = newObservers;
+        }
+        final PlayerStatus status = mStatus;
+        if (status != null) {
+            observer.onStatusChanged(status, ALL_FIELDS);
+        }
+    }
+
+    /**
+     * Unregisters an Observer
+     *
+     * @param observer The Observer to unregister
+     */
+    public synchronized void removeObserver(final Observer observer) {
+        final Observer[] observers = mObservers;
+        for (int i = 0; i < observers.length; i++) {
+            if (observers[i] == observer) {
+                final Observer[] newObservers = new Observer[observers.length - 1];
+                System.arraycopy(observers, 0, newObservers, 0, i);
+                System.arraycopy(observers, i + 1, newObservers, i, observers.length - i - 1);
+                mObservers = newObservers;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets the current status. It's invoked when the session ends
+     */
+    public void clear() {
+        mStatus = null;
+    }
+
+    /**
+     * @return The last status or null if we don't have any
+     */
+    public PlayerStatus getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return The number of updates that didn't change anything
+     */
+    public synchronized long getUnchangedCount() {
+        return mUnchangedCount;
+    }
+
+    /**
+     * @return The current position estimated from the last status or -1 if we don't have
+     * any status
+     */
+    public long getEstimatedPositionMillis() {
+        return getEstimatedPositionMillis(System.nanoTime());
+    }
+
+    /**
+     * Estimates the position at the given time
+     *
+     * @param nowNanos The time, from System.nanoTime(), of the estimate
+     * @return The estimated position or -1 if we don't have any status
+     */
+    public long getEstimatedPositionMillis(final long nowNanos) {
+        final PlayerStatus status = mStatus;
+        return status != null ? interpolatePosition(status, nowNanos) : -1L;
+    }
+
+    @Override
+    public void onStatusUpdated(final PlayerStatus status) {
+        final int changedFields;
+        synchronized (this) {
+            changedFields = diff(mStatus, status);
+            // We keep the new sample in any case because its position is more accurate
+            mStatus = status;
+            if (changedFields == 0) {
+                mUnchangedCount++;
+                return;
+            }
+        }
+        final Observer[] observers = mObservers;
+        for (Observer observer : observers) {
+            observer.onStatusChanged(status, changedFields);
+        }
+    }
+
+    /**
+     * Compares two statuses
+     *
+     * @param oldStatus The previous status or null
+     * @param newStatus The new status
+     * @return The mask of the fields that changed
+     */
+    static int diff(final PlayerStatus oldStatus, final PlayerStatus newStatus) {
+        if (oldStatus == null) {
+            return ALL_FIELDS;
+        }
+        int changedFields = 0;
+        if (oldStatus.getPlayerState() != newStatus.getPlayerState()
+                || oldStatus.isFinished() != newStatus.isFinished()) {
+            changedFields |= FIELD_STATE;
+        }
+        final String oldContentId = oldStatus.getContentId();
+        if (oldContentId == null ? newStatus.getContentId() != null
+                : !oldContentId.equals(newStatus.getContentId())) {
+            changedFields |= FIELD_CONTENT;
+        }
+        if (oldStatus.getDurationMillis() != newStatus.getDurationMillis()) {
+            changedFields |= FIELD_DURATION;
+        }
+        final long expectedPosition = interpolatePosition(oldStatus,
+                newStatus.getSampleTimeNanos());
+        if (Math.abs(expectedPosition - newStatus.getPositionMillis())
+                > POSITION_TOLERANCE_MILLIS) {
+            changedFields |= FIELD_POSITION;
+        }
+        if (oldStatus.getPlaybackRate() != newStatus.getPlaybackRate()) {
+            changedFields |= FIELD_PLAYBACK_RATE;
+        }
+        if (oldStatus.getVolume() != newStatus.getVolume()
+                || oldStatus.isMuted() != newStatus.isMuted()) {
+            changedFields |= FIELD_VOLUME;
+        }
+        return changedFields;
+    }
+
+    /**
+     * Estimates the position of the given status at the given time
+     *
+     * @param status   The status
+     * @param nowNanos The time, from System.nanoTime(), of the estimate
+     * @return The estimated position
+     */
+    private static long interpolatePosition(final PlayerStatus status, final long nowNanos) {
+        if (status.getPlayerState() != PlayerStatus.PlayerState.PLAYING) {
+            return status.getPositionMillis();
+        }
+        final long elapsedMillis = Math.max(0L, nowNanos - status.getSampleTimeNanos()) / 1000000L;
+        long position = status.getPositionMillis()
+                + (long) (elapsedMillis * status.getPlaybackRate());
+        if (status.getDurationMillis() >= 0) {
+            position = Math.min(position, status.getDurationMillis());
+        }
+        return position;
+    }
+}
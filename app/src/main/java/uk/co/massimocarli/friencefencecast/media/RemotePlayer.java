@@ -0,0 +1,75 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import uk.co.massimocarli.friencefencecast.session.ResultListener;
+
+/**
+ * The abstraction of the player on the Receiver
+ */
+public interface RemotePlayer {
+
+    /**
+     * The interface to implement to get notification about the status of the player
+     */
+    interface StatusListener {
+
+        /**
+         * Invoked when the Receiver sends a new status
+         *
+         * @param status The new status
+         */
+        void onStatusUpdated(PlayerStatus status);
+    }
+
+    /**
+     * The state of the player after a seek
+     */
+    enum ResumeState {
+        UNCHANGED,
+        PLAY,
+        PAUSE
+    }
+
+    /**
+     * Loads the given media
+     *
+     * @param item     The media to load
+     * @param autoplay True if the playback has to start immediately
+     * @param listener The listener for the result. It can be null
+     */
+    void load(MediaItem item, boolean autoplay, ResultListener<Void> listener);
+
+    /**
+     * Resumes the playback of the loaded media
+     *
+     * @param listener The listener for the result. It can be null
+     */
+    void play(ResultListener<Void> listener);
+
+    /**
+     * Pauses the playback
+     *
+     * @param listener The listener for the result. It can be null
+     */
+    void pause(ResultListener<Void> listener);
+
+    /**
+     * Moves to the given position
+     *
+     * @param positionMillis The new position
+     * @param resumeState    The state of the player after the seek
+     * @param listener       The listener for the result. It can be null
+     */
+    void seek(long positionMillis, ResumeState resumeState, ResultListener<Void> listener);
+
+    /**
+     * Requests the status to the Receiver
+     *
+     * @param listener The listener for the result. It can be null
+     */
+    void requestStatus(ResultListener<Void> listener);
+
+    /**
+     * @param statusListener The listener for the status of the player or null
+     */
+    void setStatusListener(StatusListener statusListener);
+}
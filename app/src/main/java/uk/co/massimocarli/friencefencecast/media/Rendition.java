@@ -0,0 +1,63 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+/**
+ * One of the versions of the same media. A progressive rendition has a fixed bitrate while
+ * an adaptive one is a manifest (HLS, DASH or Smooth Streaming) that lets the Receiver
+ * change the bitrate during the playback.
+ */
+public final class Rendition {
+
+    private final String mContentId;
+
+    private final String mContentType;
+
+    private final int mBitrateKbps;
+
+    /**
+     * Creates a Rendition
+     *
+     * @param contentId   The id (url) of the content
+     * @param contentType The mime type of the content
+     * @param bitrateKbps The bitrate of the content or 0 if unknown or adaptive
+     */
+    public Rendition(final String contentId, final String contentType, final int bitrateKbps) {
+        this.mContentId = contentId;
+        this.mContentType = contentType;
+        this.mBitrateKbps = bitrateKbps;
+    }
+
+    /**
+     * @return The id (url) of the content
+     */
+    public String getContentId() {
+        return mContentId;
+    }
+
+    /**
+     * @return The mime type of the content
+     */
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * @return The bitrate of the content or 0 if unknown or adaptive
+     */
+    public int getBitrateKbps() {
+        return mBitrateKbps;
+    }
+
+    /**
+     * @return True if the content is a manifest for the adaptive streaming
+     */
+    public boolean isAdaptive() {
+        final String contentType = mContentType.toLowerCase();
+        return contentType.contains("mpegurl") || contentType.contains("dash+xml")
+                || contentType.contains("vnd.ms-sstr+xml");
+    }
+
+    @Override
+    public String toString() {
+        return "Rendition{" + mContentId + " " + mContentType + " " + mBitrateKbps + "kbps}";
+    }
+}
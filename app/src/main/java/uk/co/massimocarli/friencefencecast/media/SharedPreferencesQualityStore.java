@@ -0,0 +1,40 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The QualityStore implementation that uses the SharedPreferences. The key is the id of
+ * the device
+ */
+public class SharedPreferencesQualityStore implements MediaSelector.QualityStore {
+
+    /**
+     * The name of the SharedPreferences file
+     */
+    private static final String PREFS_NAME = "cast_quality";
+
+    /**
+     * The SharedPreferences we use
+     */
+    private final SharedPreferences mPrefs;
+
+    /**
+     * Creates a SharedPreferencesQualityStore
+     *
+     * @param context The Context
+     */
+    public SharedPreferencesQualityStore(final Context context) {
+        this.mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public int getBitrateCapKbps(final String deviceId) {
+        return mPrefs.getInt(deviceId, -1);
+    }
+
+    @Override
+    public void saveBitrateCapKbps(final String deviceId, final int capKbps) {
+        mPrefs.edit().putInt(deviceId, capKbps).apply();
+    }
+}
@@ -0,0 +1,35 @@
+package uk.co.massimocarli.friencefencecast.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A counter that can only grow. It's safe to use from any thread
+ */
+public final class Counter {
+
+    private final AtomicLong mCount = new AtomicLong();
+
+    Counter() {
+    }
+
+    /**
+     * Adds one to the counter
+     */
+    public void increment() {
+        mCount.incrementAndGet();
+    }
+
+    /**
+     * @param delta The value to add to the counter
+     */
+    public void add(final long delta) {
+        mCount.addAndGet(delta);
+    }
+
+    /**
+     * @return The current value
+     */
+    public long get() {
+        return mCount.get();
+    }
+}
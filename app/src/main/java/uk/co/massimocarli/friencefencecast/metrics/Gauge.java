@@ -0,0 +1,26 @@
+package uk.co.massimocarli.friencefencecast.metrics;
+
+/**
+ * A value that can go up and down, like the size of a queue. Only the last value is kept
+ */
+public final class Gauge {
+
+    private volatile long mValue;
+
+    Gauge() {
+    }
+
+    /**
+     * @param value The current value
+     */
+    public void set(final long value) {
+        mValue = value;
+    }
+
+    /**
+     * @return The last value
+     */
+    public long get() {
+        return mValue;
+    }
+}
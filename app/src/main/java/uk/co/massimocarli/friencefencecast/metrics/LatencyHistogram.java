@@ -0,0 +1,156 @@
+package uk.co.massimocarli.friencefencecast.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds. Like the HDR histograms each power of two is
+ * split into a fixed number of linear buckets so the error on any value is less than 4%
+ * with a fixed amount of memory. Recording a value doesn't allocate and doesn't lock so it
+ * can be used on the hot paths from any thread.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Each power of two is split into 2^SUB_BUCKET_BITS buckets
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The highest power of two we track. Longer durations, more than about 36 minutes, are
+     * recorded into the last bucket
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final long MAX_TRACKABLE_NANOS = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_NANOS) + 1;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong mCount = new AtomicLong();
+
+    private final AtomicLong mTotalNanos = new AtomicLong();
+
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    LatencyHistogram() {
+    }
+
+    /**
+     * Records a duration
+     *
+     * @param nanos The duration in nanoseconds. Negative values are recorded as 0
+     */
+    public void record(final long nanos) {
+        final long value = nanos < 0 ? 0 : Math.min(nanos, MAX_TRACKABLE_NANOS);
+        mBuckets.incrementAndGet(bucketIndex(value));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(value);
+        long max = mMaxNanos.get();
+        while (value > max && !mMaxNanos.compareAndSet(max, value)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    /**
+     * Records the time passed since the given start
+     *
+     * @param startNanos The start, from System.nanoTime()
+     */
+    public void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return The number of recorded values
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return The mean of the recorded values or 0 if there are none
+     */
+    public long getMeanNanos() {
+        final long count = mCount.get();
+        return count == 0 ? 0L : mTotalNanos.get() / count;
+    }
+
+    /**
+     * @return The max recorded value
+     */
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values falls. The
+     * value is the upper bound of its bucket so it's never lower than the real one
+     *
+     * @param percentile The percentile between 0 and 100
+     * @return The value at the given percentile or 0 if there are no values
+     */
+    public long getPercentileNanos(final double percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0L;
+        }
+        final long target = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+        long cumulated = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulated += mBuckets.get(i);
+            if (cumulated >= target) {
+                return Math.min(bucketUpperBound(i), mMaxNanos.get());
+            }
+        }
+        return mMaxNanos.get();
+    }
+
+    /**
+     * Writes the summary of the histogram
+     *
+     * @param builder The StringBuilder to write into
+     */
+    void appendTo(final StringBuilder builder) {
+        builder.append("count=").append(getCount());
+        appendMillis(builder.append(" mean="), getMeanNanos());
+        appendMillis(builder.append(" p50="), getPercentileNanos(50));
+        appendMillis(builder.append(" p90="), getPercentileNanos(90));
+        appendMillis(builder.append(" p99="), getPercentileNanos(99));
+        appendMillis(builder.append(" max="), getMaxNanos());
+    }
+
+    private static void appendMillis(final StringBuilder builder, final long nanos) {
+        final long micros = nanos / 1000L;
+        builder.append(micros / 1000L).append('.');
+        final long fraction = micros % 1000L;
+        if (fraction < 100) {
+            builder.append('0');
+        }
+        if (fraction < 10) {
+            builder.append('0');
+        }
+        builder.append(fraction).append("ms");
+    }
+
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+    }
+
+    static long bucketUpperBound(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long lowerBound = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,134 @@
+package uk.co.massimocarli.friencefencecast.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The registry of the metrics of the Cast pipeline. The metrics are created once by name
+ * and then kept by the classes that update them, so the update is just an atomic
+ * operation. The registry can produce a text snapshot of all the metrics, once or
+ * periodically.
+ */
+public class MetricsRegistry {
+
+    /**
+     * The interface to implement to receive the periodic snapshots
+     */
+    public interface SnapshotSink {
+
+        /**
+         * Invoked with the snapshot of the metrics
+         *
+         * @param snapshot The text snapshot, one metric per line
+         */
+        void onSnapshot(String snapshot);
+    }
+
+    private final ConcurrentHashMap<String, Counter> mCounters =
+            new ConcurrentHashMap<String, Counter>();
+
+    private final ConcurrentHashMap<String, Gauge> mGauges =
+            new ConcurrentHashMap<String, Gauge>();
+
+    private final ConcurrentHashMap<String, LatencyHistogram> mHistograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Returns the Counter with the given name, creating it if needed
+     *
+     * @param name The name of the Counter
+     * @return The Counter
+     */
+    public Counter counter(final String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            final Counter newCounter = new Counter();
+            counter = mCounters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the Gauge with the given name, creating it if needed
+     *
+     * @param name The name of the Gauge
+     * @return The Gauge
+     */
+    public Gauge gauge(final String name) {
+        Gauge gauge = mGauges.get(name);
+        if (gauge == null) {
+            final Gauge newGauge = new Gauge();
+            gauge = mGauges.putIfAbsent(name, newGauge);
+            if (gauge == null) {
+                gauge = newGauge;
+            }
+        }
+        return gauge;
+    }
+
+    /**
+     * Returns the LatencyHistogram with the given name, creating it if needed
+     *
+     * @param name The name of the LatencyHistogram
+     * @return The LatencyHistogram
+     */
+    public LatencyHistogram histogram(final String name) {
+        LatencyHistogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            final LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = mHistograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return The text snapshot of all the metrics sorted by name, one per line
+     */
+    public String snapshot() {
+        final StringBuilder builder = new StringBuilder(512);
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(mCounters).entrySet()) {
+            builder.append(entry.getKey()).append(" counter ")
+                    .append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> entry : new TreeMap<String, Gauge>(mGauges).entrySet()) {
+            builder.append(entry.getKey()).append(" gauge ")
+                    .append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry
+                : new TreeMap<String, LatencyHistogram>(mHistograms).entrySet()) {
+            builder.append(entry.getKey()).append(" histogram ");
+            entry.getValue().appendTo(builder);
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Sends a snapshot to the given sink periodically
+     *
+     * @param scheduler    The executor for the snapshots
+     * @param periodMillis The time between two snapshots
+     * @param sink         The SnapshotSink for the snapshots
+     * @return The ScheduledFuture to cancel to stop the snapshots
+     */
+    public ScheduledFuture<?> scheduleSnapshots(final ScheduledExecutorService scheduler,
+                                                final long periodMillis,
+                                                final SnapshotSink sink) {
+        return scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sink.onSnapshot(snapshot());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,110 @@
+package uk.co.massimocarli.friencefencecast.resilience;
+
+/**
+ * The circuit breaker for a device. After too many consecutive failures the circuit opens
+ * and the operations on the device fail immediately instead of waiting for the timeouts.
+ * After a while a single operation is allowed again: if it succeeds the circuit closes,
+ * otherwise it stays open for another period.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of the circuit
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int mFailureThreshold;
+
+    private final long mOpenNanos;
+
+    private State mState = State.CLOSED;
+
+    private int mConsecutiveFailures;
+
+    private long mOpenedAtNanos;
+
+    private long mProbeStartNanos;
+
+    private int mOpenCount;
+
+    /**
+     * Creates a CircuitBreaker
+     *
+     * @param failureThreshold The consecutive failures that open the circuit
+     * @param openMillis       How long the circuit stays open before a new attempt
+     */
+    public CircuitBreaker(final int failureThreshold, final long openMillis) {
+        this.mFailureThreshold = failureThreshold;
+        this.mOpenNanos = openMillis * 1000000L;
+    }
+
+    /**
+     * Checks if an operation can be done. When the open period is over the first caller
+     * gets the permission for the probe operation
+     *
+     * @return True if the operation can be done
+     */
+    public synchronized boolean allowRequest() {
+        switch (mState) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - mOpenedAtNanos >= mOpenNanos) {
+                    mState = State.HALF_OPEN;
+                    mProbeStartNanos = System.nanoTime();
+                    return true;
+                }
+                return false;
+            default:
+                // A probe is in progress. If its result never came we allow another one
+                if (System.nanoTime() - mProbeStartNanos >= mOpenNanos) {
+                    mProbeStartNanos = System.nanoTime();
+                    return true;
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Records a successful operation
+     */
+    public synchronized void recordSuccess() {
+        mConsecutiveFailures = 0;
+        mState = State.CLOSED;
+    }
+
+    /**
+     * Records a failed operation
+     *
+     * @return True if the failure opened the circuit
+     */
+    public synchronized boolean recordFailure() {
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN
+                || (mState == State.CLOSED && mConsecutiveFailures >= mFailureThreshold)) {
+            mState = State.OPEN;
+            mOpenedAtNanos = System.nanoTime();
+            mOpenCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The current state
+     */
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * @return The number of times the circuit has been opened
+     */
+    public synchronized int getOpenCount() {
+        return mOpenCount;
+    }
+}
@@ -0,0 +1,79 @@
+package uk.co.massimocarli.friencefencecast.resilience;
+
+import java.util.Random;
+
+/**
+ * The policy for the retries of a failed operation. The delay grows exponentially with the
+ * attempts up to a max and it's randomized so many devices that fail at the same time,
+ * for instance when the Wi-Fi comes back, don't retry at the same time.
+ */
+public final class RetryPolicy {
+
+    /**
+     * The policy we use for the Cast operations
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(500L, 15000L, 5);
+
+    /**
+     * A policy that never retries
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(0L, 0L, 1);
+
+    private final long mInitialDelayMillis;
+
+    private final long mMaxDelayMillis;
+
+    private final int mMaxAttempts;
+
+    private final Random mRandom = new Random();
+
+    /**
+     * Creates a RetryPolicy
+     *
+     * @param initialDelayMillis The delay before the first retry
+     * @param maxDelayMillis     The max delay between two attempts
+     * @param maxAttempts        The max number of attempts, the first one included
+     */
+    public RetryPolicy(final long initialDelayMillis, final long maxDelayMillis,
+                       final int maxAttempts) {
+        if (maxAttempts < 1 || initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        this.mInitialDelayMillis = initialDelayMillis;
+        this.mMaxDelayMillis = maxDelayMillis;
+        this.mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param failedAttempts The number of attempts already failed
+     * @return True if we can try again
+     */
+    public boolean canRetry(final int failedAttempts) {
+        return failedAttempts < mMaxAttempts;
+    }
+
+    /**
+     * Returns the delay before the next attempt. It's a random value between half and all
+     * of the exponential delay so it never goes to zero
+     *
+     * @param failedAttempts The number of attempts already failed, at least 1
+     * @return The delay before the next attempt
+     */
+    public long getDelayMillis(final int failedAttempts) {
+        final int exponent = Math.min(Math.max(failedAttempts - 1, 0), 30);
+        final long delay = Math.min(mMaxDelayMillis, mInitialDelayMillis << exponent);
+        final long half = delay / 2;
+        final double random;
+        synchronized (mRandom) {
+            random = mRandom.nextDouble();
+        }
+        return half + (long) (random * (delay - half));
+    }
+
+    /**
+     * @return The max number of attempts, the first one included
+     */
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+}
@@ -0,0 +1,100 @@
+package uk.co.massimocarli.friencefencecast.route;
+
+import android.content.Context;
+import android.support.v7.app.MediaRouteActionProvider;
+import android.support.v7.app.MediaRouteChooserDialogFragment;
+import android.support.v7.app.MediaRouteDialogFactory;
+
+import java.lang.ref.WeakReference;
+
+import uk.co.massimocarli.friencefencecast.FriendFenceCastApplication;
+
+/**
+ * The MediaRouteActionProvider for the cast button. The button is visible also when the
+ * discovery hasn't found any device yet but we have seen one recently, so its visibility is
+ * refreshed when the RouteCache changes. The route chooser tells the DiscoveryScheduler
+ * when it's visible.
+ */
+public class CastRouteActionProvider extends MediaRouteActionProvider {
+
+    /**
+     * The Listener of the RouteCache. It keeps a weak reference to the provider, as the
+     * MediaRouteActionProvider does with its MediaRouter callback, because the cache lives
+     * as long as the application
+     */
+    private static final class RouteCacheListener implements RouteCache.Listener {
+
+        private final RouteCache mRouteCache;
+
+        private final WeakReference<CastRouteActionProvider> mProviderRef;
+
+        RouteCacheListener(final RouteCache routeCache,
+                           final CastRouteActionProvider provider) {
+            this.mRouteCache = routeCache;
+            this.mProviderRef = new WeakReference<CastRouteActionProvider>(provider);
+        }
+
+        @Override
+        public void onRouteCacheChanged() {
+            final CastRouteActionProvider provider = mProviderRef.get();
+            if (provider != null) {
+                provider.refreshVisibility();
+            } else {
+                mRouteCache.removeListener(this);
+            }
+        }
+    }
+
+    /**
+     * The route chooser that tells the DiscoveryScheduler when it's visible
+     */
+    public static class ChooserDialogFragment extends MediaRouteChooserDialogFragment {
+
+        @Override
+        public void onStart() {
+            super.onStart();
+            getDiscoveryScheduler(getActivity()).setChooserVisible(true);
+        }
+
+        @Override
+        public void onStop() {
+            getDiscoveryScheduler(getActivity()).setChooserVisible(false);
+            super.onStop();
+        }
+    }
+
+    /**
+     * The scheduler of the discovery
+     */
+    private final DiscoveryScheduler mDiscoveryScheduler;
+
+    /**
+     * Creates a CastRouteActionProvider
+     *
+     * @param context The Context
+     */
+    public CastRouteActionProvider(final Context context) {
+        super(context);
+        mDiscoveryScheduler = getDiscoveryScheduler(context);
+        setRouteSelector(mDiscoveryScheduler.getMediaRouteSelector());
+        final RouteCache routeCache = mDiscoveryScheduler.getRouteCache();
+        routeCache.addListener(new RouteCacheListener(routeCache, this));
+        setDialogFactory(new MediaRouteDialogFactory() {
+            @Override
+            public MediaRouteChooserDialogFragment onCreateChooserDialogFragment() {
+                return new ChooserDialogFragment();
+            }
+        });
+    }
+
+    @Override
+    public boolean isVisible() {
+        // A recently seen device is probably still there
+        return super.isVisible() || mDiscoveryScheduler.getRouteCache().hasFreshRoutes();
+    }
+
+    private static DiscoveryScheduler getDiscoveryScheduler(final Context context) {
+        return ((FriendFenceCastApplication) context.getApplicationContext())
+                .getDiscoveryScheduler();
+    }
+}
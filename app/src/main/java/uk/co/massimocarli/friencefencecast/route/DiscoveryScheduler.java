@@ -0,0 +1,262 @@
+package uk.co.massimocarli.friencefencecast.route;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v7.media.MediaRouteSelector;
+import android.support.v7.media.MediaRouter;
+
+import uk.co.massimocarli.friencefencecast.metrics.LatencyHistogram;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+
+/**
+ * Decides how the MediaRouter looks for the devices. The active scan, the one that drains
+ * the battery, is used only for a short burst after the start. The route chooser runs its
+ * own active scan while it's visible so we don't request another one. In the other cases
+ * the discovery is passive. The routes found are saved into the {@link RouteCache}. All the
+ * methods must be invoked on the main thread.
+ */
+public class DiscoveryScheduler {
+
+    /**
+     * The histogram for the time from the start to the first matching route discovered after
+     * it. Nothing is recorded if a matching route was already known at the start
+     */
+    public static final String METRIC_TIME_TO_FIRST_ROUTE = "discovery.time_to_first_route";
+
+    /**
+     * The histogram for the time of active scan between a start and a stop
+     */
+    public static final String METRIC_ACTIVE_SCAN_PER_SESSION =
+            "discovery.active_scan_per_session";
+
+    /**
+     * The MediaRouter we use
+     */
+    private final MediaRouter mMediaRouter;
+
+    /**
+     * The selector for the routes of our Receiver
+     */
+    private final MediaRouteSelector mMediaRouteSelector;
+
+    /**
+     * The cache of the routes
+     */
+    private final RouteCache mRouteCache;
+
+    /**
+     * How long the active scan lasts after the start
+     */
+    private final long mBurstMillis;
+
+    private final LatencyHistogram mTimeToFirstRoute;
+
+    private final LatencyHistogram mActiveScanPerSession;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The end of the active scan after the start
+     */
+    private final Runnable mEndBurst = new Runnable() {
+        @Override
+        public void run() {
+            mInBurst = false;
+            updateDiscovery();
+        }
+    };
+
+    /**
+     * The callback that controls the discovery and collects the routes
+     */
+    private final MediaRouter.Callback mDiscoveryCallback = new MediaRouter.Callback() {
+        @Override
+        public void onRouteAdded(MediaRouter router, MediaRouter.RouteInfo route) {
+            if (markSeen(route) && mStarted && !mFirstRouteFound) {
+                mFirstRouteFound = true;
+                mTimeToFirstRoute.record(
+                        (SystemClock.elapsedRealtime() - mStartTime) * 1000000L);
+            }
+        }
+    };
+
+    private boolean mStarted;
+
+    private boolean mInBurst;
+
+    private boolean mChooserVisible;
+
+    /**
+     * The flags of the current registration or -1 if not registered
+     */
+    private int mCurrentFlags = -1;
+
+    /**
+     * The time of the last start
+     */
+    private long mStartTime;
+
+    /**
+     * True if we found a route since the last start, or one was already known
+     */
+    private boolean mFirstRouteFound;
+
+    /**
+     * The start of the current active scan, ours or the one of the route chooser, or 0
+     */
+    private long mActiveScanStart;
+
+    /**
+     * The time of active scan since the last start
+     */
+    private long mSessionActiveScanMillis;
+
+    /**
+     * Creates a DiscoveryScheduler
+     *
+     * @param mediaRouter        The MediaRouter to use
+     * @param mediaRouteSelector The selector for the routes of our Receiver
+     * @param routeCache         The cache for the routes
+     * @param burstMillis        How long the active scan lasts after the start
+     * @param metrics            The registry for the discovery metrics
+     */
+    public DiscoveryScheduler(final MediaRouter mediaRouter,
+                              final MediaRouteSelector mediaRouteSelector,
+                              final RouteCache routeCache, final long burstMillis,
+                              final MetricsRegistry metrics) {
+        this.mMediaRouter = mediaRouter;
+        this.mMediaRouteSelector = mediaRouteSelector;
+        this.mRouteCache = routeCache;
+        this.mBurstMillis = burstMillis;
+        this.mTimeToFirstRoute = metrics.histogram(METRIC_TIME_TO_FIRST_ROUTE);
+        this.mActiveScanPerSession = metrics.histogram(METRIC_ACTIVE_SCAN_PER_SESSION);
+    }
+
+    /**
+     * @return The selector for the routes of our Receiver
+     */
+    public MediaRouteSelector getMediaRouteSelector() {
+        return mMediaRouteSelector;
+    }
+
+    /**
+     * @return The cache of the routes
+     */
+    public RouteCache getRouteCache() {
+        return mRouteCache;
+    }
+
+    /**
+     * Starts the discovery with a burst of active scan. It's invoked when the UI becomes
+     * visible
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mStartTime = SystemClock.elapsedRealtime();
+        mSessionActiveScanMillis = 0L;
+        mFirstRouteFound = false;
+        mInBurst = true;
+        mHandler.postDelayed(mEndBurst, mBurstMillis);
+        updateDiscovery();
+        // The routes could be already known. They have not been discovered by this burst
+        for (MediaRouter.RouteInfo route : mMediaRouter.getRoutes()) {
+            mFirstRouteFound |= markSeen(route);
+        }
+    }
+
+    /**
+     * Stops the discovery. It's invoked when the UI is not visible anymore
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mInBurst = false;
+        mHandler.removeCallbacks(mEndBurst);
+        updateDiscovery();
+        mActiveScanPerSession.record(mSessionActiveScanMillis * 1000000L);
+    }
+
+    /**
+     * Sets the visibility of the route chooser. The chooser runs its own active scan so we
+     * only count its time
+     *
+     * @param visible True if the route chooser is visible
+     */
+    public void setChooserVisible(final boolean visible) {
+        mChooserVisible = visible;
+        updateDiscovery();
+    }
+
+    /**
+     * @return True if the scan is active now, because of the burst or the route chooser
+     */
+    public boolean isActiveScan() {
+        return mActiveScanStart != 0L;
+    }
+
+    /**
+     * @return The time of active scan since the last start
+     */
+    public long getSessionActiveScanMillis() {
+        if (mActiveScanStart == 0L) {
+            return mSessionActiveScanMillis;
+        }
+        return mSessionActiveScanMillis + SystemClock.elapsedRealtime() - mActiveScanStart;
+    }
+
+    /**
+     * Registers the callback with the flags for the current situation
+     */
+    private void updateDiscovery() {
+        // The route chooser scans by itself so we request the active scan only without it
+        final boolean requestActive = mStarted && mInBurst && !mChooserVisible;
+        final boolean active = requestActive || mChooserVisible;
+        // We measure the time of active scan
+        final long now = SystemClock.elapsedRealtime();
+        if (active && mActiveScanStart == 0L) {
+            mActiveScanStart = now;
+        } else if (!active && mActiveScanStart != 0L) {
+            mSessionActiveScanMillis += now - mActiveScanStart;
+            mActiveScanStart = 0L;
+        }
+        final int flags;
+        if (!mStarted && !mChooserVisible) {
+            flags = -1;
+        } else if (requestActive) {
+            flags = MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY
+                    | MediaRouter.CALLBACK_FLAG_PERFORM_ACTIVE_SCAN;
+        } else {
+            flags = MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY;
+        }
+        if (flags == mCurrentFlags) {
+            return;
+        }
+        mCurrentFlags = flags;
+        if (flags < 0) {
+            mMediaRouter.removeCallback(mDiscoveryCallback);
+        } else {
+            // Adding the same callback again just updates its flags
+            mMediaRouter.addCallback(mMediaRouteSelector, mDiscoveryCallback, flags);
+        }
+    }
+
+    /**
+     * Saves the given route into the cache if it's one of our Receiver
+     *
+     * @param route The available route
+     * @return True if the route matches our selector
+     */
+    private boolean markSeen(final MediaRouter.RouteInfo route) {
+        if (!route.matchesSelector(mMediaRouteSelector)) {
+            return false;
+        }
+        mRouteCache.markSeen(route.getId());
+        return true;
+    }
+}
@@ -0,0 +1,139 @@
+package uk.co.massimocarli.friencefencecast.route;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The cache of the routes we have seen recently. It survives the process so at launch we
+ * know there's probably a device around before the discovery finds it again. The entries
+ * expire after a given time.
+ */
+public class RouteCache {
+
+    /**
+     * The interface to implement to get notification about the changes of the cache
+     */
+    public interface Listener {
+
+        /**
+         * Invoked on the thread of {@link #markSeen(String)} when a route that was not fresh
+         * has been seen, so the result of {@link #hasFreshRoutes()} could be different
+         */
+        void onRouteCacheChanged();
+    }
+
+    /**
+     * The name of the SharedPreferences file
+     */
+    private static final String PREFS_NAME = "cast_routes";
+
+    /**
+     * The SharedPreferences with the time each route has been seen the last time
+     */
+    private final SharedPreferences mPrefs;
+
+    /**
+     * How long a route stays in the cache
+     */
+    private final long mTtlMillis;
+
+    /**
+     * The registered Listeners
+     */
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Creates a RouteCache
+     *
+     * @param context   The Context
+     * @param ttlMillis How long a route stays in the cache
+     */
+    public RouteCache(final Context context, final long ttlMillis) {
+        this.mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.mTtlMillis = ttlMillis;
+        removeExpired();
+    }
+
+    /**
+     * Registers a Listener
+     *
+     * @param listener The Listener to register
+     */
+    public void addListener(final Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a Listener
+     *
+     * @param listener The Listener to unregister
+     */
+    public void removeListener(final Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Records that the given route is available now
+     *
+     * @param routeId The id of the route
+     */
+    public void markSeen(final String routeId) {
+        final long now = System.currentTimeMillis();
+        final long lastSeen = mPrefs.getLong(routeId, 0L);
+        mPrefs.edit().putLong(routeId, now).apply();
+        if (now - lastSeen >= mTtlMillis) {
+            // The route is new, or it was expired, so the listeners have to know
+            for (Listener listener : mListeners) {
+                listener.onRouteCacheChanged();
+            }
+        }
+    }
+
+    /**
+     * @return True if at least a route has been seen within the TTL
+     */
+    public boolean hasFreshRoutes() {
+        final long now = System.currentTimeMillis();
+        for (Object lastSeen : mPrefs.getAll().values()) {
+            if (lastSeen instanceof Long && now - (Long) lastSeen < mTtlMillis) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The ids of the routes seen within the TTL
+     */
+    public List<String> getFreshRouteIds() {
+        final long now = System.currentTimeMillis();
+        final List<String> routeIds = new ArrayList<String>();
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            final Object lastSeen = entry.getValue();
+            if (lastSeen instanceof Long && now - (Long) lastSeen < mTtlMillis) {
+                routeIds.add(entry.getKey());
+            }
+        }
+        return routeIds;
+    }
+
+    /**
+     * Removes the routes not seen within the TTL
+     */
+    private void removeExpired() {
+        final long now = System.currentTimeMillis();
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            final Object lastSeen = entry.getValue();
+            if (!(lastSeen instanceof Long) || now - (Long) lastSeen >= mTtlMillis) {
+                editor.remove(entry.getKey());
+            }
+        }
+        editor.apply();
+    }
+}
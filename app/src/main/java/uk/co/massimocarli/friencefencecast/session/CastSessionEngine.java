@@ -0,0 +1,1570 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.massimocarli.friencefencecast.channel.CacheMissEvent;
+import uk.co.massimocarli.friencefencecast.channel.CreditEvent;
+import uk.co.massimocarli.friencefencecast.channel.EncodingNegotiator;
+import uk.co.massimocarli.friencefencecast.channel.HelloEvent;
+import uk.co.massimocarli.friencefencecast.channel.InboundMessageDispatcher;
+import uk.co.massimocarli.friencefencecast.channel.LocationUpdate;
+import uk.co.massimocarli.friencefencecast.channel.MessageEnvelope;
+import uk.co.massimocarli.friencefencecast.channel.MessageOutbox;
+import uk.co.massimocarli.friencefencecast.channel.OutboundMessageQueue;
+import uk.co.massimocarli.friencefencecast.channel.PayloadCache;
+import uk.co.massimocarli.friencefencecast.media.MediaItem;
+import uk.co.massimocarli.friencefencecast.media.MediaQueue;
+import uk.co.massimocarli.friencefencecast.media.MediaSelector;
+import uk.co.massimocarli.friencefencecast.media.PlaybackCommandPipeline;
+import uk.co.massimocarli.friencefencecast.media.PlayerStatus;
+import uk.co.massimocarli.friencefencecast.media.PlayerStatusCache;
+import uk.co.massimocarli.friencefencecast.media.RemotePlayer;
+import uk.co.massimocarli.friencefencecast.metrics.Counter;
+import uk.co.massimocarli.friencefencecast.metrics.Gauge;
+import uk.co.massimocarli.friencefencecast.metrics.LatencyHistogram;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+import uk.co.massimocarli.friencefencecast.resilience.CircuitBreaker;
+import uk.co.massimocarli.friencefencecast.resilience.RetryPolicy;
+
+/**
+ * This is the object that manages the session with the Receiver. It lives in the Application
+ * so the session survives the recreation of the Activity. The session is a state machine
+ * <pre>
+ * IDLE -&gt; CONNECTING -&gt; LAUNCHING -&gt; RUNNING -&gt; SUSPENDED -&gt; STOPPING -&gt; IDLE
+ * </pre>
+ * and it uses only the {@link CastTransport} interface so it doesn't depend on the Android
+ * platform. The last session is saved into a {@link SessionStore} so we can join the running
+ * Receiver application instead of launching it again. The connection and the launch have a
+ * deadline and are retried with a randomized backoff. Each device has a
+ * {@link CircuitBreaker} so a device that keeps failing is left alone for a while. The
+ * custom messages sent without a session go into the {@link MessageOutbox}, if any, and
+ * are sent when the session starts.
+ */
+public class CastSessionEngine {
+
+    /**
+     * The default max time for the release of a session, from when it starts
+     */
+    public static final long DEFAULT_TEARDOWN_TIMEOUT_MILLIS = 5000L;
+
+    /**
+     * The max time for the connection to the device
+     */
+    private static final long CONNECT_TIMEOUT_MILLIS = 15000L;
+
+    /**
+     * The max time for the launch or the join of the Receiver application
+     */
+    private static final long LAUNCH_TIMEOUT_MILLIS = 20000L;
+
+    /**
+     * The default max time the GoogleApiClient has to resume a suspended connection
+     */
+    public static final long DEFAULT_SUSPENDED_TIMEOUT_MILLIS = 30000L;
+
+    /**
+     * The max time for the ack of a batch on the custom channel
+     */
+    private static final long SEND_TIMEOUT_MILLIS = 5000L;
+
+    /**
+     * The consecutive failures that open the circuit of a device
+     */
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * How long a device is left alone when its circuit opens
+     */
+    private static final long CIRCUIT_OPEN_MILLIS = 30000L;
+
+    /**
+     * The key for the hello message. A new one replaces the one not sent yet
+     */
+    private static final String HELLO_KEY = "hello";
+
+    /**
+     * The key for the location messages. A new snapshot replaces the one not sent yet
+     */
+    private static final String LOCATIONS_KEY = "locations";
+
+    /**
+     * The key for the preload hints. Only the last one is useful
+     */
+    private static final String PRELOAD_KEY = "preload";
+
+    /**
+     * The type of the preload hints the engine sends by itself
+     */
+    public static final String PRELOAD_MESSAGE_TYPE = "preload";
+
+    /**
+     * The histogram for the time from the route selection to the connection
+     */
+    public static final String METRIC_SELECT_TO_CONNECTED = "cast.select_to_connected";
+
+    /**
+     * The histogram for the time from the connection to the start of the application
+     */
+    public static final String METRIC_CONNECTED_TO_LAUNCHED = "cast.connected_to_launched";
+
+    /**
+     * The histogram for the time from the send of a batch to its ack
+     */
+    public static final String METRIC_SEND_TO_ACK = "cast.send_to_ack";
+
+    /**
+     * The histogram for the time from the enqueue of a message to the ack of its batch
+     */
+    public static final String METRIC_ENQUEUE_TO_ACK = "cast.enqueue_to_ack";
+
+    /**
+     * The histogram for the time from the load of a media to its PLAYING status
+     */
+    public static final String METRIC_LOAD_TO_PLAYING = "media.load_to_playing";
+
+    /**
+     * The counter of the connections resumed after a suspension
+     */
+    public static final String METRIC_RECONNECTS = "cast.reconnects";
+
+    /**
+     * The counter of the sessions joined instead of launched
+     */
+    public static final String METRIC_REJOINS = "cast.rejoins";
+
+    /**
+     * The counter of the releases that didn't complete in time
+     */
+    public static final String METRIC_TEARDOWN_TIMEOUTS = "cast.teardown_timeouts";
+
+    /**
+     * The counter of the connections and launches tried again after a failure
+     */
+    public static final String METRIC_RETRIES = "cast.retries";
+
+    /**
+     * The counter of the times the circuit of a device has been opened
+     */
+    public static final String METRIC_CIRCUIT_OPENS = "cast.circuit_opens";
+
+    /**
+     * The counter of the messages dropped for the ones with a higher priority
+     */
+    public static final String METRIC_SHED_MESSAGES = "cast.shed_messages";
+
+    /**
+     * The counter of the references and deltas the Receiver couldn't rebuild
+     */
+    public static final String METRIC_CACHE_MISSES = "cast.cache_misses";
+
+    /**
+     * The gauge with the chars the PayloadCache has saved
+     */
+    public static final String METRIC_CACHE_SAVED_CHARS = "cast.cache_saved_chars";
+
+    /**
+     * The gauge with the ordinal of the current State
+     */
+    public static final String METRIC_STATE = "cast.state";
+
+    /**
+     * The states of the session
+     */
+    public enum State {
+        IDLE,
+        CONNECTING,
+        LAUNCHING,
+        RUNNING,
+        SUSPENDED,
+        STOPPING
+    }
+
+    /**
+     * The interface to implement to get notification about the session. The methods can be
+     * invoked on any thread and must not block.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked when the state of the session changes
+         *
+         * @param oldState The previous state
+         * @param newState The new state
+         */
+        void onStateChanged(State oldState, State newState);
+
+        /**
+         * Invoked when a batch of messages on the custom channel has been acknowledged or refused
+         *
+         * @param messageCount The number of messages into the batch
+         * @param success      True if the batch has been delivered
+         */
+        void onMessagesSent(int messageCount, boolean success);
+    }
+
+    /**
+     * The Builder for the CastSessionEngine
+     */
+    public static class Builder {
+
+        private final String mAppId;
+
+        private final String mNamespace;
+
+        private ScheduledExecutorService mScheduler;
+
+        private ExecutorService mIoExecutor;
+
+        private SessionStore mSessionStore;
+
+        private InboundMessageDispatcher mInboundDispatcher;
+
+        private MetricsRegistry mMetrics;
+
+        private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+
+        private MessageOutbox mOutbox;
+
+        private MediaSelector mMediaSelector;
+
+        private int mPayloadCacheEntries;
+
+        private long mSuspendedTimeoutMillis = DEFAULT_SUSPENDED_TIMEOUT_MILLIS;
+
+        private long mTeardownTimeoutMillis = DEFAULT_TEARDOWN_TIMEOUT_MILLIS;
+
+        /**
+         * Creates a Builder for the engine
+         *
+         * @param appId     The id of the Receiver application
+         * @param namespace The namespace of the custom channel
+         */
+        public Builder(final String appId, final String namespace) {
+            this.mAppId = appId;
+            this.mNamespace = namespace;
+        }
+
+        /**
+         * @param scheduler The executor for the outbound messages and the timeouts
+         * @return The Builder itself
+         */
+        public Builder setScheduler(final ScheduledExecutorService scheduler) {
+            this.mScheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @param ioExecutor The executor for the blocking Cast operations
+         * @return The Builder itself
+         */
+        public Builder setIoExecutor(final ExecutorService ioExecutor) {
+            this.mIoExecutor = ioExecutor;
+            return this;
+        }
+
+        /**
+         * @param sessionStore The storage for the last session
+         * @return The Builder itself
+         */
+        public Builder setSessionStore(final SessionStore sessionStore) {
+            this.mSessionStore = sessionStore;
+            return this;
+        }
+
+        /**
+         * @param inboundDispatcher The dispatcher for the messages on the custom channel
+         * @return The Builder itself
+         */
+        public Builder setInboundDispatcher(final InboundMessageDispatcher inboundDispatcher) {
+            this.mInboundDispatcher = inboundDispatcher;
+            return this;
+        }
+
+        /**
+         * @param metrics The registry for the metrics of the session. If not set the engine
+         *                uses its own
+         * @return The Builder itself
+         */
+        public Builder setMetrics(final MetricsRegistry metrics) {
+            this.mMetrics = metrics;
+            return this;
+        }
+
+        /**
+         * @param retryPolicy The policy for the connections, launches and sends that fail.
+         *                    If not set the engine uses {@link RetryPolicy#DEFAULT}
+         * @return The Builder itself
+         */
+        public Builder setRetryPolicy(final RetryPolicy retryPolicy) {
+            this.mRetryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * @param outbox The storage for the custom messages sent without a session. If not
+         *               set those messages are refused
+         * @return The Builder itself
+         */
+        public Builder setOutbox(final MessageOutbox outbox) {
+            this.mOutbox = outbox;
+            return this;
+        }
+
+        /**
+         * @param mediaSelector The selector for the renditions of the media. It can be
+         *                      shared by many engines. If not set the engine uses its own
+         * @return The Builder itself
+         */
+        public Builder setMediaSelector(final MediaSelector mediaSelector) {
+            this.mMediaSelector = mediaSelector;
+            return this;
+        }
+
+        /**
+         * @param payloadCacheEntries The number of sent messages we remember to send only
+         *                            references and deltas when the Receiver supports it.
+         *                            If not set, or 0, the messages are always sent in full
+         * @return The Builder itself
+         */
+        public Builder setPayloadCacheEntries(final int payloadCacheEntries) {
+            this.mPayloadCacheEntries = payloadCacheEntries;
+            return this;
+        }
+
+        /**
+         * @param suspendedTimeoutMillis The max time a suspended connection has to resume
+         *                               before the session is released. If not set the
+         *                               engine uses {@link #DEFAULT_SUSPENDED_TIMEOUT_MILLIS}
+         * @return The Builder itself
+         */
+        public Builder setSuspendedTimeoutMillis(final long suspendedTimeoutMillis) {
+            if (suspendedTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("Invalid suspended timeout "
+                        + suspendedTimeoutMillis);
+            }
+            this.mSuspendedTimeoutMillis = suspendedTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * @param teardownTimeoutMillis The max time the release of a session can take from
+         *                              when it starts. If not set the engine uses
+         *                              {@link #DEFAULT_TEARDOWN_TIMEOUT_MILLIS}
+         * @return The Builder itself
+         */
+        public Builder setTeardownTimeoutMillis(final long teardownTimeoutMillis) {
+            if (teardownTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("Invalid teardown timeout "
+                        + teardownTimeoutMillis);
+            }
+            this.mTeardownTimeoutMillis = teardownTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * @return The CastSessionEngine
+         */
+        public CastSessionEngine build() {
+            if (mScheduler == null || mIoExecutor == null || mSessionStore == null
+                    || mInboundDispatcher == null) {
+                throw new IllegalStateException("Executors, SessionStore and dispatcher are mandatory");
+            }
+            if (mMetrics == null) {
+                mMetrics = new MetricsRegistry();
+            }
+            if (mMediaSelector == null) {
+                mMediaSelector = new MediaSelector(null, mMetrics);
+            }
+            return new CastSessionEngine(this);
+        }
+    }
+
+    /**
+     * The id for the Cast App
+     */
+    private final String mAppId;
+
+    /**
+     * The namespace of the custom channel
+     */
+    private final String mNamespace;
+
+    /**
+     * The executor for the outbound messages
+     */
+    private final ScheduledExecutorService mScheduler;
+
+    /**
+     * The executor for the blocking Cast operations
+     */
+    private final ExecutorService mIoExecutor;
+
+    /**
+     * The storage for the last session
+     */
+    private final SessionStore mSessionStore;
+
+    /**
+     * The dispatcher for the messages on the custom channel
+     */
+    private final InboundMessageDispatcher mInboundDispatcher;
+
+    /**
+     * The time from the route selection to the connection
+     */
+    private final LatencyHistogram mSelectToConnected;
+
+    /**
+     * The time from the connection to the start of the Receiver application
+     */
+    private final LatencyHistogram mConnectedToLaunched;
+
+    /**
+     * The time from the send of a batch to its ack
+     */
+    private final LatencyHistogram mSendToAck;
+
+    /**
+     * The time from the enqueue of a message to the ack of its batch
+     */
+    private final LatencyHistogram mEnqueueToAck;
+
+    /**
+     * The connections resumed after a suspension
+     */
+    private final Counter mReconnects;
+
+    /**
+     * The sessions joined instead of launched
+     */
+    private final Counter mRejoins;
+
+    /**
+     * The ordinal of the current State
+     */
+    private final Gauge mStateGauge;
+
+    private final Counter mRetries;
+
+    private final Counter mCircuitOpens;
+
+    private final Counter mShedMessages;
+
+    private final Counter mCacheMisses;
+
+    private final Gauge mCacheSavedChars;
+
+    /**
+     * The policy for the operations that fail
+     */
+    private final RetryPolicy mRetryPolicy;
+
+    /**
+     * The max time a suspended connection has to resume
+     */
+    private final long mSuspendedTimeoutMillis;
+
+    private final long mTeardownTimeoutMillis;
+
+    /**
+     * The storage for the custom messages sent without a session or null
+     */
+    private final MessageOutbox mOutbox;
+
+    /**
+     * The circuit breakers by route id
+     */
+    private final Map<String, CircuitBreaker> mCircuitBreakers =
+            new HashMap<String, CircuitBreaker>();
+
+    /**
+     * The circuit breaker of the current route. It's read without the lock by the sends
+     */
+    private volatile CircuitBreaker mCircuitBreaker;
+
+    /**
+     * The failed attempts to connect and launch for the current session
+     */
+    private int mFailedAttempts;
+
+    /**
+     * The identifier of the current attempt. The deadlines and the results of the
+     * previous attempts are ignored
+     */
+    private int mAttempt;
+
+    /**
+     * The cache of the messages the Receiver already has or null
+     */
+    private final PayloadCache mPayloadCache;
+
+    /**
+     * The object that chooses the encoding of the location messages
+     */
+    private final EncodingNegotiator mEncodingNegotiator;
+
+    /**
+     * The queue of the media to play. It survives the sessions
+     */
+    private final MediaQueue mMediaQueue;
+
+    /**
+     * The local copy of the status of the player of the current session
+     */
+    private final PlayerStatusCache mStatusCache = new PlayerStatusCache();
+
+    /**
+     * The pipeline for the play, pause and seek commands
+     */
+    private final PlaybackCommandPipeline mPlaybackPipeline;
+
+    /**
+     * The start times for the launch and the join paths
+     */
+    private final SessionTimings mTimings = new SessionTimings();
+
+    /**
+     * The registered Listeners
+     */
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * The current state
+     */
+    private State mState = State.IDLE;
+
+    /**
+     * The id of the selected route. It's read without the lock to choose the media
+     */
+    private volatile String mRouteId;
+
+    /**
+     * The transport for the selected route
+     */
+    private CastTransport mTransport;
+
+    /**
+     * This variable permits us to know if the application has successfully started
+     */
+    private boolean mApplicationStarted;
+
+    /**
+     * True if the custom channel has been registered
+     */
+    private boolean mChannelRegistered;
+
+    /**
+     * True if the media channel has been registered
+     */
+    private boolean mMediaAttached;
+
+    /**
+     * The release of the previous session still in progress
+     */
+    private SessionTeardown mPendingTeardown;
+
+    /**
+     * The number of releases that didn't complete in time
+     */
+    private final Counter mTeardownTimeouts;
+
+    /**
+     * The session identifier
+     */
+    private String mSessionId;
+
+    /**
+     * The queue we use to send messages on the custom channel. It's read without the lock
+     * of the engine because the media queue sends the preload hints from its own threads
+     */
+    private volatile OutboundMessageQueue mOutboundQueue;
+
+    /**
+     * The time of the last route selection
+     */
+    private long mSelectTimeNanos;
+
+    /**
+     * The smoothed time from the send of a batch to its ack or -1 if not available
+     */
+    private final AtomicLong mRoundTripEstimateNanos = new AtomicLong(-1L);
+
+    /**
+     * The time of the last connection
+     */
+    private long mConnectedTimeNanos;
+
+    /**
+     * The time from the last route selection to the RUNNING state
+     */
+    private long mSelectToRunningNanos = -1L;
+
+    /**
+     * The way the Receiver application has been started the last time
+     */
+    private SessionTimings.StartPath mLastStartPath;
+
+    /**
+     * The Listener for the batches on the custom channel
+     */
+    private final OutboundMessageQueue.Listener mBatchListener = new OutboundMessageQueue.Listener() {
+        @Override
+        public void onBatchResult(int messageCount, boolean success, long oldestLatencyNanos,
+                                  long roundTripNanos) {
+            if (success) {
+                mSendToAck.record(roundTripNanos);
+                mEnqueueToAck.record(oldestLatencyNanos);
+                updateRoundTripEstimate(roundTripNanos);
+            }
+            // The batches arrive here after all their attempts
+            final CircuitBreaker circuitBreaker = mCircuitBreaker;
+            if (circuitBreaker != null) {
+                if (success) {
+                    circuitBreaker.recordSuccess();
+                } else if (circuitBreaker.recordFailure()) {
+                    mCircuitOpens.increment();
+                }
+            }
+            // There could be room for the messages waiting into the outbox
+            final OutboundMessageQueue outboundQueue = mOutboundQueue;
+            if (success && outboundQueue != null && mOutbox != null) {
+                replayOutbox(outboundQueue);
+            }
+            if (mPayloadCache != null) {
+                mCacheSavedChars.set(mPayloadCache.getPayloadChars()
+                        - mPayloadCache.getEncodedChars());
+            }
+            for (Listener listener : mListeners) {
+                listener.onMessagesSent(messageCount, success);
+            }
+        }
+
+        @Override
+        public void onMessageShed(OutboundMessageQueue.Priority priority) {
+            mShedMessages.increment();
+        }
+    };
+
+    /**
+     * The handler for the credits granted by the Receiver
+     */
+    private final InboundMessageDispatcher.EventHandler<CreditEvent> mCreditHandler =
+            new InboundMessageDispatcher.EventHandler<CreditEvent>() {
+                @Override
+                public void onEvent(CreditEvent event) {
+                    final OutboundMessageQueue outboundQueue = mOutboundQueue;
+                    if (outboundQueue == null || event.getCredits() < 0) {
+                        return;
+                    }
+                    if (event.hasState()) {
+                        outboundQueue.addCredits(event.getCredits(), event.getSeq(),
+                                event.getAvailable());
+                    } else if (event.getCredits() > 0) {
+                        outboundQueue.addCredits(event.getCredits());
+                    }
+                }
+            };
+
+    /**
+     * The handler for the messages the Receiver couldn't rebuild from its cache
+     */
+    private final InboundMessageDispatcher.EventHandler<CacheMissEvent> mCacheMissHandler =
+            new InboundMessageDispatcher.EventHandler<CacheMissEvent>() {
+                @Override
+                public void onEvent(CacheMissEvent event) {
+                    mCacheMisses.increment();
+                    final OutboundMessageQueue outboundQueue = mOutboundQueue;
+                    final PayloadCache.MissedMessage missed = event.getHash() != null
+                            ? mPayloadCache.onMiss(event.getHash()) : null;
+                    // Without the full message the Receiver waits for the next update
+                    if (outboundQueue != null && missed != null) {
+                        outboundQueue.resend(missed.getPriority() != null
+                                        ? missed.getPriority()
+                                        : OutboundMessageQueue.Priority.PRESENCE,
+                                missed.getKey(), missed.getMessage());
+                    }
+                }
+            };
+
+    private CastSessionEngine(final Builder builder) {
+        this.mAppId = builder.mAppId;
+        this.mNamespace = builder.mNamespace;
+        this.mScheduler = builder.mScheduler;
+        this.mIoExecutor = builder.mIoExecutor;
+        this.mSessionStore = builder.mSessionStore;
+        this.mInboundDispatcher = builder.mInboundDispatcher;
+        final MetricsRegistry metrics = builder.mMetrics;
+        mSelectToConnected = metrics.histogram(METRIC_SELECT_TO_CONNECTED);
+        mConnectedToLaunched = metrics.histogram(METRIC_CONNECTED_TO_LAUNCHED);
+        mSendToAck = metrics.histogram(METRIC_SEND_TO_ACK);
+        mEnqueueToAck = metrics.histogram(METRIC_ENQUEUE_TO_ACK);
+        mReconnects = metrics.counter(METRIC_RECONNECTS);
+        mRejoins = metrics.counter(METRIC_REJOINS);
+        mTeardownTimeouts = metrics.counter(METRIC_TEARDOWN_TIMEOUTS);
+        mStateGauge = metrics.gauge(METRIC_STATE);
+        mRetries = metrics.counter(METRIC_RETRIES);
+        mCircuitOpens = metrics.counter(METRIC_CIRCUIT_OPENS);
+        mShedMessages = metrics.counter(METRIC_SHED_MESSAGES);
+        mCacheMisses = metrics.counter(METRIC_CACHE_MISSES);
+        mCacheSavedChars = metrics.gauge(METRIC_CACHE_SAVED_CHARS);
+        mRetryPolicy = builder.mRetryPolicy;
+        mSuspendedTimeoutMillis = builder.mSuspendedTimeoutMillis;
+        mTeardownTimeoutMillis = builder.mTeardownTimeoutMillis;
+        mOutbox = builder.mOutbox;
+        mPayloadCache = builder.mPayloadCacheEntries > 0
+                ? new PayloadCache(builder.mPayloadCacheEntries) : null;
+        mEncodingNegotiator = new EncodingNegotiator(mPayloadCache);
+        mInboundDispatcher.register(HelloEvent.TYPE, HelloEvent.FACTORY, true,
+                mEncodingNegotiator);
+        mInboundDispatcher.register(CreditEvent.TYPE, CreditEvent.FACTORY, true, mCreditHandler);
+        if (mPayloadCache != null) {
+            mInboundDispatcher.register(CacheMissEvent.TYPE, CacheMissEvent.FACTORY, true,
+                    mCacheMissHandler);
+        }
+        mMediaQueue = new MediaQueue(mScheduler, new MediaQueue.PreloadSink() {
+            @Override
+            public void preload(MediaItem item) {
+                sendPreloadHint(item);
+            }
+        }, metrics.histogram(METRIC_LOAD_TO_PLAYING));
+        final MediaSelector mediaSelector = builder.mMediaSelector;
+        mMediaQueue.setRenditionResolver(new MediaQueue.RenditionResolver() {
+            @Override
+            public MediaItem resolve(MediaItem item) {
+                final String routeId = mRouteId;
+                return routeId != null
+                        ? mediaSelector.select(routeId, item, getRoundTripEstimateNanos())
+                        : item;
+            }
+        });
+        mStatusCache.addObserver(new PlayerStatusCache.Observer() {
+            @Override
+            public void onStatusChanged(PlayerStatus status, int changedFields) {
+                final String routeId = mRouteId;
+                if (routeId != null) {
+                    mediaSelector.onStatusChanged(routeId, status);
+                }
+            }
+        });
+        mStatusCache.addObserver(mMediaQueue);
+        mPlaybackPipeline = new PlaybackCommandPipeline(mScheduler, mStatusCache, mMediaQueue,
+                PlaybackCommandPipeline.DEFAULT_DEBOUNCE_MILLIS, mRetryPolicy,
+                PlaybackCommandPipeline.DEFAULT_COMMAND_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @return The queue of the media to play on the Receiver
+     */
+    public MediaQueue getMediaQueue() {
+        return mMediaQueue;
+    }
+
+    /**
+     * @return The local copy of the status of the player. It can be observed without any
+     * network call
+     */
+    public PlayerStatusCache getStatusCache() {
+        return mStatusCache;
+    }
+
+    /**
+     * @return The pipeline to use for the play, pause and seek commands
+     */
+    public PlaybackCommandPipeline getPlaybackPipeline() {
+        return mPlaybackPipeline;
+    }
+
+    /**
+     * @return The dispatcher for the messages on the custom channel
+     */
+    public InboundMessageDispatcher getInboundDispatcher() {
+        return mInboundDispatcher;
+    }
+
+    /**
+     * Registers a Listener
+     *
+     * @param listener The Listener to register
+     */
+    public void addListener(final Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Removes a Listener
+     *
+     * @param listener The Listener to remove
+     */
+    public void removeListener(final Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Starts the session on the given route. If a session for the same route is already
+     * active nothing happens.
+     *
+     * @param routeId   The id of the selected route
+     * @param transport The transport for the device of the route
+     * @return False if the circuit of the device is open so the session is not started
+     */
+    public synchronized boolean selectRoute(final String routeId,
+                                            final CastTransport transport) {
+        if (hasSession(routeId)) {
+            // We already have a session for this route
+            return true;
+        }
+        final CircuitBreaker circuitBreaker = getCircuitBreakerLocked(routeId);
+        if (!circuitBreaker.allowRequest()) {
+            return false;
+        }
+        if (isActiveLocked()) {
+            teardownLocked(true);
+        }
+        mRouteId = routeId;
+        mTransport = transport;
+        mCircuitBreaker = circuitBreaker;
+        mFailedAttempts = 0;
+        mSelectTimeNanos = System.nanoTime();
+        setStateLocked(State.CONNECTING);
+        connectLocked();
+        return true;
+    }
+
+    /**
+     * Stops the current session and the Receiver application if any
+     */
+    public synchronized void stop() {
+        if (isActiveLocked()) {
+            teardownLocked(true);
+        }
+    }
+
+    /**
+     * Closes the connection leaving the Receiver application running. The session is kept
+     * into the SessionStore so we can join it later.
+     */
+    public synchronized void disconnect() {
+        if (isActiveLocked()) {
+            teardownLocked(false);
+        }
+    }
+
+    /**
+     * @return The storage for the custom messages sent without a session or null
+     */
+    public MessageOutbox getOutbox() {
+        return mOutbox;
+    }
+
+    /**
+     * @return The id of the route of the last session we can join or null
+     */
+    public String getLastRouteId() {
+        return mSessionStore.getLastRouteId();
+    }
+
+    /**
+     * Sends a presence message on the custom channel. Without a session, or if the queue is
+     * full, the message is saved into the outbox, if any, and sent later
+     *
+     * @param message The message to send
+     * @return True if the message has been accepted or passed to the outbox
+     */
+    public boolean sendMessage(final String message) {
+        return sendMessage(OutboundMessageQueue.Priority.PRESENCE, message);
+    }
+
+    /**
+     * Sends a message on the custom channel. Without a session, or if the queue is full,
+     * the message is saved into the outbox, if any, and sent later with the presence ones.
+     * With an outbox the message is sent from the io executor, which is the only one that
+     * touches the file, and if it can't be saved the Listeners get a failed send
+     *
+     * @param priority The priority of the message
+     * @param message  The message to send
+     * @return True if the message has been accepted or passed to the outbox
+     */
+    public boolean sendMessage(final OutboundMessageQueue.Priority priority,
+                               final String message) {
+        if (mOutbox == null) {
+            final OutboundMessageQueue outboundQueue = mOutboundQueue;
+            return outboundQueue != null && isCircuitClosed()
+                    && outboundQueue.enqueue(priority, null, message);
+        }
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendOrSave(priority, message);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Sends the given message or saves it into the outbox. It runs on the io executor so the
+     * messages keep their order
+     *
+     * @param priority The priority of the message
+     * @param message  The message to send
+     */
+    private void sendOrSave(final OutboundMessageQueue.Priority priority, final String message) {
+        final OutboundMessageQueue outboundQueue = mOutboundQueue;
+        final boolean canSend = outboundQueue != null && isCircuitClosed();
+        // The older messages into the outbox go first
+        if (canSend && mOutbox.isEmpty() && outboundQueue.enqueue(priority, null, message)) {
+            return;
+        }
+        if (!mOutbox.append(null, message)) {
+            for (Listener listener : mListeners) {
+                listener.onMessagesSent(1, false);
+            }
+            return;
+        }
+        if (canSend) {
+            replayOutbox(outboundQueue);
+        }
+    }
+
+    /**
+     * Sends the given positions on the custom channel with the encoding negotiated with the
+     * Receiver. A snapshot not sent yet is replaced by the new one. They are the first
+     * messages we drop when the Receiver is slow.
+     *
+     * @param updates The positions of the friends
+     * @return True if the message has been accepted
+     */
+    public boolean sendLocations(final List<LocationUpdate> updates) {
+        final OutboundMessageQueue outboundQueue = mOutboundQueue;
+        return outboundQueue != null && isCircuitClosed() && outboundQueue.enqueue(
+                OutboundMessageQueue.Priority.TELEMETRY, LOCATIONS_KEY,
+                mEncodingNegotiator.getCodec().encode(updates));
+    }
+
+    /**
+     * Sends the metadata of the given item on the custom channel so the Receiver can
+     * preload it
+     * <pre>
+     * {"type":"preload","contentId":"...","contentType":"video/mp4","title":"..."}
+     * </pre>
+     *
+     * @param item The item to preload
+     */
+    private void sendPreloadHint(final MediaItem item) {
+        final StringBuilder builder = new StringBuilder(128);
+        builder.append("{\"type\":\"").append(PRELOAD_MESSAGE_TYPE).append("\",\"contentId\":");
+        MessageEnvelope.appendQuoted(builder, item.getContentId());
+        builder.append(",\"contentType\":");
+        MessageEnvelope.appendQuoted(builder, item.getContentType());
+        builder.append(",\"title\":");
+        MessageEnvelope.appendQuoted(builder, item.getTitle());
+        builder.append('}');
+        final OutboundMessageQueue outboundQueue = mOutboundQueue;
+        if (outboundQueue != null) {
+            outboundQueue.enqueue(OutboundMessageQueue.Priority.CONTROL, PRELOAD_KEY,
+                    builder.toString());
+        }
+    }
+
+    /**
+     * @return The current state
+     */
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * @param routeId The id of the route
+     * @return True if there's a session for the given route that is not stopping yet
+     */
+    public synchronized boolean hasSession(final String routeId) {
+        return routeId.equals(mRouteId) && isActiveLocked();
+    }
+
+    /**
+     * @return The id of the selected route or null
+     */
+    public synchronized String getRouteId() {
+        return mRouteId;
+    }
+
+    /**
+     * @return The session identifier or null
+     */
+    public synchronized String getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * @return The RemotePlayer of the current session or null
+     */
+    public synchronized RemotePlayer getRemotePlayer() {
+        return mState == State.RUNNING ? mTransport.getRemotePlayer() : null;
+    }
+
+    /**
+     * @return The number of releases of a session that didn't complete in time
+     */
+    public int getTeardownTimeoutCount() {
+        return (int) mTeardownTimeouts.get();
+    }
+
+    /**
+     * @return The time from the last route selection to the RUNNING state or -1
+     */
+    public synchronized long getSelectToRunningNanos() {
+        return mSelectToRunningNanos;
+    }
+
+    /**
+     * @param routeId The id of the route
+     * @return The state of the circuit of the device of the given route
+     */
+    public synchronized CircuitBreaker.State getCircuitState(final String routeId) {
+        return getCircuitBreakerLocked(routeId).getState();
+    }
+
+    /**
+     * @return The smoothed time from the send of a batch to its ack or -1 if no batch has
+     * been acknowledged yet
+     */
+    public long getRoundTripEstimateNanos() {
+        return mRoundTripEstimateNanos.get();
+    }
+
+    /**
+     * @return The credits granted by the Receiver and not used yet or -1 without a session
+     * or if the Receiver doesn't grant them
+     */
+    public int getCredits() {
+        final OutboundMessageQueue outboundQueue = mOutboundQueue;
+        return outboundQueue != null ? outboundQueue.getCredits() : -1;
+    }
+
+    /**
+     * @return The way the Receiver application has been started the last time or null
+     */
+    public synchronized SessionTimings.StartPath getLastStartPath() {
+        return mLastStartPath;
+    }
+
+    /**
+     * @return The start times for the launch and the join paths
+     */
+    public SessionTimings getTimings() {
+        return mTimings;
+    }
+
+    /**
+     * Updates the smoothed round trip time with a new sample. Like TCP each sample weighs
+     * 1/8 so a single slow ack doesn't move the estimate too much
+     *
+     * @param roundTripNanos The new sample
+     */
+    private void updateRoundTripEstimate(final long roundTripNanos) {
+        long current;
+        long updated;
+        do {
+            current = mRoundTripEstimateNanos.get();
+            updated = current < 0 ? roundTripNanos : current + (roundTripNanos - current) / 8;
+        } while (!mRoundTripEstimateNanos.compareAndSet(current, updated));
+    }
+
+    /**
+     * Copies the messages of the outbox into the given queue until it's full. The outbox
+     * keeps them until the Receiver acknowledges their batch. The outbox is read, and
+     * truncated, only on the io executor
+     *
+     * @param outboundQueue The queue for the current session
+     */
+    private void replayOutbox(final OutboundMessageQueue outboundQueue) {
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mOutbox.replay(new MessageOutbox.Sink() {
+                    @Override
+                    public boolean onMessage(String key, String message,
+                                             OutboundMessageQueue.DeliveryCallback callback) {
+                        return outboundQueue.enqueue(OutboundMessageQueue.Priority.PRESENCE,
+                                key, message, onIoExecutor(callback));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param callback The DeliveryCallback of a record of the outbox
+     * @return A DeliveryCallback that invokes the given one on the io executor
+     */
+    private OutboundMessageQueue.DeliveryCallback onIoExecutor(
+            final OutboundMessageQueue.DeliveryCallback callback) {
+        return new OutboundMessageQueue.DeliveryCallback() {
+            @Override
+            public void onDeliveryResult(final boolean delivered) {
+                mIoExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onDeliveryResult(delivered);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @param routeId The id of the route
+     * @return The CircuitBreaker of the device of the given route
+     */
+    private CircuitBreaker getCircuitBreakerLocked(final String routeId) {
+        CircuitBreaker circuitBreaker = mCircuitBreakers.get(routeId);
+        if (circuitBreaker == null) {
+            circuitBreaker = new CircuitBreaker(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_MILLIS);
+            mCircuitBreakers.put(routeId, circuitBreaker);
+        }
+        return circuitBreaker;
+    }
+
+    /**
+     * @return True if the messages can be sent to the current device
+     */
+    private boolean isCircuitClosed() {
+        final CircuitBreaker circuitBreaker = mCircuitBreaker;
+        return circuitBreaker == null || circuitBreaker.allowRequest();
+    }
+
+    /**
+     * Utility method that connects the current transport with a deadline
+     */
+    private void connectLocked() {
+        final CastTransport transport = mTransport;
+        scheduleDeadlineLocked(CONNECT_TIMEOUT_MILLIS, true);
+        transport.connect(new TransportListener(transport));
+    }
+
+    /**
+     * Starts a new attempt that fails if not completed in the given time
+     *
+     * @param timeoutMillis The max time for the attempt
+     * @param reconnect     True if the connection has to be done again on the timeout
+     * @return The identifier of the attempt
+     */
+    private int scheduleDeadlineLocked(final long timeoutMillis, final boolean reconnect) {
+        final CastTransport transport = mTransport;
+        final int attempt = ++mAttempt;
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CastSessionEngine.this) {
+                    if (attempt == mAttempt && transport == mTransport && isActiveLocked()) {
+                        retryOrTeardownLocked(reconnect);
+                    }
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        return attempt;
+    }
+
+    /**
+     * Releases the session if the suspended connection is not resumed in time. The
+     * application is left running so the session can be joined later
+     */
+    private void scheduleSuspendedDeadlineLocked() {
+        final CastTransport transport = mTransport;
+        // The attempts in progress are not valid anymore, they start again on the resume
+        final int attempt = ++mAttempt;
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CastSessionEngine.this) {
+                    if (attempt == mAttempt && transport == mTransport
+                            && mState == State.SUSPENDED) {
+                        teardownLocked(false);
+                    }
+                }
+            }
+        }, mSuspendedTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a failed attempt and tries again after the backoff. If the attempts are over
+     * or the circuit of the device opened the session is released. When the connection
+     * failed the Receiver application is left running and the session can be joined later
+     *
+     * @param reconnect True if we have to connect again, false if only the launch failed
+     */
+    private void retryOrTeardownLocked(final boolean reconnect) {
+        mFailedAttempts++;
+        final CircuitBreaker circuitBreaker = mCircuitBreaker;
+        if (circuitBreaker.recordFailure()) {
+            mCircuitOpens.increment();
+        }
+        if (circuitBreaker.getState() != CircuitBreaker.State.CLOSED
+                || !mRetryPolicy.canRetry(mFailedAttempts)) {
+            teardownLocked(!reconnect);
+            return;
+        }
+        mRetries.increment();
+        // Nothing can complete while we wait
+        final CastTransport transport = mTransport;
+        final int attempt = ++mAttempt;
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CastSessionEngine.this) {
+                    if (attempt != mAttempt || transport != mTransport || !isActiveLocked()) {
+                        return;
+                    }
+                    if (reconnect) {
+                        if (mState != State.SUSPENDED) {
+                            setStateLocked(State.CONNECTING);
+                        }
+                        connectLocked();
+                    } else {
+                        startApplicationLocked();
+                    }
+                }
+            }
+        }, mRetryPolicy.getDelayMillis(mFailedAttempts), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Utility method that starts the application when connected. If we know a session for
+     * the route we try to join it and we launch the application only if the join fails.
+     */
+    private void startApplicationLocked() {
+        setStateLocked(State.LAUNCHING);
+        String resumeSessionId = mSessionId;
+        if (resumeSessionId == null && mRouteId.equals(mSessionStore.getLastRouteId())) {
+            resumeSessionId = mSessionStore.getLastSessionId();
+        }
+        if (resumeSessionId == null) {
+            launchLocked();
+            return;
+        }
+        final CastTransport transport = mTransport;
+        final int attempt = scheduleDeadlineLocked(LAUNCH_TIMEOUT_MILLIS, false);
+        transport.joinApplication(mAppId, resumeSessionId, new ResultListener<String>() {
+            @Override
+            public void onResult(boolean success, String sessionId) {
+                synchronized (CastSessionEngine.this) {
+                    if (attempt != mAttempt || transport != mTransport
+                            || mState != State.LAUNCHING) {
+                        return;
+                    }
+                    if (success) {
+                        onLaunchedLocked(sessionId, SessionTimings.StartPath.JOINED);
+                    } else {
+                        // The session is not available anymore so we launch the application
+                        mSessionStore.clear();
+                        mSessionId = null;
+                        launchLocked();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Utility method that launches the application
+     */
+    private void launchLocked() {
+        final CastTransport transport = mTransport;
+        final int attempt = scheduleDeadlineLocked(LAUNCH_TIMEOUT_MILLIS, false);
+        transport.launchApplication(mAppId, new ResultListener<String>() {
+            @Override
+            public void onResult(boolean success, String sessionId) {
+                synchronized (CastSessionEngine.this) {
+                    if (attempt != mAttempt || transport != mTransport
+                            || mState != State.LAUNCHING) {
+                        return;
+                    }
+                    if (success) {
+                        onLaunchedLocked(sessionId, SessionTimings.StartPath.LAUNCHED);
+                    } else {
+                        retryOrTeardownLocked(false);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Utility method that registers the channels once the application has been started
+     *
+     * @param sessionId The session identifier
+     * @param startPath The way the application has been started
+     */
+    private void onLaunchedLocked(final String sessionId,
+                                  final SessionTimings.StartPath startPath) {
+        mApplicationStarted = true;
+        mSessionId = sessionId;
+        // The pending deadline is not valid anymore
+        mAttempt++;
+        mFailedAttempts = 0;
+        mCircuitBreaker.recordSuccess();
+        mSessionStore.saveSession(mRouteId, sessionId);
+        try {
+            mTransport.setMessageChannel(mNamespace);
+            mChannelRegistered = true;
+            // We create the queue for the outbound messages. After a suspension we keep the
+            // messages not sent yet
+            if (mOutboundQueue == null) {
+                mOutboundQueue = new OutboundMessageQueue.Builder(mTransport, mNamespace,
+                        mScheduler)
+                        .setListener(mBatchListener)
+                        .setRetryPolicy(mRetryPolicy)
+                        .setSendTimeoutMillis(SEND_TIMEOUT_MILLIS)
+                        .setPayloadCache(mPayloadCache)
+                        .build();
+            } else {
+                mOutboundQueue.flush();
+            }
+            // The Receiver grants the credits again when it gets the hello, if it supports them
+            mOutboundQueue.resetCredits();
+            // We agree on the encoding of the location messages
+            mOutboundQueue.enqueue(OutboundMessageQueue.Priority.CONTROL, HELLO_KEY,
+                    mEncodingNegotiator.startNegotiation());
+            // Then we send what has been saved while we had no session
+            if (mOutbox != null) {
+                replayOutbox(mOutboundQueue);
+            }
+        } catch (IOException e) {
+            // The session is still usable for the media
+        }
+        try {
+            mTransport.attachMediaChannel();
+            mMediaAttached = true;
+            // The cache, and the queue through it, follow the status of the new player
+            final RemotePlayer remotePlayer = mTransport.getRemotePlayer();
+            remotePlayer.setStatusListener(mStatusCache);
+            mMediaQueue.attach(remotePlayer);
+            mPlaybackPipeline.attach(remotePlayer);
+            // We have to synch the state
+            remotePlayer.requestStatus(null);
+        } catch (IOException e) {
+            // The session is still usable for the custom channel
+        }
+        final long now = System.nanoTime();
+        mConnectedToLaunched.record(now - mConnectedTimeNanos);
+        if (startPath == SessionTimings.StartPath.JOINED) {
+            mRejoins.increment();
+        }
+        mSelectToRunningNanos = now - mSelectTimeNanos;
+        mLastStartPath = startPath;
+        mTimings.record(startPath, mSelectToRunningNanos);
+        setStateLocked(State.RUNNING);
+    }
+
+    /**
+     * Clean the session data. The engine is ready for a new session immediately while the
+     * release of the connection runs on the executor for the blocking operations with a
+     * timeout. Calling this method more than once for the same session has no effect.
+     *
+     * @param stopApplication True if we have to stop the Receiver application too
+     */
+    private void teardownLocked(final boolean stopApplication) {
+        final CastTransport transport = mTransport;
+        setStateLocked(State.STOPPING);
+        // We drop the messages not sent yet
+        if (mOutboundQueue != null) {
+            mOutboundQueue.close();
+            mOutboundQueue = null;
+        }
+        if (mMediaAttached) {
+            transport.getRemotePlayer().setStatusListener(null);
+        }
+        mPlaybackPipeline.detach();
+        mMediaQueue.detach();
+        mStatusCache.clear();
+        // A stopped session can't be joined anymore
+        if (stopApplication) {
+            mSessionStore.clear();
+        }
+        if (transport != null) {
+            // We stop the application only if started
+            final String sessionIdToStop = stopApplication && mApplicationStarted
+                    ? mSessionId : null;
+            final SessionTeardown teardown = new SessionTeardown(transport, mNamespace,
+                    sessionIdToStop, mChannelRegistered, mMediaAttached);
+            mPendingTeardown = teardown;
+            submitTeardown(teardown);
+        }
+        // We reset all the objects. The events from the old transport are ignored
+        mTransport = null;
+        mRouteId = null;
+        mCircuitBreaker = null;
+        mAttempt++;
+        mSessionId = null;
+        mApplicationStarted = false;
+        mChannelRegistered = false;
+        mMediaAttached = false;
+        if (transport == null) {
+            setStateLocked(State.IDLE);
+        }
+    }
+
+    /**
+     * Runs the given SessionTeardown off the caller thread with a timeout. The timeout starts
+     * when the teardown does, so the time spent waiting behind the other tasks of the io
+     * executor doesn't count. When it fires the teardown is interrupted and only disconnects
+     *
+     * @param teardown The SessionTeardown to run
+     */
+    private void submitTeardown(final SessionTeardown teardown) {
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Thread thread = Thread.currentThread();
+                ScheduledFuture<?> timeout = null;
+                try {
+                    timeout = mScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            // The release is taking too long so we give up
+                            if (teardown.abandon(thread)) {
+                                mTeardownTimeouts.increment();
+                                onTeardownCompleted(teardown);
+                            }
+                        }
+                    }, mTeardownTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // The scheduler has been shut down but we still release the connection
+                }
+                try {
+                    teardown.run();
+                } finally {
+                    if (timeout != null) {
+                        timeout.cancel(false);
+                    }
+                    // The interrupt is for the teardown, not for the next tasks
+                    if (teardown.finish()) {
+                        Thread.interrupted();
+                    }
+                    onTeardownCompleted(teardown);
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves to the IDLE state if no other session has been started in the meantime
+     *
+     * @param teardown The completed SessionTeardown
+     */
+    private synchronized void onTeardownCompleted(final SessionTeardown teardown) {
+        if (mPendingTeardown == teardown) {
+            mPendingTeardown = null;
+            if (mState == State.STOPPING) {
+                setStateLocked(State.IDLE);
+            }
+        }
+    }
+
+    /**
+     * @return True if there's a session that is not stopping yet
+     */
+    private boolean isActiveLocked() {
+        return mState != State.IDLE && mState != State.STOPPING;
+    }
+
+    private void setStateLocked(final State newState) {
+        final State oldState = mState;
+        if (oldState == newState) {
+            return;
+        }
+        mState = newState;
+        mStateGauge.set(newState.ordinal());
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(oldState, newState);
+        }
+    }
+
+    /**
+     * The ConnectionListener for a single transport. Events from a transport that is not
+     * the current one are ignored.
+     */
+    private class TransportListener implements CastTransport.ConnectionListener {
+
+        private final CastTransport mOwner;
+
+        TransportListener(final CastTransport owner) {
+            this.mOwner = owner;
+        }
+
+        @Override
+        public void onConnected() {
+            synchronized (CastSessionEngine.this) {
+                if (mOwner != mTransport) {
+                    return;
+                }
+                if (mState == State.CONNECTING || mState == State.SUSPENDED) {
+                    mConnectedTimeNanos = System.nanoTime();
+                    if (mState == State.CONNECTING) {
+                        mSelectToConnected.record(mConnectedTimeNanos - mSelectTimeNanos);
+                    } else {
+                        mReconnects.increment();
+                    }
+                    startApplicationLocked();
+                }
+            }
+        }
+
+        @Override
+        public void onConnectionSuspended(int cause) {
+            synchronized (CastSessionEngine.this) {
+                if (mOwner == mTransport && isActiveLocked()) {
+                    // The GoogleApiClient tries to reconnect by itself
+                    setStateLocked(State.SUSPENDED);
+                    scheduleSuspendedDeadlineLocked();
+                }
+            }
+        }
+
+        @Override
+        public void onConnectionFailed(int errorCode) {
+            synchronized (CastSessionEngine.this) {
+                if (mOwner != mTransport || !isActiveLocked()) {
+                    return;
+                }
+                if (mState == State.RUNNING) {
+                    // The network could be gone for a while so the session can be joined later
+                    teardownLocked(false);
+                } else {
+                    // We are still starting or resuming the session so we try again
+                    retryOrTeardownLocked(true);
+                }
+            }
+        }
+
+        @Override
+        public void onApplicationDisconnected(int errorCode) {
+            stopIfCurrent();
+        }
+
+        @Override
+        public void onMessageReceived(String namespace, String message) {
+            if (mNamespace.equals(namespace)) {
+                // Parsing and handlers run on the executor of the dispatcher
+                mInboundDispatcher.dispatch(message);
+            }
+        }
+
+        private void stopIfCurrent() {
+            synchronized (CastSessionEngine.this) {
+                if (mOwner == mTransport && isActiveLocked()) {
+                    teardownLocked(true);
+                }
+            }
+        }
+    }
+}
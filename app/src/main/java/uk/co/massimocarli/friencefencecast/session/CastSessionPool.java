@@ -0,0 +1,381 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import uk.co.massimocarli.friencefencecast.channel.LocationUpdate;
+import uk.co.massimocarli.friencefencecast.media.CommandFuture;
+import uk.co.massimocarli.friencefencecast.media.MediaItem;
+import uk.co.massimocarli.friencefencecast.media.PlaybackCommandPipeline;
+
+/**
+ * Keeps a session with several Receivers at the same time so the same feed can be shown on
+ * many screens. Each device has its own {@link CastSessionEngine}, so its own connection,
+ * outbound queue and player, and the failure of a device never affects the others. The
+ * messages and the media commands are sent to all the running devices, each one through
+ * its own queue so a slow device doesn't delay the others.
+ */
+public class CastSessionPool {
+
+    /**
+     * The interface to implement to create the engine for a device
+     */
+    public interface EngineFactory {
+
+        /**
+         * Creates the engine for the given route. Each engine needs its own SessionStore and
+         * InboundMessageDispatcher while the executors can be shared
+         *
+         * @param routeId The id of the route of the device
+         * @return The engine for the device
+         */
+        CastSessionEngine createEngine(String routeId);
+    }
+
+    /**
+     * The interface to implement to get notification about the devices of the pool
+     */
+    public interface Listener {
+
+        /**
+         * Invoked when the state of the session with a device changes
+         *
+         * @param routeId  The id of the route of the device
+         * @param oldState The previous state
+         * @param newState The new state
+         */
+        void onDeviceStateChanged(String routeId, CastSessionEngine.State oldState,
+                                  CastSessionEngine.State newState);
+
+        /**
+         * Invoked when a batch of messages has been acknowledged or refused by a device
+         *
+         * @param routeId      The id of the route of the device
+         * @param messageCount The number of messages into the batch
+         * @param success      True if the batch has been delivered
+         */
+        void onDeviceMessagesSent(String routeId, int messageCount, boolean success);
+    }
+
+    /**
+     * The engine of a device with the Listener that forwards its events
+     */
+    private class Device implements CastSessionEngine.Listener {
+
+        private final String mRouteId;
+
+        private final CastSessionEngine mEngine;
+
+        Device(final String routeId, final CastSessionEngine engine) {
+            this.mRouteId = routeId;
+            this.mEngine = engine;
+        }
+
+        @Override
+        public void onStateChanged(CastSessionEngine.State oldState,
+                                   CastSessionEngine.State newState) {
+            for (Listener listener : mListeners) {
+                listener.onDeviceStateChanged(mRouteId, oldState, newState);
+            }
+        }
+
+        @Override
+        public void onMessagesSent(int messageCount, boolean success) {
+            for (Listener listener : mListeners) {
+                listener.onDeviceMessagesSent(mRouteId, messageCount, success);
+            }
+        }
+    }
+
+    /**
+     * The interface for the media commands to send to every device
+     */
+    private interface PlaybackCommand {
+
+        CommandFuture send(PlaybackCommandPipeline pipeline);
+    }
+
+    /**
+     * The factory for the engines
+     */
+    private final EngineFactory mEngineFactory;
+
+    /**
+     * The devices by route id
+     */
+    private final ConcurrentHashMap<String, Device> mDevices =
+            new ConcurrentHashMap<String, Device>();
+
+    /**
+     * The media every device has in its queue. It's copied into the queue of a new device
+     */
+    private final List<MediaItem> mMediaItems = new CopyOnWriteArrayList<MediaItem>();
+
+    /**
+     * The registered Listeners
+     */
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * The number of operations on a device that threw an exception
+     */
+    private int mDeviceErrors;
+
+    /**
+     * Creates a CastSessionPool
+     *
+     * @param engineFactory The factory for the engines of the devices
+     */
+    public CastSessionPool(final EngineFactory engineFactory) {
+        this.mEngineFactory = engineFactory;
+    }
+
+    /**
+     * Registers a Listener
+     *
+     * @param listener The Listener to register
+     */
+    public void addListener(final Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a Listener
+     *
+     * @param listener The Listener to unregister
+     */
+    public void removeListener(final Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Starts the session with the device of the given route if we don't have one yet
+     *
+     * @param routeId   The id of the route
+     * @param transport The transport for the device
+     * @return False if the circuit of the device is open so the session is not started
+     */
+    public boolean addRoute(final String routeId, final CastTransport transport) {
+        Device device = mDevices.get(routeId);
+        if (device == null) {
+            final CastSessionEngine engine = mEngineFactory.createEngine(routeId);
+            for (MediaItem item : mMediaItems) {
+                engine.getMediaQueue().add(item);
+            }
+            final Device newDevice = new Device(routeId, engine);
+            device = mDevices.putIfAbsent(routeId, newDevice);
+            if (device == null) {
+                device = newDevice;
+                engine.addListener(device);
+            }
+        }
+        return device.mEngine.selectRoute(routeId, transport);
+    }
+
+    /**
+     * Stops the session with the device of the given route and removes it from the pool
+     *
+     * @param routeId The id of the route
+     */
+    public void removeRoute(final String routeId) {
+        final Device device = mDevices.remove(routeId);
+        if (device != null) {
+            device.mEngine.stop();
+            device.mEngine.removeListener(device);
+        }
+    }
+
+    /**
+     * Closes the connection with all the devices leaving the Receiver applications running
+     */
+    public void disconnectAll() {
+        for (Device device : mDevices.values()) {
+            device.mEngine.disconnect();
+        }
+    }
+
+    /**
+     * @return The ids of the routes in the pool
+     */
+    public List<String> getRouteIds() {
+        return new ArrayList<String>(mDevices.keySet());
+    }
+
+    /**
+     * @param routeId The id of the route
+     * @return The engine for the given route or null
+     */
+    public CastSessionEngine getEngine(final String routeId) {
+        final Device device = mDevices.get(routeId);
+        return device != null ? device.mEngine : null;
+    }
+
+    /**
+     * @return The number of devices with a running session
+     */
+    public int getRunningCount() {
+        int count = 0;
+        for (Device device : mDevices.values()) {
+            if (device.mEngine.getState() == CastSessionEngine.State.RUNNING) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of operations on a device that threw an exception
+     */
+    public synchronized int getDeviceErrorCount() {
+        return mDeviceErrors;
+    }
+
+    /**
+     * Sends a message to all the running devices
+     *
+     * @param message The message to send
+     * @return The number of devices that accepted the message
+     */
+    public int broadcastMessage(final String message) {
+        int accepted = 0;
+        for (Device device : mDevices.values()) {
+            try {
+                if (device.mEngine.sendMessage(message)) {
+                    accepted++;
+                }
+            } catch (RuntimeException e) {
+                onDeviceError();
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Sends the positions to all the running devices. Each device gets them with the
+     * encoding it negotiated
+     *
+     * @param updates The positions of the friends
+     * @return The number of devices that accepted the positions
+     */
+    public int broadcastLocations(final List<LocationUpdate> updates) {
+        int accepted = 0;
+        for (Device device : mDevices.values()) {
+            try {
+                if (device.mEngine.sendLocations(updates)) {
+                    accepted++;
+                }
+            } catch (RuntimeException e) {
+                onDeviceError();
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Adds an item to the media queue of all the devices, the ones added later included
+     *
+     * @param item The item to add
+     */
+    public void addMediaItem(final MediaItem item) {
+        mMediaItems.add(item);
+        for (Device device : mDevices.values()) {
+            device.mEngine.getMediaQueue().add(item);
+        }
+    }
+
+    /**
+     * @return A copy of the media every device has in its queue
+     */
+    public List<MediaItem> getMediaItems() {
+        return new ArrayList<MediaItem>(mMediaItems);
+    }
+
+    /**
+     * Starts or resumes the playback on all the running devices
+     *
+     * @return The completion of the command for each route
+     */
+    public Map<String, CommandFuture> play() {
+        return sendPlaybackCommand(new PlaybackCommand() {
+            @Override
+            public CommandFuture send(PlaybackCommandPipeline pipeline) {
+                return pipeline.play();
+            }
+        });
+    }
+
+    /**
+     * Pauses the playback on all the running devices
+     *
+     * @return The completion of the command for each route
+     */
+    public Map<String, CommandFuture> pause() {
+        return sendPlaybackCommand(new PlaybackCommand() {
+            @Override
+            public CommandFuture send(PlaybackCommandPipeline pipeline) {
+                return pipeline.pause();
+            }
+        });
+    }
+
+    /**
+     * Moves all the running devices to the given position
+     *
+     * @param positionMillis The new position
+     * @return The completion of the command for each route
+     */
+    public Map<String, CommandFuture> seek(final long positionMillis) {
+        return sendPlaybackCommand(new PlaybackCommand() {
+            @Override
+            public CommandFuture send(PlaybackCommandPipeline pipeline) {
+                return pipeline.seek(positionMillis);
+            }
+        });
+    }
+
+    /**
+     * Returns how much each device is behind the fastest one. The lag is the difference
+     * between the smoothed round trip time of the device and the lowest one
+     *
+     * @return The lag in nanoseconds for each route that acknowledged at least a batch
+     */
+    public Map<String, Long> getDeviceLagNanos() {
+        final Map<String, Long> roundTrips = new HashMap<String, Long>();
+        long fastest = Long.MAX_VALUE;
+        for (Device device : mDevices.values()) {
+            final long roundTrip = device.mEngine.getRoundTripEstimateNanos();
+            if (roundTrip >= 0) {
+                roundTrips.put(device.mRouteId, roundTrip);
+                fastest = Math.min(fastest, roundTrip);
+            }
+        }
+        for (Map.Entry<String, Long> entry : roundTrips.entrySet()) {
+            entry.setValue(entry.getValue() - fastest);
+        }
+        return roundTrips;
+    }
+
+    private Map<String, CommandFuture> sendPlaybackCommand(final PlaybackCommand command) {
+        final Map<String, CommandFuture> futures = new HashMap<String, CommandFuture>();
+        for (Device device : mDevices.values()) {
+            if (device.mEngine.getState() != CastSessionEngine.State.RUNNING) {
+                continue;
+            }
+            try {
+                futures.put(device.mRouteId,
+                        command.send(device.mEngine.getPlaybackPipeline()));
+            } catch (RuntimeException e) {
+                onDeviceError();
+            }
+        }
+        return futures;
+    }
+
+    private synchronized void onDeviceError() {
+        mDeviceErrors++;
+    }
+}
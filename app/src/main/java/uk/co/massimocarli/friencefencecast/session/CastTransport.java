@@ -0,0 +1,135 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import java.io.IOException;
+
+import uk.co.massimocarli.friencefencecast.channel.MessageTransport;
+import uk.co.massimocarli.friencefencecast.media.RemotePlayer;
+
+/**
+ * The abstraction of the connection with a single Cast device. The CastSessionEngine uses
+ * only this interface so it can be driven by a fake Receiver without Google Play Services.
+ */
+public interface CastTransport extends MessageTransport {
+
+    /**
+     * The interface to implement to get notification about the connection events
+     */
+    interface ConnectionListener {
+
+        /**
+         * Invoked when the connection with the device is available
+         */
+        void onConnected();
+
+        /**
+         * Invoked when the connection has been suspended
+         *
+         * @param cause The cause of the suspension
+         */
+        void onConnectionSuspended(int cause);
+
+        /**
+         * Invoked when the connection failed
+         *
+         * @param errorCode The error code
+         */
+        void onConnectionFailed(int errorCode);
+
+        /**
+         * Invoked when the Receiver application has been disconnected
+         *
+         * @param errorCode The error code
+         */
+        void onApplicationDisconnected(int errorCode);
+
+        /**
+         * Invoked when a message is received on a registered channel
+         *
+         * @param namespace The namespace of the channel
+         * @param message   The message
+         */
+        void onMessageReceived(String namespace, String message);
+    }
+
+    /**
+     * Starts the connection with the device
+     *
+     * @param listener The ConnectionListener to notify
+     */
+    void connect(ConnectionListener listener);
+
+    /**
+     * @return True if connected
+     */
+    boolean isConnected();
+
+    /**
+     * @return True if the connection is in progress
+     */
+    boolean isConnecting();
+
+    /**
+     * Launches the Receiver application
+     *
+     * @param appId    The id of the Receiver application
+     * @param listener The listener for the session id
+     */
+    void launchApplication(String appId, ResultListener<String> listener);
+
+    /**
+     * Joins the running session of the Receiver application without launching it again
+     *
+     * @param appId     The id of the Receiver application
+     * @param sessionId The identifier of the session to join
+     * @param listener  The listener for the session id
+     */
+    void joinApplication(String appId, String sessionId, ResultListener<String> listener);
+
+    /**
+     * Stops the Receiver application
+     *
+     * @param sessionId The id of the session to stop
+     */
+    void stopApplication(String sessionId);
+
+    /**
+     * Registers the channel for the given namespace. Messages are notified to the
+     * ConnectionListener
+     *
+     * @param namespace The namespace of the channel
+     * @throws IOException In case of error registering the channel
+     */
+    void setMessageChannel(String namespace) throws IOException;
+
+    /**
+     * Removes the channel for the given namespace
+     *
+     * @param namespace The namespace of the channel
+     * @throws IOException In case of error removing the channel
+     */
+    void removeMessageChannel(String namespace) throws IOException;
+
+    /**
+     * Registers the channel for the media namespace
+     *
+     * @throws IOException In case of error registering the channel
+     */
+    void attachMediaChannel() throws IOException;
+
+    /**
+     * Removes the channel for the media namespace
+     *
+     * @throws IOException In case of error removing the channel
+     */
+    void detachMediaChannel() throws IOException;
+
+    /**
+     * @return The RemotePlayer if the media channel is attached or null
+     */
+    RemotePlayer getRemotePlayer();
+
+    /**
+     * Closes the connection with the device
+     */
+    void disconnect();
+}
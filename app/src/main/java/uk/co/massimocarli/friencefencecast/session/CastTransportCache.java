@@ -0,0 +1,468 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.massimocarli.friencefencecast.media.RemotePlayer;
+import uk.co.massimocarli.friencefencecast.metrics.Counter;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+
+/**
+ * The connections with the devices kept alive between the sessions. The connection with a
+ * device can be started before the user selects it ({@link #prewarm(String, Factory)}) and
+ * it's not closed immediately when the session ends, so selecting the same device again
+ * doesn't pay the binding to Google Play Services and the connection again. A connection
+ * nobody uses is closed after the idle time.
+ * <p/>
+ * Each session gets its own CastTransport from {@link #acquire(String, Factory)}. When a
+ * new session acquires the same device the transport of the previous one stops working,
+ * so its late teardown can't close the connection or the channels of the new session.
+ */
+public class CastTransportCache {
+
+    /**
+     * The counter of the connections started before the selection of the device
+     */
+    public static final String METRIC_PREWARMS = "cast.prewarms";
+
+    /**
+     * The counter of the sessions that found the connection already started
+     */
+    public static final String METRIC_WARM_CONNECTS = "cast.warm_connects";
+
+    /**
+     * The interface to implement to create the transport for a device
+     */
+    public interface Factory {
+
+        /**
+         * @return The new CastTransport for the device
+         */
+        CastTransport createTransport();
+    }
+
+    /**
+     * The executor for the callbacks and the idle timeouts
+     */
+    private final ScheduledExecutorService mScheduler;
+
+    /**
+     * The max number of connections we keep
+     */
+    private final int mMaxConnections;
+
+    /**
+     * The time a connection nobody uses is kept
+     */
+    private final long mIdleMillis;
+
+    /**
+     * The connections from the least to the most recently used
+     */
+    private final LinkedHashMap<String, Connection> mConnections =
+            new LinkedHashMap<String, Connection>(4, 0.75f, true);
+
+    private final Counter mPrewarms;
+
+    private final Counter mWarmConnects;
+
+    /**
+     * Creates a CastTransportCache
+     *
+     * @param scheduler      The executor for the callbacks and the idle timeouts
+     * @param maxConnections The max number of connections we keep
+     * @param idleMillis     The time a connection nobody uses is kept
+     * @param metrics        The registry for the metrics
+     */
+    public CastTransportCache(final ScheduledExecutorService scheduler, final int maxConnections,
+                              final long idleMillis, final MetricsRegistry metrics) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("At least a connection is needed");
+        }
+        this.mScheduler = scheduler;
+        this.mMaxConnections = maxConnections;
+        this.mIdleMillis = idleMillis;
+        this.mPrewarms = metrics.counter(METRIC_PREWARMS);
+        this.mWarmConnects = metrics.counter(METRIC_WARM_CONNECTS);
+    }
+
+    /**
+     * Starts the connection with the device of the given route if it's not started yet. If
+     * nobody acquires it, it's closed after the idle time. It has to be called on the thread
+     * the transports are used on because it connects the new transport
+     *
+     * @param routeId The id of the route
+     * @param factory The Factory for the transport of the device
+     */
+    public void prewarm(final String routeId, final Factory factory) {
+        final Connection connection;
+        synchronized (this) {
+            connection = getConnectionLocked(routeId, factory);
+            if (connection.mLease != null || connection.mConnected || connection.mConnecting) {
+                return;
+            }
+            connection.mConnecting = true;
+            connection.scheduleIdleCloseLocked();
+        }
+        mPrewarms.increment();
+        connection.mTransport.connect(connection);
+    }
+
+    /**
+     * Returns the transport for a new session with the device of the given route. The
+     * transport of the previous session with the same device stops working
+     *
+     * @param routeId The id of the route
+     * @param factory The Factory for the transport of the device, used if we have none
+     * @return The CastTransport for the session
+     */
+    public synchronized CastTransport acquire(final String routeId, final Factory factory) {
+        final Connection connection = getConnectionLocked(routeId, factory);
+        connection.cancelIdleCloseLocked();
+        connection.mLease = new Lease(connection);
+        return connection.mLease;
+    }
+
+    /**
+     * @param routeId The id of the route
+     * @return True if the connection with the device of the route is available
+     */
+    public synchronized boolean isWarm(final String routeId) {
+        final Connection connection = mConnections.get(routeId);
+        return connection != null && connection.mConnected;
+    }
+
+    /**
+     * Closes all the connections nobody uses
+     */
+    public void trim() {
+        synchronized (this) {
+            for (Connection connection : mConnections.values()) {
+                if (connection.mLease == null) {
+                    connection.cancelIdleCloseLocked();
+                    connection.scheduleIdleCloseLocked(0L);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the connection for the given route, creating it if needed. The least recently
+     * used ones nobody uses are closed when they are too many
+     *
+     * @param routeId The id of the route
+     * @param factory The Factory for the transport
+     * @return The Connection
+     */
+    private Connection getConnectionLocked(final String routeId, final Factory factory) {
+        Connection connection = mConnections.get(routeId);
+        if (connection != null) {
+            return connection;
+        }
+        connection = new Connection(routeId, factory.createTransport());
+        mConnections.put(routeId, connection);
+        final Iterator<Connection> iterator = mConnections.values().iterator();
+        while (mConnections.size() > mMaxConnections && iterator.hasNext()) {
+            final Connection eldest = iterator.next();
+            if (eldest != connection && eldest.mLease == null) {
+                iterator.remove();
+                eldest.closeLocked();
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * The connection with a device. It receives the events of the transport and forwards
+     * them to the current session
+     */
+    private class Connection implements CastTransport.ConnectionListener {
+
+        final String mRouteId;
+
+        final CastTransport mTransport;
+
+        /**
+         * The transport of the current session or null
+         */
+        Lease mLease;
+
+        boolean mConnecting;
+
+        boolean mConnected;
+
+        ScheduledFuture<?> mIdleClose;
+
+        Connection(final String routeId, final CastTransport transport) {
+            this.mRouteId = routeId;
+            this.mTransport = transport;
+        }
+
+        void scheduleIdleCloseLocked() {
+            scheduleIdleCloseLocked(mIdleMillis);
+        }
+
+        void scheduleIdleCloseLocked(final long delayMillis) {
+            if (mIdleClose != null) {
+                return;
+            }
+            mIdleClose = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (CastTransportCache.this) {
+                        mIdleClose = null;
+                        if (mLease == null && mConnections.get(mRouteId) == Connection.this) {
+                            mConnections.remove(mRouteId);
+                            closeLocked();
+                        }
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void cancelIdleCloseLocked() {
+            if (mIdleClose != null) {
+                mIdleClose.cancel(false);
+                mIdleClose = null;
+            }
+        }
+
+        void closeLocked() {
+            cancelIdleCloseLocked();
+            mConnecting = false;
+            mConnected = false;
+            mTransport.disconnect();
+        }
+
+        /**
+         * @return The listener of the current session if it asked for the connection
+         */
+        private CastTransport.ConnectionListener getListener() {
+            synchronized (CastTransportCache.this) {
+                return mLease != null ? mLease.mListener : null;
+            }
+        }
+
+        @Override
+        public void onConnected() {
+            synchronized (CastTransportCache.this) {
+                mConnecting = false;
+                mConnected = true;
+            }
+            final CastTransport.ConnectionListener listener = getListener();
+            if (listener != null) {
+                listener.onConnected();
+            }
+        }
+
+        @Override
+        public void onConnectionSuspended(final int cause) {
+            synchronized (CastTransportCache.this) {
+                mConnected = false;
+            }
+            final CastTransport.ConnectionListener listener = getListener();
+            if (listener != null) {
+                listener.onConnectionSuspended(cause);
+            }
+        }
+
+        @Override
+        public void onConnectionFailed(final int errorCode) {
+            synchronized (CastTransportCache.this) {
+                mConnecting = false;
+                mConnected = false;
+            }
+            final CastTransport.ConnectionListener listener = getListener();
+            if (listener != null) {
+                listener.onConnectionFailed(errorCode);
+            }
+        }
+
+        @Override
+        public void onApplicationDisconnected(final int errorCode) {
+            final CastTransport.ConnectionListener listener = getListener();
+            if (listener != null) {
+                listener.onApplicationDisconnected(errorCode);
+            }
+        }
+
+        @Override
+        public void onMessageReceived(final String namespace, final String message) {
+            final CastTransport.ConnectionListener listener = getListener();
+            if (listener != null) {
+                listener.onMessageReceived(namespace, message);
+            }
+        }
+    }
+
+    /**
+     * The transport of a session. It uses the connection until another session acquires it
+     */
+    private class Lease implements CastTransport {
+
+        private final Connection mConnection;
+
+        /**
+         * The listener of the session. It's null until the session asks for the connection
+         */
+        CastTransport.ConnectionListener mListener;
+
+        Lease(final Connection connection) {
+            this.mConnection = connection;
+        }
+
+        /**
+         * @return True if this is the transport of the current session
+         */
+        private boolean isCurrent() {
+            synchronized (CastTransportCache.this) {
+                return mConnection.mLease == this;
+            }
+        }
+
+        @Override
+        public void connect(final ConnectionListener listener) {
+            final boolean warm;
+            synchronized (CastTransportCache.this) {
+                if (mConnection.mLease != this) {
+                    return;
+                }
+                final boolean first = mListener == null;
+                mListener = listener;
+                if (first && mConnection.mConnected && mConnection.mTransport.isConnected()) {
+                    warm = true;
+                } else if (first && mConnection.mConnecting) {
+                    // The connection started by the prewarm notifies this session
+                    mWarmConnects.increment();
+                    return;
+                } else {
+                    // The first connection or a new attempt after a failure
+                    warm = false;
+                    mConnection.mConnecting = true;
+                    mConnection.mConnected = false;
+                }
+            }
+            if (warm) {
+                mWarmConnects.increment();
+                mScheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isCurrent()) {
+                            listener.onConnected();
+                        }
+                    }
+                });
+            } else {
+                mConnection.mTransport.connect(mConnection);
+            }
+        }
+
+        @Override
+        public boolean isConnected() {
+            return isCurrent() && mConnection.mTransport.isConnected();
+        }
+
+        @Override
+        public boolean isConnecting() {
+            return isCurrent() && mConnection.mTransport.isConnecting();
+        }
+
+        @Override
+        public boolean isReady() {
+            return isCurrent() && mConnection.mTransport.isReady();
+        }
+
+        @Override
+        public void launchApplication(final String appId, final ResultListener<String> listener) {
+            if (isCurrent()) {
+                mConnection.mTransport.launchApplication(appId, listener);
+            } else {
+                listener.onResult(false, null);
+            }
+        }
+
+        @Override
+        public void joinApplication(final String appId, final String sessionId,
+                                    final ResultListener<String> listener) {
+            if (isCurrent()) {
+                mConnection.mTransport.joinApplication(appId, sessionId, listener);
+            } else {
+                listener.onResult(false, null);
+            }
+        }
+
+        @Override
+        public void stopApplication(final String sessionId) {
+            if (isCurrent()) {
+                mConnection.mTransport.stopApplication(sessionId);
+            }
+        }
+
+        @Override
+        public void setMessageChannel(final String namespace) throws IOException {
+            if (!isCurrent()) {
+                throw new IOException("The connection is used by another session");
+            }
+            mConnection.mTransport.setMessageChannel(namespace);
+        }
+
+        @Override
+        public void removeMessageChannel(final String namespace) throws IOException {
+            if (isCurrent()) {
+                mConnection.mTransport.removeMessageChannel(namespace);
+            }
+        }
+
+        @Override
+        public void attachMediaChannel() throws IOException {
+            if (!isCurrent()) {
+                throw new IOException("The connection is used by another session");
+            }
+            mConnection.mTransport.attachMediaChannel();
+        }
+
+        @Override
+        public void detachMediaChannel() throws IOException {
+            if (isCurrent()) {
+                mConnection.mTransport.detachMediaChannel();
+            }
+        }
+
+        @Override
+        public RemotePlayer getRemotePlayer() {
+            return isCurrent() ? mConnection.mTransport.getRemotePlayer() : null;
+        }
+
+        @Override
+        public void sendMessage(final String namespace, final String message,
+                                final SendCallback callback) {
+            if (isCurrent()) {
+                mConnection.mTransport.sendMessage(namespace, message, callback);
+            } else {
+                callback.onSendResult(false);
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            synchronized (CastTransportCache.this) {
+                if (mConnection.mLease != this) {
+                    return;
+                }
+                mConnection.mLease = null;
+                if (mConnection.mConnected && mIdleMillis > 0) {
+                    // We keep the connection for the next session with the same device
+                    mConnection.scheduleIdleCloseLocked();
+                    return;
+                }
+                mConnections.remove(mConnection.mRouteId);
+                mConnection.closeLocked();
+            }
+        }
+    }
+}
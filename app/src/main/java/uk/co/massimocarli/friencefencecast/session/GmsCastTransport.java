@@ -0,0 +1,364 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import uk.co.massimocarli.friencefencecast.media.GmsRemotePlayer;
+import uk.co.massimocarli.friencefencecast.media.RemotePlayer;
+
+/**
+ * The CastTransport implementation that uses the GoogleApiClient and the Cast API. The
+ * Google Play Services deliver the callbacks on the main thread so they are immediately
+ * moved to the callback executor, where the session logic runs.
+ */
+public class GmsCastTransport implements CastTransport {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = GmsCastTransport.class.getName();
+
+    /**
+     * The Context we use to create the GoogleApiClient
+     */
+    private final Context mContext;
+
+    /**
+     * The selected CastDevice
+     */
+    private final CastDevice mCastDevice;
+
+    /**
+     * The serial executor for the callbacks
+     */
+    private final Executor mCallbackExecutor;
+
+    /**
+     * The Client to interact with Google Play Services
+     */
+    private GoogleApiClient mGoogleApiClient;
+
+    /**
+     * The listener for the connection events
+     */
+    private ConnectionListener mConnectionListener;
+
+    /**
+     * The RemotePlayer for the media channel
+     */
+    private GmsRemotePlayer mRemotePlayer;
+
+    /**
+     * This is the implementation of the listener for CastDevice
+     */
+    private final Cast.Listener mCastListener = new Cast.Listener() {
+        @Override
+        public void onApplicationStatusChanged() {
+            if (mGoogleApiClient != null) {
+                // We get the new status
+                final String newStatus = Cast.CastApi.getApplicationStatus(mGoogleApiClient);
+                Log.d(TAG_LOG, "onApplicationStatusChanged: new Status" + newStatus);
+            }
+        }
+
+        @Override
+        public void onVolumeChanged() {
+            if (mGoogleApiClient != null) {
+                // We get the information related to the volume
+                final double newVolume = Cast.CastApi.getVolume(mGoogleApiClient);
+                Log.d(TAG_LOG, "onVolumeChanged: new value" + newVolume);
+            }
+        }
+
+        @Override
+        public void onApplicationDisconnected(final int errorCode) {
+            final ConnectionListener connectionListener = mConnectionListener;
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    connectionListener.onApplicationDisconnected(errorCode);
+                }
+            });
+        }
+    };
+
+    /**
+     * The Callback implementation to manage connection events
+     */
+    private final GoogleApiClient.ConnectionCallbacks mConnectionCallback =
+            new GoogleApiClient.ConnectionCallbacks() {
+                @Override
+                public void onConnected(Bundle bundle) {
+                    final ConnectionListener connectionListener = mConnectionListener;
+                    mCallbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectionListener.onConnected();
+                        }
+                    });
+                }
+
+                @Override
+                public void onConnectionSuspended(final int cause) {
+                    final ConnectionListener connectionListener = mConnectionListener;
+                    mCallbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectionListener.onConnectionSuspended(cause);
+                        }
+                    });
+                }
+            };
+
+    /**
+     * The logic to implement the disconnection with the GoogleApiClient object
+     */
+    private final GoogleApiClient.OnConnectionFailedListener mConnectionFailedListener =
+            new GoogleApiClient.OnConnectionFailedListener() {
+                @Override
+                public void onConnectionFailed(final ConnectionResult connectionResult) {
+                    final ConnectionListener connectionListener = mConnectionListener;
+                    mCallbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            Log.w(TAG_LOG, "Connection failed " + connectionResult);
+                            connectionListener.onConnectionFailed(
+                                    connectionResult.getErrorCode());
+                        }
+                    });
+                }
+            };
+
+    /**
+     * The callback that forwards the messages of the custom channels
+     */
+    private final Cast.MessageReceivedCallback mMessageReceivedCallback =
+            new Cast.MessageReceivedCallback() {
+                @Override
+                public void onMessageReceived(CastDevice castDevice, final String namespace,
+                                              final String message) {
+                    final ConnectionListener connectionListener = mConnectionListener;
+                    mCallbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectionListener.onMessageReceived(namespace, message);
+                        }
+                    });
+                }
+            };
+
+    /**
+     * Creates a GmsCastTransport for the given device
+     *
+     * @param context          The Context. We keep only the ApplicationContext
+     * @param castDevice       The CastDevice to connect to
+     * @param callbackExecutor The serial executor for the callbacks
+     */
+    public GmsCastTransport(final Context context, final CastDevice castDevice,
+                            final Executor callbackExecutor) {
+        this.mContext = context.getApplicationContext();
+        this.mCastDevice = castDevice;
+        this.mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * @return The CastDevice for this transport
+     */
+    public CastDevice getCastDevice() {
+        return mCastDevice;
+    }
+
+    @Override
+    public void connect(final ConnectionListener listener) {
+        mConnectionListener = listener;
+        if (mGoogleApiClient == null) {
+            // We initialize the Builder o create the Cast connection
+            Cast.CastOptions.Builder apiOptionsBuilder = Cast.CastOptions
+                    .builder(mCastDevice, mCastListener);
+            // We initialize the GoogleApiClient object only the first time. The next
+            // attempts and sessions with the same device reuse it
+            mGoogleApiClient = new GoogleApiClient.Builder(mContext)
+                    .addApi(Cast.API, apiOptionsBuilder.build())
+                    .addConnectionCallbacks(mConnectionCallback)
+                    .addOnConnectionFailedListener(mConnectionFailedListener)
+                    .build();
+        } else {
+            // A new attempt closes the failed one
+            mGoogleApiClient.disconnect();
+        }
+        // We connect
+        mGoogleApiClient.connect();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mGoogleApiClient != null && mGoogleApiClient.isConnected();
+    }
+
+    @Override
+    public boolean isConnecting() {
+        return mGoogleApiClient != null && mGoogleApiClient.isConnecting();
+    }
+
+    @Override
+    public boolean isReady() {
+        return isConnected();
+    }
+
+    @Override
+    public void launchApplication(final String appId, final ResultListener<String> listener) {
+        try {
+            Cast.CastApi.launchApplication(mGoogleApiClient, appId, false)
+                    .setResultCallback(new ApplicationConnectionCallback(listener,
+                            mCallbackExecutor));
+        } catch (IllegalStateException e) {
+            Log.e(TAG_LOG, "Error launching application", e);
+            notifyFailure(listener);
+        }
+    }
+
+    @Override
+    public void joinApplication(final String appId, final String sessionId,
+                                final ResultListener<String> listener) {
+        try {
+            Cast.CastApi.joinApplication(mGoogleApiClient, appId, sessionId)
+                    .setResultCallback(new ApplicationConnectionCallback(listener,
+                            mCallbackExecutor));
+        } catch (IllegalStateException e) {
+            Log.e(TAG_LOG, "Error joining application", e);
+            notifyFailure(listener);
+        }
+    }
+
+    @Override
+    public void stopApplication(final String sessionId) {
+        try {
+            Cast.CastApi.stopApplication(mGoogleApiClient, sessionId);
+        } catch (IllegalStateException e) {
+            // The connection is already gone so the teardown goes on with the disconnect
+            Log.e(TAG_LOG, "Error stopping application", e);
+        }
+    }
+
+    @Override
+    public void setMessageChannel(final String namespace) throws IOException {
+        Cast.CastApi.setMessageReceivedCallbacks(mGoogleApiClient, namespace,
+                mMessageReceivedCallback);
+    }
+
+    @Override
+    public void removeMessageChannel(final String namespace) throws IOException {
+        Cast.CastApi.removeMessageReceivedCallbacks(mGoogleApiClient, namespace);
+    }
+
+    @Override
+    public void attachMediaChannel() throws IOException {
+        // We create the RemoteMediaPLayer
+        final GmsRemotePlayer remotePlayer = new GmsRemotePlayer(mGoogleApiClient,
+                mCallbackExecutor);
+        Cast.CastApi.setMessageReceivedCallbacks(mGoogleApiClient,
+                remotePlayer.getRemoteMediaPlayer().getNamespace(),
+                remotePlayer.getRemoteMediaPlayer());
+        mRemotePlayer = remotePlayer;
+    }
+
+    @Override
+    public void detachMediaChannel() throws IOException {
+        if (mRemotePlayer != null) {
+            Cast.CastApi.removeMessageReceivedCallbacks(mGoogleApiClient,
+                    mRemotePlayer.getRemoteMediaPlayer().getNamespace());
+            mRemotePlayer = null;
+        }
+    }
+
+    @Override
+    public RemotePlayer getRemotePlayer() {
+        return mRemotePlayer;
+    }
+
+    @Override
+    public void sendMessage(final String namespace, final String message,
+                            final SendCallback callback) {
+        try {
+            Cast.CastApi.sendMessage(mGoogleApiClient, namespace, message)
+                    .setResultCallback(new ResultCallback<Status>() {
+                        @Override
+                        public void onResult(final Status result) {
+                            mCallbackExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onSendResult(result.isSuccess());
+                                }
+                            });
+                        }
+                    });
+        } catch (Exception e) {
+            Log.e(TAG_LOG, "Error sending message", e);
+            callback.onSendResult(false);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        if (mGoogleApiClient != null) {
+            mGoogleApiClient.disconnect();
+        }
+    }
+
+    /**
+     * Notifies the failure of a launch or a join on the callback executor as the results
+     * from the Receiver
+     *
+     * @param listener The listener to notify
+     */
+    private void notifyFailure(final ResultListener<String> listener) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onResult(false, null);
+            }
+        });
+    }
+
+    /**
+     * The ResultCallback that forwards the session id of the launched or joined application
+     */
+    private static class ApplicationConnectionCallback
+            implements ResultCallback<Cast.ApplicationConnectionResult> {
+
+        private final ResultListener<String> mListener;
+
+        private final Executor mExecutor;
+
+        ApplicationConnectionCallback(final ResultListener<String> listener,
+                                      final Executor executor) {
+            this.mListener = listener;
+            this.mExecutor = executor;
+        }
+
+        @Override
+        public void onResult(final Cast.ApplicationConnectionResult result) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (result.getStatus().isSuccess()) {
+                        mListener.onResult(true, result.getSessionId());
+                    } else {
+                        mListener.onResult(false, null);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+/**
+ * The interface to implement to get the result of an asynchronous Cast operation
+ *
+ * @param <T> The type of the result
+ */
+public interface ResultListener<T> {
+
+    /**
+     * Invoked when the operation completes
+     *
+     * @param success True if the operation was successful
+     * @param result  The result of the operation or null if not available
+     */
+    void onResult(boolean success, T result);
+}
@@ -0,0 +1,31 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+/**
+ * The abstraction of the storage for the last session. We use it to join the running
+ * Receiver application instead of launching it again.
+ */
+public interface SessionStore {
+
+    /**
+     * Saves the last session
+     *
+     * @param routeId   The id of the route
+     * @param sessionId The session identifier
+     */
+    void saveSession(String routeId, String sessionId);
+
+    /**
+     * @return The id of the route of the last session or null
+     */
+    String getLastRouteId();
+
+    /**
+     * @return The identifier of the last session or null
+     */
+    String getLastSessionId();
+
+    /**
+     * Deletes the last session
+     */
+    void clear();
+}
@@ -0,0 +1,150 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import java.io.IOException;
+
+/**
+ * The operations we need to release a session. The object is created with a snapshot of
+ * the session so it can run on a background thread while the engine is already able to
+ * start a new session. Every operation is executed at most once even if the object is run
+ * more than once. A teardown that takes too long can be abandoned: the thread is interrupted,
+ * the operations left are skipped and the transport is disconnected anyway.
+ */
+class SessionTeardown implements Runnable {
+
+    /**
+     * The transport to release
+     */
+    private final CastTransport mTransport;
+
+    /**
+     * The namespace of the custom channel
+     */
+    private final String mNamespace;
+
+    /**
+     * The session to stop or null if the Receiver application has to keep running
+     */
+    private final String mSessionIdToStop;
+
+    /**
+     * True if the custom channel has been registered
+     */
+    private final boolean mChannelRegistered;
+
+    /**
+     * True if the media channel has been registered
+     */
+    private final boolean mMediaAttached;
+
+    /**
+     * True when the teardown has been started
+     */
+    private boolean mStarted;
+
+    /**
+     * True when the teardown has been abandoned
+     */
+    private boolean mAbandoned;
+
+    /**
+     * True when the teardown has been completed
+     */
+    private boolean mFinished;
+
+    /**
+     * Creates a SessionTeardown
+     *
+     * @param transport         The transport to release
+     * @param namespace         The namespace of the custom channel
+     * @param sessionIdToStop   The session to stop or null to leave the application running
+     * @param channelRegistered True if the custom channel has been registered
+     * @param mediaAttached     True if the media channel has been registered
+     */
+    SessionTeardown(final CastTransport transport, final String namespace,
+                    final String sessionIdToStop, final boolean channelRegistered,
+                    final boolean mediaAttached) {
+        this.mTransport = transport;
+        this.mNamespace = namespace;
+        this.mSessionIdToStop = sessionIdToStop;
+        this.mChannelRegistered = channelRegistered;
+        this.mMediaAttached = mediaAttached;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+        }
+        try {
+            release();
+        } finally {
+            // We always disconnect, also when the application has not been started or the
+            // teardown has been abandoned
+            mTransport.disconnect();
+        }
+    }
+
+    /**
+     * Abandons the teardown interrupting the thread that runs it. It has no effect if the
+     * teardown has already been completed
+     *
+     * @param thread The thread that runs the teardown
+     * @return True if the teardown has been abandoned
+     */
+    synchronized boolean abandon(final Thread thread) {
+        if (mFinished || mAbandoned) {
+            return false;
+        }
+        mAbandoned = true;
+        thread.interrupt();
+        return true;
+    }
+
+    /**
+     * Marks the teardown as completed so it can't be abandoned anymore
+     *
+     * @return True if the teardown has been abandoned, so the thread has been interrupted
+     */
+    synchronized boolean finish() {
+        mFinished = true;
+        return mAbandoned;
+    }
+
+    private synchronized boolean isAbandoned() {
+        return mAbandoned;
+    }
+
+    /**
+     * Stops the application and removes the channels, until the teardown is abandoned
+     */
+    private void release() {
+        // The channels can be removed only with a live connection
+        if (mTransport.isConnected()) {
+            if (mSessionIdToStop != null) {
+                // We stop the application given its sessionId
+                mTransport.stopApplication(mSessionIdToStop);
+            }
+            if (mChannelRegistered && !isAbandoned()) {
+                try {
+                    mTransport.removeMessageChannel(mNamespace);
+                } catch (IOException e) {
+                    // We go on with the other channel
+                } catch (IllegalStateException e) {
+                    // The connection has been closed in the meantime
+                }
+            }
+            if (mMediaAttached && !isAbandoned()) {
+                try {
+                    mTransport.detachMediaChannel();
+                } catch (IOException e) {
+                    // We disconnect anyway
+                } catch (IllegalStateException e) {
+                    // The connection has been closed in the meantime
+                }
+            }
+        }
+    }
+}
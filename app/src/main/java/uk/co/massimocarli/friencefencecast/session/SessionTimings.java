@@ -0,0 +1,72 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+/**
+ * Collects the time from the route selection to the RUNNING state for the launch and the
+ * join of the Receiver application so we can compare them.
+ */
+public class SessionTimings {
+
+    /**
+     * The way the Receiver application has been started
+     */
+    public enum StartPath {
+        LAUNCHED,
+        JOINED
+    }
+
+    private final long[] mCount = new long[StartPath.values().length];
+
+    private final long[] mTotalNanos = new long[StartPath.values().length];
+
+    private final long[] mMaxNanos = new long[StartPath.values().length];
+
+    /**
+     * Records a start time
+     *
+     * @param path  The way the application has been started
+     * @param nanos The time from the route selection to the RUNNING state
+     */
+    public synchronized void record(final StartPath path, final long nanos) {
+        final int index = path.ordinal();
+        mCount[index]++;
+        mTotalNanos[index] += nanos;
+        mMaxNanos[index] = Math.max(mMaxNanos[index], nanos);
+    }
+
+    /**
+     * @param path The way the application has been started
+     * @return The number of starts for the given path
+     */
+    public synchronized long getCount(final StartPath path) {
+        return mCount[path.ordinal()];
+    }
+
+    /**
+     * @param path The way the application has been started
+     * @return The average start time for the given path or -1 if not available
+     */
+    public synchronized long getAverageNanos(final StartPath path) {
+        final int index = path.ordinal();
+        return mCount[index] == 0 ? -1L : mTotalNanos[index] / mCount[index];
+    }
+
+    /**
+     * @param path The way the application has been started
+     * @return The max start time for the given path
+     */
+    public synchronized long getMaxNanos(final StartPath path) {
+        return mMaxNanos[path.ordinal()];
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder("SessionTimings{");
+        for (StartPath path : StartPath.values()) {
+            final int index = path.ordinal();
+            builder.append(path).append(": count=").append(mCount[index])
+                    .append(" avg=").append(getAverageNanos(path) / 1000000L).append("ms")
+                    .append(" max=").append(mMaxNanos[index] / 1000000L).append("ms ");
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,73 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The SessionStore implementation that uses the SharedPreferences
+ */
+public class SharedPreferencesSessionStore implements SessionStore {
+
+    /**
+     * The name of the SharedPreferences file
+     */
+    private static final String PREFS_NAME = "cast_session";
+
+    /**
+     * The key for the route id
+     */
+    private static final String ROUTE_ID_KEY = "route_id";
+
+    /**
+     * The key for the session id
+     */
+    private static final String SESSION_ID_KEY = "session_id";
+
+    /**
+     * The SharedPreferences we use
+     */
+    private final SharedPreferences mPrefs;
+
+    /**
+     * Creates a SharedPreferencesSessionStore
+     *
+     * @param context The Context
+     */
+    public SharedPreferencesSessionStore(final Context context) {
+        this(context, PREFS_NAME);
+    }
+
+    /**
+     * Creates a SharedPreferencesSessionStore that uses the given file. Each device of a
+     * {@link CastSessionPool} has its own
+     *
+     * @param context   The Context
+     * @param prefsName The name of the SharedPreferences file
+     */
+    public SharedPreferencesSessionStore(final Context context, final String prefsName) {
+        this.mPrefs = context.getSharedPreferences(prefsName, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public void saveSession(final String routeId, final String sessionId) {
+        mPrefs.edit()
+                .putString(ROUTE_ID_KEY, routeId)
+                .putString(SESSION_ID_KEY, sessionId)
+                .apply();
+    }
+
+    @Override
+    public String getLastRouteId() {
+        return mPrefs.getString(ROUTE_ID_KEY, null);
+    }
+
+    @Override
+    public String getLastSessionId() {
+        return mPrefs.getString(SESSION_ID_KEY, null);
+    }
+
+    @Override
+    public void clear() {
+        mPrefs.edit().clear().apply();
+    }
+}
@@ -0,0 +1,307 @@
+package uk.co.massimocarli.friencefencecast.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.massimocarli.friencefencecast.media.MediaItem;
+import uk.co.massimocarli.friencefencecast.media.PlayerStatus;
+import uk.co.massimocarli.friencefencecast.media.RemotePlayer;
+import uk.co.massimocarli.friencefencecast.session.CastTransport;
+import uk.co.massimocarli.friencefencecast.session.ResultListener;
+
+/**
+ * A CastTransport that records the calls to another one, their results and the events of
+ * the Receiver into a {@link SessionTrace}. The records are kept in memory and appended to
+ * the file at every disconnection so a real session can be replayed later on a JVM with the
+ * ReplayCastTransport of the bench module.
+ */
+public class RecordingCastTransport implements CastTransport {
+
+    /**
+     * The transport we record
+     */
+    private final CastTransport mDelegate;
+
+    /**
+     * The file of the trace
+     */
+    private final File mTraceFile;
+
+    private final SessionTrace.Writer mWriter = new SessionTrace.Writer();
+
+    /**
+     * The ids to match the calls with their results
+     */
+    private final AtomicInteger mNextId = new AtomicInteger();
+
+    /**
+     * The player of the delegate and its recording wrapper
+     */
+    private RemotePlayer mPlayer;
+
+    private RecordingRemotePlayer mRecordingPlayer;
+
+    /**
+     * Creates a RecordingCastTransport
+     *
+     * @param delegate  The transport to record
+     * @param traceFile The file for the trace. It's created or replaced
+     */
+    public RecordingCastTransport(final CastTransport delegate, final File traceFile) {
+        this.mDelegate = delegate;
+        this.mTraceFile = traceFile;
+        if (traceFile.exists() && !traceFile.delete()) {
+            throw new IllegalArgumentException("Unable to replace " + traceFile);
+        }
+    }
+
+    @Override
+    public void connect(final ConnectionListener listener) {
+        mWriter.write(SessionTrace.CONNECT, 0, 0, false, null, null);
+        mDelegate.connect(new ConnectionListener() {
+            @Override
+            public void onConnected() {
+                mWriter.write(SessionTrace.CONNECTED, 0, 0, false, null, null);
+                listener.onConnected();
+            }
+
+            @Override
+            public void onConnectionSuspended(int cause) {
+                mWriter.write(SessionTrace.CONNECTION_SUSPENDED, 0, cause, false, null, null);
+                listener.onConnectionSuspended(cause);
+            }
+
+            @Override
+            public void onConnectionFailed(int errorCode) {
+                mWriter.write(SessionTrace.CONNECTION_FAILED, 0, errorCode, false, null, null);
+                listener.onConnectionFailed(errorCode);
+            }
+
+            @Override
+            public void onApplicationDisconnected(int errorCode) {
+                mWriter.write(SessionTrace.APPLICATION_DISCONNECTED, 0, errorCode, false,
+                        null, null);
+                listener.onApplicationDisconnected(errorCode);
+            }
+
+            @Override
+            public void onMessageReceived(String namespace, String message) {
+                mWriter.write(SessionTrace.MESSAGE_RECEIVED, 0, 0, false, namespace,
+                        message);
+                listener.onMessageReceived(namespace, message);
+            }
+        });
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mDelegate.isConnected();
+    }
+
+    @Override
+    public boolean isConnecting() {
+        return mDelegate.isConnecting();
+    }
+
+    @Override
+    public boolean isReady() {
+        return mDelegate.isReady();
+    }
+
+    @Override
+    public void launchApplication(final String appId, final ResultListener<String> listener) {
+        final int id = mNextId.incrementAndGet();
+        mWriter.write(SessionTrace.LAUNCH, id, 0, false, appId, null);
+        mDelegate.launchApplication(appId, recordApplicationResult(id, listener));
+    }
+
+    @Override
+    public void joinApplication(final String appId, final String sessionId,
+                                final ResultListener<String> listener) {
+        final int id = mNextId.incrementAndGet();
+        mWriter.write(SessionTrace.JOIN, id, 0, false, appId, sessionId);
+        mDelegate.joinApplication(appId, sessionId, recordApplicationResult(id, listener));
+    }
+
+    @Override
+    public void stopApplication(final String sessionId) {
+        mWriter.write(SessionTrace.STOP_APPLICATION, 0, 0, false, sessionId, null);
+        mDelegate.stopApplication(sessionId);
+    }
+
+    @Override
+    public void setMessageChannel(final String namespace) throws IOException {
+        mDelegate.setMessageChannel(namespace);
+        mWriter.write(SessionTrace.CHANNEL, 0, 0, true, namespace, null);
+    }
+
+    @Override
+    public void removeMessageChannel(final String namespace) throws IOException {
+        mWriter.write(SessionTrace.CHANNEL, 0, 0, false, namespace, null);
+        mDelegate.removeMessageChannel(namespace);
+    }
+
+    @Override
+    public void attachMediaChannel() throws IOException {
+        mDelegate.attachMediaChannel();
+    }
+
+    @Override
+    public void detachMediaChannel() throws IOException {
+        mDelegate.detachMediaChannel();
+    }
+
+    @Override
+    public synchronized RemotePlayer getRemotePlayer() {
+        final RemotePlayer player = mDelegate.getRemotePlayer();
+        if (player == null) {
+            return null;
+        }
+        if (player != mPlayer) {
+            mPlayer = player;
+            mRecordingPlayer = new RecordingRemotePlayer(player);
+        }
+        return mRecordingPlayer;
+    }
+
+    @Override
+    public void sendMessage(final String namespace, final String message,
+                            final SendCallback callback) {
+        final int id = mNextId.incrementAndGet();
+        mWriter.write(SessionTrace.SEND, id, 0, false, namespace, message);
+        mDelegate.sendMessage(namespace, message, new SendCallback() {
+            @Override
+            public void onSendResult(boolean success) {
+                mWriter.write(SessionTrace.SEND_RESULT, id, 0, success, null, null);
+                callback.onSendResult(success);
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        mWriter.write(SessionTrace.DISCONNECT, 0, 0, false, null, null);
+        mDelegate.disconnect();
+        flush();
+    }
+
+    /**
+     * Appends the records in memory to the file of the trace
+     *
+     * @return True if the records have been saved
+     */
+    public boolean flush() {
+        synchronized (mWriter) {
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(mTraceFile, true);
+                mWriter.drainTo(out);
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Nothing to do
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The size of the trace so far
+     */
+    public long getTraceSizeBytes() {
+        return mWriter.getSizeBytes();
+    }
+
+    private ResultListener<String> recordApplicationResult(final int id,
+                                                           final ResultListener<String> listener) {
+        return new ResultListener<String>() {
+            @Override
+            public void onResult(boolean success, String sessionId) {
+                mWriter.write(SessionTrace.APPLICATION_RESULT, id, 0, success, sessionId, null);
+                listener.onResult(success, sessionId);
+            }
+        };
+    }
+
+    private ResultListener<Void> recordPlayerResult(final String command, final String argument,
+                                                    final ResultListener<Void> listener) {
+        final int id = mNextId.incrementAndGet();
+        mWriter.write(SessionTrace.PLAYER_COMMAND, id, 0, false, command, argument);
+        return new ResultListener<Void>() {
+            @Override
+            public void onResult(boolean success, Void result) {
+                mWriter.write(SessionTrace.PLAYER_RESULT, id, 0, success, null, null);
+                if (listener != null) {
+                    listener.onResult(success, result);
+                }
+            }
+        };
+    }
+
+    /**
+     * The RemotePlayer that records the commands and the status of another one
+     */
+    private class RecordingRemotePlayer implements RemotePlayer {
+
+        private final RemotePlayer mDelegatePlayer;
+
+        RecordingRemotePlayer(final RemotePlayer delegatePlayer) {
+            this.mDelegatePlayer = delegatePlayer;
+        }
+
+        @Override
+        public void load(final MediaItem item, final boolean autoplay,
+                         final ResultListener<Void> listener) {
+            mDelegatePlayer.load(item, autoplay, recordPlayerResult(SessionTrace.COMMAND_LOAD,
+                    item.getContentId() + ' ' + item.getContentType(), listener));
+        }
+
+        @Override
+        public void play(final ResultListener<Void> listener) {
+            mDelegatePlayer.play(recordPlayerResult(SessionTrace.COMMAND_PLAY, null, listener));
+        }
+
+        @Override
+        public void pause(final ResultListener<Void> listener) {
+            mDelegatePlayer.pause(recordPlayerResult(SessionTrace.COMMAND_PAUSE, null,
+                    listener));
+        }
+
+        @Override
+        public void seek(final long positionMillis, final ResumeState resumeState,
+                         final ResultListener<Void> listener) {
+            mDelegatePlayer.seek(positionMillis, resumeState, recordPlayerResult(
+                    SessionTrace.COMMAND_SEEK, Long.toString(positionMillis), listener));
+        }
+
+        @Override
+        public void requestStatus(final ResultListener<Void> listener) {
+            mDelegatePlayer.requestStatus(recordPlayerResult(SessionTrace.COMMAND_STATUS, null,
+                    listener));
+        }
+
+        @Override
+        public void setStatusListener(final StatusListener statusListener) {
+            if (statusListener == null) {
+                mDelegatePlayer.setStatusListener(null);
+                return;
+            }
+            mDelegatePlayer.setStatusListener(new StatusListener() {
+                @Override
+                public void onStatusUpdated(PlayerStatus status) {
+                    mWriter.writeStatus(status);
+                    statusListener.onStatusUpdated(status);
+                }
+            });
+        }
+    }
+}
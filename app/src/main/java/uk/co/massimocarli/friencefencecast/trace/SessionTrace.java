@@ -0,0 +1,458 @@
+package uk.co.massimocarli.friencefencecast.trace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.co.massimocarli.friencefencecast.media.PlayerStatus;
+
+/**
+ * The trace of a Cast session: the calls to the {@link
+ * uk.co.massimocarli.friencefencecast.session.CastTransport}, their results and the events
+ * from the Receiver, each with its time. It's written by the {@link RecordingCastTransport}
+ * and replayed by the ReplayCastTransport of the bench module.
+ * <p>
+ * The file is compact: every record is the type, the time from the previous record in
+ * microseconds as a varint and its fields. A short String, like a namespace or a content
+ * id, is written only the first time, then its index into the table of the Strings already
+ * seen.
+ */
+public final class SessionTrace {
+
+    /**
+     * The connection has been requested
+     */
+    public static final int CONNECT = 1;
+
+    /**
+     * The connection is available
+     */
+    public static final int CONNECTED = 2;
+
+    /**
+     * The connection has been suspended. The code is the cause
+     */
+    public static final int CONNECTION_SUSPENDED = 3;
+
+    /**
+     * The connection failed. The code is the error
+     */
+    public static final int CONNECTION_FAILED = 4;
+
+    /**
+     * The Receiver application has been disconnected. The code is the error
+     */
+    public static final int APPLICATION_DISCONNECTED = 5;
+
+    /**
+     * The launch of the application with the id into the text
+     */
+    public static final int LAUNCH = 6;
+
+    /**
+     * The join of the application with the id into the text and the session into text2
+     */
+    public static final int JOIN = 7;
+
+    /**
+     * The result of a launch or a join with the session id into the text
+     */
+    public static final int APPLICATION_RESULT = 8;
+
+    /**
+     * The stop of the session into the text
+     */
+    public static final int STOP_APPLICATION = 9;
+
+    /**
+     * The channel for the namespace into the text has been registered (flag true) or
+     * removed (flag false)
+     */
+    public static final int CHANNEL = 10;
+
+    /**
+     * A message sent on the namespace into the text. The message is into text2
+     */
+    public static final int SEND = 11;
+
+    /**
+     * The result of a send
+     */
+    public static final int SEND_RESULT = 12;
+
+    /**
+     * A message received on the namespace into the text. The message is into text2
+     */
+    public static final int MESSAGE_RECEIVED = 13;
+
+    /**
+     * A command to the player: the name is into the text and its argument into text2
+     */
+    public static final int PLAYER_COMMAND = 14;
+
+    /**
+     * The result of a command to the player
+     */
+    public static final int PLAYER_RESULT = 15;
+
+    /**
+     * A new status of the player
+     */
+    public static final int PLAYER_STATUS = 16;
+
+    /**
+     * The connection has been closed
+     */
+    public static final int DISCONNECT = 17;
+
+    /**
+     * The player command for a load. The argument is the content id and the content type
+     * separated by a space
+     */
+    public static final String COMMAND_LOAD = "load";
+
+    /**
+     * The player command for a play
+     */
+    public static final String COMMAND_PLAY = "play";
+
+    /**
+     * The player command for a pause
+     */
+    public static final String COMMAND_PAUSE = "pause";
+
+    /**
+     * The player command for a seek. The argument is the position in milliseconds
+     */
+    public static final String COMMAND_SEEK = "seek";
+
+    /**
+     * The player command for a status request
+     */
+    public static final String COMMAND_STATUS = "status";
+
+    /**
+     * The magic number at the start of the file
+     */
+    private static final int MAGIC = 0x46464354;
+
+    private static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The longest String we put into the table. The messages are written every time
+     */
+    private static final int MAX_TABLE_STRING_LENGTH = 64;
+
+    /**
+     * The index of a String written without the table. 0 is null and the table starts at 2
+     */
+    private static final int INLINE_STRING = 1;
+
+    /**
+     * A record of the trace. The meaning of the fields depends on the type
+     */
+    public static final class Event {
+
+        final int mType;
+
+        final long mTimeNanos;
+
+        final int mId;
+
+        final int mCode;
+
+        final boolean mFlag;
+
+        final String mText;
+
+        final String mText2;
+
+        final PlayerStatus mStatus;
+
+        Event(final int type, final long timeNanos, final int id, final int code,
+              final boolean flag, final String text, final String text2,
+              final PlayerStatus status) {
+            this.mType = type;
+            this.mTimeNanos = timeNanos;
+            this.mId = id;
+            this.mCode = code;
+            this.mFlag = flag;
+            this.mText = text;
+            this.mText2 = text2;
+            this.mStatus = status;
+        }
+
+        /**
+         * @return The type of the record
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return The time of the record from the start of the trace
+         */
+        public long getTimeNanos() {
+            return mTimeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Event{" + mType + " at " + mTimeNanos / 1000000L + "ms id=" + mId
+                    + " code=" + mCode + " flag=" + mFlag + " text=" + mText
+                    + " text2=" + mText2 + (mStatus != null ? " " + mStatus : "") + "}";
+        }
+    }
+
+    /**
+     * Writes the records of a trace into memory. They're moved to a stream with {@link
+     * #drainTo(OutputStream)} so a long session doesn't keep a file open
+     */
+    public static final class Writer {
+
+        private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(4096);
+
+        private final Map<String, Integer> mStrings = new HashMap<String, Integer>();
+
+        private final long mStartNanos = System.nanoTime();
+
+        private long mLastTimeMicros;
+
+        private long mWrittenBytes;
+
+        /**
+         * Creates a Writer. The time of the records starts now
+         */
+        public Writer() {
+            writeInt(MAGIC);
+            mBuffer.write(VERSION);
+        }
+
+        /**
+         * Writes a record without player status
+         *
+         * @param type  The type of the record
+         * @param id    The id of the call
+         * @param code  The code of the event
+         * @param flag  The flag of the event
+         * @param text  The first text or null
+         * @param text2 The second text or null
+         */
+        public synchronized void write(final int type, final int id, final int code,
+                                       final boolean flag, final String text,
+                                       final String text2) {
+            writeHeader(type);
+            writeVarint(id);
+            writeVarint(zigzag(code));
+            mBuffer.write(flag ? 1 : 0);
+            writeString(text);
+            writeString(text2);
+        }
+
+        /**
+         * Writes the status of the player
+         *
+         * @param status The status to write
+         */
+        public synchronized void writeStatus(final PlayerStatus status) {
+            writeHeader(PLAYER_STATUS);
+            mBuffer.write(status.getPlayerState().ordinal());
+            mBuffer.write((status.isFinished() ? 1 : 0) | (status.isMuted() ? 2 : 0));
+            writeString(status.getContentId());
+            writeVarint(zigzag(status.getPositionMillis()));
+            writeVarint(zigzag(status.getDurationMillis()));
+            writeLong(Double.doubleToLongBits(status.getPlaybackRate()));
+            writeLong(Double.doubleToLongBits(status.getVolume()));
+        }
+
+        /**
+         * Moves the records written so far to the given stream
+         *
+         * @param out The stream to write into
+         * @throws IOException In case of error writing the stream
+         */
+        public synchronized void drainTo(final OutputStream out) throws IOException {
+            mBuffer.writeTo(out);
+            mWrittenBytes += mBuffer.size();
+            mBuffer.reset();
+        }
+
+        /**
+         * @return The size of the trace so far
+         */
+        public synchronized long getSizeBytes() {
+            return mWrittenBytes + mBuffer.size();
+        }
+
+        private void writeHeader(final int type) {
+            final long timeMicros = (System.nanoTime() - mStartNanos) / 1000L;
+            mBuffer.write(type);
+            writeVarint(Math.max(0L, timeMicros - mLastTimeMicros));
+            mLastTimeMicros = Math.max(mLastTimeMicros, timeMicros);
+        }
+
+        private void writeString(final String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            if (value.length() > MAX_TABLE_STRING_LENGTH) {
+                writeVarint(INLINE_STRING);
+            } else {
+                final Integer index = mStrings.get(value);
+                if (index != null) {
+                    writeVarint(index);
+                    return;
+                }
+                // A new String has the next index followed by its UTF-8 bytes
+                final int newIndex = mStrings.size() + INLINE_STRING + 1;
+                mStrings.put(value, newIndex);
+                writeVarint(newIndex);
+            }
+            final byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(bytes.length);
+            mBuffer.write(bytes, 0, bytes.length);
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                mBuffer.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            mBuffer.write((int) value);
+        }
+
+        private void writeInt(final int value) {
+            mBuffer.write(value >>> 24);
+            mBuffer.write(value >>> 16);
+            mBuffer.write(value >>> 8);
+            mBuffer.write(value);
+        }
+
+        private void writeLong(final long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        private static long zigzag(final long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    private final List<Event> mEvents;
+
+    private SessionTrace(final List<Event> events) {
+        this.mEvents = Collections.unmodifiableList(events);
+    }
+
+    /**
+     * Reads a trace. A record truncated at the end, like the last one of a session that
+     * has been killed, is ignored
+     *
+     * @param in The stream to read
+     * @return The SessionTrace
+     * @throws IOException In case of error reading the stream or if it's not a trace
+     */
+    public static SessionTrace read(final InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC || data.read() != VERSION) {
+            throw new IOException("Not a session trace");
+        }
+        final List<Event> events = new ArrayList<Event>();
+        final List<String> strings = new ArrayList<String>();
+        final PlayerStatus.PlayerState[] states = PlayerStatus.PlayerState.values();
+        long timeMicros = 0L;
+        try {
+            int type;
+            while ((type = data.read()) >= 0) {
+                timeMicros += readVarint(data);
+                final long timeNanos = timeMicros * 1000L;
+                if (type == PLAYER_STATUS) {
+                    final PlayerStatus.PlayerState state = states[data.readUnsignedByte()];
+                    final int flags = data.readUnsignedByte();
+                    final String contentId = readString(data, strings);
+                    final long position = unzigzag(readVarint(data));
+                    final long duration = unzigzag(readVarint(data));
+                    final double rate = Double.longBitsToDouble(data.readLong());
+                    final double volume = Double.longBitsToDouble(data.readLong());
+                    events.add(new Event(type, timeNanos, 0, 0, false, null, null,
+                            new PlayerStatus(state, (flags & 1) != 0, contentId, position,
+                                    duration, rate, volume, (flags & 2) != 0, timeNanos)));
+                } else {
+                    final int id = (int) readVarint(data);
+                    final int code = (int) unzigzag(readVarint(data));
+                    final boolean flag = data.readUnsignedByte() != 0;
+                    final String text = readString(data, strings);
+                    final String text2 = readString(data, strings);
+                    events.add(new Event(type, timeNanos, id, code, flag, text, text2, null));
+                }
+            }
+        } catch (EOFException e) {
+            // The last record is truncated
+        }
+        return new SessionTrace(events);
+    }
+
+    /**
+     * @return The records of the trace in time order
+     */
+    public List<Event> getEvents() {
+        return mEvents;
+    }
+
+    /**
+     * @return The time of the last record
+     */
+    public long getDurationNanos() {
+        return mEvents.isEmpty() ? 0L : mEvents.get(mEvents.size() - 1).mTimeNanos;
+    }
+
+    private static String readString(final DataInputStream data, final List<String> strings)
+            throws IOException {
+        final int index = (int) readVarint(data);
+        if (index == 0) {
+            return null;
+        }
+        final int tableIndex = index - INLINE_STRING - 1;
+        if (tableIndex >= 0 && tableIndex < strings.size()) {
+            return strings.get(tableIndex);
+        }
+        if (tableIndex > strings.size()) {
+            throw new IOException("Invalid string index " + index);
+        }
+        final byte[] bytes = new byte[(int) readVarint(data)];
+        data.readFully(bytes);
+        final String value = new String(bytes, UTF_8);
+        if (index != INLINE_STRING) {
+            strings.add(value);
+        }
+        return value;
+    }
+
+    private static long readVarint(final DataInputStream data) throws IOException {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = data.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long unzigzag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,93 @@
+package uk.co.massimocarli.friencefencecast.ui;
+
+import android.os.Looper;
+import android.util.Printer;
+
+import uk.co.massimocarli.friencefencecast.metrics.Counter;
+import uk.co.massimocarli.friencefencecast.metrics.LatencyHistogram;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+
+/**
+ * Measures how long the main thread is busy. The Looper logs the start and the end of
+ * every message it dispatches so we record the time between the two. The dispatches that
+ * take longer than a frame are the ones that cause jank. The logging has a cost so the
+ * monitor should be used only while measuring.
+ */
+public class MainThreadMonitor implements Printer {
+
+    /**
+     * The histogram for the time of each message on the main thread
+     */
+    public static final String METRIC_DISPATCH = "ui.main_dispatch";
+
+    /**
+     * The counter of the time the main thread has been busy, in nanoseconds
+     */
+    public static final String METRIC_BUSY_NANOS = "ui.main_busy_nanos";
+
+    /**
+     * The counter of the messages that took longer than a frame
+     */
+    public static final String METRIC_SLOW_DISPATCHES = "ui.main_slow_dispatches";
+
+    /**
+     * The duration of a frame at 60 fps
+     */
+    private static final long FRAME_NANOS = 16666667L;
+
+    private static final String DISPATCH_START = ">>>>> Dispatching";
+
+    private static final String DISPATCH_END = "<<<<< Finished";
+
+    private final LatencyHistogram mDispatch;
+
+    private final Counter mBusyNanos;
+
+    private final Counter mSlowDispatches;
+
+    /**
+     * The start of the current dispatch or 0. It's used only on the main thread
+     */
+    private long mDispatchStartNanos;
+
+    /**
+     * Creates a MainThreadMonitor
+     *
+     * @param metrics The registry for the metrics of the main thread
+     */
+    public MainThreadMonitor(final MetricsRegistry metrics) {
+        this.mDispatch = metrics.histogram(METRIC_DISPATCH);
+        this.mBusyNanos = metrics.counter(METRIC_BUSY_NANOS);
+        this.mSlowDispatches = metrics.counter(METRIC_SLOW_DISPATCHES);
+    }
+
+    /**
+     * Starts the measurement
+     */
+    public void start() {
+        Looper.getMainLooper().setMessageLogging(this);
+    }
+
+    /**
+     * Stops the measurement
+     */
+    public void stop() {
+        Looper.getMainLooper().setMessageLogging(null);
+        mDispatchStartNanos = 0L;
+    }
+
+    @Override
+    public void println(final String x) {
+        if (x.startsWith(DISPATCH_START)) {
+            mDispatchStartNanos = System.nanoTime();
+        } else if (x.startsWith(DISPATCH_END) && mDispatchStartNanos != 0L) {
+            final long duration = System.nanoTime() - mDispatchStartNanos;
+            mDispatchStartNanos = 0L;
+            mDispatch.record(duration);
+            mBusyNanos.add(duration);
+            if (duration > FRAME_NANOS) {
+                mSlowDispatches.increment();
+            }
+        }
+    }
+}
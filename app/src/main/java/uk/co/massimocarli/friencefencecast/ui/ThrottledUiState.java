@@ -0,0 +1,160 @@
+package uk.co.massimocarli.friencefencecast.ui;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes a state to the main thread at most once every given interval. The states
+ * published in the meantime replace each other so the main thread renders only the last
+ * one, however many results arrive together on the background threads.
+ *
+ * @param <S> The type of the state
+ */
+public class ThrottledUiState<S> {
+
+    /**
+     * The interface to implement to render the state on the main thread
+     *
+     * @param <S> The type of the state
+     */
+    public interface Renderer<S> {
+
+        /**
+         * Invoked on the main thread with the last published state
+         *
+         * @param state The state to render
+         */
+        void render(S state);
+    }
+
+    /**
+     * The executor for the main thread
+     */
+    private final Executor mMainExecutor;
+
+    /**
+     * The executor we use to wait for the end of the interval
+     */
+    private final ScheduledExecutorService mScheduler;
+
+    private final long mMinIntervalNanos;
+
+    private final Renderer<S> mRenderer;
+
+    /**
+     * The Runnable that moves the rendering to the main thread
+     */
+    private final Runnable mPostTask = new Runnable() {
+        @Override
+        public void run() {
+            mMainExecutor.execute(mRenderTask);
+        }
+    };
+
+    /**
+     * The Runnable that renders the last state on the main thread
+     */
+    private final Runnable mRenderTask = new Runnable() {
+        @Override
+        public void run() {
+            final S state;
+            synchronized (ThrottledUiState.this) {
+                state = mPendingState;
+                mPendingState = null;
+                mScheduled = false;
+                mLastRenderNanos = System.nanoTime();
+                if (mCancelled || state == null) {
+                    return;
+                }
+                mRenderedCount++;
+            }
+            mRenderer.render(state);
+        }
+    };
+
+    /**
+     * The last published state not rendered yet
+     */
+    private S mPendingState;
+
+    /**
+     * True if a rendering has been requested
+     */
+    private boolean mScheduled;
+
+    private boolean mCancelled;
+
+    private long mLastRenderNanos;
+
+    private long mPublishedCount;
+
+    private long mRenderedCount;
+
+    /**
+     * Creates a ThrottledUiState
+     *
+     * @param mainExecutor      The executor for the main thread
+     * @param scheduler         The executor we use to wait for the end of the interval
+     * @param minIntervalMillis The min time between two renderings
+     * @param renderer          The Renderer for the state
+     */
+    public ThrottledUiState(final Executor mainExecutor, final ScheduledExecutorService scheduler,
+                            final long minIntervalMillis, final Renderer<S> renderer) {
+        this.mMainExecutor = mainExecutor;
+        this.mScheduler = scheduler;
+        this.mMinIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        this.mRenderer = renderer;
+        this.mLastRenderNanos = System.nanoTime() - mMinIntervalNanos;
+    }
+
+    /**
+     * Publishes a new state. It can be invoked from any thread
+     *
+     * @param state The new state
+     */
+    public void publish(final S state) {
+        final long delayNanos;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mPublishedCount++;
+            mPendingState = state;
+            if (mScheduled) {
+                // The state will be rendered with the one already requested
+                return;
+            }
+            mScheduled = true;
+            delayNanos = mLastRenderNanos + mMinIntervalNanos - System.nanoTime();
+        }
+        if (delayNanos <= 0) {
+            mMainExecutor.execute(mRenderTask);
+        } else {
+            mScheduler.schedule(mPostTask, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Drops the pending state and ignores the next ones. It's invoked when the UI is
+     * destroyed
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        mPendingState = null;
+    }
+
+    /**
+     * @return The number of published states
+     */
+    public synchronized long getPublishedCount() {
+        return mPublishedCount;
+    }
+
+    /**
+     * @return The number of states rendered on the main thread
+     */
+    public synchronized long getRenderedCount() {
+        return mRenderedCount;
+    }
+}
@@ -0,0 +1,169 @@
+package uk.co.massimocarli.friencefencecast.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A small harness in the style of JMH for the microbenchmarks of this module. The operation
+ * runs for some warm up iterations, so the JIT compiles it, and then for the measured ones.
+ * Every iteration lasts about the given time. The Result has the throughput of the measured
+ * iterations and the bytes the operation allocates every time, if the JVM can count them.
+ */
+public abstract class MicroBenchmark {
+
+    /**
+     * The number of operations between two reads of the clock
+     */
+    private static final int CHUNK = 1024;
+
+    /**
+     * The result of a benchmark
+     */
+    public static final class Result {
+
+        private final String mName;
+
+        private final double mOpsPerSecond;
+
+        private final double mMinOpsPerSecond;
+
+        private final double mMaxOpsPerSecond;
+
+        private final double mBytesPerOp;
+
+        Result(final String name, final double opsPerSecond, final double minOpsPerSecond,
+               final double maxOpsPerSecond, final double bytesPerOp) {
+            this.mName = name;
+            this.mOpsPerSecond = opsPerSecond;
+            this.mMinOpsPerSecond = minOpsPerSecond;
+            this.mMaxOpsPerSecond = maxOpsPerSecond;
+            this.mBytesPerOp = bytesPerOp;
+        }
+
+        /**
+         * @return The mean number of operations per second of the measured iterations
+         */
+        public double getOpsPerSecond() {
+            return mOpsPerSecond;
+        }
+
+        /**
+         * @return The bytes allocated by an operation or -1 if the JVM doesn't count them
+         */
+        public double getBytesPerOp() {
+            return mBytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-32s %12.0f ops/s [%.0f, %.0f] %10s B/op", mName,
+                    mOpsPerSecond, mMinOpsPerSecond, mMaxOpsPerSecond,
+                    mBytesPerOp < 0 ? "n/a" : String.format("%.1f", mBytesPerOp));
+        }
+    }
+
+    private final String mName;
+
+    private final int mWarmupIterations;
+
+    private final int mIterations;
+
+    private final long mIterationMillis;
+
+    /**
+     * Where the results of the operations go, so the JIT can't remove them
+     */
+    private volatile long mSink;
+
+    /**
+     * Creates a MicroBenchmark
+     *
+     * @param name             The name of the benchmark
+     * @param warmupIterations The number of iterations we don't measure
+     * @param iterations       The number of iterations we measure
+     * @param iterationMillis  The duration of an iteration
+     */
+    protected MicroBenchmark(final String name, final int warmupIterations,
+                             final int iterations, final long iterationMillis) {
+        if (warmupIterations < 0 || iterations < 1 || iterationMillis < 1) {
+            throw new IllegalArgumentException("Invalid iterations");
+        }
+        this.mName = name;
+        this.mWarmupIterations = warmupIterations;
+        this.mIterations = iterations;
+        this.mIterationMillis = iterationMillis;
+    }
+
+    /**
+     * Runs the operation once
+     *
+     * @param invocation The counter of the invocations, so the operation can choose its input
+     * @return A value that depends on the work of the operation
+     */
+    protected abstract long run(int invocation);
+
+    /**
+     * Runs the benchmark
+     *
+     * @return The Result
+     */
+    public Result measure() {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final com.sun.management.ThreadMXBean allocationBean =
+                threadBean instanceof com.sun.management.ThreadMXBean
+                        ? (com.sun.management.ThreadMXBean) threadBean : null;
+        final long threadId = Thread.currentThread().getId();
+        int invocation = 0;
+        for (int i = 0; i < mWarmupIterations; i++) {
+            invocation = iterate(invocation, null);
+        }
+        final long[] ops = new long[1];
+        double totalOps = 0;
+        double totalSeconds = 0;
+        double minOpsPerSecond = Double.MAX_VALUE;
+        double maxOpsPerSecond = 0;
+        long allocatedBytes = 0;
+        for (int i = 0; i < mIterations; i++) {
+            final long allocatedStart = allocationBean != null
+                    ? allocationBean.getThreadAllocatedBytes(threadId) : 0L;
+            final long start = System.nanoTime();
+            invocation = iterate(invocation, ops);
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            if (allocationBean != null) {
+                allocatedBytes += allocationBean.getThreadAllocatedBytes(threadId)
+                        - allocatedStart;
+            }
+            final double opsPerSecond = ops[0] / seconds;
+            minOpsPerSecond = Math.min(minOpsPerSecond, opsPerSecond);
+            maxOpsPerSecond = Math.max(maxOpsPerSecond, opsPerSecond);
+            totalOps += ops[0];
+            totalSeconds += seconds;
+        }
+        return new Result(mName, totalOps / totalSeconds, minOpsPerSecond, maxOpsPerSecond,
+                allocationBean != null ? allocatedBytes / totalOps : -1.0);
+    }
+
+    /**
+     * Runs the operation for the duration of an iteration
+     *
+     * @param invocation The first invocation
+     * @param ops        Where we put the number of operations or null
+     * @return The next invocation
+     */
+    private int iterate(int invocation, final long[] ops) {
+        final long end = System.nanoTime() + mIterationMillis * 1000000L;
+        long count = 0;
+        long sink = 0;
+        do {
+            for (int i = 0; i < CHUNK; i++) {
+                sink += run(invocation++);
+            }
+            count += CHUNK;
+        } while (System.nanoTime() < end);
+        mSink += sink;
+        if (ops != null) {
+            ops[0] = count;
+        }
+        return invocation;
+    }
+}
@@ -0,0 +1,142 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+import uk.co.massimocarli.friencefencecast.bench.MicroBenchmark;
+
+/**
+ * Measures the throughput of the {@link InboundMessageDispatcher} and the bytes it allocates
+ * for every message. The dispatcher runs on the caller thread so we measure the parse and
+ * the dispatch only. The fences use a reusable event and the presences a new one, as the
+ * session does with the high and the low rate types:
+ * <pre>
+ * java uk.co.massimocarli.friencefencecast.channel.DispatchBenchmark [-millis 1000]
+ * </pre>
+ */
+public class DispatchBenchmark {
+
+    /**
+     * The number of different messages of every type. It's a power of 2
+     */
+    private static final int MESSAGES = 256;
+
+    /**
+     * The executor that runs the dispatch on the caller thread
+     */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Where the handlers put what they read
+     */
+    private long mSink;
+
+    private final String[] mFences = new String[MESSAGES];
+
+    private final String[] mPresences = new String[MESSAGES];
+
+    private final String[] mAcks = new String[MESSAGES];
+
+    private final String[] mUnknowns = new String[MESSAGES];
+
+    private final InboundMessageDispatcher mDispatcher;
+
+    /**
+     * Creates a DispatchBenchmark with the dispatcher configured as the session does
+     */
+    public DispatchBenchmark() {
+        for (int i = 0; i < MESSAGES; i++) {
+            mFences[i] = String.format(Locale.US, "{\"type\":\"fence\",\"friendId\":\"friend%d\","
+                            + "\"fenceId\":\"fence%d\",\"transition\":\"%s\",\"lat\":%.6f,"
+                            + "\"lng\":%.6f,\"ts\":%d}", i % 32, i % 8,
+                    i % 2 == 0 ? "enter" : "exit", 51.5 + i * 1e-4, -0.12 - i * 1e-4,
+                    1418000000000L + i * 1000L);
+            mPresences[i] = "{\"type\":\"presence\",\"friendId\":\"friend" + (i % 32)
+                    + "\",\"online\":" + (i % 3 != 0) + ",\"ts\":" + (1418000000000L + i) + "}";
+            mAcks[i] = "{\"type\":\"ack\",\"seq\":" + (1000 + i) + "}";
+            mUnknowns[i] = "{\"type\":\"stats\",\"uptime\":" + i + ",\"load\":[1,2,3]}";
+        }
+        mDispatcher = new InboundMessageDispatcher(DIRECT_EXECUTOR);
+        mDispatcher.register(FenceEvent.TYPE, FenceEvent.FACTORY, true,
+                new InboundMessageDispatcher.EventHandler<FenceEvent>() {
+                    @Override
+                    public void onEvent(final FenceEvent event) {
+                        mSink += event.getTimestamp() + event.getFriendId().length();
+                    }
+                });
+        mDispatcher.register(PresenceEvent.TYPE, PresenceEvent.FACTORY, false,
+                new InboundMessageDispatcher.EventHandler<PresenceEvent>() {
+                    @Override
+                    public void onEvent(final PresenceEvent event) {
+                        mSink += event.isOnline() ? 1 : 2;
+                    }
+                });
+        mDispatcher.register(AckEvent.TYPE, AckEvent.FACTORY, true,
+                new InboundMessageDispatcher.EventHandler<AckEvent>() {
+                    @Override
+                    public void onEvent(final AckEvent event) {
+                        mSink += event.getSeq();
+                    }
+                });
+        mDispatcher.setFallbackHandler(new InboundMessageDispatcher.RawMessageHandler() {
+            @Override
+            public void onMessage(final String message) {
+                mSink += message.length();
+            }
+        });
+    }
+
+    /**
+     * Runs the benchmarks of every type of message and of a mix of them
+     *
+     * @param iterationMillis The duration of an iteration
+     */
+    public void run(final long iterationMillis) {
+        System.out.println(benchmark("dispatch fence (reusable)", mFences, iterationMillis)
+                .measure());
+        System.out.println(benchmark("dispatch presence (new event)", mPresences,
+                iterationMillis).measure());
+        System.out.println(benchmark("dispatch ack", mAcks, iterationMillis).measure());
+        System.out.println(benchmark("dispatch unknown type", mUnknowns, iterationMillis)
+                .measure());
+        final String[] mixed = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            // Mostly fences and acks as in a busy venue
+            final String[] source = i % 8 < 4 ? mFences : i % 8 < 7 ? mAcks : mPresences;
+            mixed[i] = source[i];
+        }
+        System.out.println(benchmark("dispatch mixed", mixed, iterationMillis).measure());
+        System.out.println("dispatched=" + mDispatcher.getDispatchedCount() + " unhandled="
+                + mDispatcher.getUnhandledCount() + " malformed="
+                + mDispatcher.getMalformedCount() + " (sink " + (mSink & 1) + ")");
+    }
+
+    private MicroBenchmark benchmark(final String name, final String[] messages,
+                                     final long iterationMillis) {
+        return new MicroBenchmark(name, 5, 5, iterationMillis) {
+            @Override
+            protected long run(final int invocation) {
+                mDispatcher.dispatch(messages[invocation & (MESSAGES - 1)]);
+                return mSink;
+            }
+        };
+    }
+
+    /**
+     * Runs the benchmarks
+     *
+     * @param args The optional -millis followed by the duration of an iteration
+     */
+    public static void main(final String[] args) {
+        long iterationMillis = 1000L;
+        if (args.length > 1 && "-millis".equals(args[0])) {
+            iterationMillis = Long.parseLong(args[1]);
+        }
+        new DispatchBenchmark().run(iterationMillis);
+    }
+}
@@ -0,0 +1,220 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import uk.co.massimocarli.friencefencecast.metrics.LatencyHistogram;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+
+/**
+ * Measures the {@link OutboundMessageQueue} against a transport that acknowledges every
+ * batch after a fixed delay, as a Receiver on the local network does. A producer enqueues
+ * messages as fast as the queue accepts them and the result has the messages acknowledged
+ * per second and the latency from the enqueue of every message to the ack of its batch.
+ * There are two scenarios: messages without a key, that are all sent, and location updates
+ * of a few friends, that supersede each other:
+ * <pre>
+ * java uk.co.massimocarli.friencefencecast.channel.OutboundQueueBenchmark -seconds 10 -ack 5
+ * </pre>
+ */
+public class OutboundQueueBenchmark {
+
+    /**
+     * The namespace of the channel
+     */
+    private static final String NAMESPACE = "urn:x-cast:uk.co.massimocarli.friendfence";
+
+    /**
+     * The field with the time of the enqueue of a message
+     */
+    private static final String TIME_FIELD = ",\"t\":";
+
+    /**
+     * The number of friends of the scenario with the keys
+     */
+    private static final int FRIENDS = 50;
+
+    /**
+     * The result of a scenario
+     */
+    public static final class Result {
+
+        private final String mName;
+
+        private final long mEnqueued;
+
+        private final long mRejected;
+
+        private final long mAcked;
+
+        private final double mSeconds;
+
+        private final LatencyHistogram mLatency;
+
+        Result(final String name, final long enqueued, final long rejected, final long acked,
+               final double seconds, final LatencyHistogram latency) {
+            this.mName = name;
+            this.mEnqueued = enqueued;
+            this.mRejected = rejected;
+            this.mAcked = acked;
+            this.mSeconds = seconds;
+            this.mLatency = latency;
+        }
+
+        /**
+         * @return The number of messages acknowledged per second
+         */
+        public double getAckedPerSecond() {
+            return mAcked / mSeconds;
+        }
+
+        /**
+         * @return The 99th percentile of the time from the enqueue to the ack
+         */
+        public long getP99LatencyNanos() {
+            return mLatency.getPercentileNanos(99.0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-10s enqueued=%d rejected=%d acked=%d superseded=%d"
+                            + " acked/s=%.0f p50=%.2fms p99=%.2fms max=%.2fms", mName, mEnqueued,
+                    mRejected, mAcked, mEnqueued - mAcked, getAckedPerSecond(),
+                    mLatency.getPercentileNanos(50.0) / 1e6, getP99LatencyNanos() / 1e6,
+                    mLatency.getMaxNanos() / 1e6);
+        }
+    }
+
+    /**
+     * The transport that acknowledges every batch after the given delay
+     */
+    private static final class AckingTransport implements MessageTransport {
+
+        private final ScheduledExecutorService mReceiver;
+
+        private final long mAckMillis;
+
+        private final LatencyHistogram mLatency;
+
+        private final AtomicLong mAcked = new AtomicLong();
+
+        AckingTransport(final ScheduledExecutorService receiver, final long ackMillis,
+                        final LatencyHistogram latency) {
+            this.mReceiver = receiver;
+            this.mAckMillis = ackMillis;
+            this.mLatency = latency;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void sendMessage(final String namespace, final String message,
+                                final SendCallback callback) {
+            mReceiver.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    final List<String> messages = new ArrayList<String>();
+                    MessageEnvelope.unframe(message, messages);
+                    final long now = System.nanoTime();
+                    for (String item : messages) {
+                        final int start = item.lastIndexOf(TIME_FIELD) + TIME_FIELD.length();
+                        mLatency.record(now - Long.parseLong(item.substring(start,
+                                item.length() - 1)));
+                    }
+                    mAcked.addAndGet(messages.size());
+                    callback.onSendResult(true);
+                }
+            }, mAckMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final long mSeconds;
+
+    private final long mAckMillis;
+
+    /**
+     * Creates an OutboundQueueBenchmark
+     *
+     * @param seconds   The duration of a scenario
+     * @param ackMillis The time the Receiver takes to acknowledge a batch
+     */
+    public OutboundQueueBenchmark(final long seconds, final long ackMillis) {
+        this.mSeconds = seconds;
+        this.mAckMillis = ackMillis;
+    }
+
+    /**
+     * Runs a scenario
+     *
+     * @param keyed True if the messages are the location updates of a few friends
+     * @return The Result
+     * @throws InterruptedException If interrupted waiting for the last acks
+     */
+    public Result run(final boolean keyed) throws InterruptedException {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final ScheduledExecutorService receiver = Executors.newSingleThreadScheduledExecutor();
+        final LatencyHistogram latency = new MetricsRegistry().histogram("latency");
+        final AckingTransport transport = new AckingTransport(receiver, mAckMillis, latency);
+        final OutboundMessageQueue queue = new OutboundMessageQueue.Builder(transport,
+                NAMESPACE, scheduler).build();
+        long enqueued = 0;
+        long rejected = 0;
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(mSeconds);
+        while (System.nanoTime() < end) {
+            final int friend = (int) (enqueued % FRIENDS);
+            final String message = "{\"type\":\"location\",\"friendId\":\"friend" + friend
+                    + "\",\"lat\":51.5072,\"lng\":-0.1275" + TIME_FIELD + System.nanoTime()
+                    + "}";
+            if (queue.enqueue(keyed ? "friend" + friend : null, message)) {
+                enqueued++;
+            } else {
+                // The queue is full so we wait for the Receiver
+                rejected++;
+                LockSupport.parkNanos(100000L);
+            }
+        }
+        queue.flush();
+        while (queue.getInFlightCount() > 0 || queue.getPendingCount() > 0) {
+            Thread.sleep(mAckMillis);
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        queue.close();
+        scheduler.shutdown();
+        receiver.shutdown();
+        return new Result(keyed ? "keyed" : "unkeyed", enqueued, rejected,
+                transport.mAcked.get(), seconds, latency);
+    }
+
+    /**
+     * Runs the two scenarios
+     *
+     * @param args The optional -seconds with the duration of a scenario and -ack with the
+     *             time the Receiver takes to acknowledge a batch
+     * @throws Exception In case of error
+     */
+    public static void main(final String[] args) throws Exception {
+        long seconds = 10L;
+        long ackMillis = 5L;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("-seconds".equals(args[i])) {
+                seconds = Long.parseLong(args[i + 1]);
+            } else if ("-ack".equals(args[i])) {
+                ackMillis = Long.parseLong(args[i + 1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        final OutboundQueueBenchmark benchmark = new OutboundQueueBenchmark(seconds, ackMillis);
+        System.out.println(benchmark.run(false));
+        System.out.println(benchmark.run(true));
+    }
+}
@@ -0,0 +1,161 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Receiver side of the {@link PayloadCache}. It keeps the last messages it got into an
+ * LRU and rebuilds the references and the deltas from them. They're the messages listed
+ * into the refs field of the envelope (see {@link MessageEnvelope}). The Receiver tells its size
+ * into the answer to the hello. We use it into the FakeReceiver and the benchmarks and it's
+ * the reference for the implementation of the Receiver application.
+ */
+public class PayloadCacheDecoder {
+
+    /**
+     * The start of the references and of the deltas. The sender always writes the type first
+     */
+    private static final String REF_PREFIX = "{\"type\":\"" + PayloadCache.REF_TYPE + "\"";
+
+    private static final String DELTA_PREFIX = "{\"type\":\"" + PayloadCache.DELTA_TYPE + "\"";
+
+    private final int mMaxEntries;
+
+    /**
+     * The messages by hash, in access order
+     */
+    private final LinkedHashMap<Long, String> mEntries;
+
+    private final JsonScanner mScanner = new JsonScanner();
+
+    /**
+     * The hash of the last message we couldn't rebuild
+     */
+    private String mMissedHash;
+
+    /**
+     * Creates a PayloadCacheDecoder
+     *
+     * @param maxEntries The max number of messages we keep
+     */
+    public PayloadCacheDecoder(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid max entries " + maxEntries);
+        }
+        this.mMaxEntries = maxEntries;
+        this.mEntries = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, String> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return The max number of messages we keep
+     */
+    public int getMaxEntries() {
+        return mMaxEntries;
+    }
+
+    /**
+     * Forgets all the messages
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Returns the message the sender meant. A reference or a delta is rebuilt and the
+     * others are returned as they are. The long messages are kept for the next ones
+     *
+     * @param message The message we got
+     * @param encoded True if the envelope lists the message as a reference or a delta
+     * @return The full message or null if the message refers to one we don't have. In this
+     * case {@link #getMissedHash()} is what the sender has to send again
+     */
+    public synchronized String decode(final String message, final boolean encoded) {
+        mMissedHash = null;
+        if (encoded && message.startsWith(REF_PREFIX)) {
+            return resolveReference(message);
+        } else if (encoded && message.startsWith(DELTA_PREFIX)) {
+            return applyDelta(message);
+        } else if (message.length() >= PayloadCache.MIN_CACHED_LENGTH) {
+            mEntries.put(PayloadCache.hash(message), message);
+        }
+        return message;
+    }
+
+    /**
+     * @return The hash of the message missed by the last {@link #decode(String, boolean)}
+     * or null
+     */
+    public synchronized String getMissedHash() {
+        return mMissedHash;
+    }
+
+    private String resolveReference(final String message) {
+        String hash = null;
+        mScanner.reset(message);
+        while (mScanner.nextField()) {
+            if (mScanner.isField("h")) {
+                hash = mScanner.readString();
+            } else {
+                mScanner.skipValue();
+            }
+        }
+        final String payload = hash != null ? mEntries.get(parseHash(hash)) : null;
+        if (payload == null) {
+            mMissedHash = hash;
+        }
+        return payload;
+    }
+
+    private String applyDelta(final String message) {
+        String hash = null;
+        String baseHash = null;
+        int prefix = 0;
+        int suffix = 0;
+        String delta = null;
+        mScanner.reset(message);
+        while (mScanner.nextField()) {
+            if (mScanner.isField("h")) {
+                hash = mScanner.readString();
+            } else if (mScanner.isField("b")) {
+                baseHash = mScanner.readString();
+            } else if (mScanner.isField("p")) {
+                prefix = (int) mScanner.readLong();
+            } else if (mScanner.isField("s")) {
+                suffix = (int) mScanner.readLong();
+            } else if (mScanner.isField("d")) {
+                delta = mScanner.readString();
+            } else {
+                mScanner.skipValue();
+            }
+        }
+        final String base = baseHash != null ? mEntries.get(parseHash(baseHash)) : null;
+        if (hash == null || delta == null || base == null || prefix < 0 || suffix < 0
+                || prefix + suffix > base.length()) {
+            mMissedHash = hash;
+            return null;
+        }
+        final String payload = base.substring(0, prefix) + delta
+                + base.substring(base.length() - suffix);
+        final long value = PayloadCache.hash(payload);
+        if (!PayloadCache.formatHash(value).equals(hash)) {
+            // The base is not the one of the sender
+            mMissedHash = hash;
+            return null;
+        }
+        mEntries.put(value, payload);
+        return payload;
+    }
+
+    private static long parseHash(final String hash) {
+        try {
+            return Long.parseLong(hash, Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+}
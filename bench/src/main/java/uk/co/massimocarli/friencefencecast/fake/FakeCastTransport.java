@@ -0,0 +1,568 @@
+package uk.co.massimocarli.friencefencecast.fake;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.massimocarli.friencefencecast.media.MediaItem;
+import uk.co.massimocarli.friencefencecast.media.PlayerStatus;
+import uk.co.massimocarli.friencefencecast.media.RemotePlayer;
+import uk.co.massimocarli.friencefencecast.media.Rendition;
+import uk.co.massimocarli.friencefencecast.session.CastTransport;
+import uk.co.massimocarli.friencefencecast.session.ResultListener;
+
+/**
+ * The CastTransport implementation that connects the session to a {@link FakeReceiver}
+ * through a simulated network. Every message, result and status takes the latency of the
+ * {@link LinkConditions}, waits for the previous ones of the same direction when the bandwidth
+ * is limited and can be lost. A lost message, or a lost ack, has no result as it happens
+ * with a real device so the timeouts and the retries of the session are exercised. The
+ * callbacks are delivered on the callback executor. When the transport disconnects it tells
+ * the Receiver about the channels and the player still registered, so the leaks of the
+ * session teardown are counted.
+ */
+public class FakeCastTransport implements CastTransport {
+
+    /**
+     * The commands of the player
+     */
+    static final String COMMAND_LOAD = "load";
+
+    static final String COMMAND_PLAY = "play";
+
+    static final String COMMAND_PAUSE = "pause";
+
+    static final String COMMAND_SEEK = "seek";
+
+    static final String COMMAND_STATUS = "status";
+
+    /**
+     * The error code when the connection fails because of the network
+     */
+    public static final int ERROR_NETWORK = 7;
+
+    /**
+     * The size we use for the acks, the commands and the statuses
+     */
+    private static final int CONTROL_BYTES = 64;
+
+    private final FakeReceiver mReceiver;
+
+    private final LinkConditions mConditions;
+
+    private final ScheduledExecutorService mCallbackExecutor;
+
+    private final Random mRandom;
+
+    /**
+     * The time the two directions of the link are free to send a new message
+     */
+    private long mUplinkFreeNanos;
+
+    private long mDownlinkFreeNanos;
+
+    /**
+     * The listener for the connection events
+     */
+    private ConnectionListener mConnectionListener;
+
+    /**
+     * Increased at every connect and disconnect so the late results are ignored
+     */
+    private int mGeneration;
+
+    private boolean mConnecting;
+
+    private boolean mConnected;
+
+    /**
+     * The namespaces of the registered channels
+     */
+    private final Set<String> mChannels = new HashSet<String>();
+
+    /**
+     * The RemotePlayer of the media channel or null
+     */
+    private FakeRemotePlayer mRemotePlayer;
+
+    private long mSentMessages;
+
+    private long mLostMessages;
+
+    /**
+     * Creates a FakeCastTransport
+     *
+     * @param receiver         The Receiver to connect to
+     * @param conditions       The conditions of the network
+     * @param callbackExecutor The serial executor for the callbacks
+     * @param seed             The seed for the latency and the loss
+     */
+    public FakeCastTransport(final FakeReceiver receiver, final LinkConditions conditions,
+                             final ScheduledExecutorService callbackExecutor, final long seed) {
+        this.mReceiver = receiver;
+        this.mConditions = conditions;
+        this.mCallbackExecutor = callbackExecutor;
+        this.mRandom = new Random(seed);
+    }
+
+    /**
+     * @return The number of messages, commands included, sent to the Receiver
+     */
+    public synchronized long getSentMessages() {
+        return mSentMessages;
+    }
+
+    /**
+     * @return The number of messages lost in both the directions
+     */
+    public synchronized long getLostMessages() {
+        return mLostMessages;
+    }
+
+    @Override
+    public void connect(final ConnectionListener listener) {
+        // A new attempt closes the previous one
+        disconnect();
+        final int generation;
+        final boolean failed;
+        final long delayNanos;
+        synchronized (this) {
+            mConnectionListener = listener;
+            mConnecting = true;
+            generation = ++mGeneration;
+            failed = isLostLocked();
+            // The handshake takes a round trip
+            delayNanos = mConditions.nextLatencyNanos(mRandom)
+                    + mConditions.nextLatencyNanos(mRandom);
+        }
+        mCallbackExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FakeCastTransport.this) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    mConnecting = false;
+                    mConnected = !failed;
+                }
+                if (failed) {
+                    listener.onConnectionFailed(ERROR_NETWORK);
+                } else {
+                    mReceiver.attach(FakeCastTransport.this);
+                    listener.onConnected();
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public synchronized boolean isConnecting() {
+        return mConnecting;
+    }
+
+    @Override
+    public boolean isReady() {
+        return isConnected();
+    }
+
+    @Override
+    public void launchApplication(final String appId, final ResultListener<String> listener) {
+        requestApplication(appId, null, true, listener);
+    }
+
+    @Override
+    public void joinApplication(final String appId, final String sessionId,
+                                final ResultListener<String> listener) {
+        requestApplication(appId, sessionId, false, listener);
+    }
+
+    @Override
+    public void stopApplication(final String sessionId) {
+        final long delayNanos;
+        synchronized (this) {
+            if (!mConnected) {
+                return;
+            }
+            delayNanos = sendLocked(CONTROL_BYTES);
+        }
+        if (delayNanos >= 0) {
+            mReceiver.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mReceiver.stop(FakeCastTransport.this, sessionId);
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void setMessageChannel(final String namespace) throws IOException {
+        if (!mConnected) {
+            throw new IOException("Not connected");
+        }
+        mChannels.add(namespace);
+    }
+
+    @Override
+    public synchronized void removeMessageChannel(final String namespace) throws IOException {
+        mChannels.remove(namespace);
+    }
+
+    @Override
+    public synchronized void attachMediaChannel() throws IOException {
+        if (!mConnected) {
+            throw new IOException("Not connected");
+        }
+        mRemotePlayer = new FakeRemotePlayer();
+    }
+
+    @Override
+    public synchronized void detachMediaChannel() throws IOException {
+        mRemotePlayer = null;
+    }
+
+    @Override
+    public synchronized RemotePlayer getRemotePlayer() {
+        return mRemotePlayer;
+    }
+
+    @Override
+    public void sendMessage(final String namespace, final String message,
+                            final SendCallback callback) {
+        final long delayNanos;
+        final int generation;
+        synchronized (this) {
+            if (!mConnected) {
+                delayNanos = -1L;
+                generation = -1;
+            } else {
+                delayNanos = sendLocked(message.length());
+                generation = mGeneration;
+            }
+        }
+        if (generation < 0) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onSendResult(false);
+                }
+            });
+            return;
+        }
+        if (delayNanos < 0) {
+            // Lost, we never get the result
+            return;
+        }
+        mReceiver.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isGeneration(generation)) {
+                    // The connection has been closed while the message was on the way
+                    mCallbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSendResult(false);
+                        }
+                    });
+                    return;
+                }
+                mReceiver.onMessage(FakeCastTransport.this, namespace, message);
+                deliver(CONTROL_BYTES, new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSendResult(true);
+                    }
+                });
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void disconnect() {
+        final int leakedChannels;
+        final boolean leakedPlayer;
+        synchronized (this) {
+            if (!mConnected && !mConnecting) {
+                return;
+            }
+            leakedChannels = mChannels.size();
+            leakedPlayer = mRemotePlayer != null;
+            closeLocked();
+        }
+        mReceiver.detach(this, leakedChannels, leakedPlayer);
+    }
+
+    /**
+     * Delivers a message of the Receiver if the channel of its namespace is registered
+     *
+     * @param namespace The namespace
+     * @param message   The message
+     */
+    void deliverMessage(final String namespace, final String message) {
+        deliver(message.length(), new Runnable() {
+            @Override
+            public void run() {
+                final ConnectionListener listener;
+                synchronized (FakeCastTransport.this) {
+                    if (!mChannels.contains(namespace)) {
+                        return;
+                    }
+                    listener = mConnectionListener;
+                }
+                listener.onMessageReceived(namespace, message);
+            }
+        });
+    }
+
+    /**
+     * Delivers the status of the player if the media channel is attached
+     *
+     * @param status The status
+     */
+    void deliverStatus(final PlayerStatus status) {
+        deliver(CONTROL_BYTES, new Runnable() {
+            @Override
+            public void run() {
+                final FakeRemotePlayer remotePlayer;
+                synchronized (FakeCastTransport.this) {
+                    remotePlayer = mRemotePlayer;
+                }
+                if (remotePlayer != null) {
+                    remotePlayer.notifyStatus(status);
+                }
+            }
+        });
+    }
+
+    /**
+     * Notifies that the application has been stopped
+     *
+     * @param errorCode The error code
+     */
+    void deliverApplicationDisconnected(final int errorCode) {
+        deliver(CONTROL_BYTES, new Runnable() {
+            @Override
+            public void run() {
+                final ConnectionListener listener;
+                synchronized (FakeCastTransport.this) {
+                    listener = mConnectionListener;
+                }
+                listener.onApplicationDisconnected(errorCode);
+            }
+        });
+    }
+
+    /**
+     * Utility method that launches or joins the application
+     */
+    private void requestApplication(final String appId, final String sessionId,
+                                    final boolean launch, final ResultListener<String> listener) {
+        final long delayNanos;
+        final int generation;
+        synchronized (this) {
+            generation = mConnected ? mGeneration : -1;
+            delayNanos = generation < 0 ? 0L : sendLocked(CONTROL_BYTES);
+        }
+        if (generation < 0) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onResult(false, null);
+                }
+            });
+            return;
+        }
+        if (delayNanos < 0) {
+            return;
+        }
+        mReceiver.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                final String result = launch ? mReceiver.launch(appId)
+                        : mReceiver.join(appId, sessionId);
+                deliver(CONTROL_BYTES, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isGeneration(generation)) {
+                            listener.onResult(result != null, result);
+                        }
+                    }
+                });
+            }
+        }, delayNanos + (launch ? mReceiver.getLaunchMillis() * 1000000L : 0L),
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Utility method that delivers something from the Receiver to the sender
+     *
+     * @param bytes    The size of what we deliver
+     * @param delivery The delivery on the callback executor
+     */
+    private void deliver(final int bytes, final Runnable delivery) {
+        final long delayNanos;
+        final int generation;
+        synchronized (this) {
+            if (!mConnected) {
+                return;
+            }
+            generation = mGeneration;
+            if (isLostLocked()) {
+                return;
+            }
+            delayNanos = reserveLocked(false, bytes);
+        }
+        mCallbackExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (isGeneration(generation)) {
+                    delivery.run();
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param bytes The size of the message
+     * @return The delay of the message to the Receiver or -1 if it's lost
+     */
+    private long sendLocked(final int bytes) {
+        mSentMessages++;
+        if (isLostLocked()) {
+            return -1L;
+        }
+        return reserveLocked(true, bytes);
+    }
+
+    /**
+     * @param uplink True for the direction to the Receiver
+     * @param bytes  The size of the message
+     * @return The time the message takes to arrive
+     */
+    private long reserveLocked(final boolean uplink, final int bytes) {
+        final long now = System.nanoTime();
+        final long free = uplink ? mUplinkFreeNanos : mDownlinkFreeNanos;
+        final long sentNanos = Math.max(now, free) + mConditions.getTransmissionNanos(bytes);
+        if (uplink) {
+            mUplinkFreeNanos = sentNanos;
+        } else {
+            mDownlinkFreeNanos = sentNanos;
+        }
+        return sentNanos - now + mConditions.nextLatencyNanos(mRandom);
+    }
+
+    private boolean isLostLocked() {
+        if (mConditions.getLossRate() > 0.0 && mRandom.nextDouble() < mConditions.getLossRate()) {
+            mLostMessages++;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized boolean isGeneration(final int generation) {
+        return mConnected && generation == mGeneration;
+    }
+
+    private void closeLocked() {
+        mGeneration++;
+        mConnected = false;
+        mConnecting = false;
+        mChannels.clear();
+        mRemotePlayer = null;
+    }
+
+    /**
+     * The RemotePlayer that sends the commands to the player of the Receiver
+     */
+    private class FakeRemotePlayer implements RemotePlayer {
+
+        private volatile StatusListener mStatusListener;
+
+        @Override
+        public void load(final MediaItem item, final boolean autoplay,
+                         final ResultListener<Void> listener) {
+            // The first rendition is the one to load
+            final Rendition rendition = item.getRenditions().get(0);
+            command(COMMAND_LOAD, item.getContentId(),
+                    rendition.isAdaptive() ? 0 : rendition.getBitrateKbps(), 0L,
+                    autoplay ? ResumeState.PLAY : ResumeState.PAUSE, listener);
+        }
+
+        @Override
+        public void play(final ResultListener<Void> listener) {
+            command(COMMAND_PLAY, null, 0, 0L, ResumeState.UNCHANGED, listener);
+        }
+
+        @Override
+        public void pause(final ResultListener<Void> listener) {
+            command(COMMAND_PAUSE, null, 0, 0L, ResumeState.UNCHANGED, listener);
+        }
+
+        @Override
+        public void seek(final long positionMillis, final ResumeState resumeState,
+                         final ResultListener<Void> listener) {
+            command(COMMAND_SEEK, null, 0, positionMillis, resumeState, listener);
+        }
+
+        @Override
+        public void requestStatus(final ResultListener<Void> listener) {
+            command(COMMAND_STATUS, null, 0, 0L, ResumeState.UNCHANGED, listener);
+        }
+
+        @Override
+        public void setStatusListener(final StatusListener statusListener) {
+            mStatusListener = statusListener;
+        }
+
+        void notifyStatus(final PlayerStatus status) {
+            final StatusListener statusListener = mStatusListener;
+            if (statusListener != null) {
+                statusListener.onStatusUpdated(status);
+            }
+        }
+
+        private void command(final String command, final String contentId,
+                             final int bitrateKbps, final long positionMillis, final ResumeState resumeState,
+                             final ResultListener<Void> listener) {
+            final long delayNanos;
+            final int generation;
+            synchronized (FakeCastTransport.this) {
+                generation = mConnected && mRemotePlayer == this ? mGeneration : -1;
+                delayNanos = generation < 0 ? 0L : sendLocked(CONTROL_BYTES);
+            }
+            if (generation < 0) {
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResult(false, null);
+                    }
+                });
+                return;
+            }
+            if (delayNanos < 0) {
+                return;
+            }
+            mReceiver.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    final boolean success = mReceiver.onPlayerCommand(command, contentId,
+                            bitrateKbps, positionMillis, resumeState);
+                    deliver(CONTROL_BYTES, new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onResult(success, null);
+                        }
+                    });
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,1012 @@
+package uk.co.massimocarli.friencefencecast.fake;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.massimocarli.friencefencecast.channel.BinaryLocationCodec;
+import uk.co.massimocarli.friencefencecast.channel.CacheMissEvent;
+import uk.co.massimocarli.friencefencecast.channel.CreditEvent;
+import uk.co.massimocarli.friencefencecast.channel.HelloEvent;
+import uk.co.massimocarli.friencefencecast.channel.JsonScanner;
+import uk.co.massimocarli.friencefencecast.channel.LocationCodec;
+import uk.co.massimocarli.friencefencecast.channel.MessageEnvelope;
+import uk.co.massimocarli.friencefencecast.channel.PayloadCache;
+import uk.co.massimocarli.friencefencecast.channel.PayloadCacheDecoder;
+import uk.co.massimocarli.friencefencecast.channel.PresenceEvent;
+import uk.co.massimocarli.friencefencecast.media.PlayerStatus;
+import uk.co.massimocarli.friencefencecast.media.RemotePlayer;
+
+/**
+ * A Receiver application that runs on a JVM in place of the Cast device, so the session
+ * logic can be load tested without a Chromecast. The senders connect to it with a
+ * {@link FakeCastTransport}. On the custom channel it behaves as the real Receiver: it
+ * unpacks the batches ignoring the ones already received, answers the hello choosing the
+ * encoding, grants the credits for the messages it has processed and can send the presence
+ * of the friends. It rebuilds the references and the deltas of the {@link PayloadCache}
+ * with an LRU for each sender. On the media channel it behaves as the default media Receiver: a load
+ * buffers and then plays until the end and every change of the status is sent to all the
+ * senders with the media channel. With a limited stream throughput a rendition with a
+ * higher bitrate buffers longer and stalls. The messages can be processed at a limited
+ * rate to simulate a slow device.
+ */
+public class FakeReceiver {
+
+    /**
+     * The interface to implement to get notification about the processed messages
+     */
+    public interface Listener {
+
+        /**
+         * Invoked when a custom message has been processed. The hello messages are not
+         * notified
+         *
+         * @param message The message
+         */
+        void onMessageProcessed(String message);
+    }
+
+    /**
+     * The Builder for the FakeReceiver
+     */
+    public static class Builder {
+
+        private final String mAppId;
+
+        private final String mNamespace;
+
+        private final ScheduledExecutorService mScheduler;
+
+        private int mMessagesPerSecond;
+
+        private int mCreditWindow = 32;
+
+        private long mLaunchMillis = 1000L;
+
+        private long mBufferingMillis = 300L;
+
+        private long mMediaDurationMillis = 60000L;
+
+        private int mStreamKbps;
+
+        private long mPresenceIntervalMillis;
+
+        private int mCacheEntries = 128;
+
+        private Listener mListener;
+
+        /**
+         * Creates a Builder for the Receiver
+         *
+         * @param appId     The id of the Receiver application
+         * @param namespace The namespace of the custom channel
+         * @param scheduler The executor for the work of the Receiver
+         */
+        public Builder(final String appId, final String namespace,
+                       final ScheduledExecutorService scheduler) {
+            this.mAppId = appId;
+            this.mNamespace = namespace;
+            this.mScheduler = scheduler;
+        }
+
+        /**
+         * @param messagesPerSecond The max number of custom messages processed in a second
+         *                          or 0 to process them as soon as they arrive
+         * @return The Builder itself
+         */
+        public Builder setMessagesPerSecond(final int messagesPerSecond) {
+            this.mMessagesPerSecond = messagesPerSecond;
+            return this;
+        }
+
+        /**
+         * @param creditWindow The credits granted to a sender after its hello or 0 to not
+         *                     use the credits
+         * @return The Builder itself
+         */
+        public Builder setCreditWindow(final int creditWindow) {
+            this.mCreditWindow = creditWindow;
+            return this;
+        }
+
+        /**
+         * @param launchMillis The time to launch the application
+         * @return The Builder itself
+         */
+        public Builder setLaunchMillis(final long launchMillis) {
+            this.mLaunchMillis = launchMillis;
+            return this;
+        }
+
+        /**
+         * @param bufferingMillis The time the player buffers after a load or a seek
+         * @return The Builder itself
+         */
+        public Builder setBufferingMillis(final long bufferingMillis) {
+            this.mBufferingMillis = bufferingMillis;
+            return this;
+        }
+
+        /**
+         * @param mediaDurationMillis The duration of every media
+         * @return The Builder itself
+         */
+        public Builder setMediaDurationMillis(final long mediaDurationMillis) {
+            this.mMediaDurationMillis = mediaDurationMillis;
+            return this;
+        }
+
+        /**
+         * @param streamKbps The throughput of the media stream or 0 if the player never runs
+         *                   out of data. A rendition with a higher bitrate stalls
+         * @return The Builder itself
+         */
+        public Builder setStreamKbps(final int streamKbps) {
+            this.mStreamKbps = streamKbps;
+            return this;
+        }
+
+        /**
+         * @param presenceIntervalMillis The time between two presence events or 0 to never
+         *                               send them
+         * @return The Builder itself
+         */
+        public Builder setPresenceIntervalMillis(final long presenceIntervalMillis) {
+            this.mPresenceIntervalMillis = presenceIntervalMillis;
+            return this;
+        }
+
+        /**
+         * @param cacheEntries The messages kept for the PayloadCache of each sender or 0 if
+         *                     the Receiver doesn't support it
+         * @return The Builder itself
+         */
+        public Builder setCacheEntries(final int cacheEntries) {
+            this.mCacheEntries = cacheEntries;
+            return this;
+        }
+
+        /**
+         * @param listener The Listener for the processed messages
+         * @return The Builder itself
+         */
+        public Builder setListener(final Listener listener) {
+            this.mListener = listener;
+            return this;
+        }
+
+        /**
+         * @return The FakeReceiver
+         */
+        public FakeReceiver build() {
+            if (mMessagesPerSecond < 0 || mCreditWindow < 0 || mMediaDurationMillis <= 0
+                    || mCacheEntries < 0 || mStreamKbps < 0) {
+                throw new IllegalArgumentException(
+                        "Invalid rate, credits, duration, cache or stream");
+            }
+            return new FakeReceiver(this);
+        }
+    }
+
+    /**
+     * The max number of batch sequence numbers we remember for each sender
+     */
+    private static final int RECENT_SEQ_COUNT = 256;
+
+    /**
+     * The state of a connected sender
+     */
+    private static final class Sender {
+
+        /**
+         * The sequence numbers of the last batches, to ignore the ones sent again
+         */
+        final LinkedHashSet<Long> mRecentSeqs = new LinkedHashSet<Long>();
+
+        /**
+         * True after the hello if we use the credits with this sender
+         */
+        boolean mCreditsEnabled;
+
+        /**
+         * The processed messages whose credits have not been granted again yet
+         */
+        int mUngrantedCredits;
+
+        /**
+         * The credits granted and the messages received since the hello
+         */
+        int mGrantedCredits;
+
+        int mReceivedSinceHello;
+
+        /**
+         * The sequence number of the last batch received or -1
+         */
+        long mLastSeq = -1L;
+
+        /**
+         * The cache of the messages of the sender, if it uses one
+         */
+        PayloadCacheDecoder mDecoder;
+    }
+
+    /**
+     * A message waiting to be processed
+     */
+    private static final class Inbound {
+
+        final FakeCastTransport mTransport;
+
+        final String mMessage;
+
+        /**
+         * True if the envelope lists the message as a reference or a delta
+         */
+        final boolean mEncoded;
+
+        Inbound(final FakeCastTransport transport, final String message,
+                final boolean encoded) {
+            this.mTransport = transport;
+            this.mMessage = message;
+            this.mEncoded = encoded;
+        }
+    }
+
+    private final String mAppId;
+
+    private final String mNamespace;
+
+    private final ScheduledExecutorService mScheduler;
+
+    private final int mMessagesPerSecond;
+
+    private final int mCreditWindow;
+
+    private final long mLaunchMillis;
+
+    private final long mBufferingMillis;
+
+    private final long mMediaDurationMillis;
+
+    private final int mStreamKbps;
+
+    private final long mPresenceIntervalMillis;
+
+    private final int mCacheEntries;
+
+    private final Listener mListener;
+
+    private final JsonScanner mScanner = new JsonScanner();
+
+    /**
+     * The connected senders
+     */
+    private final Map<FakeCastTransport, Sender> mSenders =
+            new LinkedHashMap<FakeCastTransport, Sender>();
+
+    /**
+     * The messages waiting to be processed
+     */
+    private final ArrayDeque<Inbound> mInbox = new ArrayDeque<Inbound>();
+
+    private ScheduledFuture<?> mProcessTask;
+
+    private ScheduledFuture<?> mPresenceTask;
+
+    /**
+     * The session of the running application or null
+     */
+    private String mSessionId;
+
+    private int mSessionCount;
+
+    /**
+     * The status of the player
+     */
+    private PlayerStatus.PlayerState mPlayerState = PlayerStatus.PlayerState.IDLE;
+
+    private String mContentId;
+
+    /**
+     * The bitrate of the loaded content or 0 if adaptive
+     */
+    private int mBitrateKbps;
+
+    private long mPositionMillis;
+
+    private long mPositionTimeNanos;
+
+    private boolean mFinished;
+
+    /**
+     * The end of the buffering or of the media
+     */
+    private ScheduledFuture<?> mPlayerTask;
+
+    /**
+     * The counters of the messages
+     */
+    private long mReceivedMessages;
+
+    private long mDuplicateMessages;
+
+    private long mProcessedMessages;
+
+    private int mMaxInboxSize;
+
+    private long mPresenceCount;
+
+    private long mCacheMisses;
+
+    /**
+     * The times the player ran out of data
+     */
+    private long mStallCount;
+
+    /**
+     * The channels and the media channels still registered when a sender disconnected
+     */
+    private int mLeakedChannels;
+
+    private int mLeakedPlayers;
+
+    private FakeReceiver(final Builder builder) {
+        this.mAppId = builder.mAppId;
+        this.mNamespace = builder.mNamespace;
+        this.mScheduler = builder.mScheduler;
+        this.mMessagesPerSecond = builder.mMessagesPerSecond;
+        this.mCreditWindow = builder.mCreditWindow;
+        this.mLaunchMillis = builder.mLaunchMillis;
+        this.mBufferingMillis = builder.mBufferingMillis;
+        this.mMediaDurationMillis = builder.mMediaDurationMillis;
+        this.mStreamKbps = builder.mStreamKbps;
+        this.mPresenceIntervalMillis = builder.mPresenceIntervalMillis;
+        this.mCacheEntries = builder.mCacheEntries;
+        this.mListener = builder.mListener;
+    }
+
+    /**
+     * @return The executor for the work of the Receiver
+     */
+    ScheduledExecutorService getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * @return The time to launch the application
+     */
+    long getLaunchMillis() {
+        return mLaunchMillis;
+    }
+
+    /**
+     * @return The number of connected senders
+     */
+    public synchronized int getConnectionCount() {
+        return mSenders.size();
+    }
+
+    /**
+     * @return The session of the running application or null
+     */
+    public synchronized String getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * @return The number of custom messages received, the ones sent again excluded
+     */
+    public synchronized long getReceivedMessages() {
+        return mReceivedMessages;
+    }
+
+    /**
+     * @return The number of custom messages ignored because already received
+     */
+    public synchronized long getDuplicateMessages() {
+        return mDuplicateMessages;
+    }
+
+    /**
+     * @return The number of custom messages processed
+     */
+    public synchronized long getProcessedMessages() {
+        return mProcessedMessages;
+    }
+
+    /**
+     * @return The number of messages waiting to be processed
+     */
+    public synchronized int getInboxSize() {
+        return mInbox.size();
+    }
+
+    /**
+     * @return The max number of messages that waited to be processed at the same time
+     */
+    public synchronized int getMaxInboxSize() {
+        return mMaxInboxSize;
+    }
+
+    /**
+     * @return The number of presence events sent
+     */
+    public synchronized long getPresenceCount() {
+        return mPresenceCount;
+    }
+
+    /**
+     * @return The number of references and deltas we couldn't rebuild
+     */
+    public synchronized long getCacheMisses() {
+        return mCacheMisses;
+    }
+
+    /**
+     * @return The credits the connected senders should still have, as told in the last
+     * grants: the ones granted less the messages received since the hello
+     */
+    public synchronized int getAvailableCredits() {
+        int available = 0;
+        for (Sender sender : mSenders.values()) {
+            if (sender.mCreditsEnabled) {
+                available += sender.mGrantedCredits - sender.mReceivedSinceHello;
+            }
+        }
+        return available;
+    }
+
+    /**
+     * @return The number of channels still registered when their sender disconnected
+     */
+    public synchronized int getLeakedChannels() {
+        return mLeakedChannels;
+    }
+
+    /**
+     * @return The number of media channels, or status listeners, still registered when
+     * their sender disconnected
+     */
+    public synchronized int getLeakedPlayers() {
+        return mLeakedPlayers;
+    }
+
+    /**
+     * @return The times the player ran out of data
+     */
+    public synchronized long getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * @return The current status of the player
+     */
+    public synchronized PlayerStatus getPlayerStatus() {
+        return createStatusLocked();
+    }
+
+    /**
+     * Stops the application and the timers of the Receiver
+     */
+    public void shutdown() {
+        final List<FakeCastTransport> senders;
+        synchronized (this) {
+            senders = stopApplicationLocked();
+            cancelTask(mProcessTask);
+            mProcessTask = null;
+            mInbox.clear();
+        }
+        for (FakeCastTransport sender : senders) {
+            sender.deliverApplicationDisconnected(0);
+        }
+    }
+
+    synchronized void attach(final FakeCastTransport transport) {
+        mSenders.put(transport, new Sender());
+    }
+
+    synchronized void detach(final FakeCastTransport transport, final int leakedChannels,
+                             final boolean leakedPlayer) {
+        if (mSenders.remove(transport) != null) {
+            mLeakedChannels += leakedChannels;
+            if (leakedPlayer) {
+                mLeakedPlayers++;
+            }
+        }
+    }
+
+    /**
+     * Launches the application, or returns the running one
+     *
+     * @param appId The id of the application
+     * @return The session id or null if the application is not this one
+     */
+    synchronized String launch(final String appId) {
+        if (!mAppId.equals(appId)) {
+            return null;
+        }
+        if (mSessionId == null) {
+            mSessionId = "fake-" + ++mSessionCount;
+            startPresenceLocked();
+        }
+        return mSessionId;
+    }
+
+    /**
+     * @param appId     The id of the application
+     * @param sessionId The session to join or null for any
+     * @return The session id if it's running or null
+     */
+    synchronized String join(final String appId, final String sessionId) {
+        if (mSessionId != null && mAppId.equals(appId)
+                && (sessionId == null || sessionId.equals(mSessionId))) {
+            return mSessionId;
+        }
+        return null;
+    }
+
+    /**
+     * Stops the application if it's the given session. The other senders are notified
+     *
+     * @param transport The sender that stops it
+     * @param sessionId The session to stop
+     */
+    void stop(final FakeCastTransport transport, final String sessionId) {
+        final List<FakeCastTransport> senders;
+        synchronized (this) {
+            if (mSessionId == null || !mSessionId.equals(sessionId)) {
+                return;
+            }
+            senders = stopApplicationLocked();
+        }
+        for (FakeCastTransport sender : senders) {
+            if (sender != transport) {
+                sender.deliverApplicationDisconnected(0);
+            }
+        }
+    }
+
+    /**
+     * Receives a batch of custom messages, or a single message, from a sender
+     *
+     * @param transport The sender
+     * @param namespace The namespace of the channel
+     * @param envelope  The batch
+     */
+    void onMessage(final FakeCastTransport transport, final String namespace,
+                   final String envelope) {
+        if (!mNamespace.equals(namespace)) {
+            return;
+        }
+        final List<String> messages = new ArrayList<String>();
+        final List<Integer> refIndexes = new ArrayList<Integer>();
+        long seq;
+        try {
+            seq = MessageEnvelope.unframe(envelope, messages, refIndexes);
+        } catch (IllegalArgumentException e) {
+            // A message out of a batch
+            messages.clear();
+            refIndexes.clear();
+            messages.add(envelope);
+            seq = -1L;
+        }
+        synchronized (this) {
+            final Sender sender = mSenders.get(transport);
+            if (sender == null || mSessionId == null) {
+                return;
+            }
+            if (seq >= 0 && !sender.mRecentSeqs.add(seq)) {
+                mDuplicateMessages += messages.size();
+                return;
+            }
+            if (sender.mRecentSeqs.size() > RECENT_SEQ_COUNT) {
+                final Iterator<Long> iterator = sender.mRecentSeqs.iterator();
+                iterator.next();
+                iterator.remove();
+            }
+            mReceivedMessages += messages.size();
+            sender.mReceivedSinceHello += messages.size();
+            sender.mLastSeq = Math.max(sender.mLastSeq, seq);
+            for (int i = 0; i < messages.size(); i++) {
+                mInbox.add(new Inbound(transport, messages.get(i), refIndexes.contains(i)));
+            }
+            mMaxInboxSize = Math.max(mMaxInboxSize, mInbox.size());
+            if (mMessagesPerSecond > 0) {
+                scheduleProcessingLocked();
+                return;
+            }
+        }
+        while (processNext()) {
+            // We process them all
+        }
+    }
+
+    /**
+     * Executes a command of the player
+     *
+     * @param command     The command
+     * @param contentId   The content to load for the load command
+     * @param bitrateKbps The bitrate of the content to load or 0 if adaptive
+     * @param positionMillis The position for the seek command
+     * @param resumeState The state after the seek or after the load
+     * @return True if the command succeeded
+     */
+    boolean onPlayerCommand(final String command, final String contentId, final int bitrateKbps,
+                            final long positionMillis, final RemotePlayer.ResumeState resumeState) {
+        synchronized (this) {
+            if (mSessionId == null) {
+                return false;
+            }
+            if (FakeCastTransport.COMMAND_LOAD.equals(command)) {
+                mContentId = contentId;
+                mBitrateKbps = bitrateKbps;
+                mFinished = false;
+                startBufferingLocked(0L, resumeState);
+            } else if (FakeCastTransport.COMMAND_PLAY.equals(command)) {
+                if (mContentId == null || mPlayerState == PlayerStatus.PlayerState.IDLE) {
+                    return false;
+                }
+                if (mPlayerState == PlayerStatus.PlayerState.PAUSED) {
+                    setPlayingLocked(getPositionLocked());
+                }
+            } else if (FakeCastTransport.COMMAND_PAUSE.equals(command)) {
+                if (mContentId == null || mPlayerState == PlayerStatus.PlayerState.IDLE) {
+                    return false;
+                }
+                if (mPlayerState == PlayerStatus.PlayerState.PLAYING) {
+                    cancelTask(mPlayerTask);
+                    mPositionMillis = getPositionLocked();
+                    mPositionTimeNanos = System.nanoTime();
+                    mPlayerState = PlayerStatus.PlayerState.PAUSED;
+                }
+            } else if (FakeCastTransport.COMMAND_SEEK.equals(command)) {
+                if (mContentId == null || mPlayerState == PlayerStatus.PlayerState.IDLE) {
+                    return false;
+                }
+                RemotePlayer.ResumeState resume = resumeState;
+                if (resume == RemotePlayer.ResumeState.UNCHANGED) {
+                    resume = mPlayerState == PlayerStatus.PlayerState.PAUSED
+                            ? RemotePlayer.ResumeState.PAUSE : RemotePlayer.ResumeState.PLAY;
+                }
+                startBufferingLocked(Math.max(0L, Math.min(positionMillis,
+                        mMediaDurationMillis)), resume);
+            }
+        }
+        // Every command sends the status, the status request included
+        broadcastStatus();
+        return true;
+    }
+
+    /**
+     * Processes the next message of the inbox
+     *
+     * @return True if a message has been processed
+     */
+    private boolean processNext() {
+        final Inbound inbound;
+        String message = null;
+        String reply = null;
+        String grant = null;
+        synchronized (this) {
+            inbound = mInbox.poll();
+            if (inbound == null) {
+                return false;
+            }
+            final Sender sender = mSenders.get(inbound.mTransport);
+            if (HelloEvent.TYPE.equals(readType(inbound.mMessage))) {
+                reply = createHelloReply(sender, inbound.mMessage);
+                if (sender != null && mCreditWindow > 0) {
+                    sender.mCreditsEnabled = true;
+                    sender.mUngrantedCredits = 0;
+                    sender.mGrantedCredits = 0;
+                    // The messages after the hello use the new credits
+                    sender.mReceivedSinceHello = 0;
+                    for (Inbound pending : mInbox) {
+                        if (pending.mTransport == inbound.mTransport) {
+                            sender.mReceivedSinceHello++;
+                        }
+                    }
+                    grant = createGrantLocked(sender, mCreditWindow);
+                }
+            } else {
+                message = sender != null && sender.mDecoder != null
+                        ? sender.mDecoder.decode(inbound.mMessage, inbound.mEncoded)
+                        : inbound.mMessage;
+                if (message != null) {
+                    mProcessedMessages++;
+                } else {
+                    // The sender has to send it again in full
+                    mCacheMisses++;
+                    reply = "{\"type\":\"" + CacheMissEvent.TYPE + "\",\"h\":\""
+                            + sender.mDecoder.getMissedHash() + "\"}";
+                }
+                if (sender != null && sender.mCreditsEnabled
+                        && ++sender.mUngrantedCredits >= Math.max(1, mCreditWindow / 4)) {
+                    grant = createGrantLocked(sender, sender.mUngrantedCredits);
+                    sender.mUngrantedCredits = 0;
+                }
+            }
+        }
+        if (reply != null) {
+            inbound.mTransport.deliverMessage(mNamespace, reply);
+        }
+        if (grant != null) {
+            inbound.mTransport.deliverMessage(mNamespace, grant);
+        }
+        if (message != null && mListener != null) {
+            mListener.onMessageProcessed(message);
+        }
+        return true;
+    }
+
+    /**
+     * Grants the given credits to a sender. The grant tells the last batch we got and the
+     * credits the sender should still have, so it can recover from a lost ack. They are
+     * negative if the sender sent more messages than the window before the first grant
+     *
+     * @param sender  The state of the sender
+     * @param credits The credits to grant
+     * @return The credit message
+     */
+    private String createGrantLocked(final Sender sender, final int credits) {
+        sender.mGrantedCredits += credits;
+        return "{\"type\":\"" + CreditEvent.TYPE + "\",\"credits\":" + credits
+                + ",\"seq\":" + sender.mLastSeq + ",\"available\":"
+                + (sender.mGrantedCredits - sender.mReceivedSinceHello) + "}";
+    }
+
+    private void scheduleProcessingLocked() {
+        if (mProcessTask != null || mInbox.isEmpty()) {
+            return;
+        }
+        mProcessTask = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FakeReceiver.this) {
+                    mProcessTask = null;
+                }
+                processNext();
+                synchronized (FakeReceiver.this) {
+                    scheduleProcessingLocked();
+                }
+            }
+        }, 1000000000L / mMessagesPerSecond, TimeUnit.NANOSECONDS);
+    }
+
+    private String readType(final String message) {
+        try {
+            mScanner.reset(message);
+            while (mScanner.nextField()) {
+                if (mScanner.isField("type")) {
+                    return mScanner.readString();
+                }
+                mScanner.skipValue();
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a JSON object, the binary locations for instance
+        }
+        return null;
+    }
+
+    /**
+     * @param sender The state of the sender or null
+     * @param hello  The hello of the sender
+     * @return The answer with the binary encoding and the cache if the sender supports them
+     */
+    private String createHelloReply(final Sender sender, final String hello) {
+        String encoding = null;
+        boolean cache = false;
+        try {
+            mScanner.reset(hello);
+            while (mScanner.nextField()) {
+                if (mScanner.isField("encodings")) {
+                    mScanner.enterArray();
+                    while (mScanner.nextElement()) {
+                        final String candidate = mScanner.readString();
+                        if (encoding == null || BinaryLocationCodec.NAME.equals(candidate)) {
+                            encoding = candidate;
+                        }
+                    }
+                } else if (mScanner.isField("cache")) {
+                    cache = mScanner.readLong() > 0;
+                } else {
+                    mScanner.skipValue();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // We answer with no encoding so the sender keeps the fallback one
+        }
+        final StringBuilder builder = new StringBuilder(64);
+        builder.append("{\"type\":\"").append(HelloEvent.TYPE).append("\",\"v\":")
+                .append(LocationCodec.SCHEMA_VERSION).append(",\"encoding\":");
+        MessageEnvelope.appendQuoted(builder, encoding != null ? encoding : "");
+        if (sender != null) {
+            // A new hello means the sender has forgotten what it sent
+            sender.mDecoder = cache && mCacheEntries > 0
+                    ? new PayloadCacheDecoder(mCacheEntries) : null;
+            if (sender.mDecoder != null) {
+                builder.append(",\"cache\":").append(mCacheEntries);
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    private void startPresenceLocked() {
+        if (mPresenceIntervalMillis <= 0 || mPresenceTask != null) {
+            return;
+        }
+        mPresenceTask = mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                final List<FakeCastTransport> senders;
+                final long count;
+                synchronized (FakeReceiver.this) {
+                    senders = new ArrayList<FakeCastTransport>(mSenders.keySet());
+                    count = ++mPresenceCount;
+                }
+                final String presence = "{\"type\":\"" + PresenceEvent.TYPE
+                        + "\",\"friendId\":\"f" + count % 16 + "\",\"online\":"
+                        + (count % 2 == 0) + ",\"ts\":" + System.currentTimeMillis() + "}";
+                for (FakeCastTransport sender : senders) {
+                    sender.deliverMessage(mNamespace, presence);
+                }
+            }
+        }, mPresenceIntervalMillis, mPresenceIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the application, the presence and the player
+     *
+     * @return The senders to notify
+     */
+    private List<FakeCastTransport> stopApplicationLocked() {
+        final List<FakeCastTransport> senders = new ArrayList<FakeCastTransport>(
+                mSenders.keySet());
+        if (mSessionId == null) {
+            return new ArrayList<FakeCastTransport>();
+        }
+        mSessionId = null;
+        cancelTask(mPresenceTask);
+        mPresenceTask = null;
+        cancelTask(mPlayerTask);
+        mPlayerTask = null;
+        mPlayerState = PlayerStatus.PlayerState.IDLE;
+        mContentId = null;
+        mPositionMillis = 0L;
+        mFinished = false;
+        return senders;
+    }
+
+    private void startBufferingLocked(final long positionMillis,
+                                      final RemotePlayer.ResumeState resumeState) {
+        cancelTask(mPlayerTask);
+        mPlayerState = PlayerStatus.PlayerState.BUFFERING;
+        mPositionMillis = positionMillis;
+        mPositionTimeNanos = System.nanoTime();
+        mPlayerTask = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FakeReceiver.this) {
+                    mPlayerTask = null;
+                    if (mPlayerState != PlayerStatus.PlayerState.BUFFERING) {
+                        return;
+                    }
+                    if (resumeState == RemotePlayer.ResumeState.PAUSE) {
+                        mPlayerState = PlayerStatus.PlayerState.PAUSED;
+                        mPositionTimeNanos = System.nanoTime();
+                    } else {
+                        setPlayingLocked(positionMillis);
+                    }
+                }
+                broadcastStatus();
+            }
+        }, getBufferingMillisLocked(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The time to fill the buffer with the current content
+     */
+    private long getBufferingMillisLocked() {
+        if (mStreamKbps == 0 || mBitrateKbps == 0) {
+            return mBufferingMillis;
+        }
+        return mBufferingMillis * mBitrateKbps / mStreamKbps;
+    }
+
+    /**
+     * @return The time the buffer lasts while playing or -1 if the stream keeps up
+     */
+    private long getPlayableMillisLocked() {
+        if (mStreamKbps == 0 || mBitrateKbps <= mStreamKbps) {
+            return -1L;
+        }
+        return mBufferingMillis * mBitrateKbps / (mBitrateKbps - mStreamKbps);
+    }
+
+    private void setPlayingLocked(final long positionMillis) {
+        mPlayerState = PlayerStatus.PlayerState.PLAYING;
+        mPositionMillis = positionMillis;
+        mPositionTimeNanos = System.nanoTime();
+        final long remainingMillis = Math.max(0L, mMediaDurationMillis - positionMillis);
+        final long playableMillis = getPlayableMillisLocked();
+        if (playableMillis >= 0 && playableMillis < remainingMillis) {
+            // The stream is slower than the media so the buffer runs out
+            mPlayerTask = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (FakeReceiver.this) {
+                        mPlayerTask = null;
+                        if (mPlayerState != PlayerStatus.PlayerState.PLAYING) {
+                            return;
+                        }
+                        mStallCount++;
+                        startBufferingLocked(positionMillis + playableMillis,
+                                RemotePlayer.ResumeState.PLAY);
+                    }
+                    broadcastStatus();
+                }
+            }, playableMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        mPlayerTask = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FakeReceiver.this) {
+                    mPlayerTask = null;
+                    if (mPlayerState != PlayerStatus.PlayerState.PLAYING) {
+                        return;
+                    }
+                    // The media is finished
+                    mPlayerState = PlayerStatus.PlayerState.IDLE;
+                    mPositionMillis = mMediaDurationMillis;
+                    mFinished = true;
+                }
+                broadcastStatus();
+            }
+        }, remainingMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private long getPositionLocked() {
+        if (mPlayerState != PlayerStatus.PlayerState.PLAYING) {
+            return mPositionMillis;
+        }
+        return Math.min(mMediaDurationMillis, mPositionMillis
+                + (System.nanoTime() - mPositionTimeNanos) / 1000000L);
+    }
+
+    private PlayerStatus createStatusLocked() {
+        return new PlayerStatus(mPlayerState, mFinished, mContentId, getPositionLocked(),
+                mContentId != null ? mMediaDurationMillis : -1L,
+                mPlayerState == PlayerStatus.PlayerState.PLAYING ? 1.0 : 0.0, 1.0, false,
+                System.nanoTime());
+    }
+
+    /**
+     * Sends the status of the player to all the senders with the media channel
+     */
+    private void broadcastStatus() {
+        final PlayerStatus status;
+        final List<FakeCastTransport> senders;
+        synchronized (this) {
+            status = createStatusLocked();
+            senders = new ArrayList<FakeCastTransport>(mSenders.keySet());
+        }
+        for (FakeCastTransport sender : senders) {
+            sender.deliverStatus(status);
+        }
+    }
+
+    private static void cancelTask(final ScheduledFuture<?> task) {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+}
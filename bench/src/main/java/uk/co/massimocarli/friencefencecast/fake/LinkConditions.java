@@ -0,0 +1,96 @@
+package uk.co.massimocarli.friencefencecast.fake;
+
+import java.util.Random;
+
+/**
+ * The conditions of the network between the sender and the {@link FakeReceiver}: the one
+ * way latency with its jitter, the probability a message is lost and the bandwidth. The
+ * messages of a direction share the bandwidth so they wait for the previous ones.
+ */
+public final class LinkConditions {
+
+    /**
+     * A link with no latency, no loss and no bandwidth limit
+     */
+    public static final LinkConditions IDEAL = new LinkConditions(0L, 0L, 0.0, 0);
+
+    private final long mLatencyMillis;
+
+    private final long mJitterMillis;
+
+    private final double mLossRate;
+
+    private final int mBytesPerSecond;
+
+    /**
+     * Creates a LinkConditions
+     *
+     * @param latencyMillis  The min one way latency
+     * @param jitterMillis   The max random time added to the latency
+     * @param lossRate       The probability, from 0 to 1, a message is lost
+     * @param bytesPerSecond The bandwidth of each direction or 0 if unlimited
+     */
+    public LinkConditions(final long latencyMillis, final long jitterMillis,
+                          final double lossRate, final int bytesPerSecond) {
+        if (latencyMillis < 0 || jitterMillis < 0 || lossRate < 0 || lossRate > 1
+                || bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid link conditions");
+        }
+        this.mLatencyMillis = latencyMillis;
+        this.mJitterMillis = jitterMillis;
+        this.mLossRate = lossRate;
+        this.mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @return The min one way latency
+     */
+    public long getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    /**
+     * @return The max random time added to the latency
+     */
+    public long getJitterMillis() {
+        return mJitterMillis;
+    }
+
+    /**
+     * @return The probability a message is lost
+     */
+    public double getLossRate() {
+        return mLossRate;
+    }
+
+    /**
+     * @return The bandwidth of each direction or 0 if unlimited
+     */
+    public int getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * @param random The source of the randomness
+     * @return The one way latency of a message in nanoseconds
+     */
+    long nextLatencyNanos(final Random random) {
+        final long jitter = mJitterMillis > 0 ? (long) (random.nextDouble() * mJitterMillis) : 0L;
+        return (mLatencyMillis + jitter) * 1000000L;
+    }
+
+    /**
+     * @param bytes The size of a message
+     * @return The time the message keeps the link busy in nanoseconds
+     */
+    long getTransmissionNanos(final int bytes) {
+        return mBytesPerSecond > 0 ? bytes * 1000000000L / mBytesPerSecond : 0L;
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + mLatencyMillis + "ms jitter=" + mJitterMillis + "ms loss="
+                + mLossRate + " bandwidth=" + (mBytesPerSecond > 0 ? mBytesPerSecond + "B/s"
+                : "unlimited");
+    }
+}
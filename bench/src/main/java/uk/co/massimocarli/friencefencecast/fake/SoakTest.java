@@ -0,0 +1,585 @@
+package uk.co.massimocarli.friencefencecast.fake;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.massimocarli.friencefencecast.channel.InboundMessageDispatcher;
+import uk.co.massimocarli.friencefencecast.channel.JsonScanner;
+import uk.co.massimocarli.friencefencecast.media.MediaItem;
+import uk.co.massimocarli.friencefencecast.media.MediaQueue;
+import uk.co.massimocarli.friencefencecast.metrics.LatencyHistogram;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+import uk.co.massimocarli.friencefencecast.resilience.RetryPolicy;
+import uk.co.massimocarli.friencefencecast.session.CastSessionEngine;
+import uk.co.massimocarli.friencefencecast.session.MemorySessionStore;
+
+/**
+ * Runs the {@link CastSessionEngine} against a {@link FakeReceiver} for a long time to find
+ * what only shows up after hours of use. There are two scenarios:
+ * <ul>
+ * <li>traffic: a single session sends messages at a constant rate and plays the media. For
+ * every interval it prints the latency from the send to the processing on the Receiver, the
+ * heap, the threads and the pending timers, so a drift is visible</li>
+ * <li>cycles: the session is started and closed many times, with a stop or a disconnect.
+ * After each one the teardown must have removed the channels and the player and closed the
+ * connection, and the heap, the threads and the timers must not grow</li>
+ * </ul>
+ * It runs on any JVM:
+ * <pre>
+ * java uk.co.massimocarli.friencefencecast.fake.SoakTest -minutes 120 -latency 20 -loss 0.01
+ * </pre>
+ */
+public class SoakTest {
+
+    /**
+     * The id of the fake application, route and namespace
+     */
+    private static final String APP_ID = "FAKE0001";
+
+    private static final String ROUTE_ID = "fake";
+
+    private static final String NAMESPACE = "urn:x-cast:uk.co.massimocarli.friendfence";
+
+    /**
+     * The type of the messages of the test
+     */
+    private static final String SOAK_MESSAGE_TYPE = "soak";
+
+    /**
+     * The number of media we play in turn
+     */
+    private static final int MEDIA_COUNT = 3;
+
+    /**
+     * The time between two media loads in the traffic scenario
+     */
+    private static final long MEDIA_PERIOD_MILLIS = 20000L;
+
+    /**
+     * The messages sent in each cycle
+     */
+    private static final int CYCLE_MESSAGES = 20;
+
+    /**
+     * The longest time for a session to start or to close
+     */
+    private static final long STATE_TIMEOUT_MILLIS = 30000L;
+
+    /**
+     * The cycles before the first sample, to skip the warm up of the JVM
+     */
+    private static final int WARMUP_CYCLES = 5;
+
+    /**
+     * The result of the traffic scenario
+     */
+    public static final class TrafficResult {
+
+        final List<String> mIntervals = new ArrayList<String>();
+
+        long mSentMessages;
+
+        long mProcessedMessages;
+
+        final List<Long> mP99Nanos = new ArrayList<Long>();
+
+        long mFirstHeapBytes = -1L;
+
+        long mLastHeapBytes;
+
+        int mFirstThreads = -1;
+
+        int mLastThreads;
+
+        int mMaxInboxSize;
+
+        /**
+         * @return The mean 99th percentile of the latency in the first quarter of the
+         * intervals
+         */
+        public long getFirstP99Nanos() {
+            return getMeanP99Nanos(0, Math.max(1, mP99Nanos.size() / 4));
+        }
+
+        /**
+         * @return The mean 99th percentile of the latency in the last quarter of the
+         * intervals
+         */
+        public long getLastP99Nanos() {
+            return getMeanP99Nanos(mP99Nanos.size() - Math.max(1, mP99Nanos.size() / 4),
+                    mP99Nanos.size());
+        }
+
+        /**
+         * @return The ratio between the latency of the last quarter of the intervals and
+         * the one of the first. A single interval is not enough because a lost message
+         * waits for its timeout
+         */
+        public double getLatencyDrift() {
+            final long firstNanos = getFirstP99Nanos();
+            return firstNanos > 0 ? (double) getLastP99Nanos() / firstNanos : 0.0;
+        }
+
+        private long getMeanP99Nanos(final int from, final int to) {
+            if (from < 0 || from >= to) {
+                return 0L;
+            }
+            long totalNanos = 0L;
+            for (int i = from; i < to; i++) {
+                totalNanos += mP99Nanos.get(i);
+            }
+            return totalNanos / (to - from);
+        }
+
+        /**
+         * @return The growth of the used heap from the first interval to the last
+         */
+        public long getHeapGrowthBytes() {
+            return mLastHeapBytes - mFirstHeapBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "sent=" + mSentMessages
+                    + " processed=" + mProcessedMessages
+                    + " p99 first=" + getFirstP99Nanos() / 1000000L + "ms"
+                    + " last=" + getLastP99Nanos() / 1000000L + "ms"
+                    + " drift=" + String.format("%.2f", getLatencyDrift())
+                    + " heap growth=" + getHeapGrowthBytes() / 1024 + "KB"
+                    + " threads=" + mFirstThreads + "->" + mLastThreads
+                    + " max inbox=" + mMaxInboxSize;
+        }
+    }
+
+    /**
+     * The result of the cycles scenario
+     */
+    public static final class CycleResult {
+
+        int mCycles;
+
+        int mFailedCycles;
+
+        int mLeakedChannels;
+
+        int mLeakedPlayers;
+
+        int mOpenConnections;
+
+        long mSelectToRunningP99Nanos;
+
+        long mFirstHeapBytes = -1L;
+
+        long mLastHeapBytes;
+
+        int mFirstThreads = -1;
+
+        int mLastThreads;
+
+        int mFirstTimers = -1;
+
+        int mLastTimers;
+
+        /**
+         * @return True if the teardown left something behind
+         */
+        public boolean hasLeaks() {
+            return mLeakedChannels > 0 || mLeakedPlayers > 0 || mOpenConnections > 0
+                    || mLastThreads > mFirstThreads;
+        }
+
+        @Override
+        public String toString() {
+            return "cycles=" + mCycles
+                    + " failed=" + mFailedCycles
+                    + " leaked channels=" + mLeakedChannels
+                    + " leaked players=" + mLeakedPlayers
+                    + " open connections=" + mOpenConnections
+                    + " select->running p99=" + mSelectToRunningP99Nanos / 1000000L + "ms"
+                    + " heap growth=" + (mLastHeapBytes - mFirstHeapBytes) / 1024 + "KB"
+                    + " threads=" + mFirstThreads + "->" + mLastThreads
+                    + " timers=" + mFirstTimers + "->" + mLastTimers;
+        }
+    }
+
+    private final LinkConditions mConditions;
+
+    private final int mMessagesPerSecond;
+
+    private final int mReceiverMessagesPerSecond;
+
+    /**
+     * Creates a SoakTest
+     *
+     * @param conditions                The conditions of the network
+     * @param messagesPerSecond         The messages the sender sends in a second
+     * @param receiverMessagesPerSecond The messages the Receiver processes in a second or 0
+     *                                  for no limit
+     */
+    public SoakTest(final LinkConditions conditions, final int messagesPerSecond,
+                    final int receiverMessagesPerSecond) {
+        if (messagesPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid rate " + messagesPerSecond);
+        }
+        this.mConditions = conditions;
+        this.mMessagesPerSecond = messagesPerSecond;
+        this.mReceiverMessagesPerSecond = receiverMessagesPerSecond;
+    }
+
+    /**
+     * Runs a single session for the given time
+     *
+     * @param durationMillis The duration of the run
+     * @param intervalMillis The duration of each interval
+     * @param out            The stream for the intervals or null
+     * @return The TrafficResult
+     * @throws InterruptedException If interrupted
+     */
+    public TrafficResult runTraffic(final long durationMillis, final long intervalMillis,
+                                    final PrintStream out) throws InterruptedException {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        final ScheduledExecutorService receiverScheduler =
+                Executors.newSingleThreadScheduledExecutor();
+        final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+        final ExecutorService inboundExecutor = Executors.newSingleThreadExecutor();
+        // Each interval has its own histogram
+        final MetricsRegistry intervals = new MetricsRegistry();
+        final AtomicLong intervalIndex = new AtomicLong();
+        final AtomicLong processed = new AtomicLong();
+        final JsonScanner scanner = new JsonScanner();
+        final FakeReceiver receiver = createReceiver(receiverScheduler,
+                new FakeReceiver.Listener() {
+                    @Override
+                    public void onMessageProcessed(String message) {
+                        final long sentNanos = readSentNanos(scanner, message);
+                        if (sentNanos > 0) {
+                            processed.incrementAndGet();
+                            intervals.histogram("soak.latency." + intervalIndex.get())
+                                    .recordSince(sentNanos);
+                        }
+                    }
+                });
+        try {
+            final CastSessionEngine engine = createEngine(scheduler, ioExecutor,
+                    inboundExecutor, new MetricsRegistry());
+            addMedia(engine.getMediaQueue());
+            final FakeCastTransport transport =
+                    new FakeCastTransport(receiver, mConditions, scheduler, 1L);
+            engine.selectRoute(ROUTE_ID, transport);
+            if (!awaitState(engine, CastSessionEngine.State.RUNNING)) {
+                throw new IllegalStateException("The session didn't start");
+            }
+            final AtomicLong sent = new AtomicLong();
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    engine.sendMessage(createMessage(sent.incrementAndGet()));
+                }
+            }, 0L, 1000000000L / mMessagesPerSecond, TimeUnit.NANOSECONDS);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+
+                private int mNext;
+
+                @Override
+                public void run() {
+                    engine.getMediaQueue().play(mNext++ % MEDIA_COUNT, null);
+                }
+            }, 0L, MEDIA_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+            final TrafficResult result = new TrafficResult();
+            final long endNanos = System.nanoTime() + durationMillis * 1000000L;
+            while (System.nanoTime() < endNanos) {
+                Thread.sleep(Math.min(intervalMillis,
+                        Math.max(1L, (endNanos - System.nanoTime()) / 1000000L)));
+                final LatencyHistogram histogram =
+                        intervals.histogram("soak.latency." + intervalIndex.getAndIncrement());
+                final long heapBytes = getUsedHeapAfterGc();
+                final int threads = Thread.activeCount();
+                final String interval = "interval=" + result.mIntervals.size()
+                        + " state=" + engine.getState()
+                        + " processed=" + histogram.getCount()
+                        + " p50=" + histogram.getPercentileNanos(50) / 1000000L + "ms"
+                        + " p99=" + histogram.getPercentileNanos(99) / 1000000L + "ms"
+                        + " inbox=" + receiver.getInboxSize()
+                        + " heap=" + heapBytes / 1024 + "KB"
+                        + " threads=" + threads
+                        + " timers=" + scheduler.getQueue().size()
+                        + " lost=" + transport.getLostMessages();
+                result.mIntervals.add(interval);
+                if (out != null) {
+                    out.println(interval);
+                }
+                result.mP99Nanos.add(histogram.getPercentileNanos(99));
+                if (result.mFirstHeapBytes < 0) {
+                    result.mFirstHeapBytes = heapBytes;
+                    result.mFirstThreads = threads;
+                }
+                result.mLastHeapBytes = heapBytes;
+                result.mLastThreads = threads;
+            }
+            result.mSentMessages = sent.get();
+            result.mProcessedMessages = processed.get();
+            result.mMaxInboxSize = receiver.getMaxInboxSize();
+            engine.stop();
+            return result;
+        } finally {
+            receiver.shutdown();
+            scheduler.shutdownNow();
+            receiverScheduler.shutdownNow();
+            ioExecutor.shutdownNow();
+            inboundExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts and closes the session the given number of times
+     *
+     * @param cycles The number of sessions
+     * @param out    The stream for the progress or null
+     * @return The CycleResult
+     * @throws InterruptedException If interrupted
+     */
+    public CycleResult runCycles(final int cycles, final PrintStream out)
+            throws InterruptedException {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        final ScheduledExecutorService receiverScheduler =
+                Executors.newSingleThreadScheduledExecutor();
+        final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+        final ExecutorService inboundExecutor = Executors.newSingleThreadExecutor();
+        final AtomicLong processed = new AtomicLong();
+        final FakeReceiver receiver = createReceiver(receiverScheduler,
+                new FakeReceiver.Listener() {
+                    @Override
+                    public void onMessageProcessed(String message) {
+                        processed.incrementAndGet();
+                    }
+                });
+        try {
+            final MetricsRegistry metrics = new MetricsRegistry();
+            final CastSessionEngine engine = createEngine(scheduler, ioExecutor,
+                    inboundExecutor, metrics);
+            addMedia(engine.getMediaQueue());
+            final CycleResult result = new CycleResult();
+            final LatencyHistogram selectToRunning = metrics.histogram("soak.select_to_running");
+            for (int i = 0; i < cycles; i++) {
+                final FakeCastTransport transport =
+                        new FakeCastTransport(receiver, mConditions, scheduler, i);
+                final long selectNanos = System.nanoTime();
+                engine.selectRoute(ROUTE_ID, transport);
+                if (!awaitState(engine, CastSessionEngine.State.RUNNING)) {
+                    result.mFailedCycles++;
+                    engine.stop();
+                    awaitState(engine, CastSessionEngine.State.IDLE);
+                    continue;
+                }
+                selectToRunning.recordSince(selectNanos);
+                final long expected = processed.get() + CYCLE_MESSAGES;
+                for (int j = 0; j < CYCLE_MESSAGES; j++) {
+                    engine.sendMessage(createMessage(j));
+                }
+                engine.getMediaQueue().play(i % MEDIA_COUNT, null);
+                awaitCount(processed, expected);
+                // Half of the sessions leave the application running so the next one joins it
+                if (i % 2 == 0) {
+                    engine.stop();
+                } else {
+                    engine.disconnect();
+                }
+                awaitState(engine, CastSessionEngine.State.IDLE);
+                awaitDisconnected(transport);
+                if (i + 1 == WARMUP_CYCLES || i + 1 == cycles) {
+                    final long heapBytes = getUsedHeapAfterGc();
+                    final int threads = Thread.activeCount();
+                    final int timers = scheduler.getQueue().size();
+                    if (result.mFirstHeapBytes < 0) {
+                        result.mFirstHeapBytes = heapBytes;
+                        result.mFirstThreads = threads;
+                        result.mFirstTimers = timers;
+                    }
+                    result.mLastHeapBytes = heapBytes;
+                    result.mLastThreads = threads;
+                    result.mLastTimers = timers;
+                }
+                if (out != null && (i + 1) % 50 == 0) {
+                    out.println("cycle=" + (i + 1) + " leaked channels="
+                            + receiver.getLeakedChannels() + " leaked players="
+                            + receiver.getLeakedPlayers() + " connections="
+                            + receiver.getConnectionCount());
+                }
+            }
+            result.mCycles = cycles;
+            result.mLeakedChannels = receiver.getLeakedChannels();
+            result.mLeakedPlayers = receiver.getLeakedPlayers();
+            result.mOpenConnections = receiver.getConnectionCount();
+            result.mSelectToRunningP99Nanos = selectToRunning.getPercentileNanos(99);
+            return result;
+        } finally {
+            receiver.shutdown();
+            scheduler.shutdownNow();
+            receiverScheduler.shutdownNow();
+            ioExecutor.shutdownNow();
+            inboundExecutor.shutdownNow();
+        }
+    }
+
+    private FakeReceiver createReceiver(final ScheduledExecutorService scheduler,
+                                        final FakeReceiver.Listener listener) {
+        return new FakeReceiver.Builder(APP_ID, NAMESPACE, scheduler)
+                .setMessagesPerSecond(mReceiverMessagesPerSecond)
+                .setPresenceIntervalMillis(1000L)
+                .setListener(listener)
+                .build();
+    }
+
+    private static CastSessionEngine createEngine(final ScheduledExecutorService scheduler,
+                                                  final ExecutorService ioExecutor,
+                                                  final ExecutorService inboundExecutor,
+                                                  final MetricsRegistry metrics) {
+        return new CastSessionEngine.Builder(APP_ID, NAMESPACE)
+                .setScheduler(scheduler)
+                .setIoExecutor(ioExecutor)
+                .setSessionStore(new MemorySessionStore())
+                .setInboundDispatcher(new InboundMessageDispatcher(inboundExecutor))
+                .setMetrics(metrics)
+                .setRetryPolicy(RetryPolicy.DEFAULT)
+                .build();
+    }
+
+    private static void addMedia(final MediaQueue mediaQueue) {
+        for (int i = 0; i < MEDIA_COUNT; i++) {
+            mediaQueue.add(new MediaItem("http://soak/" + i + ".mp4", "video/mp4", "Soak " + i));
+        }
+    }
+
+    private static String createMessage(final long seq) {
+        return "{\"type\":\"" + SOAK_MESSAGE_TYPE + "\",\"seq\":" + seq + ",\"ts\":"
+                + System.nanoTime() + "}";
+    }
+
+    /**
+     * @return The time the message has been sent or -1 if it's not a message of the test
+     */
+    private static long readSentNanos(final JsonScanner scanner, final String message) {
+        boolean soak = false;
+        long sentNanos = -1L;
+        try {
+            scanner.reset(message);
+            while (scanner.nextField()) {
+                if (scanner.isField("type")) {
+                    soak = SOAK_MESSAGE_TYPE.equals(scanner.readString());
+                } else if (scanner.isField("ts")) {
+                    sentNanos = scanner.readLong();
+                } else {
+                    scanner.skipValue();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Not one of ours
+        }
+        return soak ? sentNanos : -1L;
+    }
+
+    private static boolean awaitState(final CastSessionEngine engine,
+                                      final CastSessionEngine.State state)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + STATE_TIMEOUT_MILLIS * 1000000L;
+        while (engine.getState() != state) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(5L);
+        }
+        return true;
+    }
+
+    private static void awaitCount(final AtomicLong count, final long expected)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + STATE_TIMEOUT_MILLIS * 1000000L;
+        while (count.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(5L);
+        }
+    }
+
+    /**
+     * The teardown runs on the io executor after the IDLE state so we wait for the
+     * disconnection
+     */
+    private static void awaitDisconnected(final FakeCastTransport transport)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + STATE_TIMEOUT_MILLIS * 1000000L;
+        while ((transport.isConnected() || transport.isConnecting())
+                && System.nanoTime() < deadline) {
+            Thread.sleep(5L);
+        }
+    }
+
+    private static long getUsedHeapAfterGc() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Runs the two scenarios and prints their results
+     *
+     * @param args The options -minutes, -interval (seconds), -latency, -jitter (ms), -loss
+     *             (0 to 1), -kbps, -rate and -receiver-rate (messages/s) and -cycles
+     * @throws Exception In case of error
+     */
+    public static void main(final String[] args) throws Exception {
+        double minutes = 60.0;
+        long intervalSeconds = 60L;
+        long latencyMillis = 10L;
+        long jitterMillis = 5L;
+        double lossRate = 0.0;
+        int kbps = 0;
+        int rate = 20;
+        int receiverRate = 0;
+        int cycles = 200;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String value = args[i + 1];
+            if ("-minutes".equals(args[i])) {
+                minutes = Double.parseDouble(value);
+            } else if ("-interval".equals(args[i])) {
+                intervalSeconds = Long.parseLong(value);
+            } else if ("-latency".equals(args[i])) {
+                latencyMillis = Long.parseLong(value);
+            } else if ("-jitter".equals(args[i])) {
+                jitterMillis = Long.parseLong(value);
+            } else if ("-loss".equals(args[i])) {
+                lossRate = Double.parseDouble(value);
+            } else if ("-kbps".equals(args[i])) {
+                kbps = Integer.parseInt(value);
+            } else if ("-rate".equals(args[i])) {
+                rate = Integer.parseInt(value);
+            } else if ("-receiver-rate".equals(args[i])) {
+                receiverRate = Integer.parseInt(value);
+            } else if ("-cycles".equals(args[i])) {
+                cycles = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        final LinkConditions conditions = new LinkConditions(latencyMillis, jitterMillis,
+                lossRate, kbps * 1000 / 8);
+        final SoakTest soakTest = new SoakTest(conditions, rate, receiverRate);
+        System.out.println("link: " + conditions);
+        if (minutes > 0) {
+            System.out.println("traffic: " + soakTest.runTraffic((long) (minutes * 60000L),
+                    intervalSeconds * 1000L, System.out));
+        }
+        if (cycles > 0) {
+            final CycleResult result = soakTest.runCycles(cycles, System.out);
+            System.out.println("cycles: " + result + (result.hasLeaks() ? " LEAKS" : ""));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import uk.co.massimocarli.friencefencecast.bench.MicroBenchmark;
+
+/**
+ * Measures the cost of a status update of the {@link PlayerStatusCache} as the number of
+ * observers grows. The changed statuses alternate between playing and paused so every
+ * observer is notified, the unchanged ones only move the position as expected so nobody is.
+ * The position of the seek bar is read many times for every update so we measure it too:
+ * <pre>
+ * java uk.co.massimocarli.friencefencecast.media.StatusFanOutBenchmark [-millis 1000]
+ * </pre>
+ */
+public class StatusFanOutBenchmark {
+
+    /**
+     * The numbers of observers we measure
+     */
+    private static final int[] OBSERVERS = {1, 10, 100, 250, 1000};
+
+    /**
+     * Where the observers put what they read
+     */
+    private long mSink;
+
+    private final long mIterationMillis;
+
+    /**
+     * Creates a StatusFanOutBenchmark
+     *
+     * @param iterationMillis The duration of an iteration
+     */
+    public StatusFanOutBenchmark(final long iterationMillis) {
+        this.mIterationMillis = iterationMillis;
+    }
+
+    /**
+     * Runs the benchmarks and prints their results
+     */
+    public void run() {
+        for (int observers : OBSERVERS) {
+            final PlayerStatusCache cache = createCache(observers);
+            final long start = System.nanoTime();
+            final PlayerStatus playing = new PlayerStatus(PlayerStatus.PlayerState.PLAYING,
+                    false, "video", 0L, 60000L, 1.0, 1.0, false, start);
+            final PlayerStatus paused = new PlayerStatus(PlayerStatus.PlayerState.PAUSED,
+                    false, "video", 0L, 60000L, 1.0, 1.0, false, start);
+            System.out.println(new MicroBenchmark("changed, " + observers + " observers", 5, 5,
+                    mIterationMillis) {
+                @Override
+                protected long run(final int invocation) {
+                    cache.onStatusUpdated((invocation & 1) == 0 ? playing : paused);
+                    return mSink;
+                }
+            }.measure());
+            // The position moves as the cache expects so the status is the same
+            final PlayerStatus[] moving = new PlayerStatus[64];
+            for (int i = 0; i < moving.length; i++) {
+                moving[i] = new PlayerStatus(PlayerStatus.PlayerState.PLAYING, false, "video",
+                        i * 1000L, 60000L, 1.0, 1.0, false, start + i * 1000000000L);
+            }
+            cache.onStatusUpdated(moving[0]);
+            System.out.println(new MicroBenchmark("unchanged, " + observers + " observers", 5,
+                    5, mIterationMillis) {
+                @Override
+                protected long run(final int invocation) {
+                    cache.onStatusUpdated(moving[invocation & (moving.length - 1)]);
+                    return mSink;
+                }
+            }.measure());
+            System.out.println("unchanged updates=" + cache.getUnchangedCount());
+        }
+        final PlayerStatusCache cache = createCache(1);
+        cache.onStatusUpdated(new PlayerStatus(PlayerStatus.PlayerState.PLAYING, false,
+                "video", 0L, 60000L, 1.0, 1.0, false, System.nanoTime()));
+        System.out.println(new MicroBenchmark("estimated position", 5, 5, mIterationMillis) {
+            @Override
+            protected long run(final int invocation) {
+                return cache.getEstimatedPositionMillis();
+            }
+        }.measure());
+        System.out.println("(sink " + (mSink & 1) + ")");
+    }
+
+    private PlayerStatusCache createCache(final int observers) {
+        final PlayerStatusCache cache = new PlayerStatusCache();
+        for (int i = 0; i < observers; i++) {
+            cache.addObserver(new PlayerStatusCache.Observer() {
+                @Override
+                public void onStatusChanged(final PlayerStatus status, final int changedFields) {
+                    mSink += changedFields;
+                }
+            });
+        }
+        return cache;
+    }
+
+    /**
+     * Runs the benchmarks
+     *
+     * @param args The optional -millis followed by the duration of an iteration
+     */
+    public static void main(final String[] args) {
+        long iterationMillis = 1000L;
+        if (args.length > 1 && "-millis".equals(args[0])) {
+            iterationMillis = Long.parseLong(args[1]);
+        }
+        new StatusFanOutBenchmark(iterationMillis).run();
+    }
+}
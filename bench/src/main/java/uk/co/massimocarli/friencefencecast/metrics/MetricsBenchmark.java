@@ -0,0 +1,146 @@
+package uk.co.massimocarli.friencefencecast.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.co.massimocarli.friencefencecast.bench.MicroBenchmark;
+
+/**
+ * Measures the cost of recording into the {@link MetricsRegistry} on the hot paths: the
+ * increment of a {@link Counter} and the record of a {@link LatencyHistogram}. Every
+ * benchmark runs alone and then while other threads record into the same metric, as the
+ * cast, io and inbound threads of the session do:
+ * <pre>
+ * java uk.co.massimocarli.friencefencecast.metrics.MetricsBenchmark [-millis 1000] [-threads 3]
+ * </pre>
+ */
+public class MetricsBenchmark {
+
+    /**
+     * The number of different durations we record. It's a power of 2
+     */
+    private static final int DURATIONS = 1024;
+
+    private final MetricsRegistry mRegistry = new MetricsRegistry();
+
+    /**
+     * Durations from 1us to about 1s so they fall into many buckets
+     */
+    private final long[] mDurations = new long[DURATIONS];
+
+    /**
+     * Creates a MetricsBenchmark
+     */
+    public MetricsBenchmark() {
+        for (int i = 0; i < DURATIONS; i++) {
+            mDurations[i] = 1000L << (i % 20) | i;
+        }
+    }
+
+    /**
+     * Runs the benchmarks
+     *
+     * @param iterationMillis The duration of an iteration
+     * @param threads         The number of threads that record at the same time
+     */
+    public void run(final long iterationMillis, final int threads) {
+        final Counter counter = mRegistry.counter("bench.counter");
+        final LatencyHistogram histogram = mRegistry.histogram("bench.histogram");
+        final MicroBenchmark counterBenchmark = new MicroBenchmark("counter increment", 5, 5,
+                iterationMillis) {
+            @Override
+            protected long run(final int invocation) {
+                counter.increment();
+                return invocation;
+            }
+        };
+        final MicroBenchmark histogramBenchmark = new MicroBenchmark("histogram record", 5, 5,
+                iterationMillis) {
+            @Override
+            protected long run(final int invocation) {
+                histogram.record(mDurations[invocation & (DURATIONS - 1)]);
+                return invocation;
+            }
+        };
+        System.out.println(counterBenchmark.measure());
+        System.out.println(histogramBenchmark.measure());
+        System.out.println(measureContended(counterBenchmark, threads, new Runnable() {
+            @Override
+            public void run() {
+                counter.increment();
+            }
+        }) + " with " + threads + " threads");
+        System.out.println(measureContended(histogramBenchmark, threads, new Runnable() {
+            private int mInvocation;
+
+            @Override
+            public void run() {
+                histogram.record(mDurations[mInvocation++ & (DURATIONS - 1)]);
+            }
+        }) + " with " + threads + " threads");
+        System.out.println("counter=" + counter.get() + " histogram count="
+                + histogram.getCount());
+    }
+
+    /**
+     * Measures the benchmark while the given number of threads run the given operation
+     *
+     * @param benchmark The benchmark to measure
+     * @param threads   The number of threads that run the operation
+     * @param operation The operation of the other threads. Each thread has its own copy
+     * @return The Result of the benchmark
+     */
+    private static MicroBenchmark.Result measureContended(final MicroBenchmark benchmark,
+                                                          final int threads,
+                                                          final Runnable operation) {
+        final List<Thread> workers = new ArrayList<Thread>(threads);
+        final AtomicBoolean stop = new AtomicBoolean();
+        for (int i = 0; i < threads; i++) {
+            final Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!stop.get()) {
+                        for (int j = 0; j < 1024; j++) {
+                            operation.run();
+                        }
+                    }
+                }
+            }, "metrics-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        try {
+            return benchmark.measure();
+        } finally {
+            stop.set(true);
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the benchmarks
+     *
+     * @param args The optional -millis followed by the duration of an iteration and -threads
+     *             followed by the number of threads that record at the same time
+     */
+    public static void main(final String[] args) {
+        long iterationMillis = 1000L;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("-millis".equals(args[i])) {
+                iterationMillis = Long.parseLong(args[i + 1]);
+            } else if ("-threads".equals(args[i])) {
+                threads = Integer.parseInt(args[i + 1]);
+            }
+        }
+        new MetricsBenchmark().run(iterationMillis, threads);
+    }
+}
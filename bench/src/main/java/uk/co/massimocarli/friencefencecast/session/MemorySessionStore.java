@@ -0,0 +1,33 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+/**
+ * A SessionStore in memory for the sessions that run on a JVM, like the benchmarks
+ */
+public class MemorySessionStore implements SessionStore {
+
+    private String mRouteId;
+
+    private String mSessionId;
+
+    @Override
+    public synchronized void saveSession(final String routeId, final String sessionId) {
+        mRouteId = routeId;
+        mSessionId = sessionId;
+    }
+
+    @Override
+    public synchronized String getLastRouteId() {
+        return mRouteId;
+    }
+
+    @Override
+    public synchronized String getLastSessionId() {
+        return mSessionId;
+    }
+
+    @Override
+    public synchronized void clear() {
+        mRouteId = null;
+        mSessionId = null;
+    }
+}
@@ -0,0 +1,182 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import uk.co.massimocarli.friencefencecast.channel.InboundMessageDispatcher;
+import uk.co.massimocarli.friencefencecast.fake.FakeCastTransport;
+import uk.co.massimocarli.friencefencecast.fake.FakeReceiver;
+import uk.co.massimocarli.friencefencecast.fake.LinkConditions;
+import uk.co.massimocarli.friencefencecast.metrics.LatencyHistogram;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+import uk.co.massimocarli.friencefencecast.resilience.RetryPolicy;
+
+/**
+ * Measures the time from the route selection to the RUNNING state of the
+ * {@link CastSessionEngine} against a {@link FakeReceiver}. The sessions are closed in turn
+ * with a stop, so the next one launches the application, and with a disconnect, so the next
+ * one joins it. The result has the times of the two paths:
+ * <pre>
+ * java uk.co.massimocarli.friencefencecast.session.SessionStartBenchmark -cycles 200 -latency 10
+ * </pre>
+ */
+public class SessionStartBenchmark {
+
+    /**
+     * The id of the fake application, route and namespace
+     */
+    private static final String APP_ID = "FAKE0001";
+
+    private static final String ROUTE_ID = "fake";
+
+    private static final String NAMESPACE = "urn:x-cast:uk.co.massimocarli.friendfence";
+
+    /**
+     * The longest time for a session to start or to close
+     */
+    private static final long STATE_TIMEOUT_MILLIS = 30000L;
+
+    /**
+     * The sessions we don't measure, to skip the warm up of the JVM
+     */
+    private static final int WARMUP_CYCLES = 10;
+
+    private final LinkConditions mConditions;
+
+    private final long mLaunchMillis;
+
+    /**
+     * Creates a SessionStartBenchmark
+     *
+     * @param conditions   The conditions of the network
+     * @param launchMillis The time the Receiver takes to launch the application
+     */
+    public SessionStartBenchmark(final LinkConditions conditions, final long launchMillis) {
+        this.mConditions = conditions;
+        this.mLaunchMillis = launchMillis;
+    }
+
+    /**
+     * Starts and closes the session the given number of times
+     *
+     * @param cycles The number of measured sessions
+     * @return The description of the times of the launch and the join paths
+     * @throws InterruptedException If interrupted
+     */
+    public String run(final int cycles) throws InterruptedException {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final ScheduledExecutorService receiverScheduler =
+                Executors.newSingleThreadScheduledExecutor();
+        final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+        final ExecutorService inboundExecutor = Executors.newSingleThreadExecutor();
+        final FakeReceiver receiver = new FakeReceiver.Builder(APP_ID, NAMESPACE,
+                receiverScheduler)
+                .setLaunchMillis(mLaunchMillis)
+                .build();
+        try {
+            final CastSessionEngine engine = new CastSessionEngine.Builder(APP_ID, NAMESPACE)
+                    .setScheduler(scheduler)
+                    .setIoExecutor(ioExecutor)
+                    .setSessionStore(new MemorySessionStore())
+                    .setInboundDispatcher(new InboundMessageDispatcher(inboundExecutor))
+                    .setRetryPolicy(RetryPolicy.DEFAULT)
+                    .build();
+            final MetricsRegistry metrics = new MetricsRegistry();
+            final LatencyHistogram launched = metrics.histogram("launched");
+            final LatencyHistogram joined = metrics.histogram("joined");
+            int failed = 0;
+            for (int i = 0; i < WARMUP_CYCLES + cycles; i++) {
+                final FakeCastTransport transport =
+                        new FakeCastTransport(receiver, mConditions, scheduler, i);
+                engine.selectRoute(ROUTE_ID, transport);
+                if (!awaitState(engine, CastSessionEngine.State.RUNNING)) {
+                    failed++;
+                } else if (i >= WARMUP_CYCLES) {
+                    final LatencyHistogram histogram = engine.getLastStartPath()
+                            == SessionTimings.StartPath.JOINED ? joined : launched;
+                    histogram.record(engine.getSelectToRunningNanos());
+                }
+                if (i % 2 == 0) {
+                    engine.stop();
+                } else {
+                    engine.disconnect();
+                }
+                awaitState(engine, CastSessionEngine.State.IDLE);
+                awaitDisconnected(transport);
+            }
+            return "conditions: " + mConditions + " launch=" + mLaunchMillis + "ms\n"
+                    + describe("launched", launched) + "\n"
+                    + describe("joined", joined) + "\n"
+                    + "failed=" + failed;
+        } finally {
+            receiver.shutdown();
+            scheduler.shutdownNow();
+            receiverScheduler.shutdownNow();
+            ioExecutor.shutdownNow();
+            inboundExecutor.shutdownNow();
+        }
+    }
+
+    private static String describe(final String name, final LatencyHistogram histogram) {
+        return String.format("%-9s count=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms", name,
+                histogram.getCount(), histogram.getMeanNanos() / 1e6,
+                histogram.getPercentileNanos(50.0) / 1e6,
+                histogram.getPercentileNanos(99.0) / 1e6, histogram.getMaxNanos() / 1e6);
+    }
+
+    private static boolean awaitState(final CastSessionEngine engine,
+                                      final CastSessionEngine.State state)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + STATE_TIMEOUT_MILLIS * 1000000L;
+        while (engine.getState() != state) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1L);
+        }
+        return true;
+    }
+
+    /**
+     * The teardown runs on the io executor after the IDLE state so we wait for the
+     * disconnection
+     */
+    private static void awaitDisconnected(final FakeCastTransport transport)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + STATE_TIMEOUT_MILLIS * 1000000L;
+        while ((transport.isConnected() || transport.isConnecting())
+                && System.nanoTime() < deadline) {
+            Thread.sleep(1L);
+        }
+    }
+
+    /**
+     * Runs the benchmark and prints its result
+     *
+     * @param args The options -cycles, -latency, -jitter and -launch (ms)
+     * @throws Exception In case of error
+     */
+    public static void main(final String[] args) throws Exception {
+        int cycles = 200;
+        long latencyMillis = 10L;
+        long jitterMillis = 5L;
+        long launchMillis = 1500L;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("-cycles".equals(args[i])) {
+                cycles = Integer.parseInt(args[i + 1]);
+            } else if ("-latency".equals(args[i])) {
+                latencyMillis = Long.parseLong(args[i + 1]);
+            } else if ("-jitter".equals(args[i])) {
+                jitterMillis = Long.parseLong(args[i + 1]);
+            } else if ("-launch".equals(args[i])) {
+                launchMillis = Long.parseLong(args[i + 1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        final LinkConditions conditions =
+                new LinkConditions(latencyMillis, jitterMillis, 0.0, 0);
+        System.out.println(new SessionStartBenchmark(conditions, launchMillis).run(cycles));
+    }
+}
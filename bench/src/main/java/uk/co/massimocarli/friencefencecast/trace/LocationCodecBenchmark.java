@@ -0,0 +1,190 @@
+package uk.co.massimocarli.friencefencecast.trace;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.co.massimocarli.friencefencecast.bench.MicroBenchmark;
+import uk.co.massimocarli.friencefencecast.channel.BinaryLocationCodec;
+import uk.co.massimocarli.friencefencecast.channel.JsonLocationCodec;
+import uk.co.massimocarli.friencefencecast.channel.LocationCodec;
+import uk.co.massimocarli.friencefencecast.channel.LocationUpdate;
+import uk.co.massimocarli.friencefencecast.channel.MessageEnvelope;
+
+/**
+ * Compares the {@link JsonLocationCodec} and the {@link BinaryLocationCodec} on the location
+ * messages of recorded {@link SessionTrace}s: the size of the messages and the speed of the
+ * encoding and of the decoding. The messages of the traces are decoded with the codec they
+ * have been written with and encoded again with both. Without traces we use a synthetic one
+ * of friends walking around a venue. Every operation of the benchmarks is a message:
+ * <pre>
+ * java uk.co.massimocarli.friencefencecast.trace.LocationCodecBenchmark [a.trace ...]
+ * </pre>
+ */
+public class LocationCodecBenchmark {
+
+    /**
+     * The number of messages and of friends of the synthetic trace
+     */
+    private static final int SYNTHETIC_MESSAGES = 2000;
+
+    private static final int SYNTHETIC_FRIENDS = 20;
+
+    private final List<List<LocationUpdate>> mMessages;
+
+    private final long mIterationMillis;
+
+    /**
+     * Creates a LocationCodecBenchmark
+     *
+     * @param messages        The updates of every location message
+     * @param iterationMillis The duration of an iteration
+     */
+    public LocationCodecBenchmark(final List<List<LocationUpdate>> messages,
+                                  final long iterationMillis) {
+        if (messages.isEmpty()) {
+            throw new IllegalArgumentException("No location messages");
+        }
+        this.mMessages = messages;
+        this.mIterationMillis = iterationMillis;
+    }
+
+    /**
+     * Runs the benchmarks and prints their results
+     */
+    public void run() {
+        final LocationCodec[] codecs = {new JsonLocationCodec(), new BinaryLocationCodec()};
+        long jsonChars = 0;
+        for (final LocationCodec codec : codecs) {
+            final String[] encoded = new String[mMessages.size()];
+            long chars = 0;
+            long updates = 0;
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = codec.encode(mMessages.get(i));
+                chars += encoded[i].length();
+                updates += mMessages.get(i).size();
+            }
+            if (jsonChars == 0) {
+                jsonChars = chars;
+            }
+            System.out.println(String.format("%-6s messages=%d updates=%d chars=%d"
+                            + " chars/update=%.1f ratio=%.3f", codec.getName(), encoded.length,
+                    updates, chars, (double) chars / updates, (double) chars / jsonChars));
+            System.out.println(new MicroBenchmark("encode " + codec.getName(), 5, 5,
+                    mIterationMillis) {
+                @Override
+                protected long run(final int invocation) {
+                    return codec.encode(mMessages.get(index(invocation))).length();
+                }
+            }.measure());
+            System.out.println(new MicroBenchmark("decode " + codec.getName(), 5, 5,
+                    mIterationMillis) {
+                @Override
+                protected long run(final int invocation) {
+                    return codec.decode(encoded[index(invocation)]).size();
+                }
+            }.measure());
+        }
+    }
+
+    private int index(final int invocation) {
+        return (invocation & Integer.MAX_VALUE) % mMessages.size();
+    }
+
+    /**
+     * Reads the location messages sent into a trace
+     *
+     * @param trace    The trace
+     * @param messages The List to add the updates of every message to
+     */
+    public static void readMessages(final SessionTrace trace,
+                                    final List<List<LocationUpdate>> messages) {
+        final JsonLocationCodec jsonCodec = new JsonLocationCodec();
+        final BinaryLocationCodec binaryCodec = new BinaryLocationCodec();
+        final List<String> batch = new ArrayList<String>();
+        for (SessionTrace.Event event : trace.getEvents()) {
+            if (event.mType != SessionTrace.SEND || event.mText2 == null) {
+                continue;
+            }
+            batch.clear();
+            try {
+                MessageEnvelope.unframe(event.mText2, batch);
+            } catch (IllegalArgumentException e) {
+                // Not a batch of the custom channel
+                continue;
+            }
+            for (String message : batch) {
+                try {
+                    if (!message.startsWith("{")) {
+                        messages.add(binaryCodec.decode(message));
+                    } else if (message.contains("\"type\":\"" + JsonLocationCodec.TYPE + "\"")) {
+                        messages.add(jsonCodec.decode(message));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Not a location message
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the messages of friends walking around a venue
+     *
+     * @param messages The List to add the updates of every message to
+     */
+    public static void createSyntheticMessages(final List<List<LocationUpdate>> messages) {
+        final Random random = new Random(1L);
+        final double[] latitudes = new double[SYNTHETIC_FRIENDS];
+        final double[] longitudes = new double[SYNTHETIC_FRIENDS];
+        for (int i = 0; i < SYNTHETIC_FRIENDS; i++) {
+            latitudes[i] = 51.5072 + random.nextDouble() * 0.01;
+            longitudes[i] = -0.1275 + random.nextDouble() * 0.01;
+        }
+        long timestamp = 1418000000000L;
+        for (int i = 0; i < SYNTHETIC_MESSAGES; i++) {
+            final int count = 1 + random.nextInt(SYNTHETIC_FRIENDS);
+            final List<LocationUpdate> updates = new ArrayList<LocationUpdate>(count);
+            for (int j = 0; j < count; j++) {
+                final int friend = random.nextInt(SYNTHETIC_FRIENDS);
+                latitudes[friend] += (random.nextDouble() - 0.5) * 1e-4;
+                longitudes[friend] += (random.nextDouble() - 0.5) * 1e-4;
+                timestamp += random.nextInt(500);
+                updates.add(new LocationUpdate("friend-" + friend, latitudes[friend],
+                        longitudes[friend], timestamp));
+            }
+            messages.add(updates);
+        }
+    }
+
+    /**
+     * Runs the benchmarks on the given trace files or on the synthetic trace
+     *
+     * @param args The optional -millis followed by the duration of an iteration and the
+     *             trace files
+     * @throws Exception In case of error reading a trace
+     */
+    public static void main(final String[] args) throws Exception {
+        long iterationMillis = 1000L;
+        int first = 0;
+        if (args.length > 1 && "-millis".equals(args[0])) {
+            iterationMillis = Long.parseLong(args[1]);
+            first = 2;
+        }
+        final List<List<LocationUpdate>> messages = new ArrayList<List<LocationUpdate>>();
+        for (int i = first; i < args.length; i++) {
+            final InputStream in = new BufferedInputStream(new FileInputStream(args[i]));
+            try {
+                readMessages(SessionTrace.read(in), messages);
+            } finally {
+                in.close();
+            }
+        }
+        if (first == args.length) {
+            createSyntheticMessages(messages);
+        }
+        new LocationCodecBenchmark(messages, iterationMillis).run();
+    }
+}
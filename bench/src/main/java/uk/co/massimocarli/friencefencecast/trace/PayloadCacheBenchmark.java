@@ -0,0 +1,302 @@
+package uk.co.massimocarli.friencefencecast.trace;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.co.massimocarli.friencefencecast.channel.MessageEnvelope;
+import uk.co.massimocarli.friencefencecast.channel.PayloadCache;
+import uk.co.massimocarli.friencefencecast.channel.PayloadCacheDecoder;
+
+/**
+ * Measures what the {@link PayloadCache} saves on the custom messages of a
+ * {@link SessionTrace}. Every recorded batch is encoded again with the cache, and the
+ * messages become known to the Receiver when the recorded ack of their batch arrives, as
+ * it happens in the session. The batches sent again are counted once. Every encoded message
+ * is rebuilt with a {@link PayloadCacheDecoder} and compared with the original one. The
+ * result has the chars on the wire with and without the cache and the CPU time of the two
+ * sides:
+ * <pre>
+ * java uk.co.massimocarli.friencefencecast.trace.PayloadCacheBenchmark -entries 64 a.trace
+ * </pre>
+ */
+public class PayloadCacheBenchmark {
+
+    /**
+     * The times we repeat the run to measure the CPU time. The first run warms up the JIT
+     */
+    private static final int RUNS = 5;
+
+    /**
+     * The result of a run
+     */
+    public static final class Result {
+
+        long mBatches;
+
+        long mMessages;
+
+        long mPlainChars;
+
+        long mCachedChars;
+
+        long mRefCount;
+
+        long mDeltaCount;
+
+        long mMismatches;
+
+        long mMisses;
+
+        long mFrameNanos;
+
+        long mEncodeNanos;
+
+        long mDecodeNanos;
+
+        /**
+         * @return The ratio between the chars sent with the cache and the ones without
+         */
+        public double getRatio() {
+            return mPlainChars > 0 ? (double) mCachedChars / mPlainChars : 1.0;
+        }
+
+        /**
+         * @return The CPU time to frame a message without the cache
+         */
+        public long getFrameNanosPerMessage() {
+            return mMessages > 0 ? mFrameNanos / mMessages : 0L;
+        }
+
+        /**
+         * @return The CPU time to encode and frame a message with the cache
+         */
+        public long getEncodeNanosPerMessage() {
+            return mMessages > 0 ? mEncodeNanos / mMessages : 0L;
+        }
+
+        /**
+         * @return The CPU time to rebuild a message
+         */
+        public long getDecodeNanosPerMessage() {
+            return mMessages > 0 ? mDecodeNanos / mMessages : 0L;
+        }
+
+        /**
+         * @return The number of messages rebuilt different from the original one
+         */
+        public long getMismatches() {
+            return mMismatches;
+        }
+
+        @Override
+        public String toString() {
+            return "batches=" + mBatches
+                    + " messages=" + mMessages
+                    + " plain=" + mPlainChars
+                    + " cached=" + mCachedChars
+                    + " ratio=" + String.format("%.3f", getRatio())
+                    + " refs=" + mRefCount
+                    + " deltas=" + mDeltaCount
+                    + " misses=" + mMisses
+                    + " mismatches=" + mMismatches
+                    + " frame=" + getFrameNanosPerMessage() + "ns/msg"
+                    + " encode=" + getEncodeNanosPerMessage() + "ns/msg"
+                    + " decode=" + getDecodeNanosPerMessage() + "ns/msg";
+        }
+    }
+
+    /**
+     * A recorded batch
+     */
+    private static final class RecordedBatch {
+
+        final long mSeq;
+
+        final List<String> mMessages;
+
+        /**
+         * The batches whose result arrives before this one is sent, with the results
+         */
+        final List<Integer> mResultsBefore = new ArrayList<Integer>();
+
+        final List<Boolean> mSuccessesBefore = new ArrayList<Boolean>();
+
+        RecordedBatch(final long seq, final List<String> messages) {
+            this.mSeq = seq;
+            this.mMessages = messages;
+        }
+    }
+
+    private final SessionTrace mTrace;
+
+    private final int mEntries;
+
+    /**
+     * Creates a PayloadCacheBenchmark
+     *
+     * @param trace   The trace with the messages
+     * @param entries The size of the cache of the sender. The Receiver keeps twice as many
+     */
+    public PayloadCacheBenchmark(final SessionTrace trace, final int entries) {
+        this.mTrace = trace;
+        this.mEntries = entries;
+    }
+
+    /**
+     * Encodes the messages of the trace
+     *
+     * @return The Result
+     */
+    public Result run() {
+        final List<RecordedBatch> batches = collectBatches();
+        Result result = null;
+        long frameNanos = Long.MAX_VALUE;
+        long encodeNanos = Long.MAX_VALUE;
+        long decodeNanos = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            result = runOnce(batches);
+            // The best run is the one with less noise from the rest of the system
+            frameNanos = Math.min(frameNanos, result.mFrameNanos);
+            encodeNanos = Math.min(encodeNanos, result.mEncodeNanos);
+            decodeNanos = Math.min(decodeNanos, result.mDecodeNanos);
+        }
+        result.mFrameNanos = frameNanos;
+        result.mEncodeNanos = encodeNanos;
+        result.mDecodeNanos = decodeNanos;
+        return result;
+    }
+
+    /**
+     * Reads the batches on the custom channel with the acks that arrive between them
+     */
+    private List<RecordedBatch> collectBatches() {
+        final Set<String> namespaces = new HashSet<String>();
+        final Map<Integer, Integer> batchBySendId = new HashMap<Integer, Integer>();
+        final Map<Long, Integer> batchBySeq = new HashMap<Long, Integer>();
+        final List<RecordedBatch> batches = new ArrayList<RecordedBatch>();
+        final List<Integer> results = new ArrayList<Integer>();
+        final List<Boolean> successes = new ArrayList<Boolean>();
+        for (SessionTrace.Event event : mTrace.getEvents()) {
+            if (event.mType == SessionTrace.CHANNEL && event.mFlag) {
+                namespaces.add(event.mText);
+            } else if (event.mType == SessionTrace.SEND && namespaces.contains(event.mText)) {
+                final List<String> messages = new ArrayList<String>();
+                final long seq;
+                try {
+                    seq = MessageEnvelope.unframe(event.mText2, messages);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                final Integer existing = batchBySeq.get(seq);
+                if (existing != null) {
+                    // A batch sent again
+                    batchBySendId.put(event.mId, existing);
+                    continue;
+                }
+                final RecordedBatch batch = new RecordedBatch(seq, messages);
+                batch.mResultsBefore.addAll(results);
+                batch.mSuccessesBefore.addAll(successes);
+                results.clear();
+                successes.clear();
+                batchBySeq.put(seq, batches.size());
+                batchBySendId.put(event.mId, batches.size());
+                batches.add(batch);
+            } else if (event.mType == SessionTrace.SEND_RESULT) {
+                final Integer index = batchBySendId.remove(event.mId);
+                if (index != null) {
+                    results.add(index);
+                    successes.add(event.mFlag);
+                }
+            }
+        }
+        return batches;
+    }
+
+    private Result runOnce(final List<RecordedBatch> batches) {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final PayloadCache cache = new PayloadCache(mEntries);
+        final PayloadCacheDecoder decoder = new PayloadCacheDecoder(mEntries * 2);
+        cache.enable(decoder.getMaxEntries());
+        final PayloadCache.Token[] tokens = new PayloadCache.Token[batches.size()];
+        final Result result = new Result();
+        final List<String> encoded = new ArrayList<String>();
+        for (int i = 0; i < batches.size(); i++) {
+            final RecordedBatch batch = batches.get(i);
+            for (int j = 0; j < batch.mResultsBefore.size(); j++) {
+                final PayloadCache.Token token = tokens[batch.mResultsBefore.get(j)];
+                if (batch.mSuccessesBefore.get(j)) {
+                    cache.onDelivered(token);
+                } else {
+                    cache.onLost(token);
+                }
+            }
+            encoded.clear();
+            encoded.addAll(batch.mMessages);
+            final long encodeStart = threadBean.getCurrentThreadCpuTime();
+            tokens[i] = cache.encode(encoded);
+            final int[] refIndexes = tokens[i].getRefIndexes();
+            final String envelope = MessageEnvelope.frame(batch.mSeq, encoded, refIndexes);
+            result.mEncodeNanos += threadBean.getCurrentThreadCpuTime() - encodeStart;
+            result.mCachedChars += envelope.length();
+            final long frameStart = threadBean.getCurrentThreadCpuTime();
+            final String plainEnvelope = MessageEnvelope.frame(batch.mSeq, batch.mMessages);
+            result.mFrameNanos += threadBean.getCurrentThreadCpuTime() - frameStart;
+            result.mPlainChars += plainEnvelope.length();
+            final long decodeStart = threadBean.getCurrentThreadCpuTime();
+            int nextRef = 0;
+            for (int j = 0; j < encoded.size(); j++) {
+                final boolean ref = nextRef < refIndexes.length && refIndexes[nextRef] == j;
+                if (ref) {
+                    nextRef++;
+                }
+                final String message = decoder.decode(encoded.get(j), ref);
+                if (message == null) {
+                    result.mMisses++;
+                } else if (!message.equals(batch.mMessages.get(j))) {
+                    result.mMismatches++;
+                }
+            }
+            result.mDecodeNanos += threadBean.getCurrentThreadCpuTime() - decodeStart;
+            result.mBatches++;
+            result.mMessages += encoded.size();
+        }
+        result.mRefCount = cache.getRefCount();
+        result.mDeltaCount = cache.getDeltaCount();
+        return result;
+    }
+
+    /**
+     * Encodes the messages of the trace files given as arguments and prints their results
+     *
+     * @param args The optional -entries followed by the size of the cache and the trace files
+     * @throws Exception In case of error reading a trace
+     */
+    public static void main(final String[] args) throws Exception {
+        int entries = 64;
+        int first = 0;
+        if (args.length > 1 && "-entries".equals(args[0])) {
+            entries = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        for (int i = first; i < args.length; i++) {
+            final InputStream in = new BufferedInputStream(new FileInputStream(args[i]));
+            final SessionTrace trace;
+            try {
+                trace = SessionTrace.read(in);
+            } finally {
+                in.close();
+            }
+            System.out.println(args[i] + ": "
+                    + new PayloadCacheBenchmark(trace, entries).run());
+        }
+    }
+}
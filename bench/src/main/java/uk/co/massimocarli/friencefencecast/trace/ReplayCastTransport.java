@@ -0,0 +1,572 @@
+package uk.co.massimocarli.friencefencecast.trace;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.massimocarli.friencefencecast.media.MediaItem;
+import uk.co.massimocarli.friencefencecast.media.PlayerStatus;
+import uk.co.massimocarli.friencefencecast.media.RemotePlayer;
+import uk.co.massimocarli.friencefencecast.session.CastTransport;
+import uk.co.massimocarli.friencefencecast.session.ResultListener;
+
+/**
+ * A CastTransport that plays the part of the device recorded into a {@link SessionTrace},
+ * so the session logic runs on a JVM without Google Play Services. The n-th call of each
+ * kind gets the result of the n-th recorded call of the same kind after the recorded
+ * latency. The sends and the player commands start again from the first recorded one when
+ * they are more than the recorded ones. The events the Receiver sent by itself (messages,
+ * player status, disconnections) are delivered at their recorded time from the connection.
+ * All the times are divided by the speed.
+ */
+public class ReplayCastTransport implements CastTransport {
+
+    /**
+     * The recorded result of a call
+     */
+    private static final class Outcome {
+
+        /**
+         * The time from the call to the result or -1 if the result never arrived
+         */
+        final long mLatencyNanos;
+
+        final boolean mSuccess;
+
+        final int mCode;
+
+        final String mText;
+
+        Outcome(final long latencyNanos, final boolean success, final int code,
+                final String text) {
+            this.mLatencyNanos = latencyNanos;
+            this.mSuccess = success;
+            this.mCode = code;
+            this.mText = text;
+        }
+    }
+
+    private final ScheduledExecutorService mScheduler;
+
+    private final double mSpeed;
+
+    /**
+     * The results of the connections, of the launches and of the joins in call order
+     */
+    private final List<Outcome> mConnectOutcomes = new ArrayList<Outcome>();
+
+    private final List<Outcome> mLaunchOutcomes = new ArrayList<Outcome>();
+
+    private final List<Outcome> mJoinOutcomes = new ArrayList<Outcome>();
+
+    private final List<Outcome> mSendOutcomes = new ArrayList<Outcome>();
+
+    /**
+     * The results of the player commands by command name
+     */
+    private final Map<String, List<Outcome>> mPlayerOutcomes =
+            new HashMap<String, List<Outcome>>();
+
+    /**
+     * The events of the Receiver after each recorded connection
+     */
+    private final List<List<SessionTrace.Event>> mReceiverEvents =
+            new ArrayList<List<SessionTrace.Event>>();
+
+    /**
+     * The number of calls of each kind so far
+     */
+    private int mConnectCount;
+
+    private int mLaunchCount;
+
+    private int mJoinCount;
+
+    private int mSendCount;
+
+    private final Map<String, Integer> mPlayerCounts = new HashMap<String, Integer>();
+
+    /**
+     * The registered channels
+     */
+    private final Set<String> mChannels = new HashSet<String>();
+
+    /**
+     * The events we scheduled for the current connection
+     */
+    private final List<ScheduledFuture<?>> mScheduled = new ArrayList<ScheduledFuture<?>>();
+
+    private ConnectionListener mListener;
+
+    private boolean mConnecting;
+
+    private boolean mConnected;
+
+    private ReplayRemotePlayer mPlayer;
+
+    /**
+     * Creates a ReplayCastTransport
+     *
+     * @param trace     The trace to replay
+     * @param scheduler The executor for the results and the events
+     * @param speed     The speed of the replay: 1 is real time, 10 is ten times faster
+     */
+    public ReplayCastTransport(final SessionTrace trace, final ScheduledExecutorService scheduler,
+                               final double speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("The speed must be positive");
+        }
+        this.mScheduler = scheduler;
+        this.mSpeed = speed;
+        index(trace.getEvents());
+    }
+
+    @Override
+    public synchronized void connect(final ConnectionListener listener) {
+        cancelScheduledLocked();
+        mListener = listener;
+        mConnected = false;
+        mConnecting = true;
+        final int connection = mConnectCount++;
+        if (connection >= mConnectOutcomes.size()) {
+            // The recorded session ends here, the device is not available anymore
+            scheduleLocked(0L, new Runnable() {
+                @Override
+                public void run() {
+                    onConnectResult(listener, connection, false, 0);
+                }
+            });
+            return;
+        }
+        final Outcome outcome = mConnectOutcomes.get(connection);
+        if (outcome.mLatencyNanos < 0) {
+            return;
+        }
+        scheduleLocked(outcome.mLatencyNanos, new Runnable() {
+            @Override
+            public void run() {
+                onConnectResult(listener, connection, outcome.mSuccess, outcome.mCode);
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public synchronized boolean isConnecting() {
+        return mConnecting;
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return mConnected;
+    }
+
+    @Override
+    public synchronized void launchApplication(final String appId,
+                                               final ResultListener<String> listener) {
+        replayLocked(mLaunchOutcomes, mLaunchCount++, listener);
+    }
+
+    @Override
+    public synchronized void joinApplication(final String appId, final String sessionId,
+                                             final ResultListener<String> listener) {
+        replayLocked(mJoinOutcomes, mJoinCount++, listener);
+    }
+
+    @Override
+    public void stopApplication(final String sessionId) {
+        // The next connection replays what happened after the stop
+    }
+
+    @Override
+    public synchronized void setMessageChannel(final String namespace) throws IOException {
+        if (!mConnected) {
+            throw new IOException("Not connected");
+        }
+        mChannels.add(namespace);
+    }
+
+    @Override
+    public synchronized void removeMessageChannel(final String namespace) throws IOException {
+        mChannels.remove(namespace);
+    }
+
+    @Override
+    public synchronized void attachMediaChannel() throws IOException {
+        if (!mConnected) {
+            throw new IOException("Not connected");
+        }
+        if (mPlayer == null) {
+            mPlayer = new ReplayRemotePlayer();
+        }
+    }
+
+    @Override
+    public synchronized void detachMediaChannel() throws IOException {
+        mPlayer = null;
+    }
+
+    @Override
+    public synchronized RemotePlayer getRemotePlayer() {
+        return mPlayer;
+    }
+
+    @Override
+    public synchronized void sendMessage(final String namespace, final String message,
+                                         final SendCallback callback) {
+        if (mSendOutcomes.isEmpty()) {
+            return;
+        }
+        final Outcome outcome = mSendOutcomes.get(mSendCount++ % mSendOutcomes.size());
+        if (outcome.mLatencyNanos < 0) {
+            // The ack never arrived
+            return;
+        }
+        scheduleLocked(outcome.mLatencyNanos, new Runnable() {
+            @Override
+            public void run() {
+                callback.onSendResult(outcome.mSuccess);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        cancelScheduledLocked();
+        mConnected = false;
+        mConnecting = false;
+        mChannels.clear();
+        mPlayer = null;
+    }
+
+    /**
+     * @return The number of connections requested so far
+     */
+    public synchronized int getConnectCount() {
+        return mConnectCount;
+    }
+
+    /**
+     * @return The number of messages sent so far
+     */
+    public synchronized int getSendCount() {
+        return mSendCount;
+    }
+
+    private void onConnectResult(final ConnectionListener listener, final int connection,
+                                 final boolean success, final int errorCode) {
+        synchronized (this) {
+            if (listener != mListener || !mConnecting) {
+                return;
+            }
+            mConnecting = false;
+            mConnected = success;
+            if (success) {
+                scheduleReceiverEventsLocked(listener, mReceiverEvents.get(connection));
+            }
+        }
+        if (success) {
+            listener.onConnected();
+        } else {
+            listener.onConnectionFailed(errorCode);
+        }
+    }
+
+    private void scheduleReceiverEventsLocked(final ConnectionListener listener,
+                                              final List<SessionTrace.Event> events) {
+        final long connectedNanos = events.get(0).mTimeNanos;
+        for (int i = 1; i < events.size(); i++) {
+            final SessionTrace.Event event = events.get(i);
+            scheduleLocked(event.mTimeNanos - connectedNanos, new Runnable() {
+                @Override
+                public void run() {
+                    deliver(listener, event);
+                }
+            });
+        }
+    }
+
+    private void deliver(final ConnectionListener listener, final SessionTrace.Event event) {
+        final ReplayRemotePlayer player;
+        synchronized (this) {
+            if (listener != mListener || !mConnected) {
+                return;
+            }
+            if (event.mType == SessionTrace.MESSAGE_RECEIVED
+                    && !mChannels.contains(event.mText)) {
+                return;
+            }
+            if (event.mType == SessionTrace.CONNECTION_SUSPENDED
+                    || event.mType == SessionTrace.APPLICATION_DISCONNECTED) {
+                mConnected = event.mType != SessionTrace.CONNECTION_SUSPENDED;
+            }
+            player = mPlayer;
+        }
+        switch (event.mType) {
+            case SessionTrace.MESSAGE_RECEIVED:
+                listener.onMessageReceived(event.mText, event.mText2);
+                break;
+            case SessionTrace.CONNECTION_SUSPENDED:
+                listener.onConnectionSuspended(event.mCode);
+                break;
+            case SessionTrace.APPLICATION_DISCONNECTED:
+                listener.onApplicationDisconnected(event.mCode);
+                break;
+            case SessionTrace.PLAYER_STATUS:
+                if (player != null) {
+                    player.deliver(event.mStatus);
+                }
+                break;
+            default:
+        }
+    }
+
+    private void replayLocked(final List<Outcome> outcomes, final int index,
+                              final ResultListener<String> listener) {
+        if (index >= outcomes.size()) {
+            scheduleLocked(0L, new Runnable() {
+                @Override
+                public void run() {
+                    listener.onResult(false, null);
+                }
+            });
+            return;
+        }
+        final Outcome outcome = outcomes.get(index);
+        if (outcome.mLatencyNanos < 0) {
+            return;
+        }
+        scheduleLocked(outcome.mLatencyNanos, new Runnable() {
+            @Override
+            public void run() {
+                listener.onResult(outcome.mSuccess, outcome.mText);
+            }
+        });
+    }
+
+    private synchronized void replayPlayerCommand(final String command,
+                                                  final ResultListener<Void> listener) {
+        final List<Outcome> outcomes = mPlayerOutcomes.get(command);
+        final Integer count = mPlayerCounts.get(command);
+        final int index = count != null ? count : 0;
+        mPlayerCounts.put(command, index + 1);
+        if (outcomes == null) {
+            // Never recorded, we can't say it would have failed
+            if (listener != null) {
+                scheduleLocked(0L, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResult(true, null);
+                    }
+                });
+            }
+            return;
+        }
+        final Outcome outcome = outcomes.get(index % outcomes.size());
+        if (outcome.mLatencyNanos < 0 || listener == null) {
+            return;
+        }
+        scheduleLocked(outcome.mLatencyNanos, new Runnable() {
+            @Override
+            public void run() {
+                listener.onResult(outcome.mSuccess, null);
+            }
+        });
+    }
+
+    private void scheduleLocked(final long traceNanos, final Runnable task) {
+        // We forget the tasks already done so the list doesn't grow with the session
+        if (mScheduled.size() >= 64) {
+            for (int i = mScheduled.size() - 1; i >= 0; i--) {
+                if (mScheduled.get(i).isDone()) {
+                    mScheduled.remove(i);
+                }
+            }
+        }
+        mScheduled.add(mScheduler.schedule(task, (long) (traceNanos / mSpeed),
+                TimeUnit.NANOSECONDS));
+    }
+
+    private void cancelScheduledLocked() {
+        for (ScheduledFuture<?> future : mScheduled) {
+            future.cancel(false);
+        }
+        mScheduled.clear();
+    }
+
+    /**
+     * Splits the trace into the results of the calls and the events of the Receiver
+     */
+    private void index(final List<SessionTrace.Event> events) {
+        final Map<Integer, SessionTrace.Event> calls = new HashMap<Integer, SessionTrace.Event>();
+        final Map<Integer, Integer> sendIndexes = new HashMap<Integer, Integer>();
+        final Map<Integer, Integer> launchIndexes = new HashMap<Integer, Integer>();
+        final Map<Integer, Integer> joinIndexes = new HashMap<Integer, Integer>();
+        final Map<Integer, Integer> playerIndexes = new HashMap<Integer, Integer>();
+        SessionTrace.Event pendingConnect = null;
+        List<SessionTrace.Event> receiverEvents = null;
+        for (SessionTrace.Event event : events) {
+            switch (event.mType) {
+                case SessionTrace.CONNECT:
+                    if (pendingConnect != null) {
+                        addConnectOutcome(new Outcome(-1L, false, 0, null), null);
+                    }
+                    pendingConnect = event;
+                    receiverEvents = null;
+                    break;
+                case SessionTrace.CONNECTED:
+                case SessionTrace.CONNECTION_FAILED:
+                    if (pendingConnect == null) {
+                        break;
+                    }
+                    receiverEvents = null;
+                    if (event.mType == SessionTrace.CONNECTED) {
+                        // The first element is the connection itself, the time reference
+                        receiverEvents = new ArrayList<SessionTrace.Event>();
+                        receiverEvents.add(event);
+                    }
+                    addConnectOutcome(new Outcome(event.mTimeNanos - pendingConnect.mTimeNanos,
+                            receiverEvents != null, event.mCode, null), receiverEvents);
+                    pendingConnect = null;
+                    break;
+                case SessionTrace.CONNECTION_SUSPENDED:
+                case SessionTrace.APPLICATION_DISCONNECTED:
+                case SessionTrace.MESSAGE_RECEIVED:
+                case SessionTrace.PLAYER_STATUS:
+                    if (receiverEvents != null) {
+                        receiverEvents.add(event);
+                    }
+                    break;
+                case SessionTrace.LAUNCH:
+                    calls.put(event.mId, event);
+                    launchIndexes.put(event.mId, mLaunchOutcomes.size());
+                    mLaunchOutcomes.add(new Outcome(-1L, false, 0, null));
+                    break;
+                case SessionTrace.JOIN:
+                    calls.put(event.mId, event);
+                    joinIndexes.put(event.mId, mJoinOutcomes.size());
+                    mJoinOutcomes.add(new Outcome(-1L, false, 0, null));
+                    break;
+                case SessionTrace.APPLICATION_RESULT:
+                    final SessionTrace.Event appCall = calls.remove(event.mId);
+                    if (appCall != null) {
+                        final Outcome appOutcome = new Outcome(
+                                event.mTimeNanos - appCall.mTimeNanos, event.mFlag, 0,
+                                event.mText);
+                        if (appCall.mType == SessionTrace.LAUNCH) {
+                            mLaunchOutcomes.set(launchIndexes.get(event.mId), appOutcome);
+                        } else {
+                            mJoinOutcomes.set(joinIndexes.get(event.mId), appOutcome);
+                        }
+                    }
+                    break;
+                case SessionTrace.SEND:
+                    calls.put(event.mId, event);
+                    sendIndexes.put(event.mId, mSendOutcomes.size());
+                    mSendOutcomes.add(new Outcome(-1L, false, 0, null));
+                    break;
+                case SessionTrace.SEND_RESULT:
+                    final SessionTrace.Event send = calls.remove(event.mId);
+                    if (send != null) {
+                        mSendOutcomes.set(sendIndexes.get(event.mId), new Outcome(
+                                event.mTimeNanos - send.mTimeNanos, event.mFlag, 0, null));
+                    }
+                    break;
+                case SessionTrace.PLAYER_COMMAND:
+                    calls.put(event.mId, event);
+                    List<Outcome> outcomes = mPlayerOutcomes.get(event.mText);
+                    if (outcomes == null) {
+                        outcomes = new ArrayList<Outcome>();
+                        mPlayerOutcomes.put(event.mText, outcomes);
+                    }
+                    playerIndexes.put(event.mId, outcomes.size());
+                    outcomes.add(new Outcome(-1L, false, 0, null));
+                    break;
+                case SessionTrace.PLAYER_RESULT:
+                    final SessionTrace.Event command = calls.remove(event.mId);
+                    if (command != null) {
+                        mPlayerOutcomes.get(command.mText).set(playerIndexes.get(event.mId),
+                                new Outcome(event.mTimeNanos - command.mTimeNanos,
+                                        event.mFlag, 0, null));
+                    }
+                    break;
+                case SessionTrace.DISCONNECT:
+                    receiverEvents = null;
+                    break;
+                default:
+            }
+        }
+        if (pendingConnect != null) {
+            addConnectOutcome(new Outcome(-1L, false, 0, null), null);
+        }
+    }
+
+    private void addConnectOutcome(final Outcome outcome,
+                                   final List<SessionTrace.Event> receiverEvents) {
+        mConnectOutcomes.add(outcome);
+        mReceiverEvents.add(receiverEvents);
+    }
+
+    /**
+     * The RemotePlayer that replays the results of the recorded commands
+     */
+    private class ReplayRemotePlayer implements RemotePlayer {
+
+        private volatile StatusListener mStatusListener;
+
+        @Override
+        public void load(final MediaItem item, final boolean autoplay,
+                         final ResultListener<Void> listener) {
+            replayPlayerCommand(SessionTrace.COMMAND_LOAD, listener);
+        }
+
+        @Override
+        public void play(final ResultListener<Void> listener) {
+            replayPlayerCommand(SessionTrace.COMMAND_PLAY, listener);
+        }
+
+        @Override
+        public void pause(final ResultListener<Void> listener) {
+            replayPlayerCommand(SessionTrace.COMMAND_PAUSE, listener);
+        }
+
+        @Override
+        public void seek(final long positionMillis, final ResumeState resumeState,
+                         final ResultListener<Void> listener) {
+            replayPlayerCommand(SessionTrace.COMMAND_SEEK, listener);
+        }
+
+        @Override
+        public void requestStatus(final ResultListener<Void> listener) {
+            replayPlayerCommand(SessionTrace.COMMAND_STATUS, listener);
+        }
+
+        @Override
+        public void setStatusListener(final StatusListener statusListener) {
+            mStatusListener = statusListener;
+        }
+
+        void deliver(final PlayerStatus recorded) {
+            final StatusListener statusListener = mStatusListener;
+            if (statusListener != null) {
+                // The status is sampled now
+                statusListener.onStatusUpdated(new PlayerStatus(recorded.getPlayerState(),
+                        recorded.isFinished(), recorded.getContentId(),
+                        recorded.getPositionMillis(), recorded.getDurationMillis(),
+                        recorded.getPlaybackRate(), recorded.getVolume(), recorded.isMuted(),
+                        System.nanoTime()));
+            }
+        }
+    }
+}
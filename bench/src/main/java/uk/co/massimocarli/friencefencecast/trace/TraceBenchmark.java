@@ -0,0 +1,407 @@
+package uk.co.massimocarli.friencefencecast.trace;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.massimocarli.friencefencecast.channel.HelloEvent;
+import uk.co.massimocarli.friencefencecast.channel.InboundMessageDispatcher;
+import uk.co.massimocarli.friencefencecast.channel.JsonScanner;
+import uk.co.massimocarli.friencefencecast.channel.MessageEnvelope;
+import uk.co.massimocarli.friencefencecast.media.MediaItem;
+import uk.co.massimocarli.friencefencecast.media.MediaQueue;
+import uk.co.massimocarli.friencefencecast.metrics.LatencyHistogram;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+import uk.co.massimocarli.friencefencecast.session.CastSessionEngine;
+import uk.co.massimocarli.friencefencecast.session.MemorySessionStore;
+
+/**
+ * Replays a {@link SessionTrace} against a new {@link CastSessionEngine} and measures the
+ * latency and the throughput of the session. The device is a {@link ReplayCastTransport}
+ * and the actions of the user are the ones of the trace: every custom message of the
+ * recorded envelopes is sent again at its time, and the media is loaded, played, paused
+ * and moved at the recorded times. The messages the engine sends by itself are skipped.
+ * It runs on any JVM so the traces of the real devices become a repeatable benchmark:
+ * <pre>
+ * java uk.co.massimocarli.friencefencecast.trace.TraceBenchmark -speed 10 a.trace b.trace
+ * </pre>
+ */
+public class TraceBenchmark {
+
+    /**
+     * The route id of the replayed device
+     */
+    private static final String REPLAY_ROUTE_ID = "replay";
+
+    /**
+     * The time we wait for the last acks after the end of the trace
+     */
+    private static final long DRAIN_MILLIS = 5000L;
+
+    /**
+     * The longest time for the session to start, the retries included
+     */
+    private static final long START_TIMEOUT_MILLIS = 60000L;
+
+    /**
+     * The result of a run
+     */
+    public static final class Result {
+
+        long mSelectToRunningNanos;
+
+        long mWallNanos;
+
+        long mOfferedMessages;
+
+        long mDeliveredMessages;
+
+        long mRefusedMessages;
+
+        long mSendCount;
+
+        int mConnectCount;
+
+        long mSendToAckP50Nanos;
+
+        long mSendToAckP99Nanos;
+
+        long mEnqueueToAckP99Nanos;
+
+        long mLoadToPlayingP50Nanos;
+
+        String mMetrics;
+
+        boolean mTimedOut;
+
+        /**
+         * @return The time from the route selection to the RUNNING state or -1
+         */
+        public long getSelectToRunningNanos() {
+            return mSelectToRunningNanos;
+        }
+
+        /**
+         * @return The messages acknowledged by the Receiver for each second of the run. The
+         * messages of the engine are included
+         */
+        public double getDeliveredPerSecond() {
+            return mWallNanos > 0 ? mDeliveredMessages * 1e9 / mWallNanos : 0.0;
+        }
+
+        /**
+         * @return The median time from the send of a batch to its ack
+         */
+        public long getSendToAckP50Nanos() {
+            return mSendToAckP50Nanos;
+        }
+
+        /**
+         * @return The 99th percentile of the time from the send of a batch to its ack
+         */
+        public long getSendToAckP99Nanos() {
+            return mSendToAckP99Nanos;
+        }
+
+        /**
+         * @return True if the session didn't start or the trace didn't end in time
+         */
+        public boolean isTimedOut() {
+            return mTimedOut;
+        }
+
+        /**
+         * @return The snapshot of all the metrics of the engine at the end of the run
+         */
+        public String getMetrics() {
+            return mMetrics;
+        }
+
+        @Override
+        public String toString() {
+            return "select->running=" + mSelectToRunningNanos / 1000000L + "ms"
+                    + " connects=" + mConnectCount
+                    + " offered=" + mOfferedMessages
+                    + " delivered=" + mDeliveredMessages
+                    + " refused=" + mRefusedMessages
+                    + " sends=" + mSendCount
+                    + " throughput=" + Math.round(getDeliveredPerSecond()) + "msg/s"
+                    + " send->ack p50=" + mSendToAckP50Nanos / 1000000L + "ms"
+                    + " p99=" + mSendToAckP99Nanos / 1000000L + "ms"
+                    + " enqueue->ack p99=" + mEnqueueToAckP99Nanos / 1000000L + "ms"
+                    + " load->playing p50=" + mLoadToPlayingP50Nanos / 1000000L + "ms"
+                    + " wall=" + mWallNanos / 1000000L + "ms"
+                    + (mTimedOut ? " TIMED OUT" : "");
+        }
+    }
+
+    private final SessionTrace mTrace;
+
+    private final double mSpeed;
+
+    /**
+     * Creates a TraceBenchmark
+     *
+     * @param trace The trace to replay
+     * @param speed The speed of the replay: 1 is real time, 10 is ten times faster
+     */
+    public TraceBenchmark(final SessionTrace trace, final double speed) {
+        this.mTrace = trace;
+        this.mSpeed = speed;
+    }
+
+    /**
+     * Replays the trace and waits for its end
+     *
+     * @return The Result of the run
+     * @throws InterruptedException If interrupted while waiting for the end
+     */
+    public Result run() throws InterruptedException {
+        String appId = null;
+        String namespace = null;
+        long runningNanos = -1L;
+        for (SessionTrace.Event event : mTrace.getEvents()) {
+            if (appId == null && (event.mType == SessionTrace.LAUNCH
+                    || event.mType == SessionTrace.JOIN)) {
+                appId = event.mText;
+            } else if (namespace == null && event.mType == SessionTrace.CHANNEL && event.mFlag) {
+                namespace = event.mText;
+            } else if (runningNanos < 0 && event.mType == SessionTrace.APPLICATION_RESULT
+                    && event.mFlag) {
+                runningNanos = event.mTimeNanos;
+            }
+        }
+        if (appId == null || namespace == null || runningNanos < 0) {
+            throw new IllegalArgumentException("The trace has no session to replay");
+        }
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+        final ExecutorService inboundExecutor = Executors.newSingleThreadExecutor();
+        try {
+            final MetricsRegistry metrics = new MetricsRegistry();
+            final CastSessionEngine engine = new CastSessionEngine.Builder(appId, namespace)
+                    .setScheduler(scheduler)
+                    .setIoExecutor(ioExecutor)
+                    .setSessionStore(new MemorySessionStore())
+                    .setInboundDispatcher(new InboundMessageDispatcher(inboundExecutor))
+                    .setMetrics(metrics)
+                    .build();
+            final Result result = new Result();
+            final List<Runnable> actions = new ArrayList<Runnable>();
+            final List<Long> actionTimes = new ArrayList<Long>();
+            result.mOfferedMessages = collectActions(engine, namespace, actions, actionTimes);
+            // The actions of the user start when the session is running, as in the trace
+            final long actionsStartNanos = runningNanos;
+            final CountDownLatch actionsDone = new CountDownLatch(1);
+            final AtomicBoolean started = new AtomicBoolean();
+            final AtomicLong delivered = new AtomicLong();
+            final AtomicLong refused = new AtomicLong();
+            engine.addListener(new CastSessionEngine.Listener() {
+                @Override
+                public void onStateChanged(CastSessionEngine.State oldState,
+                                           CastSessionEngine.State newState) {
+                    if (newState == CastSessionEngine.State.RUNNING
+                            && started.compareAndSet(false, true)) {
+                        scheduleActions(scheduler, actions, actionTimes, actionsStartNanos,
+                                actionsDone);
+                    }
+                }
+
+                @Override
+                public void onMessagesSent(int messageCount, boolean success) {
+                    (success ? delivered : refused).addAndGet(messageCount);
+                }
+            });
+            final ReplayCastTransport transport =
+                    new ReplayCastTransport(mTrace, scheduler, mSpeed);
+            final long startNanos = System.nanoTime();
+            engine.selectRoute(REPLAY_ROUTE_ID, transport);
+            final long maxWaitMillis = (long) (mTrace.getDurationNanos() / 1000000L / mSpeed)
+                    + START_TIMEOUT_MILLIS;
+            if (!actionsDone.await(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                result.mTimedOut = true;
+            }
+            awaitDrain(delivered, refused, result.mOfferedMessages);
+            result.mWallNanos = System.nanoTime() - startNanos;
+            result.mSelectToRunningNanos = engine.getSelectToRunningNanos();
+            result.mDeliveredMessages = delivered.get();
+            result.mRefusedMessages = refused.get();
+            result.mSendCount = transport.getSendCount();
+            result.mConnectCount = transport.getConnectCount();
+            final LatencyHistogram sendToAck =
+                    metrics.histogram(CastSessionEngine.METRIC_SEND_TO_ACK);
+            result.mSendToAckP50Nanos = sendToAck.getPercentileNanos(50);
+            result.mSendToAckP99Nanos = sendToAck.getPercentileNanos(99);
+            result.mEnqueueToAckP99Nanos = metrics.histogram(
+                    CastSessionEngine.METRIC_ENQUEUE_TO_ACK).getPercentileNanos(99);
+            result.mLoadToPlayingP50Nanos = metrics.histogram(
+                    CastSessionEngine.METRIC_LOAD_TO_PLAYING).getPercentileNanos(50);
+            result.mMetrics = metrics.snapshot();
+            engine.stop();
+            return result;
+        } finally {
+            scheduler.shutdownNow();
+            ioExecutor.shutdownNow();
+            inboundExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the actions of the user from the recorded sends and player commands
+     *
+     * @return The number of messages the actions send
+     */
+    private long collectActions(final CastSessionEngine engine, final String namespace,
+                                final List<Runnable> actions, final List<Long> actionTimes) {
+        final List<String> messages = new ArrayList<String>();
+        final JsonScanner scanner = new JsonScanner();
+        long offered = 0L;
+        for (SessionTrace.Event event : mTrace.getEvents()) {
+            if (event.mType == SessionTrace.SEND && namespace.equals(event.mText)) {
+                messages.clear();
+                try {
+                    MessageEnvelope.unframe(event.mText2, messages);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                for (final String message : messages) {
+                    if (isEngineMessage(scanner, message)) {
+                        continue;
+                    }
+                    offered++;
+                    actionTimes.add(event.mTimeNanos);
+                    actions.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            engine.sendMessage(message);
+                        }
+                    });
+                }
+            } else if (event.mType == SessionTrace.PLAYER_COMMAND) {
+                final Runnable action = createPlayerAction(engine, event.mText, event.mText2);
+                if (action != null) {
+                    actionTimes.add(event.mTimeNanos);
+                    actions.add(action);
+                }
+            }
+        }
+        return offered;
+    }
+
+    private static Runnable createPlayerAction(final CastSessionEngine engine,
+                                               final String command, final String argument) {
+        if (SessionTrace.COMMAND_LOAD.equals(command)) {
+            final int separator = argument.lastIndexOf(' ');
+            final MediaItem item = new MediaItem(argument.substring(0, separator),
+                    argument.substring(separator + 1), "Replay");
+            return new Runnable() {
+                @Override
+                public void run() {
+                    final MediaQueue mediaQueue = engine.getMediaQueue();
+                    mediaQueue.add(item);
+                    mediaQueue.play(mediaQueue.getItems().size() - 1, null);
+                }
+            };
+        } else if (SessionTrace.COMMAND_PLAY.equals(command)) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    engine.getPlaybackPipeline().play();
+                }
+            };
+        } else if (SessionTrace.COMMAND_PAUSE.equals(command)) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    engine.getPlaybackPipeline().pause();
+                }
+            };
+        } else if (SessionTrace.COMMAND_SEEK.equals(command)) {
+            final long positionMillis = Long.parseLong(argument);
+            return new Runnable() {
+                @Override
+                public void run() {
+                    engine.getPlaybackPipeline().seek(positionMillis);
+                }
+            };
+        }
+        // The status requests come from the engine itself
+        return null;
+    }
+
+    private void scheduleActions(final ScheduledExecutorService scheduler,
+                                 final List<Runnable> actions, final List<Long> actionTimes,
+                                 final long startNanos, final CountDownLatch done) {
+        final long lastNanos = Math.max(mTrace.getDurationNanos(), startNanos);
+        for (int i = 0; i < actions.size(); i++) {
+            final long delayNanos = (long) (Math.max(0L, actionTimes.get(i) - startNanos)
+                    / mSpeed);
+            scheduler.schedule(actions.get(i), delayNanos, TimeUnit.NANOSECONDS);
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, (long) ((lastNanos - startNanos) / mSpeed), TimeUnit.NANOSECONDS);
+    }
+
+    private static void awaitDrain(final AtomicLong delivered, final AtomicLong refused,
+                                   final long offered) throws InterruptedException {
+        final long deadline = System.nanoTime() + DRAIN_MILLIS * 1000000L;
+        while (delivered.get() + refused.get() < offered && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+    }
+
+    private static boolean isEngineMessage(final JsonScanner scanner, final String message) {
+        try {
+            scanner.reset(message);
+            while (scanner.nextField()) {
+                if (scanner.isField("type")) {
+                    final String type = scanner.readString();
+                    return HelloEvent.TYPE.equals(type)
+                            || CastSessionEngine.PRELOAD_MESSAGE_TYPE.equals(type);
+                }
+                scanner.skipValue();
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a JSON object so it's not one of ours
+        }
+        return false;
+    }
+
+    /**
+     * Replays the trace files given as arguments and prints their results
+     *
+     * @param args The optional -speed followed by the speed and the trace files
+     * @throws Exception In case of error reading a trace
+     */
+    public static void main(final String[] args) throws Exception {
+        double speed = 1.0;
+        int first = 0;
+        if (args.length > 1 && "-speed".equals(args[0])) {
+            speed = Double.parseDouble(args[1]);
+            first = 2;
+        }
+        for (int i = first; i < args.length; i++) {
+            final InputStream in = new BufferedInputStream(new FileInputStream(args[i]));
+            final SessionTrace trace;
+            try {
+                trace = SessionTrace.read(in);
+            } finally {
+                in.close();
+            }
+            System.out.println(args[i] + ": " + new TraceBenchmark(trace, speed).run());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the MessageOutbox keeps the replayed messages until they are acknowledged
+ * and that it replays every message without a key.
+ */
+public class MessageOutboxTest {
+
+    private static final int CAPACITY_BYTES = 4096;
+
+    /**
+     * A Sink that accepts everything and keeps the callbacks
+     */
+    private static class RecordingSink implements MessageOutbox.Sink {
+
+        final List<String> mMessages = new ArrayList<String>();
+
+        final List<OutboundMessageQueue.DeliveryCallback> mCallbacks =
+                new ArrayList<OutboundMessageQueue.DeliveryCallback>();
+
+        @Override
+        public boolean onMessage(String key, String message,
+                                 OutboundMessageQueue.DeliveryCallback callback) {
+            mMessages.add(message);
+            mCallbacks.add(callback);
+            return true;
+        }
+    }
+
+    private File mFile;
+
+    private MessageOutbox mOutbox;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("outbox", ".bin");
+        mOutbox = new MessageOutbox(mFile, CAPACITY_BYTES);
+    }
+
+    @After
+    public void tearDown() {
+        mOutbox.close();
+        mFile.delete();
+    }
+
+    @Test
+    public void replayedMessagesStayUntilAcknowledged() {
+        mOutbox.append(null, "a");
+        mOutbox.append(null, "b");
+        final RecordingSink sink = new RecordingSink();
+        assertEquals(2, mOutbox.replay(sink));
+        assertEquals(2, mOutbox.getPendingCount());
+        // The messages waiting for the ack are not replayed again
+        assertEquals(0, mOutbox.replay(new RecordingSink()));
+        sink.mCallbacks.get(0).onDeliveryResult(true);
+        assertEquals(1, mOutbox.getPendingCount());
+        sink.mCallbacks.get(1).onDeliveryResult(true);
+        assertTrue(mOutbox.isEmpty());
+    }
+
+    @Test
+    public void failedMessagesAreReplayedAgain() {
+        mOutbox.append(null, "a");
+        final RecordingSink sink = new RecordingSink();
+        mOutbox.replay(sink);
+        sink.mCallbacks.get(0).onDeliveryResult(false);
+        assertEquals(1, mOutbox.getPendingCount());
+        final RecordingSink retry = new RecordingSink();
+        assertEquals(1, mOutbox.replay(retry));
+        assertEquals(Arrays.asList("a"), retry.mMessages);
+        // A late result of the first attempt is ignored
+        sink.mCallbacks.get(0).onDeliveryResult(true);
+        assertEquals(1, mOutbox.getPendingCount());
+        retry.mCallbacks.get(0).onDeliveryResult(true);
+        assertTrue(mOutbox.isEmpty());
+    }
+
+    @Test
+    public void outOfOrderAcksTruncateFromTheHead() {
+        mOutbox.append(null, "a");
+        mOutbox.append(null, "b");
+        final RecordingSink sink = new RecordingSink();
+        mOutbox.replay(sink);
+        sink.mCallbacks.get(1).onDeliveryResult(true);
+        assertEquals(2, mOutbox.getPendingCount());
+        sink.mCallbacks.get(0).onDeliveryResult(true);
+        assertTrue(mOutbox.isEmpty());
+    }
+
+    @Test
+    public void equalMessagesWithoutKeyAreAllReplayed() {
+        mOutbox.append(null, "ping");
+        mOutbox.append(null, "ping");
+        mOutbox.append("friend-1", "old");
+        mOutbox.append("friend-1", "new");
+        final RecordingSink sink = new RecordingSink();
+        assertEquals(3, mOutbox.replay(sink));
+        assertEquals(Arrays.asList("ping", "ping", "new"), sink.mMessages);
+        for (OutboundMessageQueue.DeliveryCallback callback : sink.mCallbacks) {
+            callback.onDeliveryResult(true);
+        }
+        assertTrue(mOutbox.isEmpty());
+    }
+
+    @Test
+    public void unacknowledgedMessagesSurviveTheProcess() throws IOException {
+        mOutbox.append(null, "a");
+        mOutbox.append(null, "b");
+        final RecordingSink sink = new RecordingSink();
+        mOutbox.replay(sink);
+        sink.mCallbacks.get(0).onDeliveryResult(true);
+        mOutbox.close();
+        mOutbox = new MessageOutbox(mFile, CAPACITY_BYTES);
+        final RecordingSink afterRestart = new RecordingSink();
+        mOutbox.replay(afterRestart);
+        assertEquals(Arrays.asList("b"), afterRestart.mMessages);
+    }
+
+    @Test
+    public void compactionKeepsTheMessagesWaitingForTheAck() {
+        final char[] filler = new char[200];
+        Arrays.fill(filler, 'x');
+        mOutbox.append(null, "first");
+        final RecordingSink sink = new RecordingSink();
+        mOutbox.replay(sink);
+        int count = 1;
+        while (mOutbox.getPendingBytes() + 250 < CAPACITY_BYTES - MessageOutbox.HEADER_SIZE) {
+            mOutbox.append(null, new String(filler));
+            count++;
+        }
+        mOutbox.replay(sink);
+        // The delivered messages are removed by the next compaction
+        for (int i = 1; i < sink.mCallbacks.size(); i++) {
+            sink.mCallbacks.get(i).onDeliveryResult(true);
+        }
+        // The first message is not acknowledged so nothing is truncated yet
+        assertEquals(count, mOutbox.getPendingCount());
+        for (int i = 1; i < count; i++) {
+            assertTrue(mOutbox.append(null, new String(filler)));
+        }
+        assertEquals(0L, mOutbox.getDroppedCount());
+        assertEquals(count, mOutbox.getPendingCount());
+        // The ack of the first message still arrives after it has been moved
+        sink.mCallbacks.get(0).onDeliveryResult(true);
+        assertEquals(count - 1, mOutbox.getPendingCount());
+        final RecordingSink next = new RecordingSink();
+        mOutbox.replay(next);
+        assertFalse(next.mMessages.contains("first"));
+    }
+}
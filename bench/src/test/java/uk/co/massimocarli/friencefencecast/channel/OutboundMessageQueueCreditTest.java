@@ -0,0 +1,164 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the credits of a batch come back only when its send failed and that after a
+ * timeout, or before the first grant, they are taken from the grant of the Receiver.
+ */
+public class OutboundMessageQueueCreditTest {
+
+    private static final String NAMESPACE = "urn:x-cast:uk.co.massimocarli.friendfence";
+
+    private static final long SEND_TIMEOUT_MILLIS = 50L;
+
+    private static final long WAIT_MILLIS = 5000L;
+
+    /**
+     * A transport whose results are given by the test
+     */
+    private static class ManualTransport implements MessageTransport {
+
+        final List<SendCallback> mCallbacks = new CopyOnWriteArrayList<SendCallback>();
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void sendMessage(String namespace, String message, SendCallback callback) {
+            mCallbacks.add(callback);
+        }
+    }
+
+    private ScheduledExecutorService mScheduler;
+
+    private ManualTransport mTransport;
+
+    private OutboundMessageQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mTransport = new ManualTransport();
+        mQueue = new OutboundMessageQueue.Builder(mTransport, NAMESPACE, mScheduler)
+                .setSendTimeoutMillis(SEND_TIMEOUT_MILLIS)
+                .setControlReserve(0)
+                .build();
+        mQueue.addCredits(4, -1L, 4);
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.close();
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void failedSendReturnsTheCredits() throws Exception {
+        send(2);
+        assertEquals(2, mQueue.getCredits());
+        mTransport.mCallbacks.get(0).onSendResult(false);
+        assertEquals(4, mQueue.getCredits());
+    }
+
+    @Test
+    public void timedOutBatchKeepsItsCredits() throws Exception {
+        send(2);
+        awaitNoneInFlight();
+        // The Receiver could have the batch
+        assertEquals(2, mQueue.getCredits());
+        // It got it and grants one credit more: 5 granted, 2 received
+        mQueue.addCredits(1, 0L, 3);
+        assertEquals(3, mQueue.getCredits());
+        assertEquals(1L, mQueue.getCreditResyncCount());
+    }
+
+    @Test
+    public void creditsOfALostBatchComeBackWithTheGrant() throws Exception {
+        send(2);
+        awaitNoneInFlight();
+        send(1);
+        mTransport.mCallbacks.get(1).onSendResult(true);
+        assertEquals(1, mQueue.getCredits());
+        // The Receiver got only the second batch: 5 granted, 1 received
+        mQueue.addCredits(1, 1L, 4);
+        assertEquals(4, mQueue.getCredits());
+        // Without other timeouts the grants are added again
+        mQueue.addCredits(2, 1L, 6);
+        assertEquals(6, mQueue.getCredits());
+        assertEquals(1L, mQueue.getCreditResyncCount());
+    }
+
+    @Test
+    public void batchesNotSeenByTheReceiverKeepTheirCredits() throws Exception {
+        send(2);
+        awaitNoneInFlight();
+        // A batch still in flight when the Receiver sends the grant
+        send(1);
+        // The Receiver got nothing so far: 4 granted, 0 received, both batches could arrive
+        mQueue.addCredits(0, -1L, 4);
+        assertEquals(1, mQueue.getCredits());
+    }
+
+    @Test
+    public void messagesBeforeTheFirstGrantUseTheirCredits() throws Exception {
+        // A new Receiver: the messages are sent before it grants the credits
+        mQueue.resetCredits();
+        send(2);
+        mTransport.mCallbacks.get(0).onSendResult(true);
+        send(1);
+        assertEquals(-1, mQueue.getCredits());
+        // It got the first batch: 4 granted, 2 received, the second batch could arrive
+        mQueue.addCredits(4, 0L, 2);
+        assertEquals(1, mQueue.getCredits());
+        assertEquals(0L, mQueue.getCreditResyncCount());
+    }
+
+    @Test
+    public void messagesOverTheFirstGrantAreTakenFromTheNextOnes() throws Exception {
+        mQueue.resetCredits();
+        send(6);
+        mTransport.mCallbacks.get(0).onSendResult(true);
+        // The Receiver got 6 messages before granting 4
+        mQueue.addCredits(4, 0L, -2);
+        assertEquals(-2, mQueue.getCredits());
+        // The next message waits for the credits
+        send(1);
+        assertEquals(1, mTransport.mCallbacks.size());
+        // It processed 3 of them so the message uses the only credit
+        mQueue.addCredits(3, 0L, 1);
+        assertEquals(2, mTransport.mCallbacks.size());
+        assertEquals(0, mQueue.getCredits());
+    }
+
+    /**
+     * Sends a batch with the given number of messages
+     */
+    private void send(final int messages) {
+        for (int i = 0; i < messages; i++) {
+            mQueue.enqueue(OutboundMessageQueue.Priority.PRESENCE, null, "{\"n\":" + i + "}");
+        }
+        mQueue.flush();
+    }
+
+    private void awaitNoneInFlight() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (mQueue.getInFlightCount() > 0) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1L);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package uk.co.massimocarli.friencefencecast.channel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a message the Receiver missed is sent again with its priority and key and
+ * never after a newer message with the same key.
+ */
+public class PayloadCacheTest {
+
+    private static final String NAMESPACE = "urn:x-cast:uk.co.massimocarli.friendfence";
+
+    private static final String KEY = "me";
+
+    /**
+     * A transport that is ready when the test says so and keeps the sent messages
+     */
+    private static class HoldingTransport implements MessageTransport {
+
+        final List<String> mSent = new CopyOnWriteArrayList<String>();
+
+        volatile boolean mReady;
+
+        @Override
+        public boolean isReady() {
+            return mReady;
+        }
+
+        @Override
+        public void sendMessage(String namespace, String message, SendCallback callback) {
+            mSent.add(message);
+            callback.onSendResult(true);
+        }
+    }
+
+    private ScheduledExecutorService mScheduler;
+
+    private PayloadCache mCache;
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mCache = new PayloadCache(16);
+        mCache.enable(32);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void missedMessageKeepsItsPriorityAndKey() {
+        final String message = location(1);
+        encode(OutboundMessageQueue.Priority.TELEMETRY, KEY, message);
+        final PayloadCache.MissedMessage missed = mCache.onMiss(hashOf(message));
+        assertEquals(message, missed.getMessage());
+        assertEquals(OutboundMessageQueue.Priority.TELEMETRY, missed.getPriority());
+        assertEquals(KEY, missed.getKey());
+    }
+
+    @Test
+    public void supersededMessageIsNotSentAgain() {
+        final String older = location(1);
+        final String newer = location(2);
+        encode(OutboundMessageQueue.Priority.TELEMETRY, KEY, older);
+        encode(OutboundMessageQueue.Priority.TELEMETRY, KEY, newer);
+        assertNull(mCache.onMiss(hashOf(older)));
+        assertEquals(newer, mCache.onMiss(hashOf(newer)).getMessage());
+        // The same message sent again is the newest one
+        encode(OutboundMessageQueue.Priority.TELEMETRY, KEY, older);
+        encode(OutboundMessageQueue.Priority.TELEMETRY, KEY, newer);
+        encode(OutboundMessageQueue.Priority.TELEMETRY, KEY, older);
+        assertEquals(older, mCache.onMiss(hashOf(older)).getMessage());
+    }
+
+    @Test
+    public void unkeyedMessagesAreAlwaysSentAgain() {
+        final String first = location(1);
+        encode(OutboundMessageQueue.Priority.CONTROL, null, first);
+        encode(OutboundMessageQueue.Priority.CONTROL, null, location(2));
+        final PayloadCache.MissedMessage missed = mCache.onMiss(hashOf(first));
+        assertEquals(first, missed.getMessage());
+        assertEquals(OutboundMessageQueue.Priority.CONTROL, missed.getPriority());
+        assertNull(missed.getKey());
+    }
+
+    @Test
+    public void resendKeepsTheNewerPendingMessage() throws Exception {
+        final HoldingTransport transport = new HoldingTransport();
+        final OutboundMessageQueue queue = new OutboundMessageQueue.Builder(transport,
+                NAMESPACE, mScheduler).build();
+        try {
+            assertTrue(queue.enqueue(OutboundMessageQueue.Priority.TELEMETRY, KEY,
+                    location(2)));
+            assertTrue(queue.resend(OutboundMessageQueue.Priority.TELEMETRY, KEY,
+                    location(1)));
+            assertEquals(1, queue.getPendingCount());
+            transport.mReady = true;
+            queue.flush();
+            assertEquals(1, transport.mSent.size());
+            final List<String> messages = new ArrayList<String>();
+            MessageEnvelope.unframe(transport.mSent.get(0), messages);
+            assertEquals(Arrays.asList(location(2)), messages);
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void envelopeTellsTheReferencesApart() {
+        final PayloadCacheDecoder decoder = new PayloadCacheDecoder(32);
+        final String message = location(1);
+        // An application message with the type of a reference
+        final String lookalike = "{\"type\":\"" + PayloadCache.REF_TYPE
+                + "\",\"h\":\"" + hashOf(message) + "\"}";
+        encode(OutboundMessageQueue.Priority.PRESENCE, null, message);
+        final List<String> messages = new ArrayList<String>(
+                Arrays.asList(lookalike, message));
+        final PayloadCache.Token token = mCache.encode(messages);
+        assertEquals(1, token.getRefIndexes().length);
+        final String envelope = MessageEnvelope.frame(7L, messages, token.getRefIndexes());
+        final List<String> received = new ArrayList<String>();
+        final List<Integer> refIndexes = new ArrayList<Integer>();
+        assertEquals(7L, MessageEnvelope.unframe(envelope, received, refIndexes));
+        assertEquals(Arrays.asList(1), refIndexes);
+        // The decoder got the first message in full before
+        decoder.decode(message, false);
+        assertEquals(lookalike, decoder.decode(received.get(0), refIndexes.contains(0)));
+        assertEquals(message, decoder.decode(received.get(1), refIndexes.contains(1)));
+    }
+
+    private void encode(final OutboundMessageQueue.Priority priority, final String key,
+                        final String message) {
+        final List<String> messages = new ArrayList<String>(Arrays.asList(message));
+        mCache.onDelivered(mCache.encode(messages,
+                Arrays.asList(priority), Arrays.asList(key)));
+    }
+
+    private static String hashOf(final String message) {
+        return PayloadCache.formatHash(PayloadCache.hash(message));
+    }
+
+    /**
+     * @return A message long enough to be cached
+     */
+    private static String location(final int n) {
+        return "{\"type\":\"location\",\"n\":" + n + ",\"lat\":51.5072178,\"lng\":-0.1275862,"
+                + "\"accuracy\":12.5}";
+    }
+}
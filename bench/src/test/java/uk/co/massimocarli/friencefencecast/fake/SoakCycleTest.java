@@ -0,0 +1,212 @@
+package uk.co.massimocarli.friencefencecast.fake;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.massimocarli.friencefencecast.channel.MessageOutbox;
+import uk.co.massimocarli.friencefencecast.resilience.RetryPolicy;
+import uk.co.massimocarli.friencefencecast.session.CastSessionEngine;
+import uk.co.massimocarli.friencefencecast.session.CastTestSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.APP_ID;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.NAMESPACE;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.ROUTE_ID;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.WAIT_MILLIS;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.await;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.awaitState;
+
+/**
+ * A short {@link SoakTest} that runs with the other tests. The session is started and
+ * closed many times, with a stop or a disconnect, and messages are sent also while it's
+ * closed. It fails if a teardown leaves a channel, a player or a connection on the
+ * {@link FakeReceiver}, if a message is lost or processed twice, if the outbox isn't
+ * drained or if the credits of the sender and of the Receiver don't match.
+ */
+public class SoakCycleTest {
+
+    private static final int CYCLES = 20;
+
+    /**
+     * The messages sent while the session is running and while it's closed
+     */
+    private static final int RUNNING_MESSAGES = 30;
+
+    private static final int CLOSED_MESSAGES = 5;
+
+    /**
+     * A small window so the sender waits for the credits
+     */
+    private static final int CREDIT_WINDOW = 8;
+
+    private static final int RECEIVER_MESSAGES_PER_SECOND = 2000;
+
+    private static final LinkConditions LINK = new LinkConditions(2L, 1L, 0.0, 0);
+
+    private static final String SOAK_MESSAGE_TYPE = "soak";
+
+    private CastTestSupport mSupport;
+
+    private ScheduledExecutorService mReceiverScheduler;
+
+    private File mOutboxFile;
+
+    private MessageOutbox mOutbox;
+
+    private FakeReceiver mReceiver;
+
+    private CastSessionEngine mEngine;
+
+    private final AtomicLong mProcessed = new AtomicLong();
+
+    private long mSent;
+
+    @Before
+    public void setUp() throws Exception {
+        mSupport = new CastTestSupport();
+        mReceiverScheduler = Executors.newSingleThreadScheduledExecutor();
+        mOutboxFile = File.createTempFile("outbox", ".bin");
+        mOutbox = new MessageOutbox(mOutboxFile, 64 * 1024);
+        mReceiver = new FakeReceiver.Builder(APP_ID, NAMESPACE, mReceiverScheduler)
+                .setLaunchMillis(5L)
+                .setMessagesPerSecond(RECEIVER_MESSAGES_PER_SECOND)
+                .setCreditWindow(CREDIT_WINDOW)
+                .setListener(new FakeReceiver.Listener() {
+                    @Override
+                    public void onMessageProcessed(String message) {
+                        if (message.contains("\"" + SOAK_MESSAGE_TYPE + "\"")) {
+                            mProcessed.incrementAndGet();
+                        }
+                    }
+                })
+                .build();
+        mEngine = mSupport.newEngineBuilder()
+                .setOutbox(mOutbox)
+                .setRetryPolicy(new RetryPolicy(10L, 100L, 5))
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        mReceiver.shutdown();
+        mReceiverScheduler.shutdownNow();
+        mSupport.shutdown();
+        mOutbox.close();
+        mOutboxFile.delete();
+    }
+
+    @Test
+    public void cyclesLeaveNothingBehind() throws Exception {
+        for (int i = 0; i < CYCLES; i++) {
+            final FakeCastTransport transport = start(i);
+            send(RUNNING_MESSAGES);
+            awaitProcessed();
+            assertCreditsBalanced();
+            // Half of the sessions leave the application running so the next one joins it
+            if (i % 2 == 0) {
+                mEngine.stop();
+            } else {
+                mEngine.disconnect();
+            }
+            awaitState(mEngine, CastSessionEngine.State.IDLE);
+            awaitDisconnected(transport);
+            assertEquals("Leaked channels after cycle " + i, 0, mReceiver.getLeakedChannels());
+            assertEquals("Leaked players after cycle " + i, 0, mReceiver.getLeakedPlayers());
+            assertEquals("Open connections after cycle " + i, 0,
+                    mReceiver.getConnectionCount());
+            // These go into the outbox and are sent by the next session
+            send(CLOSED_MESSAGES);
+        }
+        final FakeCastTransport transport = start(CYCLES);
+        awaitProcessed();
+        assertCreditsBalanced();
+        awaitOutboxDrained();
+        assertEquals(0L, mOutbox.getDroppedCount());
+        mEngine.stop();
+        awaitState(mEngine, CastSessionEngine.State.IDLE);
+        awaitDisconnected(transport);
+        assertEquals(0, mReceiver.getLeakedChannels());
+        assertEquals(0, mReceiver.getLeakedPlayers());
+        assertEquals(0, mReceiver.getConnectionCount());
+        assertEquals(mSent, mProcessed.get());
+        assertEquals(0L, mReceiver.getDuplicateMessages());
+        assertEquals(0, mEngine.getTeardownTimeoutCount());
+    }
+
+    private FakeCastTransport start(final int cycle) throws InterruptedException {
+        final FakeCastTransport transport =
+                new FakeCastTransport(mReceiver, LINK, mSupport.getScheduler(), cycle);
+        mEngine.selectRoute(ROUTE_ID, transport);
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        return transport;
+    }
+
+    private void send(final int count) {
+        for (int i = 0; i < count; i++) {
+            mEngine.sendMessage("{\"type\":\"" + SOAK_MESSAGE_TYPE + "\",\"seq\":" + mSent++
+                    + "}");
+        }
+    }
+
+    private void awaitProcessed() throws InterruptedException {
+        await(mSent + " processed", new CastTestSupport.Condition() {
+            @Override
+            public boolean isMet() {
+                return mProcessed.get() >= mSent;
+            }
+        });
+    }
+
+    /**
+     * The last grant can still be on its way, so we wait for the two sides to agree
+     */
+    private void assertCreditsBalanced() throws InterruptedException {
+        await("Credits of the sender " + mEngine.getCredits() + " and of the Receiver "
+                + mReceiver.getAvailableCredits(), new CastTestSupport.Condition() {
+            @Override
+            public boolean isMet() {
+                return mEngine.getCredits() >= 0
+                        && mEngine.getCredits() == mReceiver.getAvailableCredits();
+            }
+        });
+    }
+
+    /**
+     * The teardown runs on the io executor after the IDLE state
+     */
+    private static void awaitDisconnected(final FakeCastTransport transport)
+            throws InterruptedException {
+        await("Disconnection", new CastTestSupport.Condition() {
+            @Override
+            public boolean isMet() {
+                return !transport.isConnected() && !transport.isConnecting();
+            }
+        });
+    }
+
+    /**
+     * The outbox is used on the io executor and forgets a message after its ack
+     */
+    private void awaitOutboxDrained() throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        int pending;
+        while ((pending = mSupport.getIoExecutor().submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mOutbox.getPendingCount();
+            }
+        }).get()) > 0) {
+            assertTrue("Outbox not drained: " + pending, System.nanoTime() < deadline);
+            Thread.sleep(1L);
+        }
+    }
+}
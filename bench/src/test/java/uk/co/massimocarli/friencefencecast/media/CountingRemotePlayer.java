@@ -0,0 +1,178 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.massimocarli.friencefencecast.session.ResultListener;
+
+/**
+ * A RemotePlayer for the tests that counts the commands it gets. Every command succeeds
+ * after the given delay, unless told to fail or to never answer, and then the player sends
+ * its new status as the Receiver does.
+ */
+public class CountingRemotePlayer implements RemotePlayer {
+
+    /**
+     * The commands we count
+     */
+    public enum Command {
+        LOAD,
+        PLAY,
+        PAUSE,
+        SEEK,
+        STATUS
+    }
+
+    private final ScheduledExecutorService mScheduler;
+
+    private final AtomicInteger[] mCounts = new AtomicInteger[Command.values().length];
+
+    private volatile long mResultDelayMillis;
+
+    /**
+     * The number of the next commands that fail and that never get a result
+     */
+    private final AtomicInteger mFailures = new AtomicInteger();
+
+    private final AtomicInteger mLostResults = new AtomicInteger();
+
+    private volatile StatusListener mStatusListener;
+
+    private PlayerStatus.PlayerState mState = PlayerStatus.PlayerState.IDLE;
+
+    private String mContentId;
+
+    private long mPositionMillis;
+
+    /**
+     * Creates a CountingRemotePlayer
+     *
+     * @param scheduler The executor for the results and the statuses
+     */
+    public CountingRemotePlayer(final ScheduledExecutorService scheduler) {
+        this.mScheduler = scheduler;
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param resultDelayMillis The time a command takes
+     */
+    public void setResultDelayMillis(final long resultDelayMillis) {
+        mResultDelayMillis = resultDelayMillis;
+    }
+
+    /**
+     * @param failures The number of the next commands that fail
+     */
+    public void failNext(final int failures) {
+        mFailures.set(failures);
+    }
+
+    /**
+     * @param lostResults The number of the next commands that never get a result
+     */
+    public void loseNext(final int lostResults) {
+        mLostResults.set(lostResults);
+    }
+
+    /**
+     * @param command The command
+     * @return The number of times the command has been sent
+     */
+    public int getCount(final Command command) {
+        return mCounts[command.ordinal()].get();
+    }
+
+    /**
+     * @return The number of commands sent
+     */
+    public int getTotalCount() {
+        int total = 0;
+        for (AtomicInteger count : mCounts) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    @Override
+    public void load(final MediaItem item, final boolean autoplay,
+                     final ResultListener<Void> listener) {
+        command(Command.LOAD, item.getContentId(), autoplay ? PlayerStatus.PlayerState.PLAYING
+                : PlayerStatus.PlayerState.PAUSED, 0L, listener);
+    }
+
+    @Override
+    public void play(final ResultListener<Void> listener) {
+        command(Command.PLAY, null, PlayerStatus.PlayerState.PLAYING, -1L, listener);
+    }
+
+    @Override
+    public void pause(final ResultListener<Void> listener) {
+        command(Command.PAUSE, null, PlayerStatus.PlayerState.PAUSED, -1L, listener);
+    }
+
+    @Override
+    public void seek(final long positionMillis, final ResumeState resumeState,
+                     final ResultListener<Void> listener) {
+        final PlayerStatus.PlayerState state;
+        if (resumeState == ResumeState.PLAY) {
+            state = PlayerStatus.PlayerState.PLAYING;
+        } else if (resumeState == ResumeState.PAUSE) {
+            state = PlayerStatus.PlayerState.PAUSED;
+        } else {
+            state = null;
+        }
+        command(Command.SEEK, null, state, positionMillis, listener);
+    }
+
+    @Override
+    public void requestStatus(final ResultListener<Void> listener) {
+        command(Command.STATUS, null, null, -1L, listener);
+    }
+
+    @Override
+    public void setStatusListener(final StatusListener statusListener) {
+        mStatusListener = statusListener;
+    }
+
+    private void command(final Command command, final String contentId,
+                         final PlayerStatus.PlayerState state, final long positionMillis,
+                         final ResultListener<Void> listener) {
+        mCounts[command.ordinal()].incrementAndGet();
+        if (mLostResults.getAndDecrement() > 0) {
+            return;
+        }
+        final boolean success = mFailures.getAndDecrement() <= 0;
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                final PlayerStatus status;
+                synchronized (CountingRemotePlayer.this) {
+                    if (success) {
+                        if (contentId != null) {
+                            mContentId = contentId;
+                        }
+                        if (state != null && mContentId != null) {
+                            mState = state;
+                        }
+                        if (positionMillis >= 0) {
+                            mPositionMillis = positionMillis;
+                        }
+                    }
+                    status = new PlayerStatus(mState, false, mContentId, mPositionMillis,
+                            60000L, 1.0, 1.0, false, System.nanoTime());
+                }
+                if (listener != null) {
+                    listener.onResult(success, null);
+                }
+                final StatusListener statusListener = mStatusListener;
+                if (statusListener != null) {
+                    statusListener.onStatusUpdated(status);
+                }
+            }
+        }, mResultDelayMillis, TimeUnit.MILLISECONDS);
+    }
+}
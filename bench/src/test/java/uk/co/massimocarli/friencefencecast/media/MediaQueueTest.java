@@ -0,0 +1,122 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the MediaQueue loads the next item only at the end of the current one, that
+ * it records the signed gap of the switch and that it sends the preload hints without
+ * holding its lock.
+ */
+public class MediaQueueTest {
+
+    private static final long DURATION_MILLIS = 60000L;
+
+    private ScheduledExecutorService mScheduler;
+
+    private CountingRemotePlayer mPlayer;
+
+    private MediaQueue mQueue;
+
+    private final List<String> mHints = new CopyOnWriteArrayList<String>();
+
+    private volatile boolean mHintUnderLock;
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mPlayer = new CountingRemotePlayer(mScheduler);
+        mQueue = new MediaQueue(mScheduler, new MediaQueue.PreloadSink() {
+            @Override
+            public void preload(MediaItem item) {
+                mHintUnderLock |= Thread.holdsLock(mQueue);
+                mHints.add(item.getContentId());
+            }
+        }, new MetricsRegistry().histogram("load_to_playing"));
+        mQueue.add(new MediaItem("first", "video/mp4", "First"));
+        mQueue.add(new MediaItem("second", "video/mp4", "Second"));
+        mQueue.attach(mPlayer);
+        mQueue.play(0, null);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void nearEndSendsOnlyTheHint() throws Exception {
+        final int hints = mHints.size();
+        // 100ms to the end is inside the lead of the hint
+        mQueue.onStatusChanged(status(PlayerStatus.PlayerState.PLAYING, false, "first",
+                DURATION_MILLIS - 100L, System.nanoTime()), PlayerStatusCache.FIELD_STATE);
+        Thread.sleep(200L);
+        assertEquals(1, mPlayer.getCount(CountingRemotePlayer.Command.LOAD));
+        assertEquals(0, mQueue.getCurrentIndex());
+        assertEquals(hints + 1, mHints.size());
+        assertEquals("second", mHints.get(mHints.size() - 1));
+        assertFalse(mHintUnderLock);
+    }
+
+    @Test
+    public void finishedItemLoadsTheNextOne() {
+        mQueue.onStatusChanged(status(PlayerStatus.PlayerState.IDLE, true, "first",
+                DURATION_MILLIS, System.nanoTime()), PlayerStatusCache.FIELD_STATE);
+        assertEquals(2, mPlayer.getCount(CountingRemotePlayer.Command.LOAD));
+        assertEquals(1, mQueue.getCurrentIndex());
+        assertFalse(mHintUnderLock);
+    }
+
+    @Test
+    public void playCurrentFollowsTheEdits() {
+        mQueue.remove(1);
+        assertTrue(mQueue.playCurrent(null));
+        assertEquals(0, mQueue.getCurrentIndex());
+        assertEquals(2, mPlayer.getCount(CountingRemotePlayer.Command.LOAD));
+        mQueue.remove(0);
+        // Nothing to play is not an error
+        assertFalse(mQueue.playCurrent(null));
+        assertEquals(2, mPlayer.getCount(CountingRemotePlayer.Command.LOAD));
+    }
+
+    @Test
+    public void switchGapIsSigned() {
+        final long endNanos = System.nanoTime();
+        mQueue.onStatusChanged(status(PlayerStatus.PlayerState.IDLE, true, "first",
+                DURATION_MILLIS, endNanos), PlayerStatusCache.FIELD_STATE);
+        // The status of the new item is sampled before the end of the previous one
+        mQueue.onStatusChanged(status(PlayerStatus.PlayerState.PLAYING, false, "second", 0L,
+                endNanos - 50000000L), PlayerStatusCache.FIELD_STATE);
+        assertEquals(-50L, mQueue.getLastSwitchGapMillis());
+    }
+
+    @Test
+    public void editsSendTheHintsWithoutTheLock() {
+        mQueue.add(1, new MediaItem("inserted", "video/mp4", "Inserted"));
+        mQueue.move(2, 1);
+        mQueue.remove(1);
+        mQueue.next();
+        mQueue.previous();
+        assertTrue(mHints.size() >= 5);
+        assertFalse(mHintUnderLock);
+    }
+
+    private static PlayerStatus status(final PlayerStatus.PlayerState state,
+                                       final boolean finished, final String contentId,
+                                       final long positionMillis, final long sampleTimeNanos) {
+        return new PlayerStatus(state, finished, contentId, positionMillis, DURATION_MILLIS, 1.0,
+                1.0, false, sampleTimeNanos);
+    }
+}
@@ -0,0 +1,186 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.massimocarli.friencefencecast.fake.FakeCastTransport;
+import uk.co.massimocarli.friencefencecast.fake.FakeReceiver;
+import uk.co.massimocarli.friencefencecast.fake.LinkConditions;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+import uk.co.massimocarli.friencefencecast.session.CastSessionEngine;
+import uk.co.massimocarli.friencefencecast.session.CastTestSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.APP_ID;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.NAMESPACE;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.ROUTE_ID;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.WAIT_MILLIS;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.await;
+
+/**
+ * Plays the media through a {@link FakeCastTransport} on a simulated link and checks the
+ * renditions the MediaSelector chooses. The stream of the {@link FakeReceiver} is slower
+ * than the best rendition, so it stalls, and faster than the middle one.
+ */
+public class MediaSelectorLinkTest {
+
+    private static final String MP4 = "video/mp4";
+
+    private static final int STREAM_KBPS = 2000;
+
+    private static final long BUFFERING_MILLIS = 200L;
+
+    /**
+     * The time we play a media to be sure it doesn't stall
+     */
+    private static final long STABLE_MILLIS = 600L;
+
+    private static final LinkConditions GOOD_LINK = new LinkConditions(1L, 0L, 0.0, 0);
+
+    /**
+     * A congested link: its round trip time is enough to lower the cap
+     */
+    private static final LinkConditions SLOW_LINK = new LinkConditions(40L, 5L, 0.0, 0);
+
+    private CastTestSupport mSupport;
+
+    private ScheduledExecutorService mReceiverScheduler;
+
+    private FakeReceiver mReceiver;
+
+    private MediaSelector mSelector;
+
+    private CastSessionEngine mEngine;
+
+    /**
+     * The time each content started to play
+     */
+    private final ConcurrentHashMap<String, Long> mPlayingSince =
+            new ConcurrentHashMap<String, Long>();
+
+    @Before
+    public void setUp() {
+        mSupport = new CastTestSupport();
+        mReceiverScheduler = Executors.newSingleThreadScheduledExecutor();
+        mReceiver = new FakeReceiver.Builder(APP_ID, NAMESPACE, mReceiverScheduler)
+                .setLaunchMillis(10L)
+                .setBufferingMillis(BUFFERING_MILLIS)
+                .setMediaDurationMillis(5000L)
+                .setStreamKbps(STREAM_KBPS)
+                .build();
+        mSelector = new MediaSelector(null, new MetricsRegistry());
+        mEngine = mSupport.newEngineBuilder()
+                .setMediaSelector(mSelector)
+                .build();
+        mEngine.getStatusCache().addObserver(new PlayerStatusCache.Observer() {
+            @Override
+            public void onStatusChanged(PlayerStatus status, int changedFields) {
+                if (status.getPlayerState() == PlayerStatus.PlayerState.PLAYING
+                        && status.getContentId() != null) {
+                    mPlayingSince.putIfAbsent(status.getContentId(), System.nanoTime());
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mReceiver.shutdown();
+        mReceiverScheduler.shutdownNow();
+        mSupport.shutdown();
+    }
+
+    @Test
+    public void stallLowersTheRenditionOfTheNextMedia() throws Exception {
+        start(GOOD_LINK);
+        // Nothing limits the first media so the best rendition stalls
+        final long firstStartup = play(0, createItem("first"));
+        assertEquals(url("first", 4000), mReceiver.getPlayerStatus().getContentId());
+        awaitStalls(1L);
+        final long firstStalls = mSelector.getStallCount(ROUTE_ID);
+        // The next media starts below the cap
+        final long secondStartup = play(1, createItem("second"));
+        assertEquals(url("second", 1500), mReceiver.getPlayerStatus().getContentId());
+        Thread.sleep(STABLE_MILLIS);
+        final long secondStalls = mSelector.getStallCount(ROUTE_ID) - firstStalls;
+        assertEquals(0L, secondStalls);
+        assertTrue("Startup " + secondStartup + "ms after " + firstStartup + "ms",
+                secondStartup < firstStartup);
+        assertEquals(mReceiver.getStallCount(), mSelector.getStallCount(ROUTE_ID));
+    }
+
+    @Test
+    public void slowLinkStartsBelowTheBestRendition() throws Exception {
+        start(SLOW_LINK);
+        play(0, createItem("first"));
+        assertEquals(url("first", 1500), mReceiver.getPlayerStatus().getContentId());
+        Thread.sleep(STABLE_MILLIS);
+        assertEquals(0L, mSelector.getStallCount(ROUTE_ID));
+        assertEquals(0L, mReceiver.getStallCount());
+    }
+
+    /**
+     * Starts the session and waits for the first round trip time
+     */
+    private void start(final LinkConditions conditions) throws InterruptedException {
+        mEngine.selectRoute(ROUTE_ID, new FakeCastTransport(mReceiver, conditions,
+                mSupport.getScheduler(), 1L));
+        await("Session started", new CastTestSupport.Condition() {
+            @Override
+            public boolean isMet() {
+                return mEngine.getRemotePlayer() != null
+                        && mEngine.getRoundTripEstimateNanos() >= 0;
+            }
+        });
+    }
+
+    /**
+     * Adds the item to the queue and plays it
+     *
+     * @return The time from the play to the playing status in milliseconds
+     */
+    private long play(final int index, final MediaItem item) throws InterruptedException {
+        final MediaQueue mediaQueue = mEngine.getMediaQueue();
+        mediaQueue.add(item);
+        final long start = System.nanoTime();
+        mediaQueue.play(index, null);
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (true) {
+            final PlayerStatus status = mEngine.getStatusCache().getStatus();
+            final String contentId = status != null ? status.getContentId() : null;
+            final Long playingSince = contentId != null ? mPlayingSince.get(contentId) : null;
+            if (playingSince != null && item.hasContentId(contentId)) {
+                return TimeUnit.NANOSECONDS.toMillis(playingSince - start);
+            }
+            assertTrue("Not playing " + item, System.nanoTime() < deadline);
+            Thread.sleep(1L);
+        }
+    }
+
+    private void awaitStalls(final long stalls) throws InterruptedException {
+        await("Stall", new CastTestSupport.Condition() {
+            @Override
+            public boolean isMet() {
+                return mSelector.getStallCount(ROUTE_ID) >= stalls;
+            }
+        });
+    }
+
+    private static MediaItem createItem(final String name) {
+        return new MediaItem(name, Arrays.asList(new Rendition(url(name, 500), MP4, 500),
+                new Rendition(url(name, 1500), MP4, 1500),
+                new Rendition(url(name, 4000), MP4, 4000)));
+    }
+
+    private static String url(final String name, final int bitrateKbps) {
+        return "http://fake/" + name + "-" + bitrateKbps + ".mp4";
+    }
+}
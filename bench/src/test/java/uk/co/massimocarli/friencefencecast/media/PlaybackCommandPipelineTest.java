@@ -0,0 +1,173 @@
+package uk.co.massimocarli.friencefencecast.media;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+import uk.co.massimocarli.friencefencecast.resilience.RetryPolicy;
+import uk.co.massimocarli.friencefencecast.session.CastTestSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.WAIT_MILLIS;
+
+/**
+ * Counts the commands the PlaybackCommandPipeline sends to a {@link CountingRemotePlayer}
+ * for bursts of requests, failures and lost results.
+ */
+public class PlaybackCommandPipelineTest {
+
+    private static final long DEBOUNCE_MILLIS = 50L;
+
+    private static final long COMMAND_TIMEOUT_MILLIS = 200L;
+
+    private ScheduledThreadPoolExecutor mScheduler;
+
+    private ScheduledExecutorService mPlayerScheduler;
+
+    private CountingRemotePlayer mPlayer;
+
+    private PlaybackCommandPipeline mPipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        mScheduler = new ScheduledThreadPoolExecutor(1);
+        // We check that the cancelled timeouts don't stay in the queue
+        mScheduler.setRemoveOnCancelPolicy(true);
+        mPlayerScheduler = Executors.newSingleThreadScheduledExecutor();
+        mPlayer = new CountingRemotePlayer(mPlayerScheduler);
+        mPlayer.setResultDelayMillis(5L);
+        final PlayerStatusCache statusCache = new PlayerStatusCache();
+        mPlayer.setStatusListener(statusCache);
+        final MediaQueue mediaQueue = new MediaQueue(mPlayerScheduler,
+                new MediaQueue.PreloadSink() {
+                    @Override
+                    public void preload(MediaItem item) {
+                    }
+                }, new MetricsRegistry().histogram("load_to_playing"));
+        mediaQueue.add(new MediaItem("video", "video/mp4", "Video"));
+        mediaQueue.attach(mPlayer);
+        mPipeline = new PlaybackCommandPipeline(mScheduler, statusCache, mediaQueue,
+                DEBOUNCE_MILLIS, new RetryPolicy(10L, 10L, 3), COMMAND_TIMEOUT_MILLIS);
+        mPipeline.attach(mPlayer);
+        // Nothing is loaded so the first play loads the item of the queue
+        assertTrue(await(mPipeline.play()));
+        assertEquals(1, mPlayer.getCount(CountingRemotePlayer.Command.LOAD));
+        awaitState(statusCache, PlayerStatus.PlayerState.PLAYING);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+        mPlayerScheduler.shutdownNow();
+    }
+
+    @Test
+    public void burstOfToggles() throws Exception {
+        final int before = mPlayer.getTotalCount();
+        mPipeline.pause();
+        mPipeline.play();
+        mPipeline.pause();
+        assertTrue(await(mPipeline.play()));
+        // Play, pause and play again on a playing player is nothing
+        assertEquals(before, mPlayer.getTotalCount());
+        assertTrue(await(mPipeline.pause()));
+        assertEquals(1, mPlayer.getCount(CountingRemotePlayer.Command.PAUSE));
+    }
+
+    @Test
+    public void burstOfSeeks() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            mPipeline.seek(i * 1000L);
+        }
+        assertTrue(await(mPipeline.pause()));
+        // The seeks and the pause are a single seek
+        assertEquals(1, mPlayer.getCount(CountingRemotePlayer.Command.SEEK));
+        assertEquals(0, mPlayer.getCount(CountingRemotePlayer.Command.PAUSE));
+        // The load and the seek
+        assertEquals(2, mPipeline.getSentCount());
+    }
+
+    @Test
+    public void failedCommandIsRetried() throws Exception {
+        mPlayer.failNext(1);
+        assertTrue(await(mPipeline.pause()));
+        assertEquals(2, mPlayer.getCount(CountingRemotePlayer.Command.PAUSE));
+        assertEquals(1, mPipeline.getRetryCount());
+    }
+
+    @Test
+    public void failuresStopAtTheRetryPolicy() throws Exception {
+        mPlayer.failNext(10);
+        assertFalse(await(mPipeline.pause()));
+        assertEquals(3, mPlayer.getCount(CountingRemotePlayer.Command.PAUSE));
+    }
+
+    @Test
+    public void lostResultTimesOutAndIsRetried() throws Exception {
+        mPlayer.loseNext(1);
+        assertTrue(await(mPipeline.pause()));
+        assertEquals(2, mPlayer.getCount(CountingRemotePlayer.Command.PAUSE));
+        assertEquals(1, mPipeline.getRetryCount());
+    }
+
+    @Test
+    public void completedCommandCancelsItsTimeout() throws Exception {
+        assertTrue(await(mPipeline.pause()));
+        // Only the timeout of a command still in flight could be scheduled
+        assertTrue(mScheduler.getQueue().isEmpty());
+        Thread.sleep(COMMAND_TIMEOUT_MILLIS * 2);
+        assertEquals(1, mPlayer.getCount(CountingRemotePlayer.Command.PAUSE));
+        assertEquals(0, mPipeline.getRetryCount());
+    }
+
+    @Test
+    public void detachFailsTheCommandInFlight() throws Exception {
+        mPlayer.loseNext(1);
+        final CommandFuture pause = mPipeline.pause();
+        awaitCount(CountingRemotePlayer.Command.PAUSE, 1);
+        mPipeline.detach();
+        assertFalse(await(pause));
+        // The timeout of the lost result doesn't fire against the next player
+        assertTrue(mScheduler.getQueue().isEmpty());
+        mPipeline.attach(mPlayer);
+        assertTrue(await(mPipeline.pause()));
+        Thread.sleep(COMMAND_TIMEOUT_MILLIS * 2);
+        assertEquals(2, mPlayer.getCount(CountingRemotePlayer.Command.PAUSE));
+        assertEquals(0, mPipeline.getRetryCount());
+    }
+
+    private void awaitCount(final CountingRemotePlayer.Command command, final int expected)
+            throws InterruptedException {
+        CastTestSupport.await(command + " sent " + expected + " times",
+                new CastTestSupport.Condition() {
+                    @Override
+                    public boolean isMet() {
+                        return mPlayer.getCount(command) >= expected;
+                    }
+                });
+    }
+
+    private static boolean await(final CommandFuture future) throws Exception {
+        return future.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void awaitState(final PlayerStatusCache statusCache,
+                                   final PlayerStatus.PlayerState state)
+            throws InterruptedException {
+        CastTestSupport.await("Player " + state, new CastTestSupport.Condition() {
+            @Override
+            public boolean isMet() {
+                return statusCache.getStatus() != null
+                        && statusCache.getStatus().getPlayerState() == state;
+            }
+        });
+    }
+}
@@ -0,0 +1,117 @@
+package uk.co.massimocarli.friencefencecast.metrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the percentiles of the LatencyHistogram against the exact ones of known
+ * distributions. A percentile is never lower than the real one and never higher than its
+ * bucket, which is 1/32 of the value wide.
+ */
+public class LatencyHistogramTest {
+
+    private static final double[] PERCENTILES = {1, 10, 50, 90, 99, 99.9, 100};
+
+    private static final double MAX_ERROR = 1.0 / 32;
+
+    private static final int SAMPLES = 100000;
+
+    private MetricsRegistry mRegistry;
+
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mRegistry = new MetricsRegistry();
+        mRandom = new Random(42L);
+    }
+
+    @Test
+    public void emptyHistogramReturnsZero() {
+        final LatencyHistogram histogram = mRegistry.histogram("empty");
+        assertEquals(0L, histogram.getPercentileNanos(50));
+        assertEquals(0L, histogram.getMeanNanos());
+        assertEquals(0L, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void constantDistribution() {
+        final long[] values = new long[SAMPLES];
+        Arrays.fill(values, 1234567L);
+        final LatencyHistogram histogram = record("constant", values);
+        for (double percentile : PERCENTILES) {
+            assertEquals(1234567L, histogram.getPercentileNanos(percentile));
+        }
+        assertEquals(1234567L, histogram.getMeanNanos());
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        final long[] values = new long[32];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        final LatencyHistogram histogram = record("small", values);
+        assertEquals(15L, histogram.getPercentileNanos(50));
+        assertEquals(31L, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void uniformDistribution() {
+        final long[] values = new long[SAMPLES];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1000L + (long) (mRandom.nextDouble() * 100000000L);
+        }
+        assertPercentiles(record("uniform", values), values);
+    }
+
+    @Test
+    public void exponentialDistribution() {
+        final long[] values = new long[SAMPLES];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (-Math.log(1.0 - mRandom.nextDouble()) * 5000000L);
+        }
+        assertPercentiles(record("exponential", values), values);
+    }
+
+    @Test
+    public void longDurationsAreCapped() {
+        final LatencyHistogram histogram = mRegistry.histogram("capped");
+        histogram.record(-5L);
+        histogram.record(Long.MAX_VALUE);
+        final long max = (1L << 41) - 1;
+        assertEquals(0L, histogram.getPercentileNanos(50));
+        assertEquals(max, histogram.getPercentileNanos(100));
+        assertEquals(max, histogram.getMaxNanos());
+    }
+
+    private LatencyHistogram record(final String name, final long[] values) {
+        final LatencyHistogram histogram = mRegistry.histogram(name);
+        for (long value : values) {
+            histogram.record(value);
+        }
+        assertEquals(values.length, histogram.getCount());
+        return histogram;
+    }
+
+    private static void assertPercentiles(final LatencyHistogram histogram,
+                                          final long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double percentile : PERCENTILES) {
+            final int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+            final long expected = sorted[Math.max(1, rank) - 1];
+            final long actual = histogram.getPercentileNanos(percentile);
+            assertTrue("p" + percentile + " " + actual + " < " + expected, actual >= expected);
+            assertTrue("p" + percentile + " " + actual + " too far from " + expected,
+                    actual <= expected + (long) (expected * MAX_ERROR));
+        }
+        assertEquals(sorted[sorted.length - 1], histogram.getMaxNanos());
+    }
+}
@@ -0,0 +1,167 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.massimocarli.friencefencecast.channel.OutboundMessageQueue;
+import uk.co.massimocarli.friencefencecast.fake.FakeCastTransport;
+import uk.co.massimocarli.friencefencecast.fake.FakeReceiver;
+import uk.co.massimocarli.friencefencecast.fake.LinkConditions;
+import uk.co.massimocarli.friencefencecast.metrics.MetricsRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.APP_ID;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.NAMESPACE;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.ROUTE_ID;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.await;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.awaitState;
+
+/**
+ * Floods a slow {@link FakeReceiver} with telemetry while the control messages are sent and
+ * checks that the credits keep the Receiver's inbox within the window, that the telemetry is
+ * dropped instead of piling up and that the control messages are never stuck behind it.
+ */
+public class CastSessionCreditTest {
+
+    private static final int MESSAGES_PER_SECOND = 200;
+
+    private static final int CREDIT_WINDOW = 16;
+
+    private static final long FLOOD_MILLIS = 1000L;
+
+    private static final int TELEMETRY_PER_MILLI = 5;
+
+    private static final long CONTROL_INTERVAL_MILLIS = 50L;
+
+    /**
+     * The Receiver needs 25 seconds for all the telemetry, the control messages much less
+     */
+    private static final long MAX_CONTROL_LATENCY_MILLIS = 1000L;
+
+    private static final LinkConditions GOOD_LINK = new LinkConditions(1L, 0L, 0.0, 0);
+
+    private CastTestSupport mSupport;
+
+    private ScheduledExecutorService mReceiverScheduler;
+
+    private MetricsRegistry mMetrics;
+
+    private FakeReceiver mReceiver;
+
+    private CastSessionEngine mEngine;
+
+    /**
+     * The time the control messages have been sent and processed
+     */
+    private final ConcurrentHashMap<String, Long> mSentAt = new ConcurrentHashMap<String, Long>();
+
+    private final ConcurrentHashMap<String, Long> mProcessedAt =
+            new ConcurrentHashMap<String, Long>();
+
+    private final AtomicInteger mProcessedTelemetry = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        mSupport = new CastTestSupport();
+        mReceiverScheduler = Executors.newSingleThreadScheduledExecutor();
+        mMetrics = new MetricsRegistry();
+        mReceiver = new FakeReceiver.Builder(APP_ID, NAMESPACE, mReceiverScheduler)
+                .setLaunchMillis(10L)
+                .setMessagesPerSecond(MESSAGES_PER_SECOND)
+                .setCreditWindow(CREDIT_WINDOW)
+                .setListener(new FakeReceiver.Listener() {
+                    @Override
+                    public void onMessageProcessed(String message) {
+                        if (message.contains("telemetry")) {
+                            mProcessedTelemetry.incrementAndGet();
+                        } else {
+                            mProcessedAt.putIfAbsent(message, System.nanoTime());
+                        }
+                    }
+                })
+                .build();
+        mEngine = mSupport.newEngineBuilder()
+                .setMetrics(mMetrics)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        mReceiver.shutdown();
+        mReceiverScheduler.shutdownNow();
+        mSupport.shutdown();
+    }
+
+    @Test
+    public void controlMessagesOvertakeTheTelemetryFlood() throws Exception {
+        mEngine.selectRoute(ROUTE_ID, new FakeCastTransport(mReceiver, GOOD_LINK,
+                mSupport.getScheduler(), 1L));
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        // The Receiver processed the hello, and granted the credits, before this one
+        awaitProcessed(sendControl(0));
+        int controls = 1;
+        int telemetry = 0;
+        int refused = 0;
+        final long start = System.nanoTime();
+        long nextControl = start;
+        while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(FLOOD_MILLIS)) {
+            for (int i = 0; i < TELEMETRY_PER_MILLI; i++) {
+                if (!mEngine.sendMessage(OutboundMessageQueue.Priority.TELEMETRY,
+                        "{\"type\":\"telemetry\",\"n\":" + telemetry++ + "}")) {
+                    refused++;
+                }
+            }
+            if (System.nanoTime() >= nextControl) {
+                sendControl(controls++);
+                nextControl += TimeUnit.MILLISECONDS.toNanos(CONTROL_INTERVAL_MILLIS);
+            }
+            Thread.sleep(1L);
+        }
+        long maxLatencyNanos = 0L;
+        for (int i = 0; i < controls; i++) {
+            final String control = control(i);
+            awaitProcessed(control);
+            maxLatencyNanos = Math.max(maxLatencyNanos,
+                    mProcessedAt.get(control) - mSentAt.get(control));
+        }
+        final long maxLatencyMillis = TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos);
+        final long shed = mMetrics.counter(CastSessionEngine.METRIC_SHED_MESSAGES).get();
+        assertTrue("Control latency " + maxLatencyMillis + "ms",
+                maxLatencyMillis < MAX_CONTROL_LATENCY_MILLIS);
+        // The credits bound what the Receiver holds, the queue what the sender holds
+        assertTrue("Inbox " + mReceiver.getMaxInboxSize(),
+                mReceiver.getMaxInboxSize() <= CREDIT_WINDOW);
+        assertTrue("Shed " + shed + " refused " + refused, shed + refused > 0);
+        assertTrue("Processed " + mProcessedTelemetry.get() + " of " + telemetry,
+                mProcessedTelemetry.get() < telemetry);
+        assertEquals(0L, mReceiver.getDuplicateMessages());
+    }
+
+    private String sendControl(final int index) {
+        final String control = control(index);
+        mSentAt.put(control, System.nanoTime());
+        assertTrue(mEngine.sendMessage(OutboundMessageQueue.Priority.CONTROL, control));
+        return control;
+    }
+
+    private static String control(final int index) {
+        return "{\"type\":\"control\",\"n\":" + index + "}";
+    }
+
+    private void awaitProcessed(final String message) throws InterruptedException {
+        await("Processed " + message, new CastTestSupport.Condition() {
+            @Override
+            public boolean isMet() {
+                return mProcessedAt.containsKey(message);
+            }
+        });
+    }
+}
@@ -0,0 +1,314 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.massimocarli.friencefencecast.channel.MessageOutbox;
+import uk.co.massimocarli.friencefencecast.channel.OutboundMessageQueue;
+import uk.co.massimocarli.friencefencecast.resilience.CircuitBreaker;
+import uk.co.massimocarli.friencefencecast.resilience.RetryPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.NAMESPACE;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.ROUTE_ID;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.WAIT_MILLIS;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.await;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.awaitState;
+
+/**
+ * Injects faults with a {@link CountingCastTransport} and checks that the CastSessionEngine
+ * recovers in time and that every failure costs a single call to the device more.
+ */
+public class CastSessionEngineFaultTest {
+
+    /**
+     * A fast policy so the test doesn't wait for the real backoff
+     */
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy(10L, 20L, 5);
+
+    private static final long SUSPENDED_TIMEOUT_MILLIS = 200L;
+
+    private CastTestSupport mSupport;
+
+    private CountingCastTransport mTransport;
+
+    private MemorySessionStore mSessionStore;
+
+    private CastSessionEngine mEngine;
+
+    private final AtomicInteger mSentMessages = new AtomicInteger();
+
+    private final AtomicInteger mFailedMessages = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        mSupport = new CastTestSupport();
+        mTransport = new CountingCastTransport(mSupport.getScheduler());
+        mSessionStore = new MemorySessionStore();
+        mEngine = createEngine(null);
+    }
+
+    @After
+    public void tearDown() {
+        mSupport.shutdown();
+    }
+
+    private CastSessionEngine createEngine(final MessageOutbox outbox) {
+        final CastSessionEngine engine = mSupport.newEngineBuilder()
+                .setSessionStore(mSessionStore)
+                .setRetryPolicy(RETRY_POLICY)
+                .setSuspendedTimeoutMillis(SUSPENDED_TIMEOUT_MILLIS)
+                .setOutbox(outbox)
+                .build();
+        engine.addListener(new CastSessionEngine.Listener() {
+            @Override
+            public void onStateChanged(CastSessionEngine.State oldState,
+                                       CastSessionEngine.State newState) {
+            }
+
+            @Override
+            public void onMessagesSent(int messageCount, boolean success) {
+                (success ? mSentMessages : mFailedMessages).addAndGet(messageCount);
+            }
+        });
+        return engine;
+    }
+
+    @Test
+    public void recoversFromFailedConnections() throws Exception {
+        mTransport.failNextConnects(2);
+        final long start = System.nanoTime();
+        assertTrue(mEngine.selectRoute(ROUTE_ID, mTransport));
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        final long recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Recovered in " + recoveryMillis + "ms", recoveryMillis < 1000L);
+        assertEquals(3, mTransport.getCount(CountingCastTransport.Call.CONNECT));
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.LAUNCH));
+    }
+
+    @Test
+    public void recoversFromFailedLaunches() throws Exception {
+        mTransport.failNextLaunches(2);
+        mEngine.selectRoute(ROUTE_ID, mTransport);
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        // Only the launch is tried again, the connection is still good
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.CONNECT));
+        assertEquals(3, mTransport.getCount(CountingCastTransport.Call.LAUNCH));
+    }
+
+    @Test
+    public void deadDeviceOpensTheCircuit() throws Exception {
+        mTransport.failNextConnects(Integer.MAX_VALUE);
+        mEngine.selectRoute(ROUTE_ID, mTransport);
+        awaitState(mEngine, CastSessionEngine.State.IDLE);
+        // The attempts are bounded by the policy
+        assertEquals(RETRY_POLICY.getMaxAttempts(),
+                mTransport.getCount(CountingCastTransport.Call.CONNECT));
+        assertEquals(CircuitBreaker.State.OPEN, mEngine.getCircuitState(ROUTE_ID));
+        // The device is left alone while the circuit is open
+        assertFalse(mEngine.selectRoute(ROUTE_ID, mTransport));
+        assertEquals(RETRY_POLICY.getMaxAttempts(),
+                mTransport.getCount(CountingCastTransport.Call.CONNECT));
+    }
+
+    @Test
+    public void failedSendsAreRetried() throws Exception {
+        mEngine.selectRoute(ROUTE_ID, mTransport);
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        // We wait for the hello so the batch has only our message
+        awaitCount(mSentMessages, 1);
+        final int sends = mTransport.getCount(CountingCastTransport.Call.SEND);
+        mTransport.failNextSends(2);
+        assertTrue(mEngine.sendMessage(OutboundMessageQueue.Priority.CONTROL,
+                "{\"type\":\"fault\"}"));
+        awaitCount(mSentMessages, 2);
+        assertEquals(sends + 3, mTransport.getCount(CountingCastTransport.Call.SEND));
+        assertEquals(0, mFailedMessages.get());
+    }
+
+    @Test
+    public void savedMessagesLeaveTheOutboxWhenDelivered() throws Exception {
+        final File file = File.createTempFile("outbox", ".bin");
+        final MessageOutbox outbox = new MessageOutbox(file, 4096);
+        try {
+            mEngine = createEngine(outbox);
+            // Without a session the equal messages are both saved
+            assertTrue(mEngine.sendMessage("{\"type\":\"ping\"}"));
+            assertTrue(mEngine.sendMessage("{\"type\":\"ping\"}"));
+            awaitPending(outbox, 2);
+            mEngine.selectRoute(ROUTE_ID, mTransport);
+            // The hello and the two messages
+            awaitCount(mSentMessages, 3);
+            awaitPending(outbox, 0);
+            assertEquals(0, mFailedMessages.get());
+        } finally {
+            outbox.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void selectingTheActiveRouteKeepsTheSession() throws Exception {
+        mEngine.selectRoute(ROUTE_ID, mTransport);
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        assertTrue(mEngine.hasSession(ROUTE_ID));
+        assertFalse(mEngine.hasSession("other"));
+        assertTrue(mEngine.selectRoute(ROUTE_ID, mTransport));
+        assertEquals(CastSessionEngine.State.RUNNING, mEngine.getState());
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.CONNECT));
+        mEngine.stop();
+        assertFalse(mEngine.hasSession(ROUTE_ID));
+    }
+
+    @Test
+    public void resumedConnectionJoinsTheSession() throws Exception {
+        mEngine.selectRoute(ROUTE_ID, mTransport);
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        mTransport.getListener().onConnectionSuspended(0);
+        assertEquals(CastSessionEngine.State.SUSPENDED, mEngine.getState());
+        mTransport.getListener().onConnected();
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.JOIN));
+        // The deadline of the suspension doesn't fire anymore
+        Thread.sleep(SUSPENDED_TIMEOUT_MILLIS * 2);
+        assertEquals(CastSessionEngine.State.RUNNING, mEngine.getState());
+        assertEquals(0, mTransport.getCount(CountingCastTransport.Call.DISCONNECT));
+    }
+
+    @Test
+    public void suspendedSessionIsReleasedAfterTheDeadline() throws Exception {
+        mEngine.selectRoute(ROUTE_ID, mTransport);
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        mTransport.getListener().onConnectionSuspended(0);
+        awaitState(mEngine, CastSessionEngine.State.IDLE);
+        // The application is left running so the session can be joined later
+        assertEquals(0, mTransport.getCount(CountingCastTransport.Call.STOP_APPLICATION));
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.DISCONNECT));
+        assertTrue(mTransport.isApplicationRunning());
+    }
+
+    @Test
+    public void lostConnectionKeepsTheSessionToJoin() throws Exception {
+        mEngine.selectRoute(ROUTE_ID, mTransport);
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        final String sessionId = mEngine.getSessionId();
+        mTransport.getListener().onConnectionFailed(CountingCastTransport.ERROR_INJECTED);
+        awaitState(mEngine, CastSessionEngine.State.IDLE);
+        assertEquals(0, mTransport.getCount(CountingCastTransport.Call.STOP_APPLICATION));
+        assertEquals(sessionId, mSessionStore.getLastSessionId());
+        // The next selection joins the session instead of launching the application again
+        mEngine.selectRoute(ROUTE_ID, mTransport);
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.JOIN));
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.LAUNCH));
+    }
+
+    @Test
+    public void failedReconnectionsKeepTheSessionToJoin() throws Exception {
+        mEngine.selectRoute(ROUTE_ID, mTransport);
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+        final String sessionId = mEngine.getSessionId();
+        mTransport.failNextConnects(Integer.MAX_VALUE);
+        mTransport.getListener().onConnectionSuspended(0);
+        mTransport.getListener().onConnectionFailed(CountingCastTransport.ERROR_INJECTED);
+        awaitState(mEngine, CastSessionEngine.State.IDLE);
+        assertEquals(0, mTransport.getCount(CountingCastTransport.Call.STOP_APPLICATION));
+        assertTrue(mTransport.isApplicationRunning());
+        assertEquals(sessionId, mSessionStore.getLastSessionId());
+    }
+
+    @Test
+    public void retryAfterCloseFailsTheBatch() throws Exception {
+        final AtomicInteger failed = new AtomicInteger();
+        mTransport.connect(new NoOpConnectionListener());
+        mTransport.failNextSends(1);
+        final OutboundMessageQueue queue = new OutboundMessageQueue.Builder(mTransport,
+                NAMESPACE, mSupport.getScheduler())
+                .setRetryPolicy(new RetryPolicy(200L, 200L, 3))
+                .setListener(new OutboundMessageQueue.Listener() {
+                    @Override
+                    public void onBatchResult(int messageCount, boolean success,
+                                              long oldestLatencyNanos, long roundTripNanos) {
+                        if (!success) {
+                            failed.addAndGet(messageCount);
+                        }
+                    }
+
+                    @Override
+                    public void onMessageShed(OutboundMessageQueue.Priority priority) {
+                    }
+                })
+                .build();
+        while (!mTransport.isReady()) {
+            Thread.sleep(1L);
+        }
+        queue.enqueue("{\"type\":\"fault\"}");
+        queue.flush();
+        // The first attempt fails and the retry waits for the backoff
+        Thread.sleep(50L);
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.SEND));
+        queue.close();
+        awaitCount(failed, 1);
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.SEND));
+        assertEquals(0, queue.getInFlightCount());
+    }
+
+    /**
+     * The ConnectionListener for the transport used without the engine
+     */
+    private static class NoOpConnectionListener implements CastTransport.ConnectionListener {
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onConnectionSuspended(int cause) {
+        }
+
+        @Override
+        public void onConnectionFailed(int errorCode) {
+        }
+
+        @Override
+        public void onApplicationDisconnected(int errorCode) {
+        }
+
+        @Override
+        public void onMessageReceived(String namespace, String message) {
+        }
+    }
+
+    private void awaitPending(final MessageOutbox outbox, final int expected)
+            throws Exception {
+        // The outbox is used on the io executor
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (mSupport.getIoExecutor().submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return outbox.getPendingCount();
+            }
+        }).get() != expected) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1L);
+        }
+    }
+
+    private static void awaitCount(final AtomicInteger count, final int expected)
+            throws InterruptedException {
+        await(expected + " counted", new CastTestSupport.Condition() {
+            @Override
+            public boolean isMet() {
+                return count.get() >= expected;
+            }
+        });
+    }
+}
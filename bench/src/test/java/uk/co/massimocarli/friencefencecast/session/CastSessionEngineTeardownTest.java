@@ -0,0 +1,227 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.ROUTE_ID;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.WAIT_MILLIS;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.await;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.awaitState;
+
+/**
+ * Checks that the teardown of the CastSessionEngine releases the connection once and never
+ * on the main thread. A single thread executor stands in for the main thread of Android.
+ */
+public class CastSessionEngineTeardownTest {
+
+    /**
+     * The time the teardown calls block when the network is slow
+     */
+    private static final long BLOCKING_MILLIS = 300L;
+
+    /**
+     * The max time of the teardown, longer than a slow one
+     */
+    private static final long TEARDOWN_TIMEOUT_MILLIS = 2000L;
+
+    /**
+     * The longest time a call from the main thread can take without a jank
+     */
+    private static final long MAIN_THREAD_BUDGET_MILLIS = 16L;
+
+    private CastTestSupport mSupport;
+
+    private ExecutorService mMainExecutor;
+
+    private volatile Thread mMainThread;
+
+    private CountingCastTransport mTransport;
+
+    private CastSessionEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mSupport = new CastTestSupport();
+        mMainExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                mMainThread = new Thread(runnable, "main");
+                return mMainThread;
+            }
+        });
+        mTransport = new CountingCastTransport(mSupport.getScheduler());
+        mEngine = mSupport.newEngineBuilder()
+                .setTeardownTimeoutMillis(TEARDOWN_TIMEOUT_MILLIS)
+                .build();
+        onMain(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mEngine.selectRoute(ROUTE_ID, mTransport);
+            }
+        });
+        awaitState(mEngine, CastSessionEngine.State.RUNNING);
+    }
+
+    @After
+    public void tearDown() {
+        mMainExecutor.shutdownNow();
+        mSupport.shutdown();
+    }
+
+    @Test
+    public void stopReleasesEverythingOnce() throws Exception {
+        final int startCalls = mTransport.getCountOn(mMainThread);
+        onMain(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.stop();
+                // A second stop is a no-op
+                mEngine.stop();
+                return null;
+            }
+        });
+        awaitState(mEngine, CastSessionEngine.State.IDLE);
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.STOP_APPLICATION));
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.REMOVE_CHANNEL));
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.DETACH_MEDIA));
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.DISCONNECT));
+        assertEquals(startCalls, mTransport.getCountOn(mMainThread));
+    }
+
+    @Test
+    public void disconnectLeavesTheApplicationRunning() throws Exception {
+        onMain(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.disconnect();
+                return null;
+            }
+        });
+        awaitState(mEngine, CastSessionEngine.State.IDLE);
+        assertEquals(0, mTransport.getCount(CountingCastTransport.Call.STOP_APPLICATION));
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.DISCONNECT));
+        assertTrue(mTransport.isApplicationRunning());
+    }
+
+    @Test
+    public void slowTeardownDoesNotBlockTheMainThread() throws Exception {
+        mTransport.setBlockingMillis(BLOCKING_MILLIS);
+        final int startCalls = mTransport.getCountOn(mMainThread);
+        final long stopMillis = onMain(new Callable<Long>() {
+            @Override
+            public Long call() {
+                final long start = System.nanoTime();
+                mEngine.stop();
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        });
+        assertTrue("stop() took " + stopMillis + "ms", stopMillis < MAIN_THREAD_BUDGET_MILLIS);
+        awaitState(mEngine, CastSessionEngine.State.IDLE);
+        // No blocking call has been done on the main thread
+        assertEquals(startCalls, mTransport.getCountOn(mMainThread));
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.DISCONNECT));
+    }
+
+    @Test
+    public void concurrentFailuresTearDownOnce() throws Exception {
+        final CastTransport.ConnectionListener listener = mTransport.getListener();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[3];
+        for (int i = 0; i < threads.length; i++) {
+            final int event = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (event == 0) {
+                        listener.onApplicationDisconnected(0);
+                    } else if (event == 1) {
+                        listener.onConnectionFailed(CountingCastTransport.ERROR_INJECTED);
+                    } else {
+                        mEngine.stop();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        awaitState(mEngine, CastSessionEngine.State.IDLE);
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.STOP_APPLICATION));
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.DISCONNECT));
+    }
+
+    @Test
+    public void stuckTeardownTimesOut() throws Exception {
+        mTransport.setBlockingMillis(TimeUnit.MINUTES.toMillis(1L));
+        onMain(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.stop();
+                return null;
+            }
+        });
+        awaitState(mEngine, CastSessionEngine.State.IDLE);
+        assertEquals(1, mEngine.getTeardownTimeoutCount());
+        // The abandoned teardown disconnects anyway
+        awaitCount(CountingCastTransport.Call.DISCONNECT, 1);
+        assertEquals(0, mTransport.getCount(CountingCastTransport.Call.REMOVE_CHANNEL));
+    }
+
+    @Test
+    public void queuedTeardownIsNotTimedOut() throws Exception {
+        // The io executor is busy longer than the timeout of the teardown
+        mSupport.getIoExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(TEARDOWN_TIMEOUT_MILLIS + BLOCKING_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        onMain(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mEngine.stop();
+                return null;
+            }
+        });
+        awaitState(mEngine, CastSessionEngine.State.IDLE);
+        assertEquals(0, mEngine.getTeardownTimeoutCount());
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.STOP_APPLICATION));
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.REMOVE_CHANNEL));
+        assertEquals(1, mTransport.getCount(CountingCastTransport.Call.DISCONNECT));
+    }
+
+    private <T> T onMain(final Callable<T> task) throws Exception {
+        return mMainExecutor.submit(task).get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void awaitCount(final CountingCastTransport.Call call, final int expected)
+            throws InterruptedException {
+        await(call + " called " + expected + " times", new CastTestSupport.Condition() {
+            @Override
+            public boolean isMet() {
+                return mTransport.getCount(call) >= expected;
+            }
+        });
+    }
+}
@@ -0,0 +1,193 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.massimocarli.friencefencecast.fake.FakeCastTransport;
+import uk.co.massimocarli.friencefencecast.fake.FakeReceiver;
+import uk.co.massimocarli.friencefencecast.fake.LinkConditions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.APP_ID;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.NAMESPACE;
+import static uk.co.massimocarli.friencefencecast.session.CastTestSupport.await;
+
+/**
+ * Runs the CastSessionPool against many {@link FakeReceiver}s and checks that every device
+ * gets the broadcasts, that the time of a broadcast doesn't grow with the number of devices
+ * and that a slow or failing device doesn't delay the others.
+ */
+public class CastSessionPoolTest {
+
+    /**
+     * The type of the messages of the test
+     */
+    private static final String POOL_MESSAGE_TYPE = "pool";
+
+    private static final int MESSAGES = 50;
+
+    /**
+     * The slow devices need more than the usual wait
+     */
+    private static final long WAIT_MILLIS = 15000L;
+
+    private static final LinkConditions FAST_LINK = new LinkConditions(5L, 2L, 0.0, 0);
+
+    private static final LinkConditions SLOW_LINK = new LinkConditions(400L, 0L, 0.0, 0);
+
+    private CastTestSupport mSupport;
+
+    private ScheduledExecutorService mReceiverScheduler;
+
+    private final List<FakeReceiver> mReceivers = new ArrayList<FakeReceiver>();
+
+    private final List<AtomicInteger> mProcessed = new ArrayList<AtomicInteger>();
+
+    private CastSessionPool mPool;
+
+    @Before
+    public void setUp() {
+        mSupport = new CastTestSupport();
+        mReceiverScheduler = Executors.newScheduledThreadPool(2);
+        mPool = new CastSessionPool(new CastSessionPool.EngineFactory() {
+            @Override
+            public CastSessionEngine createEngine(String routeId) {
+                return mSupport.newEngineBuilder().build();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        for (FakeReceiver receiver : mReceivers) {
+            receiver.shutdown();
+        }
+        mReceiverScheduler.shutdownNow();
+        mSupport.shutdown();
+    }
+
+    @Test
+    public void broadcastTimeDoesNotGrowWithTheDevices() throws Exception {
+        addDevices(1, FAST_LINK);
+        final long oneDeviceNanos = broadcastAndAwait();
+        addDevices(7, FAST_LINK);
+        final long eightDevicesNanos = broadcastAndAwait();
+        // Every device has its own queue so they receive the messages in parallel
+        assertTrue("1 device " + oneDeviceNanos / 1000000L + "ms, 8 devices "
+                        + eightDevicesNanos / 1000000L + "ms",
+                eightDevicesNanos < 4 * oneDeviceNanos + TimeUnit.MILLISECONDS.toNanos(500L));
+        assertEquals(0, mPool.getDeviceErrorCount());
+    }
+
+    @Test
+    public void slowDeviceDoesNotDelayTheOthers() throws Exception {
+        addDevices(3, FAST_LINK);
+        addDevices(1, SLOW_LINK);
+        final int[] expected = new int[mProcessed.size()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = mProcessed.get(i).get() + MESSAGES;
+        }
+        broadcast();
+        for (int i = 0; i < 3; i++) {
+            awaitCount(mProcessed.get(i), expected[i]);
+        }
+        // The fast devices are done before the first message reaches the slow one
+        assertTrue(mProcessed.get(3).get() < expected[3]);
+        awaitCount(mProcessed.get(3), expected[3]);
+    }
+
+    @Test
+    public void removedDeviceDoesNotStopTheOthers() throws Exception {
+        addDevices(4, FAST_LINK);
+        mPool.removeRoute("route0");
+        assertEquals(3, mPool.getRunningCount());
+        final int before = mProcessed.get(0).get();
+        broadcastAndAwait(1, 2, 3);
+        assertEquals(before, mProcessed.get(0).get());
+    }
+
+    /**
+     * Adds the given number of devices and waits for their sessions
+     */
+    private void addDevices(final int count, final LinkConditions conditions)
+            throws InterruptedException {
+        final int first = mReceivers.size();
+        for (int i = first; i < first + count; i++) {
+            final AtomicInteger processed = new AtomicInteger();
+            final FakeReceiver receiver = new FakeReceiver.Builder(APP_ID, NAMESPACE,
+                    mReceiverScheduler)
+                    .setLaunchMillis(50L)
+                    .setListener(new FakeReceiver.Listener() {
+                        @Override
+                        public void onMessageProcessed(String message) {
+                            if (message.contains("\"" + POOL_MESSAGE_TYPE + "\"")) {
+                                processed.incrementAndGet();
+                            }
+                        }
+                    })
+                    .build();
+            mReceivers.add(receiver);
+            mProcessed.add(processed);
+            assertTrue(mPool.addRoute("route" + i,
+                    new FakeCastTransport(receiver, conditions, mSupport.getScheduler(), i)));
+        }
+        await("Running sessions", WAIT_MILLIS, new CastTestSupport.Condition() {
+            @Override
+            public boolean isMet() {
+                return mPool.getRunningCount() >= mReceivers.size();
+            }
+        });
+    }
+
+    /**
+     * Broadcasts the messages and waits until all the devices have processed them
+     *
+     * @return The time from the first broadcast to the last message processed
+     */
+    private long broadcastAndAwait() throws InterruptedException {
+        final int[] devices = new int[mReceivers.size()];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = i;
+        }
+        return broadcastAndAwait(devices);
+    }
+
+    private long broadcastAndAwait(final int... devices) throws InterruptedException {
+        final int[] expected = new int[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            expected[i] = mProcessed.get(devices[i]).get() + MESSAGES;
+        }
+        final long start = System.nanoTime();
+        broadcast();
+        for (int i = 0; i < devices.length; i++) {
+            awaitCount(mProcessed.get(devices[i]), expected[i]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void broadcast() {
+        for (int i = 0; i < MESSAGES; i++) {
+            assertEquals(mPool.getRunningCount(), mPool.broadcastMessage("{\"type\":\""
+                    + POOL_MESSAGE_TYPE + "\",\"seq\":" + i + "}"));
+        }
+    }
+
+    private static void awaitCount(final AtomicInteger count, final int expected)
+            throws InterruptedException {
+        await("Processed " + expected, WAIT_MILLIS, new CastTestSupport.Condition() {
+            @Override
+            public boolean isMet() {
+                return count.get() >= expected;
+            }
+        });
+    }
+}
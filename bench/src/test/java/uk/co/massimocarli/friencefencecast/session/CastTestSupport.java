@@ -0,0 +1,138 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.massimocarli.friencefencecast.channel.InboundMessageDispatcher;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The scaffolding the tests of the session share: the ids of the fake application, the
+ * executors of a CastSessionEngine and the polling of a condition with a deadline. Create
+ * it in the setUp of the test and shut it down in the tearDown.
+ */
+public class CastTestSupport {
+
+    public static final String APP_ID = "FAKE0001";
+
+    public static final String ROUTE_ID = "fake";
+
+    public static final String NAMESPACE = "urn:x-cast:uk.co.massimocarli.friendfence";
+
+    /**
+     * The longest time we wait for a condition
+     */
+    public static final long WAIT_MILLIS = 10000L;
+
+    /**
+     * A condition the tests wait for
+     */
+    public interface Condition {
+
+        /**
+         * @return True if the condition is met
+         */
+        boolean isMet();
+    }
+
+    private final ScheduledExecutorService mScheduler;
+
+    private final ExecutorService mIoExecutor;
+
+    private final ExecutorService mInboundExecutor;
+
+    /**
+     * Creates the executors of the engines
+     */
+    public CastTestSupport() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mIoExecutor = Executors.newSingleThreadExecutor();
+        mInboundExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * @return The scheduler of the engines, also used for the callbacks of the transports
+     */
+    public ScheduledExecutorService getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * @return The executor of the blocking calls of the engines
+     */
+    public ExecutorService getIoExecutor() {
+        return mIoExecutor;
+    }
+
+    /**
+     * Creates a Builder with the executors, a dispatcher and a {@link MemorySessionStore}
+     *
+     * @return The Builder of a CastSessionEngine for the fake application
+     */
+    public CastSessionEngine.Builder newEngineBuilder() {
+        return new CastSessionEngine.Builder(APP_ID, NAMESPACE)
+                .setScheduler(mScheduler)
+                .setIoExecutor(mIoExecutor)
+                .setSessionStore(new MemorySessionStore())
+                .setInboundDispatcher(new InboundMessageDispatcher(mInboundExecutor));
+    }
+
+    /**
+     * Stops the executors
+     */
+    public void shutdown() {
+        mScheduler.shutdownNow();
+        mIoExecutor.shutdownNow();
+        mInboundExecutor.shutdownNow();
+    }
+
+    /**
+     * Waits for the state of the engine
+     *
+     * @param engine The engine
+     * @param state  The state to wait for
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public static void awaitState(final CastSessionEngine engine,
+                                  final CastSessionEngine.State state)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (engine.getState() != state) {
+            assertTrue("State " + engine.getState() + " instead of " + state,
+                    System.nanoTime() < deadline);
+            Thread.sleep(1L);
+        }
+    }
+
+    /**
+     * Waits for the condition for at most {@link #WAIT_MILLIS}
+     *
+     * @param description What we wait for, in the message of the failure
+     * @param condition   The condition
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public static void await(final String description, final Condition condition)
+            throws InterruptedException {
+        await(description, WAIT_MILLIS, condition);
+    }
+
+    /**
+     * Waits for the condition and fails the test if it isn't met in time
+     *
+     * @param description What we wait for, in the message of the failure
+     * @param waitMillis  The longest time we wait
+     * @param condition   The condition
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public static void await(final String description, final long waitMillis,
+                             final Condition condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        while (!condition.isMet()) {
+            assertTrue("Timeout waiting for: " + description, System.nanoTime() < deadline);
+            Thread.sleep(1L);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package uk.co.massimocarli.friencefencecast.session;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.massimocarli.friencefencecast.media.CountingRemotePlayer;
+import uk.co.massimocarli.friencefencecast.media.RemotePlayer;
+
+/**
+ * A CastTransport for the tests that counts the calls to the device and remembers the
+ * thread of each one. The results arrive on the callback executor after the given delay.
+ * Faults can be injected: the next connections, launches and sends can fail, the sends can
+ * lose their result and the calls of the teardown can block as they do on a slow network.
+ */
+public class CountingCastTransport implements CastTransport {
+
+    /**
+     * The calls to the device we count
+     */
+    public enum Call {
+        CONNECT,
+        LAUNCH,
+        JOIN,
+        STOP_APPLICATION,
+        SET_CHANNEL,
+        REMOVE_CHANNEL,
+        ATTACH_MEDIA,
+        DETACH_MEDIA,
+        SEND,
+        DISCONNECT
+    }
+
+    /**
+     * The id of the session of the fake application
+     */
+    public static final String SESSION_ID = "session-1";
+
+    /**
+     * The error code of the injected failures
+     */
+    public static final int ERROR_INJECTED = 7;
+
+    private final ScheduledExecutorService mCallbackExecutor;
+
+    private final AtomicInteger[] mCounts = new AtomicInteger[Call.values().length];
+
+    /**
+     * The calls with their threads
+     */
+    private final List<Thread> mThreads = new ArrayList<Thread>();
+
+    private final List<Call> mCalls = new ArrayList<Call>();
+
+    private final AtomicInteger mConnectFailures = new AtomicInteger();
+
+    private final AtomicInteger mLaunchFailures = new AtomicInteger();
+
+    private final AtomicInteger mSendFailures = new AtomicInteger();
+
+    private final AtomicInteger mLostSends = new AtomicInteger();
+
+    private volatile long mResultDelayMillis = 1L;
+
+    private volatile long mBlockingMillis;
+
+    private volatile ConnectionListener mListener;
+
+    private volatile boolean mConnected;
+
+    private volatile boolean mConnecting;
+
+    private volatile boolean mApplicationRunning;
+
+    private volatile CountingRemotePlayer mRemotePlayer;
+
+    /**
+     * Creates a CountingCastTransport
+     *
+     * @param callbackExecutor The executor for the results
+     */
+    public CountingCastTransport(final ScheduledExecutorService callbackExecutor) {
+        this.mCallbackExecutor = callbackExecutor;
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param resultDelayMillis The time the device takes to answer
+     */
+    public void setResultDelayMillis(final long resultDelayMillis) {
+        mResultDelayMillis = resultDelayMillis;
+    }
+
+    /**
+     * @param blockingMillis The time the calls of the teardown block the caller
+     */
+    public void setBlockingMillis(final long blockingMillis) {
+        mBlockingMillis = blockingMillis;
+    }
+
+    /**
+     * @param failures The number of the next connections that fail
+     */
+    public void failNextConnects(final int failures) {
+        mConnectFailures.set(failures);
+    }
+
+    /**
+     * @param failures The number of the next launches that fail
+     */
+    public void failNextLaunches(final int failures) {
+        mLaunchFailures.set(failures);
+    }
+
+    /**
+     * @param failures The number of the next sends that fail
+     */
+    public void failNextSends(final int failures) {
+        mSendFailures.set(failures);
+    }
+
+    /**
+     * @param lostSends The number of the next sends that never get a result
+     */
+    public void loseNextSends(final int lostSends) {
+        mLostSends.set(lostSends);
+    }
+
+    /**
+     * @param call The call
+     * @return The number of times the call has been done
+     */
+    public int getCount(final Call call) {
+        return mCounts[call.ordinal()].get();
+    }
+
+    /**
+     * @param thread The thread
+     * @return The number of calls done on the given thread
+     */
+    public synchronized int getCountOn(final Thread thread) {
+        int count = 0;
+        for (Thread caller : mThreads) {
+            if (caller == thread) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The calls in the order they have been done
+     */
+    public synchronized List<Call> getCalls() {
+        return new ArrayList<Call>(mCalls);
+    }
+
+    /**
+     * @return The listener of the connection, to inject its events
+     */
+    public ConnectionListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * @return The player of the media channel or null
+     */
+    public CountingRemotePlayer getCountingPlayer() {
+        return mRemotePlayer;
+    }
+
+    /**
+     * @return True if the Receiver application is running
+     */
+    public boolean isApplicationRunning() {
+        return mApplicationRunning;
+    }
+
+    @Override
+    public void connect(final ConnectionListener listener) {
+        record(Call.CONNECT);
+        mListener = listener;
+        mConnecting = true;
+        final boolean failed = mConnectFailures.getAndDecrement() > 0;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                mConnecting = false;
+                mConnected = !failed;
+                if (failed) {
+                    listener.onConnectionFailed(ERROR_INJECTED);
+                } else {
+                    listener.onConnected();
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean isConnecting() {
+        return mConnecting;
+    }
+
+    @Override
+    public boolean isReady() {
+        return mConnected;
+    }
+
+    @Override
+    public void launchApplication(final String appId, final ResultListener<String> listener) {
+        record(Call.LAUNCH);
+        final boolean success = mConnected && mLaunchFailures.getAndDecrement() <= 0;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                mApplicationRunning |= success;
+                listener.onResult(success, success ? SESSION_ID : null);
+            }
+        });
+    }
+
+    @Override
+    public void joinApplication(final String appId, final String sessionId,
+                                final ResultListener<String> listener) {
+        record(Call.JOIN);
+        final boolean success = mConnected && mApplicationRunning
+                && SESSION_ID.equals(sessionId);
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                listener.onResult(success, success ? SESSION_ID : null);
+            }
+        });
+    }
+
+    @Override
+    public void stopApplication(final String sessionId) {
+        record(Call.STOP_APPLICATION);
+        block();
+        mApplicationRunning = false;
+    }
+
+    @Override
+    public void setMessageChannel(final String namespace) throws IOException {
+        record(Call.SET_CHANNEL);
+        if (!mConnected) {
+            throw new IOException("Not connected");
+        }
+    }
+
+    @Override
+    public void removeMessageChannel(final String namespace) throws IOException {
+        record(Call.REMOVE_CHANNEL);
+        block();
+    }
+
+    @Override
+    public void attachMediaChannel() throws IOException {
+        record(Call.ATTACH_MEDIA);
+        if (!mConnected) {
+            throw new IOException("Not connected");
+        }
+        mRemotePlayer = new CountingRemotePlayer(mCallbackExecutor);
+    }
+
+    @Override
+    public void detachMediaChannel() throws IOException {
+        record(Call.DETACH_MEDIA);
+        block();
+        mRemotePlayer = null;
+    }
+
+    @Override
+    public RemotePlayer getRemotePlayer() {
+        return mRemotePlayer;
+    }
+
+    @Override
+    public void sendMessage(final String namespace, final String message,
+                            final SendCallback callback) {
+        record(Call.SEND);
+        if (mLostSends.getAndDecrement() > 0) {
+            return;
+        }
+        final boolean success = mConnected && mSendFailures.getAndDecrement() <= 0;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                callback.onSendResult(success);
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        record(Call.DISCONNECT);
+        block();
+        mConnected = false;
+        mConnecting = false;
+    }
+
+    private synchronized void record(final Call call) {
+        mCounts[call.ordinal()].incrementAndGet();
+        mCalls.add(call);
+        mThreads.add(Thread.currentThread());
+    }
+
+    private void schedule(final Runnable result) {
+        mCallbackExecutor.schedule(result, mResultDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Blocks the caller as a call on a slow network does
+     */
+    private void block() {
+        final long blockingMillis = mBlockingMillis;
+        if (blockingMillis > 0) {
+            try {
+                Thread.sleep(blockingMillis);
+            } catch (InterruptedException e) {
+                // The teardown has been abandoned
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}